@@ -0,0 +1,549 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.UniqueRupture;
+import org.opensha.sha.faultSurface.FaultSection;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compact binary [de]serialization of {@link ClusterRupture} lists, which is much smaller and faster than the JSON
+ * format for large rupture sets. The full rupture tree is stored (clusters, internal jumps and splays), with sections
+ * referenced by their index in the subsection list (which must equal their section ID).
+ * <p>
+ * Ruptures are grouped into fixed size blocks, each of which is optionally compressed on its own. Reading only
+ * decompresses a block when one of its ruptures is first accessed, and each rupture is decoded lazily from that
+ * block the first time it is retrieved from the returned list.
+ * <p>
+ * File format (big endian, varints are unsigned LEB128 and zig-zag is used for signed values):
+ * <pre>
+ * magic - int
+ * version - short
+ * compression - byte (see {@link Compression})
+ * blockSize - int, number of ruptures per block
+ * numRuptures - int
+ * for each block: block data, possibly compressed
+ * for each block: offset of the block from the start of the file - long, uncompressed block length - int
+ * end offset of the last block - long
+ * offset of the block index - long
+ * </pre>
+ * Uncompressed block data:
+ * <pre>
+ * for each rupture in the block: offset of its record from the start of the block - int
+ * for each rupture in the block: strand record (below)
+ * </pre>
+ * Strand record (recursive for splays):
+ * <pre>
+ * numClusters - varint
+ * for each cluster:
+ *   numSects - varint
+ *   first section index - varint
+ *   for each subsequent section: zig-zag (index - previous index) - varint
+ *   flags - byte, 0x1: custom start section, 0x2: custom end sections
+ *   if custom start: index of the start section within this cluster - varint
+ *   if custom ends: numEnds - varint, then for each the index within this cluster - varint
+ * for each internal jump (numClusters-1):
+ *   index of the from section within the from cluster - varint
+ *   index of the to section within the to cluster - varint
+ *   distance - double
+ * numSplays - varint
+ * for each splay:
+ *   index of the from cluster within this strand - varint
+ *   index of the from section within the from cluster - varint
+ *   index of the to section within the first cluster of the splay - varint
+ *   distance - double
+ *   splay strand record
+ * </pre>
+ */
+public class ClusterRuptureBinaryIO {
+
+	private static final int MAGIC = 0x43525550; // "CRUP"
+	private static final short VERSION = 1;
+	private static final int HEADER_LEN = 15;
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+	public enum Compression {
+		NONE((byte)0),
+		DEFLATE((byte)1);
+
+		private final byte id;
+
+		private Compression(byte id) {
+			this.id = id;
+		}
+
+		private static Compression forID(byte id) {
+			for (Compression compression : values())
+				if (compression.id == id)
+					return compression;
+			throw new IllegalStateException("Unknown compression type: "+id);
+		}
+	}
+
+	/*
+	 * Writing
+	 */
+
+	public static void write(File file, List<ClusterRupture> ruptures, Compression compression) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		write(out, ruptures, compression);
+		out.close();
+	}
+
+	/**
+	 * Writes the given ruptures with the default block size. The stream is flushed but not closed.
+	 *
+	 * @param out
+	 * @param ruptures
+	 * @param compression
+	 * @throws IOException
+	 */
+	public static void write(OutputStream out, List<ClusterRupture> ruptures, Compression compression)
+			throws IOException {
+		write(out, ruptures, compression, DEFAULT_BLOCK_SIZE);
+	}
+
+	public static void write(OutputStream out, List<ClusterRupture> ruptures, Compression compression,
+			int blockSize) throws IOException {
+		Preconditions.checkArgument(blockSize > 0, "Block size must be positive");
+		DataOutputStream dout = new DataOutputStream(out);
+		dout.writeInt(MAGIC);
+		dout.writeShort(VERSION);
+		dout.writeByte(compression.id);
+		dout.writeInt(blockSize);
+		dout.writeInt(ruptures.size());
+
+		int numBlocks = (ruptures.size() + blockSize - 1)/blockSize;
+		long[] blockOffsets = new long[numBlocks+1];
+		int[] blockLengths = new int[numBlocks];
+		long pos = HEADER_LEN;
+
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		DataOutputStream recordsOut = new DataOutputStream(records);
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		DataOutputStream blockOut = new DataOutputStream(block);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		for (int b=0; b<numBlocks; b++) {
+			int start = b*blockSize;
+			int end = Integer.min(start+blockSize, ruptures.size());
+			int numInBlock = end - start;
+
+			records.reset();
+			int[] recordOffsets = new int[numInBlock];
+			for (int r=0; r<numInBlock; r++) {
+				recordOffsets[r] = 4*numInBlock + records.size();
+				writeStrand(recordsOut, ruptures.get(start+r));
+			}
+
+			block.reset();
+			for (int offset : recordOffsets)
+				blockOut.writeInt(offset);
+			records.writeTo(block);
+			blockLengths[b] = block.size();
+			blockOffsets[b] = pos;
+
+			switch (compression) {
+			case NONE:
+				block.writeTo(dout);
+				pos += block.size();
+				break;
+			case DEFLATE:
+				compressed.reset();
+				DeflaterOutputStream deflateOut = new DeflaterOutputStream(compressed);
+				block.writeTo(deflateOut);
+				deflateOut.close();
+				compressed.writeTo(dout);
+				pos += compressed.size();
+				break;
+
+			default:
+				throw new IllegalStateException("Unsupported compression: "+compression);
+			}
+		}
+		blockOffsets[numBlocks] = pos;
+
+		long indexOffset = pos;
+		for (int b=0; b<numBlocks; b++) {
+			dout.writeLong(blockOffsets[b]);
+			dout.writeInt(blockLengths[b]);
+		}
+		dout.writeLong(blockOffsets[numBlocks]);
+		dout.writeLong(indexOffset);
+		dout.flush();
+	}
+
+	private static void writeStrand(DataOutputStream out, ClusterRupture rupture) throws IOException {
+		FaultSubsectionCluster[] clusters = rupture.clusters;
+		writeVarInt(out, clusters.length);
+		for (FaultSubsectionCluster cluster : clusters) {
+			List<FaultSection> sects = cluster.subSects;
+			writeVarInt(out, sects.size());
+			int prevID = sects.get(0).getSectionId();
+			writeVarInt(out, prevID);
+			for (int s=1; s<sects.size(); s++) {
+				int id = sects.get(s).getSectionId();
+				writeZigZag(out, id - prevID);
+				prevID = id;
+			}
+			boolean customStart = !cluster.startSect.equals(sects.get(0));
+			boolean customEnds = cluster.endSects.size() != 1
+					|| !cluster.endSects.iterator().next().equals(sects.get(sects.size()-1));
+			out.writeByte((customStart ? 0x1 : 0) | (customEnds ? 0x2 : 0));
+			if (customStart)
+				writeVarInt(out, indexIn(cluster, cluster.startSect));
+			if (customEnds) {
+				writeVarInt(out, cluster.endSects.size());
+				for (FaultSection endSect : cluster.endSects)
+					writeVarInt(out, indexIn(cluster, endSect));
+			}
+		}
+		for (int i=0; i<rupture.internalJumps.size(); i++) {
+			Jump jump = rupture.internalJumps.get(i);
+			Preconditions.checkState(jump.fromCluster == clusters[i] && jump.toCluster == clusters[i+1],
+					"Internal jumps are not in cluster order: %s", rupture);
+			writeVarInt(out, indexIn(jump.fromCluster, jump.fromSection));
+			writeVarInt(out, indexIn(jump.toCluster, jump.toSection));
+			out.writeDouble(jump.distance);
+		}
+		writeVarInt(out, rupture.splays.size());
+		for (Jump jump : rupture.splays.keySet()) {
+			int fromIndex = -1;
+			for (int c=0; c<clusters.length; c++) {
+				if (clusters[c] == jump.fromCluster) {
+					fromIndex = c;
+					break;
+				}
+			}
+			Preconditions.checkState(fromIndex >= 0, "Splay jump is not from this strand: %s", jump);
+			ClusterRupture splay = rupture.splays.get(jump);
+			writeVarInt(out, fromIndex);
+			writeVarInt(out, indexIn(jump.fromCluster, jump.fromSection));
+			writeVarInt(out, indexIn(splay.clusters[0], jump.toSection));
+			out.writeDouble(jump.distance);
+			writeStrand(out, splay);
+		}
+	}
+
+	private static int indexIn(FaultSubsectionCluster cluster, FaultSection sect) {
+		int index = cluster.subSects.indexOf(sect);
+		Preconditions.checkState(index >= 0, "Section %s is not in cluster %s", sect.getSectionId(), cluster);
+		return index;
+	}
+
+	private static void writeVarInt(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static void writeZigZag(OutputStream out, int value) throws IOException {
+		writeVarInt(out, (value << 1) ^ (value >> 31));
+	}
+
+	/*
+	 * Reading
+	 */
+
+	/**
+	 * @param data
+	 * @return true if the given data starts with the binary rupture list magic number
+	 */
+	public static boolean isBinary(byte[] data) {
+		return data.length >= 4 && ByteBuffer.wrap(data).getInt() == MAGIC;
+	}
+
+	public static List<ClusterRupture> read(File file, List<? extends FaultSection> subSects) throws IOException {
+		Preconditions.checkState(file.length() < Integer.MAX_VALUE, "File is too large: %s", file);
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		byte[] data = new byte[(int)file.length()];
+		readFully(in, data);
+		in.close();
+		return read(data, subSects);
+	}
+
+	/**
+	 * Reads all bytes of the given stream (which is then closed) and returns a lazily decoded list of ruptures.
+	 *
+	 * @param in
+	 * @param subSects
+	 * @return lazily decoded list of ruptures
+	 * @throws IOException
+	 */
+	public static List<ClusterRupture> read(InputStream in, List<? extends FaultSection> subSects)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+		byte[] buf = new byte[1 << 16];
+		int read;
+		while ((read = in.read(buf)) > 0)
+			bytes.write(buf, 0, read);
+		in.close();
+		return read(bytes.toByteArray(), subSects);
+	}
+
+	/**
+	 * @param data
+	 * @param subSects
+	 * @return lazily decoded list of ruptures backed by the given data, which must not be modified
+	 */
+	public static List<ClusterRupture> read(byte[] data, List<? extends FaultSection> subSects) {
+		return new LazyRuptureList(data, subSects);
+	}
+
+	private static void readFully(InputStream in, byte[] data) throws IOException {
+		int pos = 0;
+		while (pos < data.length) {
+			int read = in.read(data, pos, data.length - pos);
+			if (read < 0)
+				throw new IOException("Unexpected end of stream after "+pos+" bytes");
+			pos += read;
+		}
+	}
+
+	private static class LazyRuptureList extends AbstractList<ClusterRupture> implements RandomAccess {
+
+		private final byte[] data;
+		private final List<? extends FaultSection> subSects;
+		private final Compression compression;
+		private final int blockSize;
+		private final int numRuptures;
+		private final long[] blockOffsets;
+		private final int[] blockLengths;
+
+		private final AtomicReferenceArray<ClusterRupture> ruptures;
+		// identical clusters are shared between ruptures, as when reading JSON
+		private final ConcurrentMap<FaultSubsectionCluster, FaultSubsectionCluster> prevClustersMap;
+
+		// most recently decompressed block
+		private int cachedBlockIndex = -1;
+		private ByteBuffer cachedBlock;
+
+		public LazyRuptureList(byte[] data, List<? extends FaultSection> subSects) {
+			this.data = data;
+			this.subSects = subSects;
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			Preconditions.checkState(data.length >= HEADER_LEN && buf.getInt() == MAGIC,
+					"Not a binary cluster rupture file");
+			short version = buf.getShort();
+			Preconditions.checkState(version == VERSION, "Unsupported binary cluster rupture version: %s", version);
+			compression = Compression.forID(buf.get());
+			blockSize = buf.getInt();
+			numRuptures = buf.getInt();
+			Preconditions.checkState(blockSize > 0 && numRuptures >= 0, "Bad header: blockSize=%s, numRuptures=%s",
+					blockSize, numRuptures);
+
+			int numBlocks = (numRuptures + blockSize - 1)/blockSize;
+			buf.position(data.length - 8);
+			long indexOffset = buf.getLong();
+			Preconditions.checkState(indexOffset == data.length - 16 - 12l*numBlocks,
+					"Block index is inconsistent with %s blocks", numBlocks);
+			buf.position((int)indexOffset);
+			blockOffsets = new long[numBlocks+1];
+			blockLengths = new int[numBlocks];
+			for (int b=0; b<numBlocks; b++) {
+				blockOffsets[b] = buf.getLong();
+				blockLengths[b] = buf.getInt();
+			}
+			blockOffsets[numBlocks] = buf.getLong();
+			Preconditions.checkState(blockOffsets[numBlocks] == indexOffset, "Block data end mismatch");
+
+			ruptures = new AtomicReferenceArray<>(numRuptures);
+			prevClustersMap = new ConcurrentHashMap<>();
+		}
+
+		@Override
+		public ClusterRupture get(int index) {
+			Preconditions.checkElementIndex(index, numRuptures);
+			ClusterRupture rupture = ruptures.get(index);
+			if (rupture == null) {
+				rupture = decode(index);
+				if (!ruptures.compareAndSet(index, null, rupture))
+					// another thread beat us to it, use theirs so that the same instance is always returned
+					rupture = ruptures.get(index);
+			}
+			return rupture;
+		}
+
+		@Override
+		public int size() {
+			return numRuptures;
+		}
+
+		private synchronized ByteBuffer getBlock(int blockIndex) {
+			if (blockIndex != cachedBlockIndex) {
+				int start = (int)blockOffsets[blockIndex];
+				int len = (int)(blockOffsets[blockIndex+1] - start);
+				switch (compression) {
+				case NONE:
+					cachedBlock = ByteBuffer.wrap(data, start, len).slice();
+					break;
+				case DEFLATE:
+					byte[] block = new byte[blockLengths[blockIndex]];
+					Inflater inflater = new Inflater();
+					try {
+						inflater.setInput(data, start, len);
+						int read = 0;
+						while (read < block.length && !inflater.finished()) {
+							int count = inflater.inflate(block, read, block.length - read);
+							Preconditions.checkState(count > 0 || !inflater.needsInput(), "Truncated block %s", blockIndex);
+							read += count;
+						}
+						Preconditions.checkState(read == block.length, "Block %s decompressed to %s bytes, expected %s",
+								blockIndex, read, block.length);
+					} catch (DataFormatException e) {
+						throw ExceptionUtils.asRuntimeException(e);
+					} finally {
+						inflater.end();
+					}
+					cachedBlock = ByteBuffer.wrap(block);
+					break;
+
+				default:
+					throw new IllegalStateException("Unsupported compression: "+compression);
+				}
+				cachedBlockIndex = blockIndex;
+			}
+			// duplicate so that callers have their own position
+			return cachedBlock.duplicate();
+		}
+
+		private ClusterRupture decode(int index) {
+			ByteBuffer block = getBlock(index / blockSize);
+			int indexInBlock = index % blockSize;
+			block.position(block.getInt(4*indexInBlock));
+			return readStrand(block);
+		}
+
+		private FaultSection getSect(int sectID) {
+			Preconditions.checkState(sectID >= 0 && sectID < subSects.size(),
+					"sectID=%s outside valid range: [0,%s]", sectID, subSects.size()-1);
+			FaultSection sect = subSects.get(sectID);
+			Preconditions.checkState(sect.getSectionId() == sectID,
+					"Subsection indexing mismatch. Section at index %s has sectID=%s", sectID, sect.getSectionId());
+			return sect;
+		}
+
+		private ClusterRupture readStrand(ByteBuffer in) {
+			FaultSubsectionCluster[] clusters = new FaultSubsectionCluster[readVarInt(in)];
+			Preconditions.checkState(clusters.length > 0, "Strand has no clusters");
+			for (int c=0; c<clusters.length; c++) {
+				int numSects = readVarInt(in);
+				Preconditions.checkState(numSects > 0, "Cluster has no sections");
+				List<FaultSection> sects = new ArrayList<>(numSects);
+				int prevID = readVarInt(in);
+				sects.add(getSect(prevID));
+				for (int s=1; s<numSects; s++) {
+					prevID += readZigZag(in);
+					sects.add(getSect(prevID));
+				}
+				byte flags = in.get();
+				FaultSection startSect = sects.get(0);
+				if ((flags & 0x1) != 0)
+					startSect = sects.get(readVarInt(in));
+				List<FaultSection> endSects = null;
+				if ((flags & 0x2) != 0) {
+					int numEnds = readVarInt(in);
+					endSects = new ArrayList<>(numEnds);
+					for (int e=0; e<numEnds; e++)
+						endSects.add(sects.get(readVarInt(in)));
+				}
+				FaultSubsectionCluster cluster = new FaultSubsectionCluster(sects, startSect, endSects);
+				FaultSubsectionCluster prev = prevClustersMap.putIfAbsent(cluster, cluster);
+				clusters[c] = prev == null ? cluster : prev;
+			}
+
+			ImmutableList.Builder<Jump> internalJumpsBuilder = ImmutableList.builderWithExpectedSize(clusters.length-1);
+			boolean singleStrand = true;
+			for (int c=0; c<clusters.length-1; c++) {
+				FaultSubsectionCluster fromCluster = clusters[c];
+				FaultSubsectionCluster toCluster = clusters[c+1];
+				FaultSection fromSect = fromCluster.subSects.get(readVarInt(in));
+				FaultSection toSect = toCluster.subSects.get(readVarInt(in));
+				Jump jump = buildJump(fromSect, fromCluster, toSect, toCluster, in.getDouble());
+				singleStrand = singleStrand && fromSect.equals(fromCluster.subSects.get(fromCluster.subSects.size()-1))
+						&& toSect.equals(toCluster.subSects.get(0));
+				internalJumpsBuilder.add(jump);
+			}
+			ImmutableList<Jump> internalJumps = internalJumpsBuilder.build();
+
+			UniqueRupture internalUnique = UniqueRupture.forClusters(clusters);
+			UniqueRupture unique = internalUnique;
+			int numSplays = readVarInt(in);
+			ImmutableMap<Jump, ClusterRupture> splays;
+			if (numSplays == 0) {
+				splays = ImmutableMap.of();
+			} else {
+				singleStrand = false;
+				ImmutableMap.Builder<Jump, ClusterRupture> splayBuilder = ImmutableMap.builderWithExpectedSize(numSplays);
+				for (int i=0; i<numSplays; i++) {
+					FaultSubsectionCluster fromCluster = clusters[readVarInt(in)];
+					FaultSection fromSect = fromCluster.subSects.get(readVarInt(in));
+					int toSectIndex = readVarInt(in);
+					double distance = in.getDouble();
+					ClusterRupture splay = readStrand(in);
+					FaultSubsectionCluster toCluster = splay.clusters[0];
+					Jump jump = buildJump(fromSect, fromCluster, toCluster.subSects.get(toSectIndex), toCluster, distance);
+					splayBuilder.put(jump, splay);
+					unique = UniqueRupture.add(unique, splay.unique);
+				}
+				splays = splayBuilder.build();
+			}
+
+			return new ClusterRupture(clusters, internalJumps, splays, unique, internalUnique, singleStrand);
+		}
+
+		private Jump buildJump(FaultSection fromSect, FaultSubsectionCluster fromCluster, FaultSection toSect,
+				FaultSubsectionCluster toCluster, double distance) {
+			Jump jump = new Jump(fromSect, fromCluster, toSect, toCluster, distance);
+			// register the connection as the JSON reader does; clusters are shared, so lock on the from cluster
+			synchronized (fromCluster) {
+				fromCluster.addConnection(jump);
+			}
+			return jump;
+		}
+	}
+
+	private static int readVarInt(ByteBuffer buf) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buf.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static int readZigZag(ByteBuffer buf) {
+		int zigzag = readVarInt(buf);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+}
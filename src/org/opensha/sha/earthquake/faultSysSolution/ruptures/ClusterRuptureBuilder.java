@@ -4,19 +4,21 @@ import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
@@ -25,6 +27,8 @@ import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.FaultUtils;
 import org.opensha.commons.util.XMLUtils;
 import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.BatchCoulombPlausibilityFilter;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.IncrementalPlausibilityFilter;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.PlausibilityConfiguration;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.PlausibilityConfiguration.Builder;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.PlausibilityFilter;
@@ -34,14 +38,18 @@ import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.impl.pa
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.impl.prob.*;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.strategies.*;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.strategies.ExhaustiveBilateralRuptureGrowingStrategy.SecondaryVariations;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.CompactUniqueRuptureSet;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.FilterDataClusterRupture;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.GeoJSONFaultReader;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.GeoJSONFaultReader.GeoSlipRateRecord;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.RuptureSpillFile;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.SectionDistanceAzimuthCalculator;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.UniqueRupture;
 import org.opensha.sha.faultSurface.FaultSection;
 import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCache;
 import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator;
+import org.opensha.sha.simulators.stiffness.StiffnessAggregationBatch;
+import org.opensha.sha.simulators.stiffness.StiffnessAggregationBatch.MissingAggregationException;
 import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator;
 import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator.AggregationMethod;
 import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.PatchAlignment;
@@ -50,6 +58,7 @@ import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.Stiffness
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Range;
 import com.google.common.primitives.Ints;
 
@@ -71,8 +80,11 @@ public class ClusterRuptureBuilder {
 	
 	private List<FaultSubsectionCluster> clusters;
 	private List<PlausibilityFilter> filters;
+	// Coulomb filters which will be evaluated in batches of candidate ruptures
+	private List<BatchCoulombPlausibilityFilter> batchFilters;
 	private int maxNumSplays = 0;
 	private SectionDistanceAzimuthCalculator distAzCalc;
+	private ClusterJumpTable jumpTable;
 	
 	private RupDebugCriteria debugCriteria;
 	private boolean stopAfterDebugMatch;
@@ -85,6 +97,8 @@ public class ClusterRuptureBuilder {
 	public ClusterRuptureBuilder(PlausibilityConfiguration configuration) {
 		this(configuration.getConnectionStrategy().getClusters(), configuration.getFilters(),
 				configuration.getMaxNumSplays(), configuration.getDistAzCalc());
+		if (distAzCalc != null)
+			this.jumpTable = configuration.getConnectionStrategy().getJumpTable();
 	}
 	
 	/**
@@ -100,6 +114,10 @@ public class ClusterRuptureBuilder {
 		this.filters = filters;
 		this.maxNumSplays = maxNumSplays;
 		this.distAzCalc = distAzCalc;
+		this.batchFilters = new ArrayList<>();
+		for (PlausibilityFilter filter : filters)
+			if (filter instanceof BatchCoulombPlausibilityFilter)
+				batchFilters.add((BatchCoulombPlausibilityFilter)filter);
 	}
 	
 	/**
@@ -115,11 +133,13 @@ public class ClusterRuptureBuilder {
 	}
 	
 	private class ProgressTracker {
-		// rupture size & count tracking
-		private int largestRup;
+		// rupture size & count tracking. passing ruptures are deduplicated in per thread shards, so found counts
+		// can include ruptures also found by other threads until they are merged
+		private final AtomicInteger largestRup = new AtomicInteger();
 		private int largestRupPrintMod = 10;
-		private int rupCountPrintMod = 1000;
-		private HashSet<UniqueRupture> allPassedUniques;
+		private volatile int rupCountPrintMod = 1000;
+		private final AtomicInteger numFound = new AtomicInteger();
+		private volatile int numMerged;
 		
 		// start cluster tracking
 		private HashSet<Integer> startClusterIDs = new HashSet<>();
@@ -132,43 +152,53 @@ public class ClusterRuptureBuilder {
 		private int prevCount;
 		
 		public ProgressTracker() {
-			this.largestRup = 0;
-			this.allPassedUniques = new HashSet<>();
 			this.startTime = System.currentTimeMillis();
 			this.prevTime = startTime;
 		}
 		
-		public synchronized void processPassedRupture(ClusterRupture rup) {
-			if (!allPassedUniques.contains(rup.unique)) {
-				allPassedUniques.add(rup.unique);
-				int count = rup.getTotalNumSects();
-				if (count > largestRup) {
-					largestRup = count;
-					if (largestRup % largestRupPrintMod == 0) {
-						System.out.println("New largest rup has "+largestRup
-								+" subsections with "+rup.getTotalNumJumps()+" jumps and "
-								+rup.splays.size()+" splays.");
-						printCountAndStartClusterStatus();
-						return;
-					}
-				}
-				int numUnique = allPassedUniques.size();
-				if (numUnique % rupCountPrintMod == 0) {
-					if (rupCountPrintMod <= 1000000) {
-						if (numUnique == 10000)
-							rupCountPrintMod = 5000;
-						if (numUnique == 50000)
-							rupCountPrintMod = 10000;
-						else if (numUnique == 100000)
-							rupCountPrintMod = 25000;
-						else if (numUnique == 500000)
-							rupCountPrintMod = 50000;
-						else if (numUnique == 1000000)
-							rupCountPrintMod = 100000;
-					}
+		/**
+		 * Called for each passing rupture which is new to the current thread's dedup shard. This is not
+		 * synchronized, so that threads only contend when printing status.
+		 * 
+		 * @param rup
+		 */
+		public void processPassedRupture(ClusterRupture rup) {
+			int found = numFound.incrementAndGet();
+			int count = rup.getTotalNumSects();
+			if (largestRup.getAndAccumulate(count, Math::max) < count && count % largestRupPrintMod == 0) {
+				synchronized (this) {
+					System.out.println("New largest rup has "+count
+							+" subsections with "+rup.getTotalNumJumps()+" jumps and "
+							+rup.splays.size()+" splays.");
 					printCountAndStartClusterStatus();
 				}
+				return;
 			}
+			if (found % rupCountPrintMod == 0)
+				printFoundCount(found);
+		}
+		
+		private synchronized void printFoundCount(int found) {
+			if (rupCountPrintMod <= 1000000) {
+				if (found == 10000)
+					rupCountPrintMod = 5000;
+				if (found == 50000)
+					rupCountPrintMod = 10000;
+				else if (found == 100000)
+					rupCountPrintMod = 25000;
+				else if (found == 500000)
+					rupCountPrintMod = 50000;
+				else if (found == 1000000)
+					rupCountPrintMod = 100000;
+			}
+			printCountAndStartClusterStatus();
+		}
+		
+		/**
+		 * @param numMerged number of unique ruptures merged so far
+		 */
+		public void setNumMerged(int numMerged) {
+			this.numMerged = numMerged;
 		}
 		
 		public synchronized int newStartCluster(int parentSectionID) {
@@ -205,7 +235,7 @@ public class ClusterRuptureBuilder {
 				else
 					futuresOutstanding += futures.size();
 			}
-			int numRups = allPassedUniques.size();
+			int numRups = numFound.get();
 			if (numRups == prevCount && newlyCompleted.isEmpty())
 				return;
 			for (Integer parentID : newlyCompleted) {
@@ -213,7 +243,8 @@ public class ClusterRuptureBuilder {
 				completedStartClusters.add(parentID);
 			}
 			StringBuilder str = new StringBuilder("\t").append(countDF.format(numRups));
-			str.append(" total unique passing ruptures found, longest has ").append(largestRup);
+			str.append(" passing ruptures found (").append(countDF.format(numMerged));
+			str.append(" unique merged), longest has ").append(largestRup.get());
 			str.append(" subsections.\tClusters: ").append(runningStartClusterFutures.size());
 			str.append(" running (").append(futuresOutstanding).append(" futures), ");
 			str.append(completedStartClusters.size()).append(" completed, ");
@@ -291,63 +322,84 @@ public class ClusterRuptureBuilder {
 	 */
 	public List<ClusterRupture> build(RuptureGrowingStrategy growingStrategy, int numThreads) {
 		growingStrategy.clearCaches();
-		List<ClusterRupture> rups = new ArrayList<>();
-		HashSet<UniqueRupture> uniques = new HashSet<>();
-		ProgressTracker track = new ProgressTracker();
+		BuildContext context = new BuildContext(growingStrategy, new ProgressTracker(), numThreads > 1, null);
+		
+		runBuild(context, numThreads);
+		
+		return context.rups;
+	}
+	
+	/**
+	 * This builds ruptures using the given growing strategy with the given number of threads, streaming each unique
+	 * rupture to the given spill file writer as soon as its start cluster has been merged rather than holding all
+	 * ruptures in memory. The final rupture set can then be assembled from disk via
+	 * {@link #buildClusterRupSet(ScalingRelationships, List, PlausibilityConfiguration, RuptureSpillFile.Reader)}.
+	 * <p>
+	 * When multi threaded, completed start clusters which are waiting for earlier start clusters to be merged are
+	 * also held on disk, in temporary spill files next to the given spill file.
+	 * <p>
+	 * The writer is not closed by this method.
+	 * 
+	 * @param growingStrategy strategy for determining unique & viable subsection variations 
+	 * for each cluster 
+	 * @param numThreads
+	 * @param spill writer to which ruptures will be written
+	 * @return number of unique ruptures written
+	 */
+	public int build(RuptureGrowingStrategy growingStrategy, int numThreads, RuptureSpillFile.Writer spill) {
+		Preconditions.checkNotNull(spill);
+		growingStrategy.clearCaches();
+		int prevCount = spill.size();
+		BuildContext context = new BuildContext(growingStrategy, new ProgressTracker(), numThreads > 1, spill);
+		
+		runBuild(context, numThreads);
+		
+		return spill.size() - prevCount;
+	}
+	
+	private void runBuild(BuildContext context, int numThreads) {
+		ProgressTracker track = context.track;
+		List<StartClusterTask> tasks = new ArrayList<>();
+		for (FaultSubsectionCluster cluster : clusters)
+			tasks.add(new StartClusterTask(context, cluster));
 		
 		if (numThreads <= 1) {
-			for (FaultSubsectionCluster cluster : clusters) {
-				ClusterBuildCallable build = new ClusterBuildCallable(
-						growingStrategy, cluster, uniques, track, null);
-				try {
-					build.call();
-				} catch (Exception e) {
-					throw ExceptionUtils.asRuntimeException(e);
-				}
-				try {
-					build.merge(rups);
-				} catch (InterruptedException | ExecutionException e) {
-					throw ExceptionUtils.asRuntimeException(e);
-				}
-				if (build.debugStop)
+			for (StartClusterTask task : tasks) {
+				track.addStartClusterFuture(task.cluster.parentSectionID, task);
+				task.invoke();
+				context.merge(task);
+				if (context.debugStop)
 					break;
 			}
 		} else {
-			// multi threaded
-			ExecutorService exec = Executors.newFixedThreadPool(numThreads);
-			
-			List<Future<ClusterBuildCallable>> futures = new ArrayList<>();
+			// multi threaded, with work stealing: each start cluster is its own task, and growth is
+			// further split into sub tasks at jump points whenever other threads are running out of work
+			ForkJoinPool pool = new ForkJoinPool(numThreads);
 			
-			for (FaultSubsectionCluster cluster : clusters) {
-				ClusterBuildCallable build = new ClusterBuildCallable(
-						growingStrategy, cluster, uniques, track, exec);
-				futures.add(exec.submit(build));
+			for (StartClusterTask task : tasks) {
+				track.addStartClusterFuture(task.cluster.parentSectionID, task);
+				pool.execute(task);
 			}
 			
-			System.out.println("Waiting on "+futures.size()+" cluster build futures");
-			for (Future<ClusterBuildCallable> future : futures) {
-				ClusterBuildCallable build;
-				try {
-					build = future.get();
-				} catch (Exception e) {
-					throw ExceptionUtils.asRuntimeException(e);
-				}
-				try {
-					build.merge(rups);
-				} catch (InterruptedException | ExecutionException e) {
-					throw ExceptionUtils.asRuntimeException(e);
-				}
-				if (build.debugStop) {
-					exec.shutdownNow();
-					break;
+			System.out.println("Waiting on "+tasks.size()+" cluster build tasks");
+			try {
+				// merge in start cluster order so that the result is the same as a single threaded build
+				for (StartClusterTask task : tasks) {
+					task.get();
+					context.merge(task);
 				}
+			} catch (InterruptedException | ExecutionException e) {
+				pool.shutdownNow();
+				for (StartClusterTask task : tasks)
+					context.deleteTaskSpill(task);
+				Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+				throw ExceptionUtils.asRuntimeException(cause);
 			}
 			
-			exec.shutdown();
+			pool.shutdown();
 		}
-		
-		
-		return rups;
+		if (context.debugStop)
+			System.out.println("Stopped due to debug criteria match");
 	}
 	
 	private static DecimalFormat oneDigitDF = new DecimalFormat("0.0");
@@ -357,41 +409,288 @@ public class ClusterRuptureBuilder {
 		countDF.setGroupingSize(3);
 	}
 	
-	private class ClusterBuildCallable implements Callable<ClusterBuildCallable> {
+	/**
+	 * Passing ruptures found by a single task, in the order that they were found. Growth which was forked into a
+	 * sub task is recorded as a placeholder for that task's ruptures, so that iterating over this collector gives
+	 * the same order as if the sub tasks had been run inline.
+	 */
+	private static class RuptureCollector implements Iterable<ClusterRupture> {
+		// index of the start cluster from which these ruptures were grown
+		private final int clusterIndex;
+		private final List<Object> parts = new ArrayList<>();
+		private List<ClusterRupture> current = null;
 		
-		private RuptureGrowingStrategy growingStrategy;
-		private FaultSubsectionCluster cluster;
-		private HashSet<UniqueRupture> uniques;
-		private List<Future<List<ClusterRupture>>> rupListFutures;
-		private boolean debugStop = false;
-		private ProgressTracker track;
-		private ExecutorService exec;
+		public RuptureCollector(int clusterIndex) {
+			this.clusterIndex = clusterIndex;
+		}
+		
+		public void add(ClusterRupture rup) {
+			if (current == null) {
+				current = new ArrayList<>();
+				parts.add(current);
+			}
+			current.add(rup);
+		}
 		
-		private int clusterIndex;
+		public void addForked(GrowRuptureTask task) {
+			parts.add(task);
+			current = null;
+		}
 
-		public ClusterBuildCallable(RuptureGrowingStrategy growingStrategy,
-				FaultSubsectionCluster cluster, HashSet<UniqueRupture> uniques, ProgressTracker track,
-				ExecutorService exec) {
+		@SuppressWarnings("unchecked")
+		@Override
+		public Iterator<ClusterRupture> iterator() {
+			List<Iterator<ClusterRupture>> iterators = new ArrayList<>();
+			for (Object part : parts) {
+				if (part instanceof GrowRuptureTask)
+					iterators.add(((GrowRuptureTask)part).collector.iterator());
+				else
+					iterators.add(((List<ClusterRupture>)part).iterator());
+			}
+			return Iterators.concat(iterators.iterator());
+		}
+	}
+	
+	/**
+	 * Passing ruptures found by a single thread which have not yet been merged, by start cluster index. Ruptures
+	 * are merged in start cluster order, so a rupture which this thread already found while growing an earlier start
+	 * cluster can be skipped. Ruptures found again within the same start cluster are kept, as a forked sub task
+	 * can come earlier in merge order than the task that found it first. Entries are discarded once their start
+	 * cluster has been merged into the shared set.
+	 * <p>
+	 * Only accessed by the owning thread, other than when discarding merged start clusters, so locking is
+	 * uncontended.
+	 */
+	private static class DedupShard {
+		
+		private final TreeMap<Integer, CompactUniqueRuptureSet> clusterUniques = new TreeMap<>();
+		
+		/**
+		 * @param clusterIndex
+		 * @param unique
+		 * @return false if this thread already found the given rupture while growing an earlier start cluster
+		 */
+		public synchronized boolean isNew(int clusterIndex, UniqueRupture unique) {
+			for (CompactUniqueRuptureSet earlier : clusterUniques.headMap(clusterIndex).values())
+				if (earlier.contains(unique))
+					return false;
+			CompactUniqueRuptureSet uniques = clusterUniques.get(clusterIndex);
+			if (uniques == null) {
+				uniques = new CompactUniqueRuptureSet();
+				clusterUniques.put(clusterIndex, uniques);
+			}
+			uniques.add(unique);
+			return true;
+		}
+		
+		/**
+		 * Discards entries for the given start cluster and all before it, which have been merged
+		 * 
+		 * @param clusterIndex
+		 */
+		public synchronized void discardMerged(int clusterIndex) {
+			clusterUniques.headMap(clusterIndex, true).clear();
+		}
+	}
+	
+	/**
+	 * State shared by all tasks of a single build
+	 */
+	private class BuildContext {
+		
+		private final RuptureGrowingStrategy growingStrategy;
+		private final ProgressTracker track;
+		private final boolean fork;
+		
+		// all ruptures merged so far. this is thread safe, and is also checked by running tasks in order to skip
+		// ruptures which have already been merged from a previous start cluster
+		private final CompactUniqueRuptureSet uniques;
+		private final List<ClusterRupture> rups;
+		// if streaming to disk, ruptures are written as they are merged instead of being added to the list
+		private final RuptureSpillFile.Writer spill;
+		// if true, completed start cluster tasks write their ruptures to their own temporary spill file rather than
+		// holding them in memory until all previous start clusters have been merged
+		private final boolean spillTasks;
+		
+		// per thread dedup shards, so that threads don't contend on a shared set for every passing rupture
+		private final List<DedupShard> shards = new ArrayList<>();
+		private final ThreadLocal<DedupShard> threadShard = ThreadLocal.withInitial(() -> {
+			DedupShard shard = new DedupShard();
+			synchronized (shards) {
+				shards.add(shard);
+			}
+			return shard;
+		});
+		
+		private volatile boolean debugStop = false;
+		
+		public BuildContext(RuptureGrowingStrategy growingStrategy, ProgressTracker track, boolean fork,
+				RuptureSpillFile.Writer spill) {
 			this.growingStrategy = growingStrategy;
-			this.cluster = cluster;
-			this.uniques = uniques;
 			this.track = track;
-			this.exec = exec;
-			clusterIndex = track.newStartCluster(cluster.parentSectionID);
+			this.fork = fork;
+			this.spill = spill;
+			// not needed if single threaded, as each task is merged as soon as it completes
+			this.spillTasks = spill != null && fork;
+			this.uniques = new CompactUniqueRuptureSet();
+			this.rups = spill == null ? new ArrayList<>() : null;
+		}
+		
+		/**
+		 * @return true if growth from the current jump should be forked into a new task, which is the case if
+		 * we're running in a fork join pool and other threads are likely to run out of work soon
+		 */
+		public boolean shouldFork() {
+			return fork && ForkJoinTask.inForkJoinPool()
+					&& ForkJoinTask.getSurplusQueuedTaskCount() <= MAX_SURPLUS_QUEUED_TASKS;
+		}
+		
+		/**
+		 * Checks if the given passing rupture is potentially new, i.e., it has not yet been merged and this thread
+		 * has not already found it while growing an earlier start cluster. If so, it is recorded in this thread's
+		 * dedup shard and progress is updated.
+		 * 
+		 * @param collector collector for the task which found this rupture
+		 * @param rup
+		 * @return true if the rupture should be collected
+		 */
+		public boolean processPassedRupture(RuptureCollector collector, ClusterRupture rup) {
+			if (uniques.contains(rup.unique) || !threadShard.get().isNew(collector.clusterIndex, rup.unique))
+				return false;
+			track.processPassedRupture(rup);
+			return true;
+		}
+		
+		/**
+		 * Called by each start cluster task when it completes. If we're streaming to disk, this writes the task's
+		 * ruptures to a temporary spill file (skipping any which have already been merged or were already found
+		 * by this task) and releases them, so that completed tasks waiting behind a slow start cluster don't hold
+		 * their ruptures in memory. They are deduplicated against all previous start clusters when merged.
+		 * 
+		 * @param task
+		 */
+		public void taskCompleted(StartClusterTask task) {
+			if (!spillTasks)
+				return;
+			RuptureSpillFile taskSpill = null;
+			try {
+				File dir = spill.getSpillFile().getDataFile().getAbsoluteFile().getParentFile();
+				taskSpill = new RuptureSpillFile(File.createTempFile("cluster_"+task.clusterIndex+"_", ".spill", dir));
+				// in case we're killed before it's merged
+				taskSpill.getDataFile().deleteOnExit();
+				taskSpill.getIndexFile().deleteOnExit();
+				CompactUniqueRuptureSet taskUniques = new CompactUniqueRuptureSet();
+				try (RuptureSpillFile.Writer writer = taskSpill.writer()) {
+					for (ClusterRupture rup : task.collector)
+						if (!uniques.contains(rup.unique) && taskUniques.add(rup.unique))
+							writer.write(rup);
+				}
+			} catch (IOException | RuntimeException e) {
+				if (taskSpill != null)
+					taskSpill.delete();
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+			task.spill = taskSpill;
+			// release them
+			task.collector = null;
+		}
+		
+		/**
+		 * Deletes the temporary spill file for the given task, if any
+		 * 
+		 * @param task
+		 */
+		public void deleteTaskSpill(StartClusterTask task) {
+			RuptureSpillFile taskSpill = task.spill;
+			if (taskSpill != null) {
+				taskSpill.delete();
+				task.spill = null;
+			}
+		}
+		
+		/**
+		 * Merges in all ruptures from the given completed start cluster task. Must be called in start cluster
+		 * order from a single thread.
+		 * 
+		 * @param task
+		 */
+		public void merge(StartClusterTask task) {
+			int added = 0;
+			int raw = 0;
+			if (task.spill != null) {
+				try (RuptureSpillFile.Reader reader = task.spill.reader()) {
+					for (int[] sectIDs : reader) {
+						raw++;
+						if (uniques.add(UniqueRupture.forIDs(Ints.asList(sectIDs)))) {
+							spill.write(sectIDs);
+							added++;
+						}
+					}
+				} catch (IOException e) {
+					throw ExceptionUtils.asRuntimeException(e);
+				} finally {
+					deleteTaskSpill(task);
+				}
+			} else {
+				for (ClusterRupture rup : task.collector) {
+					raw++;
+					if (uniques.add(rup.unique)) {
+						if (spill != null)
+							spill.write(rup);
+						else
+							rups.add(rup);
+						added++;
+					}
+				}
+				// release them
+				task.collector = null;
+			}
+			// these are all in the shared set now
+			synchronized (shards) {
+				for (DedupShard shard : shards)
+					shard.discardMerged(task.clusterIndex);
+			}
+			track.setNumMerged(uniques.size());
+			int total = spill == null ? rups.size() : uniques.size();
+			System.out.println("Merged in "+countDF.format(total)+" ruptures after processing "
+					+ "start cluster "+task.clusterIndex+"/"+track.startClusterCount()+" (id="
+					+task.cluster.parentSectionID+"): "+task.cluster.parentSectionName
+					+" ("+added+" new, "+raw+" incl. possible duplicates).");
+			track.printCountAndStartClusterStatus();
+		}
+	}
+	
+	// fork a sub task when no more than this many tasks are queued in the current worker's queue
+	private static final int MAX_SURPLUS_QUEUED_TASKS = 2;
+	
+	private class StartClusterTask extends RecursiveAction {
+		
+		private final BuildContext context;
+		private final FaultSubsectionCluster cluster;
+		private final int clusterIndex;
+		private RuptureCollector collector;
+		// temporary spill file for the ruptures from this task once completed, if streaming to disk
+		private volatile RuptureSpillFile spill;
+		
+		public StartClusterTask(BuildContext context, FaultSubsectionCluster cluster) {
+			this.context = context;
+			this.cluster = cluster;
+			this.clusterIndex = context.track.newStartCluster(cluster.parentSectionID);
+			this.collector = new RuptureCollector(clusterIndex);
 		}
 
-		@SuppressWarnings({ "unchecked", "rawtypes" })
 		@Override
-		public ClusterBuildCallable call() throws Exception {
-			FakeFuture<ClusterBuildCallable> primaryFuture = new FakeFuture<>(this, false);
-			track.addStartClusterFuture(cluster.parentSectionID, primaryFuture);
-			if (this.exec != null)
-				rupListFutures = Collections.synchronizedList(new ArrayList<>());
-			else
-				rupListFutures = new ArrayList<>();
+		protected void compute() {
+			growRuptures();
+			context.taskCompleted(this);
+		}
+		
+		private void growRuptures() {
 			for (FaultSection startSection : cluster.subSects) {
-				for (FaultSubsectionCluster variation : growingStrategy.getVariations(
+				for (FaultSubsectionCluster variation : context.growingStrategy.getVariations(
 						cluster, startSection)) {
+					if (context.debugStop)
+						return;
 					ClusterRupture rup = new FilterDataClusterRupture(variation);
 					PlausibilityResult result = testRup(rup, false);
 					if (debugCriteria != null && debugCriteria.isMatch(rup)
@@ -399,9 +698,8 @@ public class ClusterRuptureBuilder {
 						System.out.println("\tVariation "+variation+" result="+result);
 						testRup(rup, true);
 						if (stopAfterDebugMatch) {
-							debugStop = true;
-							primaryFuture.setDone(true);
-							return this;
+							context.debugStop = true;
+							return;
 						}
 					}
 					if (!result.canContinue())
@@ -409,100 +707,58 @@ public class ClusterRuptureBuilder {
 						continue;
 					if (result.isPass()) {
 						// passes as is, add it if it's new
-						track.processPassedRupture(rup);
-						if (!uniques.contains(rup.unique))
-							// this means that this rupture passes and has not yet been processed
-//							rups.add(rup);
-							rupListFutures.add(new FakeFuture(Collections.singletonList(rup), true));
+						if (context.processPassedRupture(collector, rup))
+							// this means that this rupture passes and has not yet been merged
+							collector.add(rup);
 					}
 					// continue to build this rupture
-					List<ClusterRupture> rups = new ArrayList<>();
-					boolean canContinue = addRuptures(rups, uniques, rup, rup, 
-							growingStrategy, track, exec, rupListFutures);
-					if (!rups.isEmpty())
-						rupListFutures.add(new FakeFuture(rups, true));
-					if (!canContinue) {
-						System.out.println("Stopping due to debug criteria match with "+rups.size()+" ruptures");
-						debugStop = true;
-						primaryFuture.setDone(true);
-						return this;
-					}
-				}
-			}
-			primaryFuture.setDone(true);
-			return this;
-		}
-		
-		public void merge(List<ClusterRupture> masterRups) throws InterruptedException, ExecutionException {
-			int added = 0;
-			int raw = 0;
-			for (Future<List<ClusterRupture>> future : rupListFutures) {
-				for (ClusterRupture rup : future.get()) {
-					if (!uniques.contains(rup.unique)) {
-						masterRups.add(rup);
-						uniques.add(rup.unique);
-						// make sure that contains now returns true
-						Preconditions.checkState(uniques.contains(rup.unique));
-//						Preconditions.checkState(uniques.contains(rup.reversed().unique));
-						added++;
-						raw++;
+					if (!addRuptures(context, collector, rup, rup)) {
+						System.out.println("Stopping due to debug criteria match in start cluster "
+								+clusterIndex+" (id="+cluster.parentSectionID+"): "+cluster.parentSectionName);
+						context.debugStop = true;
+						return;
 					}
 				}
 			}
-			System.out.println("Merged in "+countDF.format(masterRups.size())+" ruptures after processing "
-					+ "start cluster "+clusterIndex+"/"+track.startClusterCount()+" (id="+cluster.parentSectionID+"): "
-					+cluster.parentSectionName+" ("+added+" new, "+raw+" incl. possible duplicates).");
-			track.printCountAndStartClusterStatus();
 		}
 		
 	}
 	
-	private class FakeFuture<E> implements Future<E> {
-		
-		private E result;
-		private boolean done;
-
-		public FakeFuture(E result, boolean done) {
-			this.result = result;
-			this.done = done;
-		}
-
-		@Override
-		public boolean cancel(boolean mayInterruptIfRunning) {
-			return false;
-		}
-
-		@Override
-		public boolean isCancelled() {
-			return false;
-		}
-
-		@Override
-		public boolean isDone() {
-			return done;
-		}
+	private PlausibilityResult testRup(ClusterRupture rupture, final boolean debug) {
+		return testRup(null, null, rupture, debug);
+	}
+	
+	/**
+	 * Holder for the state of an incremental filter, along with the rupture to which it applies. Filter data
+	 * is copied to new ruptures in FilterDataClusterRupture.take(Jump), so this lets us verify that we're
+	 * extending from the state of the actual parent rupture.
+	 */
+	private static class IncrementalFilterState {
+		private final UniqueRupture unique;
+		private final Object state;
 		
-		public void setDone(boolean done) {
-			this.done = done;
-		}
-
-		@Override
-		public E get() throws InterruptedException, ExecutionException {
-			return result;
-		}
-
-		@Override
-		public E get(long timeout, TimeUnit unit)
-				throws InterruptedException, ExecutionException, TimeoutException {
-			return result;
+		public IncrementalFilterState(UniqueRupture unique, Object state) {
+			this.unique = unique;
+			this.state = state;
 		}
-		
 	}
 	
-	private PlausibilityResult testRup(ClusterRupture rupture, final boolean debug) {
+	/**
+	 * Tests the given rupture against all filters. If the rupture was just created by taking the given jump
+	 * from the given parent rupture, any IncrementalPlausibilityFilter will be evaluated by extending
+	 * the state of the parent rupture rather than reevaluating the full rupture. All other filters, and any
+	 * incremental filters without state available for the parent rupture, will be fully evaluated.
+	 * 
+	 * @param parent rupture before the jump was taken, or null
+	 * @param newJump jump which was taken from the parent rupture, or null
+	 * @param rupture
+	 * @param debug
+	 * @return
+	 */
+	private PlausibilityResult testRup(ClusterRupture parent, Jump newJump, ClusterRupture rupture, final boolean debug) {
 		PlausibilityResult result = PlausibilityResult.PASS;
 		for (PlausibilityFilter filter : filters) {
-			PlausibilityResult filterResult = filter.apply(rupture, debug);
+			PlausibilityResult filterResult = testFilter(filter, parent, newJump, rupture, debug, null);
 			if (debug)
 				System.out.println("\t\t"+filter.getShortName()+": "+filterResult);
 			result = result.logicalAnd(filterResult);
@@ -512,40 +768,138 @@ public class ClusterRuptureBuilder {
 		return result;
 	}
 	
-	private class AddRupturesCallable implements Callable<List<ClusterRupture>> {
+	/**
+	 * Tests the given rupture against a single filter, see testRup(...)
+	 * 
+	 * @param batch if non null and this is a BatchCoulombPlausibilityFilter, the filter will be evaluated using this
+	 * batch
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private PlausibilityResult testFilter(PlausibilityFilter filter, ClusterRupture parent, Jump newJump,
+			ClusterRupture rupture, final boolean debug, StiffnessAggregationBatch batch) {
+		FilterDataClusterRupture fdRupture = !debug && rupture instanceof FilterDataClusterRupture ?
+				(FilterDataClusterRupture)rupture : null;
+		if (batch != null && filter instanceof BatchCoulombPlausibilityFilter)
+			return ((BatchCoulombPlausibilityFilter)filter).apply(rupture, batch, debug);
+		if (fdRupture != null && filter instanceof IncrementalPlausibilityFilter) {
+			IncrementalPlausibilityFilter incrFilter = (IncrementalPlausibilityFilter)filter;
+			// this will be the parent's state if it has been computed, as it's copied over in take(Jump)
+			Object prevData = fdRupture.getFilterData(filter);
+			Object state;
+			if (parent != null && prevData instanceof IncrementalFilterState
+					&& ((IncrementalFilterState)prevData).unique == parent.unique)
+				state = incrFilter.extendState(((IncrementalFilterState)prevData).state,
+						parent, newJump, rupture, false);
+			else
+				state = incrFilter.buildState(rupture, false);
+			fdRupture.addFilterData(filter, new IncrementalFilterState(rupture.unique, state));
+			return incrFilter.testState(state, rupture, false);
+		}
+		return filter.apply(rupture, debug);
+	}
+	
+	/**
+	 * Tests each of the given candidate ruptures (all created by taking a jump from the given parent rupture) against
+	 * all filters, in the configured order and with the same short circuiting as testRup(...), and so with identical
+	 * results.
+	 * <p>
+	 * BatchCoulombPlausibilityFilters are evaluated in rounds. When a candidate reaches such a filter, any
+	 * aggregations that it will certainly need are requested, and then it is evaluated until it needs an aggregation
+	 * which hasn't been computed yet (which is then requested). That candidate is paused while the others are
+	 * evaluated, then each unique requested aggregation is computed once (in parallel if requested) and the paused
+	 * candidates resume at the same filter. Only aggregations which testRup(...) would have computed are computed.
+	 * 
+	 * @param parent
+	 * @param jumps jump taken from the parent for each candidate
+	 * @param candidates
+	 * @param parallel
+	 * @return results for each candidate
+	 */
+	private List<PlausibilityResult> testRupsBatched(ClusterRupture parent, List<Jump> jumps,
+			List<ClusterRupture> candidates, boolean parallel) {
+		int num = candidates.size();
+		PlausibilityResult[] results = new PlausibilityResult[num];
+		Arrays.fill(results, PlausibilityResult.PASS);
+		int[] nextFilters = new int[num];
+		int[] requestedFilters = new int[num];
+		Arrays.fill(requestedFilters, -1);
+		Map<AggregatedStiffnessCalculator, StiffnessAggregationBatch> batches = new HashMap<>();
+		
+		List<Integer> pending = new ArrayList<>(num);
+		for (int i=0; i<num; i++)
+			pending.add(i);
+		while (!pending.isEmpty()) {
+			List<Integer> paused = new ArrayList<>();
+			for (int i : pending) {
+				ClusterRupture candidate = candidates.get(i);
+				for (; nextFilters[i]<filters.size(); nextFilters[i]++) {
+					PlausibilityFilter filter = filters.get(nextFilters[i]);
+					StiffnessAggregationBatch batch = null;
+					if (filter instanceof BatchCoulombPlausibilityFilter) {
+						BatchCoulombPlausibilityFilter batchFilter = (BatchCoulombPlausibilityFilter)filter;
+						batch = batches.get(batchFilter.getAggregator());
+						if (batch == null) {
+							batch = new StiffnessAggregationBatch(batchFilter.getAggregator(), true);
+							batches.put(batchFilter.getAggregator(), batch);
+						}
+						if (requestedFilters[i] != nextFilters[i]) {
+							batchFilter.requestAggregations(candidate, batch);
+							requestedFilters[i] = nextFilters[i];
+						}
+					}
+					PlausibilityResult filterResult;
+					try {
+						filterResult = testFilter(filter, parent, jumps.get(i), candidate, false, batch);
+					} catch (MissingAggregationException e) {
+						// resume at this filter once requested aggregations have been computed
+						paused.add(i);
+						break;
+					}
+					results[i] = results[i].logicalAnd(filterResult);
+					if (!results[i].canContinue())
+						break;
+				}
+			}
+			if (!paused.isEmpty())
+				for (StiffnessAggregationBatch batch : batches.values())
+					batch.compute(parallel);
+			pending = paused;
+		}
+		return Arrays.asList(results);
+	}
+	
+	/**
+	 * Task to grow a rupture by taking the given jump, which may be split further at later jump points
+	 */
+	private class GrowRuptureTask extends RecursiveAction {
 		
-		private HashSet<UniqueRupture> uniques;
-		private ClusterRupture currentRupture;
-		private ClusterRupture currentStrand;
-		private RuptureGrowingStrategy growingStrategy;
-		private ProgressTracker track;
-		private Jump jump;
+		private final BuildContext context;
+		private final ClusterRupture currentRupture;
+		private final ClusterRupture currentStrand;
+		private final Jump jump;
+		private final RuptureCollector collector;
 
-		public AddRupturesCallable(HashSet<UniqueRupture> uniques,
-				ClusterRupture currentRupture, ClusterRupture currentStrand,
-				RuptureGrowingStrategy growingStrategy, ProgressTracker track, Jump jump) {
-			this.uniques = uniques;
+		public GrowRuptureTask(BuildContext context, int clusterIndex, ClusterRupture currentRupture,
+				ClusterRupture currentStrand, Jump jump) {
+			this.context = context;
 			this.currentRupture = currentRupture;
 			this.currentStrand = currentStrand;
-			this.growingStrategy = growingStrategy;
-			this.track = track;
 			this.jump = jump;
+			this.collector = new RuptureCollector(clusterIndex);
 		}
 
 		@Override
-		public List<ClusterRupture> call() {
-			List<ClusterRupture> rups = new ArrayList<>();
-			addJumpVariations(rups, uniques, currentRupture, currentStrand,
-					growingStrategy, jump, track);
-			return rups;
+		protected void compute() {
+			if (context.debugStop)
+				return;
+			if (!addJumpVariations(context, collector, currentRupture, currentStrand, jump))
+				context.debugStop = true;
 		}
 		
 	}
 	
-	private boolean addRuptures(List<ClusterRupture> rups, HashSet<UniqueRupture> uniques,
-			ClusterRupture currentRupture, ClusterRupture currentStrand,
-			RuptureGrowingStrategy growingStrategy, ProgressTracker track,
-			ExecutorService exec, List<Future<List<ClusterRupture>>> futures) {
+	private boolean addRuptures(BuildContext context, RuptureCollector collector, ClusterRupture currentRupture,
+			ClusterRupture currentStrand) {
 		FaultSubsectionCluster lastCluster = currentStrand.clusters[currentStrand.clusters.length-1];
 		FaultSection firstSection = currentStrand.clusters[0].startSect;
 		
@@ -560,8 +914,7 @@ public class ClusterRuptureBuilder {
 					break;
 				for (Jump jump : lastCluster.getConnections(section)) {
 					if (!currentRupture.contains(jump.toSection)) {
-						boolean canContinue = addJumpVariations(rups, uniques, currentRupture, currentStrand,
-								growingStrategy, jump, track);
+						boolean canContinue = addJumpVariations(context, collector, currentRupture, currentStrand, jump);
 						if (!canContinue)
 							return false;
 					}
@@ -570,43 +923,65 @@ public class ClusterRuptureBuilder {
 		}
 
 		// try to grow this strand first
+		List<GrowRuptureTask> forked = null;
 		for (FaultSection endSection : lastCluster.endSects) {
 			for (Jump jump : lastCluster.getConnections(endSection)) {
 				if (!currentRupture.contains(jump.toSection)) {
-					if (exec != null) {
-						// fork it
-						Future<List<ClusterRupture>> future = exec.submit(new AddRupturesCallable(
-								uniques, currentRupture, currentStrand, growingStrategy, track, jump));
-						track.addStartClusterFuture(currentRupture.clusters[0].parentSectionID, future);
-						futures.add(future);
-					} else {
-						boolean canContinue = addJumpVariations(rups, uniques, currentRupture, currentStrand,
-								growingStrategy, jump, track);
-						if (!canContinue)
-							return false;
+					if (context.shouldFork()) {
+						// fork it, will be stolen by another thread if they run out of work
+						GrowRuptureTask task = new GrowRuptureTask(context, collector.clusterIndex,
+								currentRupture, currentStrand, jump);
+						task.fork();
+						collector.addForked(task);
+						if (forked == null)
+							forked = new ArrayList<>();
+						forked.add(task);
+					} else if (!addJumpVariations(context, collector, currentRupture, currentStrand, jump)) {
+						context.debugStop = true;
+						break;
 					}
 				}
 			}
+			if (context.debugStop)
+				break;
 		}
-		return true;
+		// always wait for any forked tasks, as their ruptures are merged after this task completes
+		if (forked != null)
+			for (GrowRuptureTask task : forked)
+				task.join();
+		return !context.debugStop;
 	}
 	
 	private Jump buildJump(Jump jump, FaultSubsectionCluster toVariation) {
 		// correct the distance to be the minimum distance between the two clusters, not just the jumping point distance
-		double minDist = Double.POSITIVE_INFINITY;
-		for (FaultSection s1 : jump.fromCluster.subSects)
-			for (FaultSection s2 : toVariation.subSects)
-				minDist = Double.min(minDist, distAzCalc.getDistance(s1, s2));
+		double minDist = Double.NaN;
+		if (jumpTable != null) {
+			// use precomputed section pair distances for this connection
+			int conn = jumpTable.getConnectionIndex(jump.fromCluster, toVariation);
+			if (conn >= 0)
+				minDist = jumpTable.getMinDistance(conn, jump.fromCluster, toVariation);
+		}
+		if (Double.isNaN(minDist)) {
+			// not in the jump table, calculate it
+			minDist = Double.POSITIVE_INFINITY;
+			for (FaultSection s1 : jump.fromCluster.subSects)
+				for (FaultSection s2 : toVariation.subSects)
+					minDist = Double.min(minDist, distAzCalc.getDistance(s1, s2));
+		}
 		Preconditions.checkState(toVariation.startSect.equals(jump.toSection));
 		Preconditions.checkState(toVariation.contains(jump.toSection));
 		return new Jump(jump.fromSection, jump.fromCluster, jump.toSection, toVariation, minDist);
 	}
 
-	private boolean addJumpVariations(List<ClusterRupture> rups, HashSet<UniqueRupture> uniques,
-			ClusterRupture currentRupture, ClusterRupture currentStrand,
-			RuptureGrowingStrategy growingStrategy, Jump jump, ProgressTracker track) {
+	private boolean addJumpVariations(BuildContext context, RuptureCollector collector,
+			ClusterRupture currentRupture, ClusterRupture currentStrand, Jump jump) {
 		Preconditions.checkNotNull(jump);
-		for (FaultSubsectionCluster variation : growingStrategy.getVariations(
+		// first build all candidate ruptures for this jump, so that any Coulomb aggregations can be computed
+		// in batches
+		List<FaultSubsectionCluster> variations = new ArrayList<>();
+		List<Jump> testJumps = new ArrayList<>();
+		List<ClusterRupture> candidates = new ArrayList<>();
+		for (FaultSubsectionCluster variation : context.growingStrategy.getVariations(
 				currentRupture, jump.toCluster, jump.toSection)) {
 			boolean hasLoopback = false;
 			for (FaultSection sect : variation.subSects) {
@@ -620,7 +995,23 @@ public class ClusterRuptureBuilder {
 				continue;
 			Jump testJump = buildJump(jump, variation);
 			ClusterRupture candidateRupture = currentRupture.take(testJump);
-			PlausibilityResult result = testRup(candidateRupture, false);
+			variations.add(variation);
+			testJumps.add(testJump);
+			candidates.add(candidateRupture);
+		}
+		List<PlausibilityResult> results;
+		if (batchFilters.isEmpty()) {
+			results = new ArrayList<>(candidates.size());
+			for (int v=0; v<candidates.size(); v++)
+				results.add(testRup(currentRupture, testJumps.get(v), candidates.get(v), false));
+		} else {
+			results = testRupsBatched(currentRupture, testJumps, candidates, context.fork);
+		}
+		for (int v=0; v<candidates.size(); v++) {
+			FaultSubsectionCluster variation = variations.get(v);
+			Jump testJump = testJumps.get(v);
+			ClusterRupture candidateRupture = candidates.get(v);
+			PlausibilityResult result = results.get(v);
 			boolean debugMatch = debugCriteria != null && debugCriteria.isMatch(currentRupture, testJump)
 					&& debugCriteria.appliesTo(result);
 			if (debugMatch) {
@@ -639,20 +1030,19 @@ public class ClusterRuptureBuilder {
 			}
 			if (result.isPass()) {
 				// passes as is, add it if it's new
-				track.processPassedRupture(candidateRupture);
-				if (!uniques.contains(candidateRupture.unique)) {
+				if (context.processPassedRupture(collector, candidateRupture)) {
 					if (debugMatch)
 						System.out.println("We passed and this is potentially new, adding");
-					rups.add(candidateRupture);
-				} else if (debugMatch)
+					collector.add(candidateRupture);
+				} else if (debugMatch) {
 					System.out.println("We passed but have already processed this rupture, skipping");
+				}
 			}
 			// continue to build this rupture
 //			ClusterRupture newCurrentStrand;
 			if (currentStrand == currentRupture) {
 				// we're on the primary strand
-				boolean canContinue = addRuptures(rups, uniques, candidateRupture, candidateRupture,
-						growingStrategy, track, null, null);
+				boolean canContinue = addRuptures(context, collector, candidateRupture, candidateRupture);
 				if (!canContinue)
 					return false;
 			} else {
@@ -668,13 +1058,11 @@ public class ClusterRuptureBuilder {
 				// try to build out the splay
 				FaultSection newLastStart = splayStrand.clusters[splayStrand.clusters.length-1].startSect;
 				Preconditions.checkState(newLastStart.equals(variation.startSect));
-				boolean canContinue = addRuptures(rups, uniques, candidateRupture, splayStrand,
-						growingStrategy, track, null, null);
+				boolean canContinue = addRuptures(context, collector, candidateRupture, splayStrand);
 				if (!canContinue)
 					return false;
 				// now try to build out the primary strand
-				canContinue = addRuptures(rups, uniques, candidateRupture, candidateRupture,
-						growingStrategy, track, null, null);
+				canContinue = addRuptures(context, collector, candidateRupture, candidateRupture);
 				if (!canContinue)
 					return false;
 			}
@@ -953,7 +1341,7 @@ public class ClusterRuptureBuilder {
 		// for UCERF3 fault models
 		FaultModels fm = FaultModels.FM3_1;
 		String fmPrefix = fm.encodeChoiceString().toLowerCase();
-		File distAzCacheFile = new File(rupSetsDir, fmPrefix+"_dist_az_cache.csv");
+		File distAzCacheFile = new File(rupSetsDir, fmPrefix+"_dist_az_cache.bin");
 		DeformationModels dm = fm.getFilterBasis();
 		ScalingRelationships scale = ScalingRelationships.MEAN_UCERF3;
 		DeformationModelFetcher dmFetch = new DeformationModelFetcher(fm, dm, null, 0.1);
@@ -972,7 +1360,7 @@ public class ClusterRuptureBuilder {
 //		System.out.println("Built "+subSects.size()+" subsections");
 //		Preconditions.checkState(!subSects.isEmpty());
 //		String fmPrefix = "nz_demo5_crustal";
-//		File distAzCacheFile = new File(rupSetsDir, fmPrefix+"_dist_az_cache.csv");
+//		File distAzCacheFile = new File(rupSetsDir, fmPrefix+"_dist_az_cache.bin");
 //		ScalingRelationships scale = ScalingRelationships.MEAN_UCERF3;
 		// END NZ
 		
@@ -989,7 +1377,7 @@ public class ClusterRuptureBuilder {
 //		else
 //			fmPrefix = "nshm23_v1p2_"+state.toLowerCase();
 //		
-//		File distAzCacheFile = new File(rupSetsDir, fmPrefix+"_dist_az_cache.csv");
+//		File distAzCacheFile = new File(rupSetsDir, fmPrefix+"_dist_az_cache.bin");
 //		ScalingRelationships scale = ScalingRelationships.MEAN_UCERF3;
 //		List<FaultSection> subSects = GeoJSONFaultReader.buildSubSects(setctsFile, geoDBFile, state);
 //		System.out.println("Built "+subSects.size()+" subsections");
@@ -1028,9 +1416,15 @@ public class ClusterRuptureBuilder {
 //		boolean stopAfterDebug = false;
 
 		SectionDistanceAzimuthCalculator distAzCalc = new SectionDistanceAzimuthCalculator(subSects);
+		// CSV cache files from previous versions are also read, and will be replaced with a binary file
+		File csvDistAzCacheFile = new File(distAzCacheFile.getParentFile(),
+				distAzCacheFile.getName().replaceAll("\\.bin$", ".csv"));
 		if (distAzCacheFile.exists()) {
 			System.out.println("Loading dist/az cache from "+distAzCacheFile.getAbsolutePath());
 			distAzCalc.loadCacheFile(distAzCacheFile);
+		} else if (csvDistAzCacheFile.exists()) {
+			System.out.println("Loading dist/az cache from "+csvDistAzCacheFile.getAbsolutePath());
+			distAzCalc.loadCacheFile(csvDistAzCacheFile);
 		}
 		int numAzCached = distAzCalc.getNumCachedAzimuths();
 		int numDistCached = distAzCalc.getNumCachedDistances();
@@ -1176,13 +1570,23 @@ public class ClusterRuptureBuilder {
 		// build stiffness calculator (used for new Coulomb)
 		double stiffGridSpacing = 2d;
 		double coeffOfFriction = 0.5;
+		// far field approximation tolerance, 0 for exact calculations
+		double farFieldTolerance = 0d;
 		SubSectStiffnessCalculator stiffnessCalc = new SubSectStiffnessCalculator(
 				subSects, stiffGridSpacing, 3e4, 3e4, coeffOfFriction, PatchAlignment.FILL_OVERLAP, 1d);
+		// set before getting the cache, as the cache file name depends on it
+		if (farFieldTolerance > 0d)
+			stiffnessCalc.setFarFieldTolerance(farFieldTolerance);
 		AggregatedStiffnessCache stiffnessCache = stiffnessCalc.getAggregationCache(StiffnessType.CFF);
 		File stiffnessCacheFile = new File(rupSetsDir, stiffnessCache.getCacheFileName());
 		int stiffnessCacheSize = 0;
-		if (stiffnessCacheFile.exists())
-			stiffnessCacheSize = stiffnessCache.loadCacheFile(stiffnessCacheFile);
+		File prevStiffnessCacheFile = stiffnessCache.findCacheFile(rupSetsDir);
+		if (prevStiffnessCacheFile != null) {
+			int numLoaded = stiffnessCache.loadCacheFile(prevStiffnessCacheFile);
+			// if this was an old CSV file, leave the size at zero so that it's converted to binary when written
+			if (prevStiffnessCacheFile.equals(stiffnessCacheFile))
+				stiffnessCacheSize = numLoaded;
+		}
 		// common aggregators
 		AggregatedStiffnessCalculator sumAgg = new AggregatedStiffnessCalculator(StiffnessType.CFF, stiffnessCalc, true,
 				AggregationMethod.FLATTEN, AggregationMethod.SUM, AggregationMethod.SUM, AggregationMethod.SUM);
@@ -1199,6 +1603,8 @@ public class ClusterRuptureBuilder {
 			outputName += "_stiff"+new DecimalFormat("0.#").format(stiffGridSpacing)+"km";
 		if (coeffOfFriction != 0.5d)
 			outputName += "_coeff"+(float)coeffOfFriction;
+		if (farFieldTolerance > 0d)
+			outputName += "_farField"+(float)farFieldTolerance;
 		
 		/*
 		 * Connection strategy: which faults are allowed to connect, and where?
@@ -1238,6 +1644,13 @@ public class ClusterRuptureBuilder {
 			outputName += "_plausibleMulti"+new DecimalFormat("0.#").format(maxJumpDist)+"km";
 //						PlausibleClusterConnectionStrategy.JUMP_SELECTOR_DEFAULT_SINGLE, connFilters);
 //			outputName += "_plausible"+new DecimalFormat("0.#").format(maxJumpDist)+"km";
+			if (cffRatioThresh > 0f || cffRelativeProb > 0f || cffFractInts > 0f) {
+				// connection filters will evaluate stiffness between all nearby sections, calculate it in parallel
+				System.out.println("Precomputing stiffness within "+(float)maxJumpDist+" km w/ "+threads+" threads...");
+				sumAgg.precomputeWithinDistance(distAzCalc, maxJumpDist, threads);
+				if (cffFractInts > 0f)
+					fractIntsAgg.precomputeWithinDistance(distAzCalc, maxJumpDist, threads);
+			}
 			System.out.println("Building plausible connections w/ "+threads+" threads...");
 			connectionStrategy.checkBuildThreaded(threads);
 			System.out.println("DONE building plausible connections");
@@ -1445,13 +1858,19 @@ public class ClusterRuptureBuilder {
 		if (numAzCached < distAzCalc.getNumCachedAzimuths()
 				|| numDistCached < distAzCalc.getNumCachedDistances()) {
 			System.out.println("Writing dist/az cache to "+distAzCacheFile.getAbsolutePath());
-			distAzCalc.writeCacheFile(distAzCacheFile);
+			distAzCalc.writeBinaryCacheFile(distAzCacheFile,
+					SectionDistanceAzimuthCalculator.DEFAULT_CACHE_CUTOFF_DIST);
 			numAzCached = distAzCalc.getNumCachedAzimuths();
 			numDistCached = distAzCalc.getNumCachedDistances();
 		}
 		
 		boolean writeRupSet = (debugCriteria == null || !stopAfterDebug)
 				&& outputName != null && rupSetsDir != null;
+		// if true, ruptures will be streamed to a spill file on disk as they are built rather than held in memory
+		boolean streamToDisk = false;
+		for (String arg : args)
+			if (arg.equals("--stream-to-disk"))
+				streamToDisk = true;
 		if (writeRupSet)
 			System.out.println("After building, will write to "+new File(rupSetsDir, outputName));
 		
@@ -1461,25 +1880,54 @@ public class ClusterRuptureBuilder {
 			builder.setDebugCriteria(debugCriteria, stopAfterDebug);
 		System.out.println("Building ruptures with "+threads+" threads...");
 		Stopwatch watch = Stopwatch.createStarted();
-		List<ClusterRupture> rups = builder.build(growingStrat, threads);
-		watch.stop();
-		long millis = watch.elapsed(TimeUnit.MILLISECONDS);
-		double secs = millis/1000d;
-		double mins = (secs / 60d);
-		DecimalFormat timeDF = new DecimalFormat("0.00");
-		System.out.println("Built "+countDF.format(rups.size())+" ruptures in "+timeDF.format(secs)
-			+" secs = "+timeDF.format(mins)+" mins. Total rate: "+rupRate(rups.size(), millis));
-		
-		if (writeRupSet) {
-			File outputFile = new File(outputDir, outputName);
-			FaultSystemRupSet rupSet = buildClusterRupSet(scale, subSects, config, rups);
-			FaultSystemIO.writeRupSet(rupSet, outputFile);
+		List<ClusterRupture> rups = null;
+		RuptureSpillFile spillFile = null;
+		try {
+			int numRups;
+			if (streamToDisk) {
+				File spillDataFile = File.createTempFile("cluster_rups", ".spill");
+				spillFile = new RuptureSpillFile(spillDataFile);
+				// in case we're killed before the finally block below
+				spillDataFile.deleteOnExit();
+				spillFile.getIndexFile().deleteOnExit();
+				System.out.println("Streaming ruptures to "+spillDataFile.getAbsolutePath());
+				try (RuptureSpillFile.Writer spillWriter = spillFile.writer()) {
+					numRups = builder.build(growingStrat, threads, spillWriter);
+				}
+			} else {
+				rups = builder.build(growingStrat, threads);
+				numRups = rups.size();
+			}
+			watch.stop();
+			long millis = watch.elapsed(TimeUnit.MILLISECONDS);
+			double secs = millis/1000d;
+			double mins = (secs / 60d);
+			DecimalFormat timeDF = new DecimalFormat("0.00");
+			System.out.println("Built "+countDF.format(numRups)+" ruptures in "+timeDF.format(secs)
+				+" secs = "+timeDF.format(mins)+" mins. Total rate: "+rupRate(numRups, millis));
+			
+			if (writeRupSet) {
+				File outputFile = new File(outputDir, outputName);
+				FaultSystemRupSet rupSet;
+				if (streamToDisk) {
+					try (RuptureSpillFile.Reader spillReader = spillFile.reader()) {
+						rupSet = buildClusterRupSet(scale, subSects, config, spillReader);
+					}
+				} else {
+					rupSet = buildClusterRupSet(scale, subSects, config, rups);
+				}
+				FaultSystemIO.writeRupSet(rupSet, outputFile);
+			}
+		} finally {
+			if (spillFile != null)
+				spillFile.delete();
 		}
 
 		if (numAzCached < distAzCalc.getNumCachedAzimuths()
 				|| numDistCached < distAzCalc.getNumCachedDistances()) {
 			System.out.println("Writing dist/az cache to "+distAzCacheFile.getAbsolutePath());
-			distAzCalc.writeCacheFile(distAzCacheFile);
+			distAzCalc.writeBinaryCacheFile(distAzCacheFile,
+					SectionDistanceAzimuthCalculator.DEFAULT_CACHE_CUTOFF_DIST);
 			System.out.println("DONE writing dist/az cache");
 		}
 		
@@ -1493,23 +1941,77 @@ public class ClusterRuptureBuilder {
 
 	public static FaultSystemRupSet buildClusterRupSet(ScalingRelationships scale, List<? extends FaultSection> subSects,
 			PlausibilityConfiguration config, List<ClusterRupture> rups) {
-		double[] sectSlipRates = new double[subSects.size()];
-		double[] sectAreasReduced = new double[subSects.size()];
-		double[] sectAreasOrig = new double[subSects.size()];
-		for (int s=0; s<sectSlipRates.length; s++) {
-			FaultSection sect = subSects.get(s);
-			sectAreasReduced[s] = sect.getArea(true);
-			sectAreasOrig[s] = sect.getArea(false);
-			sectSlipRates[s] = sect.getReducedAveSlipRate()*1e-3; // mm/yr => m/yr
-		}
-		double[] rupMags = new double[rups.size()];
-		double[] rupRakes = new double[rups.size()];
-		double[] rupAreas = new double[rups.size()];
-		double[] rupLengths = new double[rups.size()];
-		List<List<Integer>> rupsIDsList = new ArrayList<>();
-		for (int r=0; r<rups.size(); r++) {
-			ClusterRupture rup = rups.get(r);
-			List<FaultSection> rupSects = rup.buildOrderedSectionList();
+		RupSetArrays arrays = new RupSetArrays(subSects, rups.size());
+		for (int r=0; r<rups.size(); r++)
+			arrays.set(r, rups.get(r).buildOrderedSectionList(), scale);
+		FaultSystemRupSet rupSet = arrays.build(subSects);
+		rupSet.setPlausibilityConfiguration(config);
+		rupSet.setClusterRuptures(rups);
+		return rupSet;
+	}
+	
+	/**
+	 * Builds a rupture set from ruptures previously streamed to disk via
+	 * {@link #build(RuptureGrowingStrategy, int, RuptureSpillFile.Writer)}. Ruptures are read sequentially, so
+	 * ClusterRupture instances are never held in memory. As a result, the returned rupture set will not have
+	 * ClusterRuptures attached (they can be rebuilt if needed via FaultSystemRupSet.buildClusterRups(...)).
+	 * 
+	 * @param scale
+	 * @param subSects
+	 * @param config
+	 * @param spill
+	 * @return rupture set
+	 */
+	public static FaultSystemRupSet buildClusterRupSet(ScalingRelationships scale, List<? extends FaultSection> subSects,
+			PlausibilityConfiguration config, RuptureSpillFile.Reader spill) {
+		RupSetArrays arrays = new RupSetArrays(subSects, spill.size());
+		int r = 0;
+		for (int[] sectIDs : spill) {
+			List<FaultSection> rupSects = new ArrayList<>(sectIDs.length);
+			for (int sectID : sectIDs)
+				rupSects.add(subSects.get(sectID));
+			arrays.set(r++, rupSects, scale);
+		}
+		Preconditions.checkState(r == spill.size());
+		FaultSystemRupSet rupSet = arrays.build(subSects);
+		rupSet.setPlausibilityConfiguration(config);
+		return rupSet;
+	}
+	
+	/**
+	 * Rupture set arrays, filled in one rupture at a time
+	 */
+	private static class RupSetArrays {
+		
+		private final double[] sectSlipRates;
+		private final double[] sectAreasReduced;
+		private final double[] sectAreasOrig;
+		
+		private final double[] rupMags;
+		private final double[] rupRakes;
+		private final double[] rupAreas;
+		private final double[] rupLengths;
+		private final List<List<Integer>> rupsIDsList;
+		
+		public RupSetArrays(List<? extends FaultSection> subSects, int numRups) {
+			sectSlipRates = new double[subSects.size()];
+			sectAreasReduced = new double[subSects.size()];
+			sectAreasOrig = new double[subSects.size()];
+			for (int s=0; s<sectSlipRates.length; s++) {
+				FaultSection sect = subSects.get(s);
+				sectAreasReduced[s] = sect.getArea(true);
+				sectAreasOrig[s] = sect.getArea(false);
+				sectSlipRates[s] = sect.getReducedAveSlipRate()*1e-3; // mm/yr => m/yr
+			}
+			rupMags = new double[numRups];
+			rupRakes = new double[numRups];
+			rupAreas = new double[numRups];
+			rupLengths = new double[numRups];
+			rupsIDsList = new ArrayList<>(numRups);
+		}
+		
+		public void set(int r, List<? extends FaultSection> rupSects, ScalingRelationships scale) {
+			Preconditions.checkState(r == rupsIDsList.size(), "Ruptures must be set in order");
 			List<Integer> sectIDs = new ArrayList<>();
 			double totLength = 0d;
 			double totArea = 0d;
@@ -1533,11 +2035,12 @@ public class ClusterRuptureBuilder {
 			rupMags[r] = scale.getMag(totArea, origDDW);
 			rupsIDsList.add(sectIDs);
 		}
-		FaultSystemRupSet rupSet = new FaultSystemRupSet(subSects, sectSlipRates, null, sectAreasReduced, 
-				rupsIDsList, rupMags, rupRakes, rupAreas, rupLengths, "");
-		rupSet.setPlausibilityConfiguration(config);
-		rupSet.setClusterRuptures(rups);
-		return rupSet;
+		
+		public FaultSystemRupSet build(List<? extends FaultSection> subSects) {
+			Preconditions.checkState(rupsIDsList.size() == rupMags.length, "Not all ruptures set");
+			return new FaultSystemRupSet(subSects, sectSlipRates, null, sectAreasReduced, 
+					rupsIDsList, rupMags, rupRakes, rupAreas, rupLengths, "");
+		}
 	}
 
 }
@@ -0,0 +1,39 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility;
+
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRupture;
+import org.opensha.sha.simulators.stiffness.StiffnessAggregationBatch;
+
+import scratch.UCERF3.inversion.laughTest.PlausibilityResult;
+
+/**
+ * Coulomb plausibility filter which can be evaluated for many candidate ruptures at once. Rupture builders test
+ * each candidate against a shared {@link StiffnessAggregationBatch} with deferMissing enabled: aggregations which are
+ * needed but not yet computed are requested and the candidate is paused, and all requested aggregations are then
+ * computed once each (optionally in parallel) before paused candidates are tested again. Filters should therefore
+ * evaluate (and short circuit) exactly as they do in {@link #apply(ClusterRupture, boolean)}.
+ * <p>
+ * Results must always match those from {@link #apply(ClusterRupture, boolean)}.
+ */
+public interface BatchCoulombPlausibilityFilter extends ScalarCoulombPlausibilityFilter {
+
+	/**
+	 * Requests any aggregations which are certain to be needed to evaluate the given rupture, so that they can be
+	 * computed in the first round. Aggregations which may not be needed (e.g., due to short circuiting) must not be
+	 * requested here, as they will be requested on demand.
+	 *
+	 * @param rupture
+	 * @param batch batch for this filter's aggregator
+	 */
+	public void requestAggregations(ClusterRupture rupture, StiffnessAggregationBatch batch);
+
+	/**
+	 * Applies this filter to the given rupture, using previously requested aggregations from the given batch
+	 *
+	 * @param rupture
+	 * @param batch batch for this filter's aggregator
+	 * @param verbose
+	 * @return
+	 */
+	public PlausibilityResult apply(ClusterRupture rupture, StiffnessAggregationBatch batch, boolean verbose);
+
+}
@@ -0,0 +1,52 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility;
+
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRupture;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.Jump;
+
+import scratch.UCERF3.inversion.laughTest.PlausibilityResult;
+
+/**
+ * Plausibility filter which can be evaluated incrementally as a rupture is grown, one jump at a time, during
+ * rupture building. Implementations keep a state object for each rupture (e.g., the cumulative value so far)
+ * which can be extended from the state of the rupture prior to taking a jump, rather than reevaluating the
+ * whole rupture.
+ * <p>
+ * Results from incremental evaluation must always match those from {@link #apply(ClusterRupture, boolean)}.
+ * Rupture builders will fall back to full evaluation when no state is available for the parent rupture.
+ *
+ * @param <E> type of state object, which must be immutable as it may be shared between ruptures
+ */
+public interface IncrementalPlausibilityFilter<E> extends PlausibilityFilter {
+
+	/**
+	 * Builds the state for the given rupture from scratch
+	 *
+	 * @param rupture
+	 * @param verbose
+	 * @return state
+	 */
+	public E buildState(ClusterRupture rupture, boolean verbose);
+
+	/**
+	 * Builds the state for a rupture which was created by taking the given jump from the parent rupture
+	 *
+	 * @param parentState state for the parent rupture
+	 * @param parent rupture before the jump was taken
+	 * @param newJump jump which was taken
+	 * @param rupture new rupture, i.e., parent.take(newJump)
+	 * @param verbose
+	 * @return state for the new rupture
+	 */
+	public E extendState(E parentState, ClusterRupture parent, Jump newJump, ClusterRupture rupture, boolean verbose);
+
+	/**
+	 * Tests the given rupture using its previously computed state
+	 *
+	 * @param state
+	 * @param rupture
+	 * @param verbose
+	 * @return
+	 */
+	public PlausibilityResult testState(E state, ClusterRupture rupture, boolean verbose);
+
+}
@@ -3,6 +3,8 @@ package org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.impl;
 import java.text.DecimalFormat;
 
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRupture;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.Jump;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.IncrementalPlausibilityFilter;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.ScalarValuePlausibiltyFilter;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.impl.JumpAzimuthChangeFilter.AzimuthCalc;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.RuptureTreeNavigator;
@@ -13,7 +15,8 @@ import com.google.common.collect.Range;
 
 import scratch.UCERF3.inversion.laughTest.PlausibilityResult;
 
-public class CumulativeAzimuthChangeFilter implements ScalarValuePlausibiltyFilter<Float> {
+public class CumulativeAzimuthChangeFilter implements ScalarValuePlausibiltyFilter<Float>,
+		IncrementalPlausibilityFilter<Double> {
 	
 	private AzimuthCalc azCalc;
 	private float threshold;
@@ -42,6 +45,41 @@ public class CumulativeAzimuthChangeFilter implements ScalarValuePlausibiltyFilt
 		return PlausibilityResult.FAIL_HARD_STOP;
 	}
 	
+	@Override
+	public Double buildState(ClusterRupture rupture, boolean verbose) {
+		if (rupture.getTotalNumSects() < 3)
+			return 0d;
+		// may stop short once the threshold is exceeded, but that rupture will never pass anyway
+		return calc(rupture.getTreeNavigator(), rupture.clusters[0].startSect, null, null, verbose);
+	}
+
+	@Override
+	public Double extendState(Double parentState, ClusterRupture parent, Jump newJump, ClusterRupture rupture,
+			boolean verbose) {
+		// each section only has one predecessor, so the only new azimuth changes are those ending at a new section
+		RuptureTreeNavigator navigator = rupture.getTreeNavigator();
+		double tot = parentState;
+		for (FaultSection sect3 : newJump.toCluster.subSects) {
+			FaultSection sect2 = navigator.getPredecessor(sect3);
+			FaultSection sect1 = navigator.getPredecessor(sect2);
+			if (sect1 != null)
+				tot += doCalc(sect1, sect2, sect3, verbose);
+		}
+		return tot;
+	}
+
+	@Override
+	public PlausibilityResult testState(Double state, ClusterRupture rupture, boolean verbose) {
+		if ((float)state.doubleValue() <= threshold) {
+			if (verbose)
+				System.out.println(getShortName()+": passing with tot="+state);
+			return PlausibilityResult.PASS;
+		}
+		if (verbose)
+			System.out.println(getShortName()+": failing with tot="+state);
+		return PlausibilityResult.FAIL_HARD_STOP;
+	}
+	
 	private double calc(RuptureTreeNavigator navigator, FaultSection sect1, FaultSection sect2,
 			FaultSection sect3, boolean verbose) {
 		Preconditions.checkNotNull(sect1);
@@ -4,6 +4,8 @@ import java.text.DecimalFormat;
 import java.util.List;
 
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRupture;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.Jump;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.IncrementalPlausibilityFilter;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.ScalarValuePlausibiltyFilter;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.RuptureTreeNavigator;
 import org.opensha.sha.faultSurface.FaultSection;
@@ -19,7 +21,8 @@ import scratch.UCERF3.inversion.laughTest.PlausibilityResult;
  * @author kevin
  *
  */
-public class CumulativeRakeChangeFilter implements ScalarValuePlausibiltyFilter<Float> {
+public class CumulativeRakeChangeFilter implements ScalarValuePlausibiltyFilter<Float>,
+		IncrementalPlausibilityFilter<Double> {
 	
 	private float threshold;
 
@@ -45,6 +48,40 @@ public class CumulativeRakeChangeFilter implements ScalarValuePlausibiltyFilter<
 		return PlausibilityResult.FAIL_HARD_STOP;
 	}
 	
+	@Override
+	public Double buildState(ClusterRupture rupture, boolean verbose) {
+		return calc(rupture.getTreeNavigator(), rupture.clusters[0].startSect, verbose, false);
+	}
+
+	@Override
+	public Double extendState(Double parentState, ClusterRupture parent, Jump newJump, ClusterRupture rupture,
+			boolean verbose) {
+		// each section only has one predecessor, so we only need to add the changes leading into the new sections
+		RuptureTreeNavigator navigator = rupture.getTreeNavigator();
+		double tot = parentState;
+		for (FaultSection sect2 : newJump.toCluster.subSects) {
+			FaultSection sect1 = navigator.getPredecessor(sect2);
+			double diff = rakeDiff(sect1.getAveRake(), sect2.getAveRake());
+			if (verbose && diff != 0d)
+				System.out.println(getShortName()+": "+sect1.getSectionId()+"="+(float)sect1.getAveRake()+" => "
+							+sect2.getSectionId()+"="+(float)sect2.getAveRake()+" = "+diff);
+			tot += diff;
+		}
+		return tot;
+	}
+
+	@Override
+	public PlausibilityResult testState(Double state, ClusterRupture rupture, boolean verbose) {
+		if ((float)state.doubleValue() <= threshold) {
+			if (verbose)
+				System.out.println(getShortName()+": passing with tot="+state);
+			return PlausibilityResult.PASS;
+		}
+		if (verbose)
+			System.out.println(getShortName()+": failing with tot="+state);
+		return PlausibilityResult.FAIL_HARD_STOP;
+	}
+	
 	private double calc(RuptureTreeNavigator navigator, FaultSection sect1,
 			boolean verbose, boolean shortCircuit) {
 		double tot = 0d;
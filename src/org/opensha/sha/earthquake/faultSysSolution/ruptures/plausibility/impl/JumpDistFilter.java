@@ -2,6 +2,7 @@ package org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.impl;
 
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRupture;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.Jump;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.IncrementalPlausibilityFilter;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.JumpPlausibilityFilter;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.ScalarValuePlausibiltyFilter;
 
@@ -15,7 +16,8 @@ import scratch.UCERF3.inversion.laughTest.PlausibilityResult;
  * @author kevin
  *
  */
-public class JumpDistFilter extends JumpPlausibilityFilter implements ScalarValuePlausibiltyFilter<Float> {
+public class JumpDistFilter extends JumpPlausibilityFilter implements ScalarValuePlausibiltyFilter<Float>,
+		IncrementalPlausibilityFilter<Float> {
 	
 	private double maxDist;
 	
@@ -32,6 +34,26 @@ public class JumpDistFilter extends JumpPlausibilityFilter implements ScalarValu
 		return PlausibilityResult.PASS;
 	}
 
+	@Override
+	public Float buildState(ClusterRupture rupture, boolean verbose) {
+		return getValue(rupture);
+	}
+
+	@Override
+	public Float extendState(Float parentState, ClusterRupture parent, Jump newJump, ClusterRupture rupture,
+			boolean verbose) {
+		return Float.max(parentState, (float)newJump.distance);
+	}
+
+	@Override
+	public PlausibilityResult testState(Float state, ClusterRupture rupture, boolean verbose) {
+		if (state > (float)maxDist) {
+			if (verbose) System.out.println("Failing for jump over maxDist: "+state);
+			return PlausibilityResult.FAIL_HARD_STOP;
+		}
+		return PlausibilityResult.PASS;
+	}
+
 	@Override
 	public String getShortName() {
 		return "JumpDist";
@@ -5,10 +5,11 @@ import java.util.List;
 
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRupture;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.FaultSubsectionCluster;
-import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.ScalarCoulombPlausibilityFilter;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.BatchCoulombPlausibilityFilter;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.RuptureTreeNavigator;
 import org.opensha.sha.faultSurface.FaultSection;
 import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator;
+import org.opensha.sha.simulators.stiffness.StiffnessAggregationBatch;
 
 import com.google.common.collect.Range;
 
@@ -23,7 +24,7 @@ import scratch.UCERF3.inversion.laughTest.PlausibilityResult;
  * @author kevin
  *
  */
-public class ClusterCoulombCompatibilityFilter implements ScalarCoulombPlausibilityFilter {
+public class ClusterCoulombCompatibilityFilter implements BatchCoulombPlausibilityFilter {
 	
 	private AggregatedStiffnessCalculator aggCalc;
 	private Range<Float> acceptableRange;
@@ -38,8 +39,27 @@ public class ClusterCoulombCompatibilityFilter implements ScalarCoulombPlausibil
 
 	@Override
 	public PlausibilityResult apply(ClusterRupture rupture, boolean verbose) {
+		return apply(rupture, null, verbose);
+	}
+
+	@Override
+	public void requestAggregations(ClusterRupture rupture, StiffnessAggregationBatch batch) {
+		// only the first jump is always evaluated, anything further depends on the result (short circuiting) and will
+		// be requested on demand
+		RuptureTreeNavigator navigator = rupture.getTreeNavigator();
+		if (navigator == null)
+			return;
+		FaultSubsectionCluster first = rupture.clusters[0];
+		for (FaultSubsectionCluster descendant : navigator.getDescendants(first)) {
+			batch.request(first.subSects, descendant.subSects);
+			break;
+		}
+	}
+
+	@Override
+	public PlausibilityResult apply(ClusterRupture rupture, StiffnessAggregationBatch batch, boolean verbose) {
 		double worstVal = doTest(new ArrayList<>(), rupture.clusters[0], rupture.getTreeNavigator(),
-				verbose, !verbose);
+				verbose, !verbose, batch);
 		PlausibilityResult result =
 				acceptableRange.contains((float)worstVal) ? PlausibilityResult.PASS : PlausibilityResult.FAIL_HARD_STOP;
 		if (verbose)
@@ -52,15 +72,15 @@ public class ClusterCoulombCompatibilityFilter implements ScalarCoulombPlausibil
 		if (rupture.getTotalNumJumps()  == 0)
 			return null;
 		return (float)doTest(new ArrayList<>(), rupture.clusters[0], rupture.getTreeNavigator(),
-				false, false);
+				false, false, null);
 	}
 	
 	private float doTest(List<FaultSection> curSects, FaultSubsectionCluster nextCluster,
-			RuptureTreeNavigator navigator, boolean verbose, boolean shortCircuit) {
+			RuptureTreeNavigator navigator, boolean verbose, boolean shortCircuit, StiffnessAggregationBatch batch) {
 		float val = Float.POSITIVE_INFINITY;
 		if (!curSects.isEmpty()) {
 			// check rupture so far
-			val = (float)aggCalc.calc(curSects, nextCluster.subSects);
+			val = (float)StiffnessAggregationBatch.calc(batch, aggCalc, curSects, nextCluster.subSects);
 			if (verbose)
 				System.out.println(getShortName()+": "+curSects.size()+" sects to "
 						+nextCluster+", val="+val);
@@ -72,7 +92,7 @@ public class ClusterCoulombCompatibilityFilter implements ScalarCoulombPlausibil
 			for (FaultSubsectionCluster descendant : navigator.getDescendants(nextCluster)) {
 				List<FaultSection> newSects = new ArrayList<>(curSects);
 				newSects.addAll(nextCluster.subSects);
-				val = getWorseValue((float)val, (float)doTest(newSects, descendant, navigator, verbose, shortCircuit));
+				val = getWorseValue((float)val, (float)doTest(newSects, descendant, navigator, verbose, shortCircuit, batch));
 				if (!verbose && !acceptableRange.contains((float)val))
 					break;
 			}
@@ -6,9 +6,10 @@ import java.util.stream.Collectors;
 
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRupture;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.FaultSubsectionCluster;
-import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.ScalarCoulombPlausibilityFilter;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.BatchCoulombPlausibilityFilter;
 import org.opensha.sha.faultSurface.FaultSection;
 import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator;
+import org.opensha.sha.simulators.stiffness.StiffnessAggregationBatch;
 
 import com.google.common.collect.Range;
 
@@ -22,7 +23,7 @@ import scratch.UCERF3.inversion.laughTest.PlausibilityResult;
  * @author kevin
  *
  */
-public class NetClusterCoulombFilter implements ScalarCoulombPlausibilityFilter {
+public class NetClusterCoulombFilter implements BatchCoulombPlausibilityFilter {
 	
 	private AggregatedStiffnessCalculator aggCalc;
 	private float threshold;
@@ -35,9 +36,24 @@ public class NetClusterCoulombFilter implements ScalarCoulombPlausibilityFilter
 
 	@Override
 	public PlausibilityResult apply(ClusterRupture rupture, boolean verbose) {
+		return apply(rupture, null, verbose);
+	}
+
+	@Override
+	public void requestAggregations(ClusterRupture rupture, StiffnessAggregationBatch batch) {
+		if (rupture.getTotalNumClusters() == 1)
+			return;
+		List<FaultSubsectionCluster> clusters = getClusterList(rupture);
+		List<FaultSection> allSects = getAllSects(clusters);
+		for (FaultSubsectionCluster cluster : clusters)
+			batch.request(getSources(allSects, cluster), cluster.subSects);
+	}
+
+	@Override
+	public PlausibilityResult apply(ClusterRupture rupture, StiffnessAggregationBatch batch, boolean verbose) {
 		if (rupture.getTotalNumClusters() == 1)
 			return PlausibilityResult.PASS;
-		float val = getValue(rupture);
+		float val = getMinValue(getClusterList(rupture), batch);
 		PlausibilityResult result = val < threshold ?
 				PlausibilityResult.FAIL_HARD_STOP : PlausibilityResult.PASS;
 		if (verbose)
@@ -57,15 +73,23 @@ public class NetClusterCoulombFilter implements ScalarCoulombPlausibilityFilter
 		return "Net Cluster Coulomb  ≥ "+(float)threshold;
 	}
 	
-	private float getMinValue(List<FaultSubsectionCluster> clusters) {
+	private static List<FaultSection> getAllSects(List<FaultSubsectionCluster> clusters) {
 		List<FaultSection> allSects = new ArrayList<>();
 		for (FaultSubsectionCluster cluster : clusters)
 			allSects.addAll(cluster.subSects);
+		return allSects;
+	}
+	
+	private static List<FaultSection> getSources(List<FaultSection> allSects, FaultSubsectionCluster cluster) {
+		// get sublist of source sects: all sects not on this cluster
+		return allSects.stream().filter(s -> !cluster.contains(s)).collect(Collectors.toList());
+	}
+	
+	private float getMinValue(List<FaultSubsectionCluster> clusters, StiffnessAggregationBatch batch) {
+		List<FaultSection> allSects = getAllSects(clusters);
 		float minVal = Float.POSITIVE_INFINITY;
 		for (FaultSubsectionCluster cluster : clusters) {
-			// get sublist of source sects: all sects not on this cluster
-			List<FaultSection> sources = allSects.stream().filter(s -> !cluster.contains(s)).collect(Collectors.toList());
-			double val = aggCalc.calc(sources, cluster.subSects);
+			double val = StiffnessAggregationBatch.calc(batch, aggCalc, getSources(allSects, cluster), cluster.subSects);
 			minVal = Float.min(minVal, (float)val);
 		}
 		return minVal;
@@ -82,7 +106,7 @@ public class NetClusterCoulombFilter implements ScalarCoulombPlausibilityFilter
 	public Float getValue(ClusterRupture rupture) {
 		if (rupture.getTotalNumClusters() == 1)
 			return null;
-		return getMinValue(getClusterList(rupture));
+		return getMinValue(getClusterList(rupture), null);
 	}
 
 	@Override
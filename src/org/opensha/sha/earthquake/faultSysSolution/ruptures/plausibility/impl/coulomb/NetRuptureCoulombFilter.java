@@ -7,12 +7,13 @@ import java.util.List;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRupture;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.FaultSubsectionCluster;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.Jump;
-import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.ScalarCoulombPlausibilityFilter;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.BatchCoulombPlausibilityFilter;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.FilterDataClusterRupture;
 import org.opensha.sha.faultSurface.FaultSection;
 import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator;
 import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator.AggregationMethod;
 import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator.StiffnessAggregation;
+import org.opensha.sha.simulators.stiffness.StiffnessAggregationBatch;
 import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator;
 
 import com.google.common.base.Preconditions;
@@ -28,7 +29,7 @@ import scratch.UCERF3.inversion.laughTest.PlausibilityResult;
  * @author kevin
  *
  */
-public class NetRuptureCoulombFilter implements ScalarCoulombPlausibilityFilter {
+public class NetRuptureCoulombFilter implements BatchCoulombPlausibilityFilter {
 	
 	private AggregatedStiffnessCalculator aggCalc;
 	private Range<Float> acceptableRange;
@@ -50,9 +51,22 @@ public class NetRuptureCoulombFilter implements ScalarCoulombPlausibilityFilter
 
 	@Override
 	public PlausibilityResult apply(ClusterRupture rupture, boolean verbose) {
+		return apply(rupture, null, verbose);
+	}
+
+	@Override
+	public void requestAggregations(ClusterRupture rupture, StiffnessAggregationBatch batch) {
+		if (rupture.getTotalNumJumps() == 0 || rupture.getTotalNumSects() == 1)
+			return;
+		List<FaultSection> allSects = getAllSects(rupture);
+		batch.request(allSects, allSects);
+	}
+
+	@Override
+	public PlausibilityResult apply(ClusterRupture rupture, StiffnessAggregationBatch batch, boolean verbose) {
 		if (rupture.getTotalNumJumps() == 0)
 			return PlausibilityResult.PASS;
-		float val = getValue(rupture);
+		float val = getValue(rupture, batch);
 		PlausibilityResult result = acceptableRange.contains(val) ?
 				PlausibilityResult.PASS : PlausibilityResult.FAIL_HARD_STOP;
 		if (verbose)
@@ -74,6 +88,17 @@ public class NetRuptureCoulombFilter implements ScalarCoulombPlausibilityFilter
 
 	@Override
 	public Float getValue(ClusterRupture rupture) {
+		return getValue(rupture, null);
+	}
+	
+	private static List<FaultSection> getAllSects(ClusterRupture rupture) {
+		List<FaultSection> allSects = new ArrayList<>();
+		for (FaultSubsectionCluster cluster : rupture.getClustersIterable())
+			allSects.addAll(cluster.subSects);
+		return allSects;
+	}
+	
+	private Float getValue(ClusterRupture rupture, StiffnessAggregationBatch batch) {
 		if (rupture.getTotalNumSects() == 1)
 			return null;
 		
@@ -107,10 +132,8 @@ public class NetRuptureCoulombFilter implements ScalarCoulombPlausibilityFilter
 //			fdRupture.addFilterData(this, new FilterData(rupture, aggregation));
 //			return (float)aggregation.get(aggCalc.getSectsToSectsAggMethod());
 //		}
-		List<FaultSection> allSects = new ArrayList<>();
-		for (FaultSubsectionCluster cluster : rupture.getClustersIterable())
-			allSects.addAll(cluster.subSects);
-		return (float)aggCalc.calc(allSects, allSects);
+		List<FaultSection> allSects = getAllSects(rupture);
+		return (float)StiffnessAggregationBatch.calc(batch, aggCalc, allSects, allSects);
 	}
 
 	@Override
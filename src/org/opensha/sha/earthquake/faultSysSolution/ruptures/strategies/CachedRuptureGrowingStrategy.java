@@ -1,44 +1,74 @@
 package org.opensha.sha.earthquake.faultSysSolution.ruptures.strategies;
 
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.FaultSubsectionCluster;
 import org.opensha.sha.faultSurface.FaultSection;
 
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
+import com.google.common.collect.ImmutableList;
 
 /**
- * Utility class to cache viable cluster variations for faster and memory-efficient rupture building
- * 
+ * Utility class to cache viable cluster variations for faster and memory-efficient rupture building.
+ *
+ * The cache is safe for concurrent use without any global lock: lookups of already computed variations never
+ * block, and each set of variations is computed exactly once (by the first thread to request it, with any other
+ * threads requesting the same variations at the same time waiting on that result).
+ *
  * @author kevin
  *
  */
 public abstract class CachedRuptureGrowingStrategy implements RuptureGrowingStrategy {
-	
-	private Table<FaultSubsectionCluster, FaultSection, List<FaultSubsectionCluster>> cacheTable;
-	
+
+	private ConcurrentMap<FaultSubsectionCluster, ConcurrentMap<Integer, Future<List<FaultSubsectionCluster>>>> cache;
+
 	public CachedRuptureGrowingStrategy() {
-		cacheTable = HashBasedTable.create();
+		cache = new ConcurrentHashMap<>();
 	}
 
 	@Override
-	public final synchronized List<FaultSubsectionCluster> getVariations(FaultSubsectionCluster fullCluster,
+	public final List<FaultSubsectionCluster> getVariations(FaultSubsectionCluster fullCluster,
 			FaultSection firstSection) {
-		List<FaultSubsectionCluster> permutations = cacheTable.get(fullCluster, firstSection);
-		if (permutations == null) {
-			permutations = calcPermutations(fullCluster, firstSection);
-			cacheTable.put(fullCluster, firstSection, permutations);
+		ConcurrentMap<Integer, Future<List<FaultSubsectionCluster>>> clusterCache = cache.get(fullCluster);
+		if (clusterCache == null) {
+			clusterCache = new ConcurrentHashMap<>();
+			ConcurrentMap<Integer, Future<List<FaultSubsectionCluster>>> prev = cache.putIfAbsent(fullCluster, clusterCache);
+			if (prev != null)
+				clusterCache = prev;
+		}
+		Integer sectID = firstSection.getSectionId();
+		Future<List<FaultSubsectionCluster>> future = clusterCache.get(sectID);
+		if (future == null) {
+			FutureTask<List<FaultSubsectionCluster>> task = new FutureTask<>(
+					() -> ImmutableList.copyOf(calcPermutations(fullCluster, firstSection)));
+			future = clusterCache.putIfAbsent(sectID, task);
+			if (future == null) {
+				// we won, calculate it in this thread
+				future = task;
+				task.run();
+			}
+		}
+		try {
+			return future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			// don't cache failures
+			clusterCache.remove(sectID, future);
+			Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+			throw ExceptionUtils.asRuntimeException(cause);
 		}
-		return permutations;
 	}
-	
+
 	protected abstract List<FaultSubsectionCluster> calcPermutations(FaultSubsectionCluster fullCluster,
 			FaultSection firstSection);
-	
+
 	@Override
 	public void clearCaches() {
-		cacheTable.clear();
+		cache.clear();
 	}
 
 }
@@ -53,6 +53,8 @@ public abstract class ClusterConnectionStrategy implements Named {
 	protected transient HashSet<IDPairing> connectedParents;
 	protected transient boolean connectionsAdded = false;
 	protected transient Multimap<FaultSection, Jump> jumpsFrom;
+	private transient ClusterJumpTable jumpTable;
+	private transient boolean spatialIndexPruning = true;
 	
 	public ClusterConnectionStrategy(List<? extends FaultSection> subSections, SectionDistanceAzimuthCalculator distCalc) {
 		this(subSections, buildClusters(subSections), distCalc);
@@ -113,6 +115,33 @@ public abstract class ClusterConnectionStrategy implements Named {
 		return clusters;
 	}
 	
+	/**
+	 * Enables or disables skipping cluster pairs which are definitely further than getMaxJumpDist() apart, using
+	 * the spatial index in the distance calculator, when connections are built. This only has an effect if
+	 * isMaxJumpDistStrict() returns true for this strategy. Enabled by default, and must be set before connections
+	 * are built.
+	 * 
+	 * @param spatialIndexPruning
+	 */
+	public synchronized void setSpatialIndexPruning(boolean spatialIndexPruning) {
+		Preconditions.checkState(!connectionsAdded, "Connections have already been built");
+		this.spatialIndexPruning = spatialIndexPruning;
+	}
+	
+	/**
+	 * Can be used by implementations to skip section pairs without computing their distance, if spatial index
+	 * pruning is enabled. This uses bounding boxes and any loaded binary distance cache file.
+	 * 
+	 * @param sect1
+	 * @param sect2
+	 * @return false if the given sections are definitely further than getMaxJumpDist() apart and can't be connected
+	 */
+	protected boolean isPossiblyWithinMaxJumpDist(FaultSection sect1, FaultSection sect2) {
+		if (!spatialIndexPruning || distCalc == null || !isMaxJumpDistStrict() || !Double.isFinite(getMaxJumpDist()))
+			return true;
+		return distCalc.isPossiblyWithinDistance(sect1.getSectionId(), sect2.getSectionId(), getMaxJumpDist());
+	}
+	
 	public synchronized void checkBuildThreaded(int numThreads) {
 		if (!connectionsAdded) {
 //			System.out.println("Building connections between "+clusters.size()+" clusters");
@@ -135,17 +164,25 @@ public abstract class ClusterConnectionStrategy implements Named {
 
 	/**
 	 * Populates all possible connections between the given clusters (via the
-	 * FaultSubsectionCluster.addConnection(Jump) method). This also populates the connectedParents and jumpsFrom maps.
+	 * FaultSubsectionCluster.addConnection(Jump) method). This also populates the connectedParents and jumpsFrom maps,
+	 * and the jump table if a distance calculator is available.
 	 * 
 	 * @return the number of connections added
 	 */
 	private int buildConnections(int numThreads) {
 		List<Jump> jumps = new ArrayList<>();
 		
+		HashSet<IDPairing> candidatePairs = null;
+		if (spatialIndexPruning && distCalc != null && isMaxJumpDistStrict() && Double.isFinite(getMaxJumpDist()))
+			candidatePairs = findCandidateClusterPairs(getMaxJumpDist());
+		
 		List<ConnSearchCallable> calls = new ArrayList<>();
 		for (int c1=0; c1<clusters.size(); c1++) {
 			FaultSubsectionCluster cluster1 = clusters.get(c1);
 			for (int c2=c1+1; c2<clusters.size(); c2++) {
+				if (candidatePairs != null && !candidatePairs.contains(new IDPairing(c1, c2)))
+					// too far apart to ever connect
+					continue;
 				FaultSubsectionCluster cluster2 = clusters.get(c2);
 				calls.add(new ConnSearchCallable(cluster1, cluster2));
 			}
@@ -205,10 +242,58 @@ public abstract class ClusterConnectionStrategy implements Named {
 //		for (FaultSubsectionCluster cluster : clusters)
 //			System.out.println("Cluster "+cluster+" has "+cluster.getConnections().size()+" jumps");
 		
+		buildJumpTable(jumps);
+		
 		connectionsAdded = true;
 		return jumps.size();
 	}
 	
+	/**
+	 * @return table of information for each allowed connection between full clusters, or null
+	 * if no distance calculator is available
+	 */
+	public synchronized ClusterJumpTable getJumpTable() {
+		// force it to populate connections if not yet populated
+		getClusters();
+		return jumpTable;
+	}
+	
+	/**
+	 * Builds the jump table for the given jumps if a distance calculator is available. Called once all connections
+	 * have been added, either by buildConnections or by subclasses which supply connections externally.
+	 * 
+	 * @param jumps
+	 */
+	protected void buildJumpTable(Collection<Jump> jumps) {
+		if (distCalc != null)
+			jumpTable = new ClusterJumpTable(clusters, jumps, distCalc);
+	}
+	
+	/**
+	 * Uses the spatial index of the distance calculator to find all pairs of clusters which could possibly have
+	 * a section pair within the given distance
+	 * 
+	 * @param maxDist
+	 * @return set of cluster index pairings, with the lower index first
+	 */
+	private HashSet<IDPairing> findCandidateClusterPairs(double maxDist) {
+		Map<Integer, Integer> sectClusterIndexes = new HashMap<>();
+		for (int c=0; c<clusters.size(); c++)
+			for (FaultSection sect : clusters.get(c).subSects)
+				sectClusterIndexes.put(sect.getSectionId(), c);
+		HashSet<IDPairing> pairs = new HashSet<>();
+		for (int c1=0; c1<clusters.size(); c1++) {
+			for (FaultSection sect : clusters.get(c1).subSects) {
+				for (int id2 : distCalc.getSectsPossiblyWithinDistance(sect.getSectionId(), maxDist)) {
+					Integer c2 = sectClusterIndexes.get(id2);
+					if (c2 != null && c2 > c1)
+						pairs.add(new IDPairing(c1, c2));
+				}
+			}
+		}
+		return pairs;
+	}
+	
 	private class ConnSearchCallable implements Callable<List<Jump>> {
 		
 		private FaultSubsectionCluster cluster1;
@@ -284,6 +369,18 @@ public abstract class ClusterConnectionStrategy implements Named {
 	 */
 	public abstract double getMaxJumpDist();
 	
+	/**
+	 * If true, connections will never be added between sections further than getMaxJumpDist() apart. This allows
+	 * cluster pairs which are too far apart to be skipped, via the spatial index in the distance calculator, without
+	 * computing any distances between them (if enabled via setSpatialIndexPruning(boolean)). Default implementation
+	 * returns false.
+	 * 
+	 * @return true if getMaxJumpDist() is a strict limit on all connections
+	 */
+	protected boolean isMaxJumpDistStrict() {
+		return false;
+	}
+	
 	public static class ConnStratTypeAdapter extends TypeAdapter<ClusterConnectionStrategy> {
 
 		private List<? extends FaultSection> subSects;
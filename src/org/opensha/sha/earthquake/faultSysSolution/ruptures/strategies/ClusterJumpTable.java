@@ -0,0 +1,298 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures.strategies;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import org.opensha.commons.util.IDPairing;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.FaultSubsectionCluster;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.Jump;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.SectionDistanceAzimuthCalculator;
+import org.opensha.sha.faultSurface.FaultSection;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Table of information about each allowed connection between full clusters, stored in primitive arrays for fast
+ * lookups during rupture building.
+ * <p>
+ * Each connection is stored in both directions. For each, we store the closest section pair between the two full
+ * clusters (and the distance and azimuth between them), as well as the distances between every section pair
+ * between the two clusters. The latter allows the minimum distance between any two variations of those clusters
+ * (e.g., when a jump is taken in a rupture) to be found without any distance calculator lookups.
+ * <p>
+ * The table is built once, when connections are built, and is immutable (and thus thread safe) thereafter.
+ */
+public class ClusterJumpTable {
+
+	private final List<FaultSubsectionCluster> clusters;
+	private final SectionDistanceAzimuthCalculator distAzCalc;
+
+	// index of the full cluster for each section ID, or -1
+	private final int[] sectClusterIndexes;
+	// index of each section within its full cluster
+	private final int[] sectIndexesInCluster;
+
+	// for each from cluster index, sorted indexes of connected clusters and corresponding connection indexes
+	private final int[][] connectedClusters;
+	private final int[][] clusterConnIndexes;
+
+	// directional connection information. connections 2*p and 2*p+1 are the forward and reverse directions of
+	// cluster pair p, where the forward direction is from the lower to the higher cluster index
+	private final int[] fromClusterIndexes;
+	private final int[] toClusterIndexes;
+
+	// closest section pair for each connection, and the distance and azimuth between them
+	private final int[] fromSectIDs;
+	private final int[] toSectIDs;
+	private final double[] distances;
+	private final double[] azimuths;
+
+	// distances between all section pairs for each cluster pair, shared by the forward and reverse connections.
+	// row major, with the lower cluster index sections as rows
+	private final double[][] pairDists;
+
+	/**
+	 * Builds a jump table for the given full clusters and connections between them
+	 *
+	 * @param clusters full clusters
+	 * @param jumps allowed jumps between those clusters, in either or both directions. Multiple jumps between
+	 * the same pair of clusters will be combined into a single connection
+	 * @param distAzCalc distance/azimuth calculator
+	 */
+	public ClusterJumpTable(List<FaultSubsectionCluster> clusters, Collection<Jump> jumps,
+			SectionDistanceAzimuthCalculator distAzCalc) {
+		this.clusters = clusters;
+		this.distAzCalc = distAzCalc;
+		int maxSectID = -1;
+		for (FaultSubsectionCluster cluster : clusters)
+			for (FaultSection sect : cluster.subSects)
+				maxSectID = Integer.max(maxSectID, sect.getSectionId());
+		sectClusterIndexes = new int[maxSectID+1];
+		sectIndexesInCluster = new int[maxSectID+1];
+		Arrays.fill(sectClusterIndexes, -1);
+		for (int c=0; c<clusters.size(); c++) {
+			List<FaultSection> sects = clusters.get(c).subSects;
+			for (int s=0; s<sects.size(); s++) {
+				int id = sects.get(s).getSectionId();
+				Preconditions.checkState(sectClusterIndexes[id] < 0, "Section %s is in multiple clusters", id);
+				sectClusterIndexes[id] = c;
+				sectIndexesInCluster[id] = s;
+			}
+		}
+
+		// unique undirected cluster pairs, lower index first
+		List<IDPairing> pairs = new ArrayList<>();
+		HashSet<IDPairing> pairsFound = new HashSet<>();
+		for (Jump jump : jumps) {
+			int c1 = getClusterIndex(jump.fromSection);
+			int c2 = getClusterIndex(jump.toSection);
+			Preconditions.checkState(c1 >= 0 && c2 >= 0, "Jump is between sections not in any cluster: %s", jump);
+			if (c1 == c2)
+				continue;
+			IDPairing pair = new IDPairing(Integer.min(c1, c2), Integer.max(c1, c2));
+			if (pairsFound.add(pair))
+				pairs.add(pair);
+		}
+
+		int numConns = pairs.size()*2;
+		fromClusterIndexes = new int[numConns];
+		toClusterIndexes = new int[numConns];
+		fromSectIDs = new int[numConns];
+		toSectIDs = new int[numConns];
+		distances = new double[numConns];
+		azimuths = new double[numConns];
+		pairDists = new double[pairs.size()][];
+
+		int[] clusterConnCounts = new int[clusters.size()];
+		for (int p=0; p<pairs.size(); p++) {
+			int c1 = pairs.get(p).getID1();
+			int c2 = pairs.get(p).getID2();
+			fromClusterIndexes[2*p] = c1;
+			toClusterIndexes[2*p] = c2;
+			fromClusterIndexes[2*p+1] = c2;
+			toClusterIndexes[2*p+1] = c1;
+			clusterConnCounts[c1]++;
+			clusterConnCounts[c2]++;
+			calcPairDistances(p);
+		}
+
+		connectedClusters = new int[clusters.size()][];
+		clusterConnIndexes = new int[clusters.size()][];
+		for (int c=0; c<clusters.size(); c++) {
+			connectedClusters[c] = new int[clusterConnCounts[c]];
+			clusterConnIndexes[c] = new int[clusterConnCounts[c]];
+		}
+		int[] clusterConnFilled = new int[clusters.size()];
+		for (int conn=0; conn<numConns; conn++) {
+			int from = fromClusterIndexes[conn];
+			connectedClusters[from][clusterConnFilled[from]] = toClusterIndexes[conn];
+			clusterConnIndexes[from][clusterConnFilled[from]] = conn;
+			clusterConnFilled[from]++;
+		}
+		// sort by connected cluster index for binary search lookups
+		for (int c=0; c<clusters.size(); c++) {
+			int[] to = connectedClusters[c];
+			int[] conns = clusterConnIndexes[c];
+			Integer[] order = new Integer[to.length];
+			for (int i=0; i<order.length; i++)
+				order[i] = i;
+			Arrays.sort(order, (i1, i2) -> Integer.compare(to[i1], to[i2]));
+			int[] sortedTo = new int[to.length];
+			int[] sortedConns = new int[to.length];
+			for (int i=0; i<order.length; i++) {
+				sortedTo[i] = to[order[i]];
+				sortedConns[i] = conns[order[i]];
+			}
+			connectedClusters[c] = sortedTo;
+			clusterConnIndexes[c] = sortedConns;
+		}
+	}
+
+	/**
+	 * Computes distances between all section pairs for the given cluster pair, and fills in the closest section
+	 * pair for both directions
+	 */
+	private void calcPairDistances(int p) {
+		FaultSubsectionCluster lower = clusters.get(fromClusterIndexes[2*p]);
+		FaultSubsectionCluster upper = clusters.get(toClusterIndexes[2*p]);
+		List<FaultSection> sects1 = lower.subSects;
+		List<FaultSection> sects2 = upper.subSects;
+		int numCols = sects2.size();
+		double[] dists = new double[sects1.size()*numCols];
+		int bestIndex1 = -1;
+		int bestIndex2 = -1;
+		double bestDist = Double.POSITIVE_INFINITY;
+		for (int i=0; i<sects1.size(); i++) {
+			for (int j=0; j<sects2.size(); j++) {
+				double dist = distAzCalc.getDistance(sects1.get(i), sects2.get(j));
+				dists[i*numCols + j] = dist;
+				if (dist < bestDist) {
+					bestDist = dist;
+					bestIndex1 = i;
+					bestIndex2 = j;
+				}
+			}
+		}
+		Preconditions.checkState(bestIndex1 >= 0, "No finite distances between clusters %s and %s",
+				lower.parentSectionID, upper.parentSectionID);
+		pairDists[p] = dists;
+		FaultSection best1 = sects1.get(bestIndex1);
+		FaultSection best2 = sects2.get(bestIndex2);
+		fromSectIDs[2*p] = best1.getSectionId();
+		toSectIDs[2*p] = best2.getSectionId();
+		fromSectIDs[2*p+1] = best2.getSectionId();
+		toSectIDs[2*p+1] = best1.getSectionId();
+		distances[2*p] = bestDist;
+		distances[2*p+1] = bestDist;
+		azimuths[2*p] = distAzCalc.getAzimuth(best1, best2);
+		azimuths[2*p+1] = distAzCalc.getAzimuth(best2, best1);
+	}
+
+	private static boolean isForward(int conn) {
+		return conn % 2 == 0;
+	}
+
+	private int getClusterIndex(FaultSection sect) {
+		int id = sect.getSectionId();
+		if (id < 0 || id >= sectClusterIndexes.length)
+			return -1;
+		return sectClusterIndexes[id];
+	}
+
+	/**
+	 * @return number of directional connections in this table (twice the number of connected cluster pairs)
+	 */
+	public int getNumConnections() {
+		return fromClusterIndexes.length;
+	}
+
+	/**
+	 * @param fromCluster full cluster or any variation of one
+	 * @param toCluster full cluster or any variation of one
+	 * @return index of the connection between the full clusters of the given (possibly partial) clusters,
+	 * or -1 if they are not connected
+	 */
+	public int getConnectionIndex(FaultSubsectionCluster fromCluster, FaultSubsectionCluster toCluster) {
+		int c1 = getClusterIndex(fromCluster.startSect);
+		int c2 = getClusterIndex(toCluster.startSect);
+		if (c1 < 0 || c2 < 0)
+			return -1;
+		int index = Arrays.binarySearch(connectedClusters[c1], c2);
+		if (index < 0)
+			return -1;
+		return clusterConnIndexes[c1][index];
+	}
+
+	/**
+	 * @param conn connection index
+	 * @return ID of the section on the from cluster that is closest to the to cluster
+	 */
+	public int getFromSectID(int conn) {
+		return fromSectIDs[conn];
+	}
+
+	/**
+	 * @param conn connection index
+	 * @return ID of the section on the to cluster that is closest to the from cluster
+	 */
+	public int getToSectID(int conn) {
+		return toSectIDs[conn];
+	}
+
+	/**
+	 * @param conn connection index
+	 * @return minimum distance between the two full clusters
+	 */
+	public double getDistance(int conn) {
+		return distances[conn];
+	}
+
+	/**
+	 * @param conn connection index
+	 * @return azimuth from the closest from section to the closest to section
+	 */
+	public double getAzimuth(int conn) {
+		return azimuths[conn];
+	}
+
+	/**
+	 * Computes the minimum distance between the given clusters, which can be variations of (or the full) clusters
+	 * for the given connection
+	 *
+	 * @param conn connection index
+	 * @param fromCluster
+	 * @param toCluster
+	 * @return minimum distance, or NaN if either cluster contains sections outside of the full clusters for
+	 * this connection
+	 */
+	public double getMinDistance(int conn, FaultSubsectionCluster fromCluster, FaultSubsectionCluster toCluster) {
+		int fromIndex = fromClusterIndexes[conn];
+		int toIndex = toClusterIndexes[conn];
+		double[] dists = pairDists[conn/2];
+		// number of sections in the higher index cluster, which are the columns
+		int numCols = clusters.get(Integer.max(fromIndex, toIndex)).subSects.size();
+		boolean forward = isForward(conn);
+		int fromStride = forward ? numCols : 1;
+		int toStride = forward ? 1 : numCols;
+		double minDist = Double.POSITIVE_INFINITY;
+		List<FaultSection> fromSects = fromCluster.subSects;
+		List<FaultSection> toSects = toCluster.subSects;
+		for (int i=0; i<fromSects.size(); i++) {
+			int id1 = fromSects.get(i).getSectionId();
+			if (id1 >= sectClusterIndexes.length || sectClusterIndexes[id1] != fromIndex)
+				return Double.NaN;
+			int rowOffset = sectIndexesInCluster[id1]*fromStride;
+			for (int j=0; j<toSects.size(); j++) {
+				int id2 = toSects.get(j).getSectionId();
+				if (id2 >= sectClusterIndexes.length || sectClusterIndexes[id2] != toIndex)
+					return Double.NaN;
+				minDist = Double.min(minDist, dists[rowOffset + sectIndexesInCluster[id2]*toStride]);
+			}
+		}
+		return minDist;
+	}
+
+}
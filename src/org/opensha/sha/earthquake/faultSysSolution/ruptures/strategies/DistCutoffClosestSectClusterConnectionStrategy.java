@@ -36,6 +36,8 @@ public class DistCutoffClosestSectClusterConnectionStrategy extends ClusterConne
 		Jump jump = null;
 		for (FaultSection s1 : from.subSects) {
 			for (FaultSection s2 : to.subSects) {
+				if (!isPossiblyWithinMaxJumpDist(s1, s2))
+					continue;
 				double dist = distCalc.getDistance(s1, s2);
 				// do everything to float precision to avoid system/OS dependent results
 				if ((float)dist <= (float)maxJumpDist && (jump == null || (float)dist < (float)jump.distance))
@@ -57,4 +59,9 @@ public class DistCutoffClosestSectClusterConnectionStrategy extends ClusterConne
 		return maxJumpDist;
 	}
 
+	@Override
+	protected boolean isMaxJumpDistStrict() {
+		return true;
+	}
+
 }
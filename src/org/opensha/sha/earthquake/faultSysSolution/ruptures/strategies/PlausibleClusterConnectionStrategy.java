@@ -875,6 +875,11 @@ public class PlausibleClusterConnectionStrategy extends ClusterConnectionStrateg
 	public double getMaxJumpDist() {
 		return maxJumpDist;
 	}
+
+	@Override
+	protected boolean isMaxJumpDistStrict() {
+		return true;
+	}
 	
 	public static void main(String[] args) throws IOException {
 		List<? extends FaultSection> subSects = DeformationModels.loadSubSects(FaultModels.FM3_1, DeformationModels.GEOLOGIC);
@@ -882,9 +887,10 @@ public class PlausibleClusterConnectionStrategy extends ClusterConnectionStrateg
 				subSects, 2d, 3e4, 3e4, 0.5, PatchAlignment.FILL_OVERLAP, 1d);
 		AggregatedStiffnessCache stiffnessCache = stiffnessCalc.getAggregationCache(StiffnessType.CFF);
 		File rupSetsDir = new File("/home/kevin/OpenSHA/UCERF4/rup_sets/");
-		File stiffnessCacheFile = new File(rupSetsDir, stiffnessCache.getCacheFileName());
+		// binary cache file, or CSV from previous versions
+		File stiffnessCacheFile = stiffnessCache.findCacheFile(rupSetsDir);
 		int stiffnessCacheSize = 0;
-		if (stiffnessCacheFile.exists())
+		if (stiffnessCacheFile != null)
 			stiffnessCacheSize = stiffnessCache.loadCacheFile(stiffnessCacheFile);
 		// common aggregators
 		AggregatedStiffnessCalculator sumAgg = new AggregatedStiffnessCalculator(StiffnessType.CFF, stiffnessCalc, true,
@@ -902,6 +908,12 @@ public class PlausibleClusterConnectionStrategy extends ClusterConnectionStrateg
 		double maxJumpDist = 15d;
 		boolean favJump = true;
 		
+		int threads = Integer.max(1, Integer.min(31, Runtime.getRuntime().availableProcessors()-2));
+		
+		// connection filters will evaluate stiffness between all nearby sections, calculate it in parallel
+		sumAgg.precomputeWithinDistance(distAzCalc, maxJumpDist, threads);
+		fractIntsAgg.precomputeWithinDistance(distAzCalc, maxJumpDist, threads);
+		
 		float cffProb = 0.02f;
 		RelativeCoulombProb cffProbCalc = new RelativeCoulombProb(
 				sumAgg, new DistCutoffClosestSectClusterConnectionStrategy(subSects, distAzCalc, 0.1d), false, true, favJump, (float)maxJumpDist, distAzCalc);
@@ -963,7 +975,6 @@ public class PlausibleClusterConnectionStrategy extends ClusterConnectionStrateg
 		ClusterConnectionStrategy newStrat = new AdaptiveClusterConnectionStrategy(orig, 6d, 1);
 		String newName = "Adaptive 6-15km";
 		
-		int threads = Integer.max(1, Integer.min(31, Runtime.getRuntime().availableProcessors()-2));
 		orig.checkBuildThreaded(threads);
 		newStrat.checkBuildThreaded(threads);
 		
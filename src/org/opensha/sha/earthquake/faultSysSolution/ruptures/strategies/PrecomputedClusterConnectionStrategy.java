@@ -32,6 +32,7 @@ class PrecomputedClusterConnectionStrategy extends ClusterConnectionStrategy {
 		}
 		if (connectedParents.isEmpty())
 			System.err.println("WARNING: no connections detected");
+		buildJumpTable(getAllPossibleJumps());
 	}
 
 	@Override
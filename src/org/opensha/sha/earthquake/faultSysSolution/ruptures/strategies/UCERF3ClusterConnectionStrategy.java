@@ -31,6 +31,8 @@ public class UCERF3ClusterConnectionStrategy extends ClusterConnectionStrategy {
 		Jump jump = null;
 		for (FaultSection s1 : from.subSects) {
 			for (FaultSection s2 : to.subSects) {
+				if (!isPossiblyWithinMaxJumpDist(s1, s2))
+					continue;
 				double dist = distCalc.getDistance(s1, s2);
 				// do everything to float precision to avoid system/OS dependent results
 				if ((float)dist <= (float)maxJumpDist && (jump == null || (float)dist <= (float)jump.distance)) {
@@ -82,4 +84,9 @@ public class UCERF3ClusterConnectionStrategy extends ClusterConnectionStrategy {
 		return maxJumpDist;
 	}
 
+	@Override
+	protected boolean isMaxJumpDistStrict() {
+		return true;
+	}
+
 }
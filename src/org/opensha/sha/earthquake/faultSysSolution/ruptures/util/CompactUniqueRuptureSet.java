@@ -0,0 +1,252 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures.util;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Memory efficient set of {@link UniqueRupture}s, for deduplication when building very large rupture sets.
+ * <p>
+ * Ruptures are not retained. Instead, each is stored as a 64-bit fingerprint in an open-addressing hash table,
+ * along with a packed encoding of its section ID ranges in a shared byte arena (delta encoded variable length
+ * integers, typically only a few bytes per rupture). Fingerprint matches are verified against the packed encoding,
+ * so hash collisions can never cause a rupture to be falsely reported as present.
+ * <p>
+ * This class is thread safe: any number of threads can call contains(...) concurrently, and add(...) calls are
+ * serialized.
+ */
+public class CompactUniqueRuptureSet {
+
+	private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+	private static final double MAX_LOAD_FACTOR = 0.6;
+
+	// 0 indicates an empty slot, fingerprints are remapped such that they are never 0
+	private long[] fingerprints;
+	private int[] arenaIndexes;
+	private int size;
+
+	private byte[] arena;
+	private int arenaSize;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public CompactUniqueRuptureSet() {
+		this(DEFAULT_INITIAL_CAPACITY);
+	}
+
+	public CompactUniqueRuptureSet(int expectedSize) {
+		int capacity = Integer.highestOneBit(Integer.max(16, (int)(expectedSize/MAX_LOAD_FACTOR)) - 1) << 1;
+		fingerprints = new long[capacity];
+		arenaIndexes = new int[capacity];
+		arena = new byte[Integer.max(64, capacity*4)];
+	}
+
+	/**
+	 * @param unique
+	 * @return 64-bit fingerprint of the given rupture, which is never 0
+	 */
+	public static long fingerprint(UniqueRupture unique) {
+		long hash = 0x9E3779B97F4A7C15l * (unique.getNumRanges()+1);
+		for (int i=0; i<unique.getNumRanges(); i++) {
+			SectIDRange range = unique.getRange(i);
+			long packed = ((long)range.getStartID() << 32) | (range.getEndID() & 0xffffffffl);
+			hash = mix(hash ^ packed) + 0x9E3779B97F4A7C15l;
+		}
+		hash = mix(hash);
+		return hash == 0l ? 1l : hash;
+	}
+
+	// MurmurHash3 64-bit finalizer
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdl;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53l;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of bytes used to store packed ruptures (excluding the hash table itself)
+	 */
+	public int getArenaBytes() {
+		lock.readLock().lock();
+		try {
+			return arenaSize;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean contains(UniqueRupture unique) {
+		return contains(unique, fingerprint(unique));
+	}
+
+	/**
+	 * Package-private so that tests can force fingerprint collisions
+	 */
+	boolean contains(UniqueRupture unique, long fingerprint) {
+		Preconditions.checkArgument(fingerprint != 0l);
+		lock.readLock().lock();
+		try {
+			return findSlot(unique, fingerprint) >= 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds the given rupture if not already present
+	 *
+	 * @param unique
+	 * @return true if this rupture was added, false if it was already present
+	 */
+	public boolean add(UniqueRupture unique) {
+		return add(unique, fingerprint(unique));
+	}
+
+	/**
+	 * Package-private so that tests can force fingerprint collisions
+	 */
+	boolean add(UniqueRupture unique, long fingerprint) {
+		Preconditions.checkArgument(fingerprint != 0l);
+		lock.writeLock().lock();
+		try {
+			int slot = findSlot(unique, fingerprint);
+			if (slot >= 0)
+				return false;
+			if (size+1 > MAX_LOAD_FACTOR*fingerprints.length) {
+				rehash(fingerprints.length*2);
+				slot = findSlot(unique, fingerprint);
+				Preconditions.checkState(slot < 0);
+			}
+			slot = -(slot + 1);
+			fingerprints[slot] = fingerprint;
+			arenaIndexes[slot] = appendEncoded(unique);
+			size++;
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param unique
+	 * @param fingerprint
+	 * @return slot index if found, otherwise -(insertion slot + 1)
+	 */
+	private int findSlot(UniqueRupture unique, long fingerprint) {
+		int mask = fingerprints.length - 1;
+		int slot = (int)fingerprint & mask;
+		while (true) {
+			long stored = fingerprints[slot];
+			if (stored == 0l)
+				return -(slot + 1);
+			if (stored == fingerprint && encodedEquals(arenaIndexes[slot], unique))
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void rehash(int newCapacity) {
+		long[] oldFingerprints = fingerprints;
+		int[] oldIndexes = arenaIndexes;
+		fingerprints = new long[newCapacity];
+		arenaIndexes = new int[newCapacity];
+		int mask = newCapacity - 1;
+		for (int i=0; i<oldFingerprints.length; i++) {
+			long fingerprint = oldFingerprints[i];
+			if (fingerprint == 0l)
+				continue;
+			int slot = (int)fingerprint & mask;
+			while (fingerprints[slot] != 0l)
+				slot = (slot + 1) & mask;
+			fingerprints[slot] = fingerprint;
+			arenaIndexes[slot] = oldIndexes[i];
+		}
+	}
+
+	/*
+	 * Packed encoding: number of ranges, then for each range: (startID - previous endID), and (endID - startID),
+	 * all as unsigned variable length integers. The previous endID is -1 for the first range.
+	 */
+
+	private int appendEncoded(UniqueRupture unique) {
+		// each varint is at most 5 bytes
+		int maxLen = 5*(1 + 2*unique.getNumRanges());
+		if (arenaSize + maxLen > arena.length) {
+			long newLen = Long.max((long)arena.length*2l, (long)arenaSize + maxLen);
+			Preconditions.checkState(newLen <= Integer.MAX_VALUE - 8, "Packed rupture arena is full");
+			arena = Arrays.copyOf(arena, (int)newLen);
+		}
+		int start = arenaSize;
+		int pos = writeVarInt(start, unique.getNumRanges());
+		int prevEnd = -1;
+		for (int i=0; i<unique.getNumRanges(); i++) {
+			SectIDRange range = unique.getRange(i);
+			pos = writeVarInt(pos, range.getStartID() - prevEnd);
+			pos = writeVarInt(pos, range.getEndID() - range.getStartID());
+			prevEnd = range.getEndID();
+		}
+		arenaSize = pos;
+		return start;
+	}
+
+	private int writeVarInt(int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			arena[pos++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		arena[pos++] = (byte)value;
+		return pos;
+	}
+
+	private boolean encodedEquals(int pos, UniqueRupture unique) {
+		// decoded in place (without allocation), as this is called for every fingerprint match
+		long read = readVarInt(pos);
+		if ((int)read != unique.getNumRanges())
+			return false;
+		int prevEnd = -1;
+		for (int i=0; i<unique.getNumRanges(); i++) {
+			SectIDRange range = unique.getRange(i);
+			read = readVarInt((int)(read >>> 32));
+			int startID = prevEnd + (int)read;
+			if (startID != range.getStartID())
+				return false;
+			read = readVarInt((int)(read >>> 32));
+			int endID = startID + (int)read;
+			if (endID != range.getEndID())
+				return false;
+			prevEnd = endID;
+		}
+		return true;
+	}
+
+	/**
+	 * @param pos
+	 * @return the value in the lower 32 bits, and the position after it in the upper 32 bits
+	 */
+	private long readVarInt(int pos) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = arena[pos++];
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return ((long)pos << 32) | (value & 0xffffffffl);
+	}
+
+}
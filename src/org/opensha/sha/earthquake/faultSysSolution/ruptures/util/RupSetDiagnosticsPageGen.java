@@ -1671,7 +1671,9 @@ public class RupSetDiagnosticsPageGen {
 		if (distAzCacheFile != null && (numAzCached < distAzCalc.getNumCachedAzimuths()
 				|| numDistCached < distAzCalc.getNumCachedDistances())) {
 			System.out.println("Writing dist/az cache to "+distAzCacheFile.getAbsolutePath());
-			distAzCalc.writeCacheFile(distAzCacheFile);
+			// replaces any CSV cache file, both formats can be loaded
+			distAzCalc.writeBinaryCacheFile(distAzCacheFile,
+					SectionDistanceAzimuthCalculator.DEFAULT_CACHE_CUTOFF_DIST);
 		}
 	}
 
@@ -1963,8 +1965,9 @@ public class RupSetDiagnosticsPageGen {
 				SubSectStiffnessCalculator stiffnessCalc = agg.getCalc();
 				AggregatedStiffnessCache cache = stiffnessCalc.getAggregationCache(agg.getType());
 				String cacheName = cache.getCacheFileName();
-				File cacheFile = new File(cacheDir, cacheName);
-				if (!cacheFile.exists())
+				// binary cache file, or CSV from previous versions
+				File cacheFile = cache.findCacheFile(cacheDir);
+				if (cacheFile == null)
 					continue;
 				if (loadedCoulombCaches.containsKey(cacheName)) {
 					// copy the cache over to this one, if not already set
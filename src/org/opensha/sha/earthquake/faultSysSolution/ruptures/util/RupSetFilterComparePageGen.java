@@ -159,8 +159,9 @@ public class RupSetFilterComparePageGen {
 		SubSectStiffnessCalculator stiffnessCalc = new SubSectStiffnessCalculator(
 				rupSet.getFaultSectionDataList(), 2d, 3e4, 3e4, 0.5, PatchAlignment.FILL_OVERLAP, 1d);
 		AggregatedStiffnessCache stiffnessCache = stiffnessCalc.getAggregationCache(StiffnessType.CFF);
-		File stiffnessCacheFile = new File(rupSetsDir, stiffnessCache.getCacheFileName());
-		if (stiffnessCacheFile.exists())
+		// binary cache file, or CSV from previous versions
+		File stiffnessCacheFile = stiffnessCache.findCacheFile(rupSetsDir);
+		if (stiffnessCacheFile != null)
 			stiffnessCache.loadCacheFile(stiffnessCacheFile);
 		// common aggregators
 		AggregatedStiffnessCalculator sumAgg = new AggregatedStiffnessCalculator(StiffnessType.CFF, stiffnessCalc, true,
@@ -0,0 +1,452 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRupture;
+import org.opensha.sha.faultSurface.FaultSection;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Disk-backed list of ruptures, used to build very large rupture sets without holding every {@link ClusterRupture}
+ * in memory. Ruptures are appended to a data file as they are accepted, and can then be read back sequentially or by
+ * index when assembling the final rupture set.
+ * <p>
+ * Each rupture is stored as its ordered list of section IDs (as returned by
+ * {@link ClusterRupture#buildOrderedSectionList()}). Format of the data file (big endian):
+ * <pre>
+ * magic - int
+ * version - short
+ * for each rupture:
+ *   numSects - varint
+ *   for each section: zig-zag encoded (sectID - previous sectID) - varint, with the previous ID starting at 0
+ * </pre>
+ * The index file (data file name + ".idx") is written when the writer is closed:
+ * <pre>
+ * magic - int
+ * version - short
+ * numRuptures - int
+ * for each rupture, plus one extra for the end of the data: offset in the data file - long
+ * </pre>
+ */
+public class RuptureSpillFile {
+
+	private static final int MAGIC = 0x52555053; // "RUPS"
+	private static final short VERSION = 1;
+	private static final int HEADER_LEN = 6;
+	private static final int INDEX_HEADER_LEN = 10;
+
+	private final File dataFile;
+	private final File indexFile;
+	private final File tempIndexFile;
+
+	public RuptureSpillFile(File dataFile) {
+		this.dataFile = dataFile;
+		this.indexFile = new File(dataFile.getParentFile(), dataFile.getName()+".idx");
+		this.tempIndexFile = new File(dataFile.getParentFile(), indexFile.getName()+".tmp");
+	}
+
+	public File getDataFile() {
+		return dataFile;
+	}
+
+	public File getIndexFile() {
+		return indexFile;
+	}
+
+	/**
+	 * @return new writer, replacing any existing data
+	 * @throws IOException
+	 */
+	public Writer writer() throws IOException {
+		return new Writer();
+	}
+
+	/**
+	 * @return new reader. The writer must have been closed first.
+	 * @throws IOException
+	 */
+	public Reader reader() throws IOException {
+		return new Reader();
+	}
+
+	/**
+	 * Deletes the data and index files, along with any temporary index file left by a writer which wasn't closed
+	 */
+	public void delete() {
+		dataFile.delete();
+		indexFile.delete();
+		tempIndexFile.delete();
+	}
+
+	private static void writeVarInt(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static int readVarInt(InputStream in) throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.read();
+			if (b < 0)
+				throw new EOFException();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static int readVarInt(ByteBuffer buf) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buf.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * Thread safe writer which appends ruptures to the data file. The index is written on close.
+	 */
+	public class Writer implements Closeable {
+
+		private final CountingOutputStream countOut;
+		private final DataOutputStream out;
+		private final DataOutputStream indexOut;
+		private int count;
+		private boolean closed = false;
+
+		private Writer() throws IOException {
+			// make sure that an index from previous data is never read
+			indexFile.delete();
+			countOut = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile), 1 << 16));
+			out = new DataOutputStream(countOut);
+			try {
+				out.writeInt(MAGIC);
+				out.writeShort(VERSION);
+				// offsets are buffered in a temporary file so that they don't need to be held in memory
+				indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempIndexFile), 1 << 16));
+			} catch (IOException e) {
+				out.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Appends the given rupture
+		 *
+		 * @param rupture
+		 * @return index of the rupture
+		 */
+		public int write(ClusterRupture rupture) {
+			return write(rupture.buildOrderedSectionList());
+		}
+
+		/**
+		 * Appends a rupture with the given ordered sections
+		 *
+		 * @param sects
+		 * @return index of the rupture
+		 */
+		public int write(List<? extends FaultSection> sects) {
+			int[] sectIDs = new int[sects.size()];
+			for (int i=0; i<sectIDs.length; i++)
+				sectIDs[i] = sects.get(i).getSectionId();
+			return write(sectIDs);
+		}
+
+		/**
+		 * Appends a rupture with the given ordered section IDs, e.g., as read from another spill file
+		 *
+		 * @param sectIDs
+		 * @return index of the rupture
+		 */
+		public synchronized int write(int[] sectIDs) {
+			Preconditions.checkState(!closed, "Writer already closed");
+			try {
+				indexOut.writeLong(countOut.count);
+				writeVarInt(out, sectIDs.length);
+				int prevID = 0;
+				for (int id : sectIDs) {
+					int delta = id - prevID;
+					writeVarInt(out, (delta << 1) ^ (delta >> 31));
+					prevID = id;
+				}
+			} catch (IOException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+			return count++;
+		}
+
+		/**
+		 * @return the spill file being written
+		 */
+		public RuptureSpillFile getSpillFile() {
+			return RuptureSpillFile.this;
+		}
+
+		/**
+		 * @return number of ruptures written so far
+		 */
+		public synchronized int size() {
+			return count;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				try {
+					indexOut.writeLong(countOut.count);
+				} finally {
+					indexOut.close();
+					out.close();
+				}
+
+				// now write the real index with a header
+				try (DataOutputStream finalOut = new DataOutputStream(
+							new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16));
+						InputStream tempIn = new BufferedInputStream(new FileInputStream(tempIndexFile), 1 << 16)) {
+					finalOut.writeInt(MAGIC);
+					finalOut.writeShort(VERSION);
+					finalOut.writeInt(count);
+					byte[] buf = new byte[1 << 16];
+					int read;
+					while ((read = tempIn.read(buf)) > 0)
+						finalOut.write(buf, 0, read);
+				} catch (IOException e) {
+					// don't leave a partial index which could later be read
+					indexFile.delete();
+					throw e;
+				}
+			} finally {
+				tempIndexFile.delete();
+			}
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private long count = 0l;
+
+		public CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reader for a completed spill file, supporting both sequential iteration and random access by index. Random
+	 * access is thread safe.
+	 */
+	public class Reader implements Closeable, Iterable<int[]> {
+
+		private final RandomAccessFile indexRAF;
+		private final RandomAccessFile dataRAF;
+		private final FileChannel indexChannel;
+		private final FileChannel dataChannel;
+		private final int numRuptures;
+
+		private Reader() throws IOException {
+			Preconditions.checkState(indexFile.exists(), "Index file doesn't exist, was the writer closed? %s",
+					indexFile.getAbsolutePath());
+			indexRAF = new RandomAccessFile(indexFile, "r");
+			RandomAccessFile dataRAF = null;
+			try {
+				indexChannel = indexRAF.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_LEN);
+				readFully(indexChannel, header, 0l);
+				Preconditions.checkState(header.getInt() == MAGIC, "Not a rupture spill index file: %s", indexFile);
+				short version = header.getShort();
+				Preconditions.checkState(version == VERSION, "Unsupported rupture spill version: %s", version);
+				numRuptures = header.getInt();
+				Preconditions.checkState(indexChannel.size() == INDEX_HEADER_LEN + 8l*(numRuptures+1),
+						"Index file size is inconsistent with %s ruptures", numRuptures);
+
+				dataRAF = new RandomAccessFile(dataFile, "r");
+				dataChannel = dataRAF.getChannel();
+				header = ByteBuffer.allocate(HEADER_LEN);
+				readFully(dataChannel, header, 0l);
+				Preconditions.checkState(header.getInt() == MAGIC, "Not a rupture spill data file: %s", dataFile);
+				Preconditions.checkState(header.getShort() == version, "Data and index file versions differ");
+			} catch (IOException | RuntimeException e) {
+				indexRAF.close();
+				if (dataRAF != null)
+					dataRAF.close();
+				throw e;
+			}
+			this.dataRAF = dataRAF;
+		}
+
+		private void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+			while (buf.hasRemaining()) {
+				int read = channel.read(buf, position);
+				if (read < 0)
+					throw new EOFException();
+				position += read;
+			}
+			buf.flip();
+		}
+
+		public int size() {
+			return numRuptures;
+		}
+
+		private long getOffset(int index) throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(8);
+			readFully(indexChannel, buf, INDEX_HEADER_LEN + 8l*index);
+			return buf.getLong();
+		}
+
+		/**
+		 * @param index
+		 * @return ordered section IDs for the rupture at the given index
+		 */
+		public int[] getSectIDs(int index) {
+			Preconditions.checkElementIndex(index, numRuptures);
+			try {
+				ByteBuffer offsets = ByteBuffer.allocate(16);
+				readFully(indexChannel, offsets, INDEX_HEADER_LEN + 8l*index);
+				long start = offsets.getLong();
+				long end = offsets.getLong();
+				ByteBuffer buf = ByteBuffer.allocate((int)(end - start));
+				readFully(dataChannel, buf, start);
+				int[] ids = new int[readVarInt(buf)];
+				int prevID = 0;
+				for (int i=0; i<ids.length; i++) {
+					int zigzag = readVarInt(buf);
+					ids[i] = prevID + ((zigzag >>> 1) ^ -(zigzag & 1));
+					prevID = ids[i];
+				}
+				return ids;
+			} catch (IOException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
+
+		/**
+		 * Sequential iterator over the ordered section IDs of each rupture, which is much faster than random access
+		 * when reading all ruptures. Each iterator opens its own stream (unless there are no ruptures), which is
+		 * closed once exhausted or if reading fails. Iterators which are abandoned early leave their stream open
+		 * until garbage collected.
+		 */
+		@Override
+		public Iterator<int[]> iterator() {
+			if (numRuptures == 0)
+				return Collections.emptyIterator();
+			final DataInputStream in;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataFile), 1 << 16));
+			} catch (IOException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+			try {
+				Preconditions.checkState(in.skipBytes(HEADER_LEN) == HEADER_LEN);
+				Preconditions.checkState(getOffset(0) == HEADER_LEN);
+			} catch (IOException | RuntimeException e) {
+				closeQuietly(in);
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+			return new Iterator<int[]>() {
+
+				private int index = 0;
+
+				@Override
+				public boolean hasNext() {
+					return index < numRuptures;
+				}
+
+				@Override
+				public int[] next() {
+					if (!hasNext())
+						throw new NoSuchElementException();
+					try {
+						int[] ids = new int[readVarInt(in)];
+						int prevID = 0;
+						for (int i=0; i<ids.length; i++) {
+							int zigzag = readVarInt(in);
+							ids[i] = prevID + ((zigzag >>> 1) ^ -(zigzag & 1));
+							prevID = ids[i];
+						}
+						index++;
+						if (index == numRuptures)
+							in.close();
+						return ids;
+					} catch (IOException e) {
+						closeQuietly(in);
+						// don't allow further reads from a closed stream
+						index = numRuptures;
+						throw ExceptionUtils.asRuntimeException(e);
+					}
+				}
+			};
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				indexRAF.close();
+			} finally {
+				dataRAF.close();
+			}
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {}
+	}
+
+}
@@ -1,20 +1,32 @@
 package org.opensha.sha.earthquake.faultSysSolution.ruptures.util;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.zip.ZipException;
 
 import org.dom4j.DocumentException;
 import org.opensha.commons.data.CSVFile;
 import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationList;
 import org.opensha.commons.geo.LocationUtils;
 import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.IDPairing;
@@ -35,19 +47,53 @@ public class SectionDistanceAzimuthCalculator {
 
 	private List<? extends FaultSection> subSects;
 	
-	private double[][] distCache;
-	private double[][] azCache;
+	private AtomicReferenceArray<double[]> distCache;
+	private AtomicReferenceArray<double[]> azCache;
 	private Map<Integer, RuptureSurface> sectSurfs;
 	
+	private SectSpatialIndex spatialIndex;
+	
+	private volatile BinaryCache binaryCache;
+	
 	public static final double SURF_DISCRETIZATION = 1d;
+	
+	/**
+	 * Default cutoff distance for binary cache files, beyond any distance used when building ruptures
+	 */
+	public static final double DEFAULT_CACHE_CUTOFF_DIST = 100d;
 
 	public SectionDistanceAzimuthCalculator(List<? extends FaultSection> subSects) {
 		this.subSects = ImmutableList.copyOf(subSects);
 		sectSurfs = new HashMap<>();
 		for (FaultSection subSect : subSects)
 			sectSurfs.put(subSect.getSectionId(), subSect.getFaultSurface(SURF_DISCRETIZATION, false, false));
-		distCache = new double[subSects.size()][];
-		azCache = new double[subSects.size()][];
+		distCache = new AtomicReferenceArray<>(subSects.size());
+		azCache = new AtomicReferenceArray<>(subSects.size());
+	}
+	
+	private static double[] buildNaNArray(int size) {
+		double[] cache = new double[size];
+		for (int i=0; i<cache.length; i++)
+			cache[i] = Double.NaN;
+		return cache;
+	}
+	
+	private double[] getDistRow(int id1) {
+		double[] row = distCache.get(id1);
+		if (row == null) {
+			distCache.compareAndSet(id1, null, buildNaNArray(subSects.size()-id1));
+			row = distCache.get(id1);
+		}
+		return row;
+	}
+	
+	private double[] getAzRow(int id1) {
+		double[] row = azCache.get(id1);
+		if (row == null) {
+			azCache.compareAndSet(id1, null, buildNaNArray(subSects.size()));
+			row = azCache.get(id1);
+		}
+		return row;
 	}
 	
 	private RuptureSurface getSurface(int id) {
@@ -74,10 +120,39 @@ public class SectionDistanceAzimuthCalculator {
 			id1 = id2;
 			id2 = tmp;
 		}
-		return distCache[id1] != null && Double.isFinite(distCache[id1][calcDistIndexOffset(id1, id2)]);
+		return Double.isFinite(getCachedDistance(id1, id2));
+	}
+	
+	/**
+	 * @param id1 lower ID
+	 * @param id2 higher ID
+	 * @return distance from the in-memory cache or the mapped binary cache file, or NaN if not cached. Doesn't
+	 * allocate any cache rows.
+	 */
+	private double getCachedDistance(int id1, int id2) {
+		double[] row = distCache.get(id1);
+		if (row != null) {
+			double cached = row[calcDistIndexOffset(id1, id2)];
+			if (Double.isFinite(cached))
+				return cached;
+		}
+		BinaryCache binaryCache = this.binaryCache;
+		return binaryCache == null ? Double.NaN : binaryCache.getDistance(id1, id2);
+	}
+	
+	/**
+	 * @return azimuth from the in-memory cache or the mapped binary cache file, or NaN if not cached. Doesn't
+	 * allocate any cache rows.
+	 */
+	private double getCachedAzimuth(int id1, int id2) {
+		double[] row = azCache.get(id1);
+		if (row != null && Double.isFinite(row[id2]))
+			return row[id2];
+		BinaryCache binaryCache = this.binaryCache;
+		return binaryCache == null ? Double.NaN : binaryCache.getAzimuth(id1, id2);
 	}
 	
-	public synchronized void setDistance(int id1, int id2, double dist) {
+	public void setDistance(int id1, int id2, double dist) {
 		if (id1 == id2)
 			return;
 		if (id2 < id1) {
@@ -86,13 +161,7 @@ public class SectionDistanceAzimuthCalculator {
 			id1 = id2;
 			id2 = tmp;
 		}
-		if (distCache[id1] == null) {
-			double[] cache = new double[subSects.size()-id1];
-			for (int i=0; i<cache.length; i++)
-				cache[i] = Double.NaN;
-			distCache[id1] = cache;
-		}
-		distCache[id1][calcDistIndexOffset(id1, id2)] = dist;
+		getDistRow(id1)[calcDistIndexOffset(id1, id2)] = dist;
 	}
 	
 	public double getDistance(FaultSection sect1, FaultSection sect2) {
@@ -113,20 +182,9 @@ public class SectionDistanceAzimuthCalculator {
 			id1 = id2;
 			id2 = tmp;
 		}
-		int offset = calcDistIndexOffset(id1, id2);
-		
-		if (distCache[id1] == null) {
-			synchronized (distCache) {
-				if (distCache[id1] == null) {
-					double[] cache = new double[subSects.size()-id1];
-					for (int i=0; i<cache.length; i++)
-						cache[i] = Double.NaN;
-					distCache[id1] = cache;
-				}
-			}
-		} else if (Double.isFinite(distCache[id1][offset])) {
-			return distCache[id1][offset];
-		}
+		double cached = getCachedDistance(id1, id2);
+		if (Double.isFinite(cached))
+			return cached;
 		RuptureSurface surf1 = getSurface(id1);
 		Preconditions.checkNotNull(surf1);
 		RuptureSurface surf2 = getSurface(id2);
@@ -145,20 +203,15 @@ public class SectionDistanceAzimuthCalculator {
 		if (minDist < quickDistThreshold)
 			// do the full calculation
 			minDist = surf1.getMinDistance(surf2);
-		distCache[id1][offset] = minDist;
+		// only allocate the row once we have something to store in it
+		getDistRow(id1)[calcDistIndexOffset(id1, id2)] = minDist;
 		return minDist;
 	}
 	
-	public synchronized void setAzimuth(int id1, int id2, double azimuth) {
+	public void setAzimuth(int id1, int id2, double azimuth) {
 		if (id1 == id2)
 			return;
-		if (azCache[id1] == null) {
-			double[] cache = new double[subSects.size()];
-			for (int i=0; i<cache.length; i++)
-				cache[i] = Double.NaN;
-			azCache[id1] = cache;
-		}
-		azCache[id1][id2] = azimuth;
+		getAzRow(id1)[id2] = azimuth;
 	}
 	
 	public double getAzimuth(FaultSection sect1, FaultSection sect2) {
@@ -166,25 +219,15 @@ public class SectionDistanceAzimuthCalculator {
 	}
 	
 	public boolean isAzimuthCached(int id1, int id2) {
-		return azCache[id1] != null && Double.isFinite(azCache[id1][id2]);
+		return Double.isFinite(getCachedAzimuth(id1, id2));
 	}
 	
 	public double getAzimuth(int id1, int id2) {
 		if (id1 == id2)
 			return Double.NaN;
-		if (azCache[id1] == null) {
-			synchronized (azCache) {
-				if (azCache[id1] == null) {
-					double[] cache = new double[subSects.size()];
-					for (int i=0; i<cache.length; i++)
-						cache[i] = Double.NaN;
-					azCache[id1] = cache;
-					
-				}
-			}
-		} else if (Double.isFinite(azCache[id1][id2])) {
-			return azCache[id1][id2];
-		}
+		double cached = getCachedAzimuth(id1, id2);
+		if (Double.isFinite(cached))
+			return cached;
 		
 		RuptureSurface surf1 = getSurface(id1);
 		Preconditions.checkNotNull(surf1);
@@ -193,13 +236,221 @@ public class SectionDistanceAzimuthCalculator {
 		
 		Location loc1 = GriddedSurfaceUtils.getSurfaceMiddleLoc(surf1);
 		Location loc2 = GriddedSurfaceUtils.getSurfaceMiddleLoc(surf2);
-		azCache[id1][id2] = LocationUtils.azimuth(loc1, loc2);
-		return azCache[id1][id2];
+		double az = LocationUtils.azimuth(loc1, loc2);
+		getAzRow(id1)[id2] = az;
+		return az;
+	}
+	
+	// km per degree of latitude (and of longitude at the equator) for the mean earth radius
+	private static final double KM_PER_DEGREE = 6371.0072*Math.PI/180d;
+	// bounding box distances are multiplied by this factor to ensure that they are always a lower bound,
+	// accounting for the flat earth approximation
+	private static final double MIN_DIST_SAFETY_FACTOR = 0.98;
+	// spatial index grid cell size in degrees
+	private static final double INDEX_CELL_DEGREES = 0.5;
+	// number of spatial index cells around the globe
+	private static final int NUM_LON_CELLS = (int)Math.round(360d/INDEX_CELL_DEGREES);
+	
+	/**
+	 * Grid based spatial index of the bounding box of each section surface, used to quickly find all sections which
+	 * could possibly be within a given distance of a section without calculating all surface distances.
+	 */
+	private class SectSpatialIndex {
+		
+		private final double[] minLats;
+		private final double[] maxLats;
+		private final double[] minLons;
+		private final double[] maxLons;
+		
+		private final Map<Long, List<Integer>> cellSects;
+		
+		public SectSpatialIndex() {
+			int num = subSects.size();
+			minLats = new double[num];
+			maxLats = new double[num];
+			minLons = new double[num];
+			maxLons = new double[num];
+			cellSects = new HashMap<>();
+			for (int id=0; id<num; id++) {
+				double minLat = Double.POSITIVE_INFINITY;
+				double maxLat = Double.NEGATIVE_INFINITY;
+				double minLon = Double.POSITIVE_INFINITY;
+				double maxLon = Double.NEGATIVE_INFINITY;
+				List<Location> perimeter = getSurface(id).getPerimeter();
+				for (Location loc : perimeter) {
+					double lon = normalizeLon(loc.getLongitude());
+					minLat = Math.min(minLat, loc.getLatitude());
+					maxLat = Math.max(maxLat, loc.getLatitude());
+					minLon = Math.min(minLon, lon);
+					maxLon = Math.max(maxLon, lon);
+				}
+				if (maxLon - minLon > 180d) {
+					// crosses the antimeridian, compute the box in [0, 360) instead so that it doesn't span the globe
+					minLon = Double.POSITIVE_INFINITY;
+					maxLon = Double.NEGATIVE_INFINITY;
+					for (Location loc : perimeter) {
+						double lon = normalizeLon(loc.getLongitude());
+						if (lon < 0d)
+							lon += 360d;
+						minLon = Math.min(minLon, lon);
+						maxLon = Math.max(maxLon, lon);
+					}
+				}
+				minLats[id] = minLat;
+				maxLats[id] = maxLat;
+				minLons[id] = minLon;
+				maxLons[id] = maxLon;
+				for (int latCell=cellIndex(minLat); latCell<=cellIndex(maxLat); latCell++) {
+					for (int lonCell=cellIndex(minLon); lonCell<=cellIndex(maxLon); lonCell++) {
+						Long key = cellKey(latCell, lonCell);
+						List<Integer> ids = cellSects.get(key);
+						if (ids == null) {
+							ids = new ArrayList<>();
+							cellSects.put(key, ids);
+						}
+						ids.add(id);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * @param lon
+		 * @return longitude in the range [-180, 180)
+		 */
+		private double normalizeLon(double lon) {
+			lon = lon % 360d;
+			if (lon >= 180d)
+				lon -= 360d;
+			else if (lon < -180d)
+				lon += 360d;
+			return lon;
+		}
+		
+		private int cellIndex(double degrees) {
+			return (int)Math.floor(degrees/INDEX_CELL_DEGREES);
+		}
+		
+		private long cellKey(int latCell, int lonCell) {
+			// wrap longitude cells around the globe so that boxes on either side of the antimeridian share cells
+			lonCell = Math.floorMod(lonCell, NUM_LON_CELLS);
+			return ((long)latCell << 32) | (lonCell & 0xffffffffl);
+		}
+		
+		private double getLonGap(int id1, int id2) {
+			// boxes are either in [-180, 180) or [0, 360), so check both sides of the antimeridian
+			double minGap = Double.POSITIVE_INFINITY;
+			for (double shift=-360d; shift<=360d; shift+=360d) {
+				double gap = Math.max(0d, Math.max(minLons[id1], minLons[id2]+shift)
+						- Math.min(maxLons[id1], maxLons[id2]+shift));
+				minGap = Math.min(minGap, gap);
+			}
+			return minGap;
+		}
+		
+		public double getMinPossibleDistance(int id1, int id2) {
+			double latGap = Math.max(0d, Math.max(minLats[id1], minLats[id2]) - Math.min(maxLats[id1], maxLats[id2]));
+			double lonGap = getLonGap(id1, id2);
+			if (latGap == 0d && lonGap == 0d)
+				return 0d;
+			// use the latitude furthest from the equator, where a degree of longitude is shortest
+			double maxAbsLat = Math.max(Math.max(Math.abs(minLats[id1]), Math.abs(maxLats[id1])),
+					Math.max(Math.abs(minLats[id2]), Math.abs(maxLats[id2])));
+			double latKM = latGap*KM_PER_DEGREE;
+			double lonKM = lonGap*KM_PER_DEGREE*Math.cos(Math.toRadians(Math.min(90d, maxAbsLat)));
+			return MIN_DIST_SAFETY_FACTOR*Math.sqrt(latKM*latKM + lonKM*lonKM);
+		}
+		
+		public List<Integer> getSectsPossiblyWithin(int id, double maxDist) {
+			double latPad = maxDist/(KM_PER_DEGREE*MIN_DIST_SAFETY_FACTOR);
+			double maxAbsLat = Math.max(Math.abs(minLats[id]), Math.abs(maxLats[id])) + latPad;
+			int minLatCell = cellIndex(minLats[id] - latPad);
+			int maxLatCell = cellIndex(maxLats[id] + latPad);
+			int minLonCell, maxLonCell;
+			double lonPad = maxAbsLat >= 89d ? 360d : latPad/Math.cos(Math.toRadians(maxAbsLat));
+			if (lonPad >= 180d || maxLons[id] - minLons[id] + 2*lonPad >= 360d) {
+				// too close to a pole or too large of a distance, search all longitudes
+				minLonCell = 0;
+				maxLonCell = NUM_LON_CELLS-1;
+			} else {
+				// cell keys wrap around the antimeridian
+				minLonCell = cellIndex(minLons[id] - lonPad);
+				maxLonCell = cellIndex(maxLons[id] + lonPad);
+			}
+			HashSet<Integer> candidates = new HashSet<>();
+			for (int latCell=minLatCell; latCell<=maxLatCell; latCell++) {
+				for (int lonCell=minLonCell; lonCell<=maxLonCell; lonCell++) {
+					List<Integer> ids = cellSects.get(cellKey(latCell, lonCell));
+					if (ids != null)
+						candidates.addAll(ids);
+				}
+			}
+			List<Integer> ret = new ArrayList<>();
+			for (Integer id2 : candidates)
+				// also checks any loaded binary cache file
+				if (id2 != id && SectionDistanceAzimuthCalculator.this.getMinPossibleDistance(id, id2) <= maxDist)
+					ret.add(id2);
+			Collections.sort(ret);
+			return ret;
+		}
+	}
+	
+	private synchronized SectSpatialIndex getSpatialIndex() {
+		if (spatialIndex == null)
+			spatialIndex = new SectSpatialIndex();
+		return spatialIndex;
+	}
+	
+	/**
+	 * Lower bound on the distance between the two given sections, computed from the bounding boxes of their
+	 * surfaces. This is much faster than getDistance(int, int) and is useful for skipping pairs of sections which
+	 * can't be within a given distance of each other. If a binary cache file with a cutoff distance has been loaded
+	 * and doesn't contain this pair, then the bound is just above that cutoff.
+	 * 
+	 * @param id1
+	 * @param id2
+	 * @return lower bound on the distance between the two sections (km)
+	 */
+	public double getMinPossibleDistance(int id1, int id2) {
+		if (id1 == id2)
+			return 0d;
+		double bound = getSpatialIndex().getMinPossibleDistance(id1, id2);
+		BinaryCache binaryCache = this.binaryCache;
+		if (binaryCache != null && bound <= binaryCache.cutoffDist
+				&& Double.isNaN(getCachedDistance(Integer.min(id1, id2), Integer.max(id1, id2))))
+			// loaded binary cache file includes every pair within its cutoff, and this one isn't there
+			bound = Math.nextUp(binaryCache.cutoffDist);
+		return bound;
+	}
+	
+	/**
+	 * @param id1
+	 * @param id2
+	 * @param maxDist
+	 * @return false if the given sections are definitely further than maxDist from each other, true if they may be
+	 * within maxDist
+	 */
+	public boolean isPossiblyWithinDistance(int id1, int id2, double maxDist) {
+		return getMinPossibleDistance(id1, id2) <= maxDist;
+	}
+	
+	/**
+	 * Uses a spatial index to find all sections which could be within the given distance of the given section,
+	 * without computing any surface distances. The returned list will include all sections which are actually within
+	 * that distance, but may also include some which are not.
+	 * 
+	 * @param id
+	 * @param maxDist
+	 * @return sorted list of section IDs (excluding the given section) which may be within maxDist
+	 */
+	public List<Integer> getSectsPossiblyWithinDistance(int id, double maxDist) {
+		return getSpatialIndex().getSectsPossiblyWithin(id, maxDist);
 	}
 	
 	public int getNumCachedDistances() {
 		int count = 0;
-		for (double[] cache : distCache) {
+		for (int i=0; i<distCache.length(); i++) {
+			double[] cache = distCache.get(i);
 			if (cache == null)
 				continue;
 			for (double val : cache)
@@ -211,7 +462,8 @@ public class SectionDistanceAzimuthCalculator {
 	
 	public int getNumCachedAzimuths() {
 		int count = 0;
-		for (double[] cache : azCache) {
+		for (int i=0; i<azCache.length(); i++) {
+			double[] cache = azCache.get(i);
 			if (cache == null)
 				continue;
 			for (double val : cache)
@@ -255,6 +507,10 @@ public class SectionDistanceAzimuthCalculator {
 	}
 	
 	public void loadCacheFile(File cacheFile) throws IOException {
+		if (isBinaryCacheFile(cacheFile)) {
+			loadBinaryCacheFile(cacheFile);
+			return;
+		}
 		CSVFile<String> csv = CSVFile.readFile(cacheFile, true);
 		int numAz = 0;
 		int numDist = 0;
@@ -278,6 +534,319 @@ public class SectionDistanceAzimuthCalculator {
 		System.out.println("Loaded cache file for "+numDist+" distances and "+numAz+" azimuths");
 	}
 	
+	/*
+	 * Binary cache files. These are sparse (only containing pairs within a cutoff distance), store values as floats,
+	 * and are memory mapped when loaded so that loading is nearly instant. Values from a loaded file are looked up
+	 * directly from the mapping, so in-memory cache rows are only allocated for sections with newly computed values.
+	 * 
+	 * Format (big endian):
+	 * 
+	 * magic - int
+	 * version - int
+	 * numSects - int
+	 * sectsHash - long (see calcSectsHash())
+	 * cutoffDist - float, every pair of sections within this distance is included (+inf if no cutoff)
+	 * distance row starts - int[numSects+1], the index of the first distance record for each id1 (last is total count)
+	 * distance records - for each id1, sorted by id2 (with id2 > id1): id2 - int, distance - float
+	 * azimuth row starts - int[numSects+1], the index of the first azimuth record for each id1
+	 * azimuth records - for each id1, sorted by id2: id2 - int, azimuth - float
+	 */
+	
+	private static final int BINARY_CACHE_MAGIC = 0x53444143; // "SDAC"
+	// version 1 files didn't include every pair within the cutoff
+	private static final int BINARY_CACHE_VERSION = 2;
+	private static final int BINARY_CACHE_HEADER_LEN = 4+4+4+8+4;
+	private static final int BINARY_CACHE_RECORD_LEN = 4+4;
+	
+	/**
+	 * @return hash of the section list (IDs, parent IDs, names, and trace endpoints), used to make sure that binary
+	 * cache files are only loaded for the same set of sections
+	 */
+	private long calcSectsHash() {
+		long hash = subSects.size();
+		for (FaultSection sect : subSects) {
+			hash = 31l*hash + sect.getSectionId();
+			hash = 31l*hash + sect.getParentSectionId();
+			hash = 31l*hash + Objects.hashCode(sect.getSectionName());
+			LocationList trace = sect.getFaultTrace();
+			for (Location loc : new Location[] { trace.get(0), trace.get(trace.size()-1) }) {
+				hash = 31l*hash + Double.doubleToLongBits(loc.getLatitude());
+				hash = 31l*hash + Double.doubleToLongBits(loc.getLongitude());
+			}
+		}
+		return hash;
+	}
+	
+	private static boolean isBinaryCacheFile(File cacheFile) throws IOException {
+		if (cacheFile.length() < BINARY_CACHE_HEADER_LEN)
+			return false;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(cacheFile))) {
+			return in.readInt() == BINARY_CACHE_MAGIC;
+		}
+	}
+	
+	/**
+	 * Writes a binary cache file containing all cached distances which are less than or equal to the given cutoff,
+	 * and all cached azimuths between sections which are not known to be further apart than the cutoff. Values from any
+	 * previously loaded binary cache file are included.
+	 * <p>
+	 * If the cutoff is finite, distances are first computed for any pairs which could be within the cutoff but
+	 * aren't yet cached. Pairs which are missing from the file are then known to be beyond the cutoff once it's
+	 * loaded, without computing their distances.
+	 * 
+	 * @param cacheFile
+	 * @param cutoffDist maximum distance to include, or +inf for all
+	 * @throws IOException
+	 */
+	public void writeBinaryCacheFile(File cacheFile, double cutoffDist) throws IOException {
+		// distances are stored as floats, so use the cutoff as stored for everything
+		float cutoff = (float)cutoffDist;
+		int numSects = subSects.size();
+		if (Float.isFinite(cutoff))
+			for (int id1=0; id1<numSects; id1++)
+				for (int id2 : getSectsPossiblyWithinDistance(id1, cutoff))
+					if (id2 > id1)
+						getDistance(id1, id2);
+		BinaryCache binaryCache = this.binaryCache;
+		int[] distRowStarts = new int[numSects+1];
+		int[] azRowStarts = new int[numSects+1];
+		int numDist = 0;
+		int numAz = 0;
+		// buffers for a single merged row
+		int[] rowIDs = new int[numSects];
+		float[] rowVals = new float[numSects];
+		
+		// records are streamed out one row at a time in a single pass, and the row start tables (which aren't known
+		// until all records in a section have been written) are filled in afterwards
+		long distRowsPos = BINARY_CACHE_HEADER_LEN;
+		long azRowsPos;
+		File tmpFile = new File(cacheFile.getAbsolutePath()+".tmp");
+		try (RandomAccessFile raFile = new RandomAccessFile(tmpFile, "rw")) {
+			raFile.setLength(0l);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					Channels.newOutputStream(raFile.getChannel())));
+			out.writeInt(BINARY_CACHE_MAGIC);
+			out.writeInt(BINARY_CACHE_VERSION);
+			out.writeInt(numSects);
+			out.writeLong(calcSectsHash());
+			out.writeFloat(cutoff);
+			// placeholder
+			for (int i=0; i<=numSects; i++)
+				out.writeInt(0);
+			for (int id1=0; id1<numSects; id1++) {
+				distRowStarts[id1] = numDist;
+				int count = binaryCache == null ? mergeRow(distCache.get(id1), id1+1, numSects, null, 0, 0, 0, rowIDs, rowVals)
+						: mergeRow(distCache.get(id1), id1+1, numSects, binaryCache, binaryCache.distRecordsPos,
+								binaryCache.getRowStart(binaryCache.distRowsPos, id1),
+								binaryCache.getRowStart(binaryCache.distRowsPos, id1+1), rowIDs, rowVals);
+				for (int i=0; i<count; i++) {
+					if (rowVals[i] <= cutoff) {
+						out.writeInt(rowIDs[i]);
+						out.writeFloat(rowVals[i]);
+						numDist++;
+					}
+				}
+			}
+			distRowStarts[numSects] = numDist;
+			azRowsPos = distRowsPos + 4l*(numSects+1) + (long)BINARY_CACHE_RECORD_LEN*numDist;
+			// placeholder
+			for (int i=0; i<=numSects; i++)
+				out.writeInt(0);
+			for (int id1=0; id1<numSects; id1++) {
+				azRowStarts[id1] = numAz;
+				int count = binaryCache == null ? mergeRow(azCache.get(id1), 0, numSects, null, 0, 0, 0, rowIDs, rowVals)
+						: mergeRow(azCache.get(id1), 0, numSects, binaryCache, binaryCache.azRecordsPos,
+								binaryCache.getRowStart(binaryCache.azRowsPos, id1),
+								binaryCache.getRowStart(binaryCache.azRowsPos, id1+1), rowIDs, rowVals);
+				for (int i=0; i<count; i++) {
+					int id2 = rowIDs[i];
+					if (id2 == id1)
+						continue;
+					// only skip azimuths for pairs which are known to be beyond the cutoff
+					double dist = id1 < id2 ? getCachedDistance(id1, id2) : getCachedDistance(id2, id1);
+					if (!(dist > cutoff)) {
+						out.writeInt(id2);
+						out.writeFloat(rowVals[i]);
+						numAz++;
+					}
+				}
+			}
+			azRowStarts[numSects] = numAz;
+			out.flush();
+			
+			// now fill in the row start tables
+			writeRowStarts(raFile, distRowsPos, distRowStarts);
+			writeRowStarts(raFile, azRowsPos, azRowStarts);
+		}
+		Preconditions.checkState(tmpFile.renameTo(cacheFile) || (cacheFile.delete() && tmpFile.renameTo(cacheFile)),
+				"Couldn't move binary cache file into place: %s", cacheFile.getAbsolutePath());
+		System.out.println("Wrote binary cache file for "+numDist+" distances and "+numAz+" azimuths");
+	}
+	
+	private static void writeRowStarts(RandomAccessFile raFile, long pos, int[] rowStarts) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4*rowStarts.length);
+		for (int index : rowStarts)
+			buf.putInt(index);
+		buf.flip();
+		FileChannel channel = raFile.getChannel();
+		while (buf.hasRemaining())
+			pos += channel.write(buf, pos);
+	}
+	
+	/**
+	 * Merges a single in-memory cache row with the matching records from a binary cache file (in-memory values take
+	 * precedence), without allocating anything.
+	 * 
+	 * @param row in-memory row, or null if not allocated
+	 * @param firstID section ID of the first element in the row
+	 * @param numSects number of sections
+	 * @param binaryCache binary cache, or null
+	 * @param recordsPos position of the records section in the binary cache
+	 * @param start index of the first binary record for this row
+	 * @param end index after the last binary record for this row
+	 * @param ids buffer for merged IDs
+	 * @param vals buffer for merged values
+	 * @return the number of merged values, sorted by ID
+	 */
+	private static int mergeRow(double[] row, int firstID, int numSects, BinaryCache binaryCache, int recordsPos,
+			int start, int end, int[] ids, float[] vals) {
+		int count = 0;
+		int b = start;
+		if (row != null) {
+			for (int id2=firstID; id2<numSects; id2++) {
+				int binID = b < end ? binaryCache.getRecordID(recordsPos, b) : Integer.MAX_VALUE;
+				double val = row[id2 - firstID];
+				if (Double.isFinite(val)) {
+					ids[count] = id2;
+					vals[count++] = (float)val;
+				} else if (binID == id2) {
+					ids[count] = id2;
+					vals[count++] = binaryCache.getRecordValue(recordsPos, b);
+				}
+				if (binID == id2)
+					b++;
+			}
+		}
+		for (; b<end; b++) {
+			ids[count] = binaryCache.getRecordID(recordsPos, b);
+			vals[count++] = binaryCache.getRecordValue(recordsPos, b);
+		}
+		return count;
+	}
+	
+	/**
+	 * Memory maps the given binary cache file. Values are looked up from the file (and merged into the in-memory
+	 * cache) the first time that they are needed, and any values not in the file will be computed as usual.
+	 * 
+	 * @param cacheFile
+	 * @throws IOException if the file is not a valid binary cache file for these sections
+	 */
+	public void loadBinaryCacheFile(File cacheFile) throws IOException {
+		BinaryCache cache = new BinaryCache(cacheFile);
+		if (binaryCache != null) {
+			// merge in everything from the old one before replacing it
+			BinaryCache prev = binaryCache;
+			for (int id1=0; id1<subSects.size(); id1++) {
+				for (int i=prev.getRowStart(prev.distRowsPos, id1); i<prev.getRowStart(prev.distRowsPos, id1+1); i++) {
+					setDistance(id1, prev.getRecordID(prev.distRecordsPos, i), prev.getRecordValue(prev.distRecordsPos, i));
+				}
+				for (int i=prev.getRowStart(prev.azRowsPos, id1); i<prev.getRowStart(prev.azRowsPos, id1+1); i++) {
+					setAzimuth(id1, prev.getRecordID(prev.azRecordsPos, i), prev.getRecordValue(prev.azRecordsPos, i));
+				}
+			}
+		}
+		binaryCache = cache;
+		System.out.println("Mapped binary cache file with "+cache.numDist+" distances and "+cache.numAz+" azimuths");
+	}
+	
+	private class BinaryCache {
+		
+		private final ByteBuffer buffer;
+		private final int distRowsPos;
+		private final int distRecordsPos;
+		private final int azRowsPos;
+		private final int azRecordsPos;
+		private final int numDist;
+		private final int numAz;
+		// every pair within this distance is included, or NaN if not known
+		private final double cutoffDist;
+		
+		public BinaryCache(File cacheFile) throws IOException {
+			try (RandomAccessFile raFile = new RandomAccessFile(cacheFile, "r")) {
+				FileChannel channel = raFile.getChannel();
+				long size = channel.size();
+				if (size > Integer.MAX_VALUE)
+					throw new IOException("Binary cache file is too large to map: "+size+" bytes");
+				// mapping remains valid after the channel is closed
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			if (buffer.capacity() < BINARY_CACHE_HEADER_LEN || buffer.getInt(0) != BINARY_CACHE_MAGIC)
+				throw new IOException("Not a binary distance/azimuth cache file: "+cacheFile.getAbsolutePath());
+			int version = buffer.getInt(4);
+			if (version < 1 || version > BINARY_CACHE_VERSION)
+				throw new IOException("Unsupported binary cache file version: "+version);
+			int numSects = buffer.getInt(8);
+			if (numSects != subSects.size() || buffer.getLong(12) != calcSectsHash())
+				throw new IOException("Binary cache file was computed for a different set of sections: "
+						+cacheFile.getAbsolutePath());
+			float cutoff = buffer.getFloat(20);
+			cutoffDist = version > 1 && Float.isFinite(cutoff) ? cutoff : Double.NaN;
+			distRowsPos = BINARY_CACHE_HEADER_LEN;
+			numDist = buffer.getInt(distRowsPos + 4*numSects);
+			distRecordsPos = distRowsPos + 4*(numSects+1);
+			azRowsPos = distRecordsPos + BINARY_CACHE_RECORD_LEN*numDist;
+			numAz = buffer.getInt(azRowsPos + 4*numSects);
+			azRecordsPos = azRowsPos + 4*(numSects+1);
+			if (buffer.capacity() != azRecordsPos + (long)BINARY_CACHE_RECORD_LEN*numAz)
+				throw new IOException("Binary cache file is truncated or corrupt: "+cacheFile.getAbsolutePath());
+		}
+		
+		private int getRowStart(int rowsPos, int id1) {
+			return buffer.getInt(rowsPos + 4*id1);
+		}
+		
+		private int getRecordID(int recordsPos, int index) {
+			return buffer.getInt(recordsPos + BINARY_CACHE_RECORD_LEN*index);
+		}
+		
+		private float getRecordValue(int recordsPos, int index) {
+			return buffer.getFloat(recordsPos + BINARY_CACHE_RECORD_LEN*index + 4);
+		}
+		
+		private float find(int rowsPos, int recordsPos, int id1, int id2) {
+			int low = buffer.getInt(rowsPos + 4*id1);
+			int high = buffer.getInt(rowsPos + 4*(id1+1)) - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int pos = recordsPos + BINARY_CACHE_RECORD_LEN*mid;
+				int midID = buffer.getInt(pos);
+				if (midID < id2)
+					low = mid + 1;
+				else if (midID > id2)
+					high = mid - 1;
+				else
+					return buffer.getFloat(pos + 4);
+			}
+			return Float.NaN;
+		}
+		
+		/**
+		 * @param id1 lower ID
+		 * @param id2 higher ID
+		 * @return distance, or NaN if not in this file
+		 */
+		public double getDistance(int id1, int id2) {
+			return find(distRowsPos, distRecordsPos, id1, id2);
+		}
+		
+		/**
+		 * @return azimuth, or NaN if not in this file
+		 */
+		public double getAzimuth(int id1, int id2) {
+			return find(azRowsPos, azRecordsPos, id1, id2);
+		}
+	}
+	
 	public static void main(String[] args) throws ZipException, IOException, DocumentException {
 		File rupSetFile = new File("/home/kevin/OpenSHA/UCERF4/rup_sets/fm3_1_ucerf3.zip");
 		FaultSystemRupSet rupSet = FaultSystemIO.loadRupSet(rupSetFile);
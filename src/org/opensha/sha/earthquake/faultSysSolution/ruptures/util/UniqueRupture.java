@@ -264,6 +264,14 @@ public class UniqueRupture {
 		return true;
 	}
 	
+	int getNumRanges() {
+		return ranges.length;
+	}
+	
+	SectIDRange getRange(int index) {
+		return ranges[index];
+	}
+	
 	/**
 	 * @return immutable view of the list of ID ranges
 	 */
@@ -1,18 +1,33 @@
 package org.opensha.sha.simulators.stiffness;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.opensha.commons.data.CSVFile;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.SectionDistanceAzimuthCalculator;
 import org.opensha.sha.faultSurface.FaultSection;
 import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator.AggregationMethod;
 import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator.ReceiverDistribution;
@@ -21,121 +36,246 @@ import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.Stiffness
 
 import com.google.common.base.Preconditions;
 
+/**
+ * Cache of aggregated stiffness values between section pairs. Values are stored sparsely for each receiver section
+ * in concurrent maps, so that puts from multiple threads never block each other.
+ * <p>
+ * Section-to-section aggregations can be written to and loaded from either a CSV file or a compact binary file. The
+ * binary format stores values as floats and can exclude section pairs beyond a distance cutoff (see
+ * {@link #setDistanceCutoff(double, SectionDistanceAzimuthCalculator)}), which will simply be recalculated if
+ * needed. Binary files are memory mapped when loaded and each receiver section is only decoded the first time that
+ * it is accessed.
+ * <p>
+ * Binary file format (big endian):
+ * <pre>
+ * magic - int
+ * version - short
+ * numSects - int
+ * distance cutoff - float, NaN if none
+ * numMethods - byte, then for each cacheable aggregation method name - UTF
+ * numPatchMethods - byte, then for each receiver patch aggregation method name - UTF
+ * for each receiver section: offset of its records from the start of the file - long, numRecords - int
+ * for each record:
+ *   sourceID - int
+ *   patch aggregation method - byte, index in the patch methods list plus one, or zero if none
+ *   for each method: value - float
+ * </pre>
+ */
 public class AggregatedStiffnessCache {
-	
-	public Map<AggregationMethod, ReceiverDistribution[][][]> patchAggregatedCache;
-	public Map<AggregationMethod, StiffnessAggregation[][]> patchSectAggregatedCache;
-	public StiffnessAggregation[][] fullDistCache;
-	
+
+	private static final int MAGIC = 0x53544946; // "STIF"
+	private static final short VERSION = 1;
+
+	private final ConcurrentMap<AggregationMethod, SparseCache<ReceiverDistribution[]>> patchAggregatedCache;
+	private final ConcurrentMap<AggregationMethod, SparseCache<StiffnessAggregation>> patchSectAggregatedCache;
+	private final SparseCache<StiffnessAggregation> fullDistCache;
+
 	private SubSectStiffnessCalculator calc;
 	private List<? extends FaultSection> sects;
 	private StiffnessType type;
-	
+
+	private double maxDistance = Double.NaN;
+	private SectionDistanceAzimuthCalculator distAzCalc;
+
+	// memory mapped binary cache file from which receivers have not yet all been loaded, or null
+	private volatile MappedCacheFile mapped;
+
 	AggregatedStiffnessCache(SubSectStiffnessCalculator calc, StiffnessType type) {
 		this.calc = calc;
 		this.type = type;
 		this.sects = calc.getSubSects();
-		this.patchAggregatedCache = new HashMap<>();
-		this.patchSectAggregatedCache = new HashMap<>();
+		this.patchAggregatedCache = new ConcurrentHashMap<>();
+		this.patchSectAggregatedCache = new ConcurrentHashMap<>();
 		Preconditions.checkArgument(sects != null && !sects.isEmpty());
 		for (int i=0; i<sects.size(); i++)
 			Preconditions.checkState(sects.get(i).getSectionId() == i, "section IDs must be 0-based indexes");
+		this.fullDistCache = new SparseCache<>(sects.size());
 	}
-	
-	public synchronized void clear() {
-		fullDistCache = null;
+
+	/**
+	 * Sparse receiver -> source -> value storage, safe for concurrent use
+	 */
+	private static class SparseCache<E> {
+
+		private final AtomicReferenceArray<ConcurrentMap<Integer, E>> receiverMaps;
+
+		public SparseCache(int numSects) {
+			receiverMaps = new AtomicReferenceArray<>(numSects);
+		}
+
+		public E get(int receiverID, int sourceID) {
+			ConcurrentMap<Integer, E> map = receiverMaps.get(receiverID);
+			if (map == null)
+				return null;
+			return map.get(sourceID);
+		}
+
+		public void put(int receiverID, int sourceID, E value) {
+			ConcurrentMap<Integer, E> map = receiverMaps.get(receiverID);
+			if (map == null) {
+				receiverMaps.compareAndSet(receiverID, null, new ConcurrentHashMap<>());
+				map = receiverMaps.get(receiverID);
+			}
+			map.put(sourceID, value);
+		}
+
+		public Map<Integer, E> getForReceiver(int receiverID) {
+			return receiverMaps.get(receiverID);
+		}
+
+		public int numReceivers() {
+			return receiverMaps.length();
+		}
+
+		public int size() {
+			int size = 0;
+			for (int r=0; r<receiverMaps.length(); r++) {
+				Map<Integer, E> map = receiverMaps.get(r);
+				if (map != null)
+					size += map.size();
+			}
+			return size;
+		}
+
+		public void clear() {
+			for (int r=0; r<receiverMaps.length(); r++)
+				receiverMaps.set(r, null);
+		}
+	}
+
+	public void clear() {
+		mapped = null;
+		fullDistCache.clear();
 		patchSectAggregatedCache.clear();
 		patchAggregatedCache.clear();
 	}
-	
+
+	/**
+	 * Sets the distance cutoff used when writing binary cache files. Section pairs separated by more than the given
+	 * distance will not be written.
+	 *
+	 * @param maxDistance maximum distance (km), or NaN for no cutoff
+	 * @param distAzCalc distance calculator, must be non null if maxDistance is finite
+	 */
+	public void setDistanceCutoff(double maxDistance, SectionDistanceAzimuthCalculator distAzCalc) {
+		Preconditions.checkArgument(Double.isNaN(maxDistance) || distAzCalc != null,
+				"Must supply a distance calculator with a distance cutoff");
+		this.maxDistance = maxDistance;
+		this.distAzCalc = distAzCalc;
+	}
+
 	public ReceiverDistribution[] getPatchAggregated(AggregationMethod patchAggMethod, FaultSection source, FaultSection receiver) {
-		ReceiverDistribution[][][] cache = patchAggregatedCache.get(patchAggMethod);
-		if (cache == null || cache[receiver.getSectionId()] == null)
+		SparseCache<ReceiverDistribution[]> cache = patchAggregatedCache.get(patchAggMethod);
+		if (cache == null)
 			return null;
-		return cache[receiver.getSectionId()][source.getSectionId()];
+		return cache.get(receiver.getSectionId(), source.getSectionId());
 	}
-	
-	public synchronized void putPatchAggregated(AggregationMethod patchAggMethod, FaultSection source,
+
+	public void putPatchAggregated(AggregationMethod patchAggMethod, FaultSection source,
 			FaultSection receiver, ReceiverDistribution[] aggregated) {
-		ReceiverDistribution[][][] cache = patchAggregatedCache.get(patchAggMethod);
-		if (cache == null) {
-			cache = new ReceiverDistribution[sects.size()][sects.size()][];
-			patchAggregatedCache.put(patchAggMethod, cache);
-		}
-		if (cache[receiver.getSectionId()] == null)
-			cache[receiver.getSectionId()] = new ReceiverDistribution[sects.size()][];
-		cache[receiver.getSectionId()][source.getSectionId()] = aggregated;
+		SparseCache<ReceiverDistribution[]> cache = patchAggregatedCache.computeIfAbsent(
+				patchAggMethod, m -> new SparseCache<>(sects.size()));
+		cache.put(receiver.getSectionId(), source.getSectionId(), aggregated);
 	}
-	
+
 	public StiffnessAggregation getSectAggregated(AggregationMethod patchAggMethod, FaultSection source, FaultSection receiver) {
-		StiffnessAggregation[][] cache;
+		int receiverID = receiver.getSectionId();
+		MappedCacheFile mapped = this.mapped;
+		if (mapped != null)
+			mapped.checkLoad(receiverID);
+		SparseCache<StiffnessAggregation> cache;
 		if (patchAggMethod == null)
 			cache = fullDistCache;
 		else
 			cache = patchSectAggregatedCache.get(patchAggMethod);
-		if (cache == null || cache[receiver.getSectionId()] == null)
+		if (cache == null)
 			return null;
-		return cache[receiver.getSectionId()][source.getSectionId()];
+		return cache.get(receiverID, source.getSectionId());
 	}
-	
-	public synchronized void putSectAggregated(AggregationMethod patchAggMethod, FaultSection source,
+
+	public void putSectAggregated(AggregationMethod patchAggMethod, FaultSection source,
 			FaultSection receiver, StiffnessAggregation aggregated) {
 		putSectAggregated(patchAggMethod, source.getSectionId(), receiver.getSectionId(), aggregated);
 	}
-	
+
 	private void putSectAggregated(AggregationMethod patchAggMethod, int sourceID, int receiverID, StiffnessAggregation aggregated) {
-		StiffnessAggregation[][] cache;
-		if (patchAggMethod == null) {
-			if (fullDistCache == null)
-				fullDistCache = new StiffnessAggregation[sects.size()][];
+		SparseCache<StiffnessAggregation> cache;
+		if (patchAggMethod == null)
 			cache = fullDistCache;
-		} else {
-			if (patchSectAggregatedCache == null)
-				patchSectAggregatedCache = new HashMap<>();
-			cache = patchSectAggregatedCache.get(patchAggMethod);
-			if (cache == null) {
-				cache = new StiffnessAggregation[sects.size()][];
-				patchSectAggregatedCache.put(patchAggMethod, cache);
-			}
-		}
-		if (cache[receiverID] == null)
-			cache[receiverID] = new StiffnessAggregation[sects.size()];
-		cache[receiverID][sourceID] = aggregated;
+		else
+			cache = patchSectAggregatedCache.computeIfAbsent(patchAggMethod, m -> new SparseCache<>(sects.size()));
+		cache.put(receiverID, sourceID, aggregated);
 	}
-	
+
 	public int calcCacheSize() {
-		int size = calcCacheSize(fullDistCache);
-		for (StiffnessAggregation[][] cache : patchSectAggregatedCache.values())
-			size += calcCacheSize(cache);
+		int size = fullDistCache.size();
+		for (SparseCache<StiffnessAggregation> cache : patchSectAggregatedCache.values())
+			size += cache.size();
+		MappedCacheFile mapped = this.mapped;
+		if (mapped != null)
+			size += mapped.getNumUnloaded();
 		return size;
 	}
+
+	/**
+	 * @return binary cache file name for the settings of this cache
+	 */
+	public String getCacheFileName() {
+		return getCacheFilePrefix()+".bin";
+	}
 	
-	private int calcCacheSize(StiffnessAggregation[][] cache) {
-		if (cache == null)
-			return 0;
-		int cached = 0;
-		for (int i=0; i<cache.length; i++) {
-			if (cache[i] == null)
-				continue;
-			for (int j=0; j<cache.length; j++) {
-				if (cache[i][j] != null)
-					cached++;
-			}
-		}
-		return cached;
+	/**
+	 * @return CSV cache file name for the settings of this cache, as used by previous versions
+	 */
+	public String getCSVCacheFileName() {
+		return getCacheFilePrefix()+".csv";
 	}
 	
-	public String getCacheFileName() {
+	/**
+	 * Finds an existing cache file for the settings of this cache in the given directory: the binary file if it
+	 * exists, otherwise a CSV file written by previous versions
+	 * 
+	 * @param dir
+	 * @return existing cache file, or null if none exists
+	 */
+	public File findCacheFile(File dir) {
+		File binFile = new File(dir, getCacheFileName());
+		if (binFile.exists())
+			return binFile;
+		File csvFile = new File(dir, getCSVCacheFileName());
+		if (csvFile.exists())
+			return csvFile;
+		return null;
+	}
+	
+	private String getCacheFilePrefix() {
 		DecimalFormat df = new DecimalFormat("0.##");
 		String ret = type.name().toLowerCase()+"_cache_"+sects.size()+"sects_"+df.format(calc.getGridSpacing())
 			+"km_lambda"+df.format(calc.getLameLambda())+"_mu"+df.format(calc.getLameMu())+"_coeff"+(float)calc.getCoeffOfFriction()
 			+"_align"+calc.getPatchAlignment().name();
 		if (calc.getSelfStiffnessCap() > 0)
 			ret += "_stiffCap"+df.format(calc.getSelfStiffnessCap())+"x";
-		return ret+".csv";
+		if (calc.getFarFieldTolerance() > 0)
+			ret += "_farField"+df.format(calc.getFarFieldTolerance());
+		return ret;
 	}
-	
+
+	/**
+	 * Writes section-to-section aggregations to the given file, in CSV format if the file name ends with '.csv',
+	 * otherwise in the binary format
+	 *
+	 * @param cacheFile
+	 * @throws IOException
+	 */
 	public void writeCacheFile(File cacheFile) throws IOException {
+		if (cacheFile.getName().toLowerCase().endsWith(".csv"))
+			writeCSVCacheFile(cacheFile);
+		else
+			writeBinaryCacheFile(cacheFile);
+	}
+
+	private void writeCSVCacheFile(File cacheFile) throws IOException {
+		loadAllMapped();
 		CSVFile<String> csv = new CSVFile<>(true);
 		List<String> line = new ArrayList<>();
 		line.add("Source ID");
@@ -149,29 +289,110 @@ public class AggregatedStiffnessCache {
 			writeCacheLines(csv, patchMethod, patchSectAggregatedCache.get(patchMethod));
 		csv.writeToFile(cacheFile);
 	}
-	
-	private void writeCacheLines(CSVFile<String> csv, AggregationMethod patchMethod, StiffnessAggregation[][] cache) {
-		if (cache == null)
-			return;
-		for (int i=0; i<cache.length; i++) {
-			if (cache[i] == null)
+
+	private void writeCacheLines(CSVFile<String> csv, AggregationMethod patchMethod, SparseCache<StiffnessAggregation> cache) {
+		for (int i=0; i<cache.numReceivers(); i++) {
+			Map<Integer, StiffnessAggregation> receiverCache = cache.getForReceiver(i);
+			if (receiverCache == null)
 				continue;
-			for (int j=0; j<cache[i].length; j++) {
-				if (cache[i][j] != null) {
-					StiffnessAggregation agg = cache[i][j];
-					List<String> line = new ArrayList<>();
-					line.add(j+""); // source ID
-					line.add(i+""); // receiver ID
-					line.add(patchMethod == null ? "" : patchMethod.name());
-					for (AggregationMethod method : AggregatedStiffnessCalculator.CACHEABLE_AGG_METHODS)
-						line.add(agg.get(method)+"");
-					csv.addLine(line);
+			for (Integer j : receiverCache.keySet()) {
+				StiffnessAggregation agg = receiverCache.get(j);
+				List<String> line = new ArrayList<>();
+				line.add(j+""); // source ID
+				line.add(i+""); // receiver ID
+				line.add(patchMethod == null ? "" : patchMethod.name());
+				for (AggregationMethod method : AggregatedStiffnessCalculator.CACHEABLE_AGG_METHODS)
+					line.add(agg.get(method)+"");
+				csv.addLine(line);
+			}
+		}
+	}
+
+	private void writeBinaryCacheFile(File cacheFile) throws IOException {
+		loadAllMapped();
+		AggregationMethod[] methods = AggregatedStiffnessCalculator.CACHEABLE_AGG_METHODS.toArray(new AggregationMethod[0]);
+		List<AggregationMethod> patchMethods = new ArrayList<>(patchSectAggregatedCache.keySet());
+		boolean cutoff = !Double.isNaN(maxDistance);
+
+		// gather records for each receiver
+		int numSects = sects.size();
+		List<List<Integer>> sourceIDs = new ArrayList<>(numSects);
+		List<List<Byte>> patchIndexes = new ArrayList<>(numSects);
+		List<List<StiffnessAggregation>> aggs = new ArrayList<>(numSects);
+		for (int r=0; r<numSects; r++) {
+			List<Integer> receiverSourceIDs = new ArrayList<>();
+			List<Byte> receiverPatchIndexes = new ArrayList<>();
+			List<StiffnessAggregation> receiverAggs = new ArrayList<>();
+			for (int p=-1; p<patchMethods.size(); p++) {
+				SparseCache<StiffnessAggregation> cache = p < 0 ? fullDistCache : patchSectAggregatedCache.get(patchMethods.get(p));
+				Map<Integer, StiffnessAggregation> receiverCache = cache.getForReceiver(r);
+				if (receiverCache == null)
+					continue;
+				for (Integer s : receiverCache.keySet()) {
+					if (cutoff && distAzCalc.getDistance(s, r) > maxDistance)
+						continue;
+					receiverSourceIDs.add(s);
+					receiverPatchIndexes.add((byte)(p+1));
+					receiverAggs.add(receiverCache.get(s));
 				}
 			}
+			sourceIDs.add(receiverSourceIDs);
+			patchIndexes.add(receiverPatchIndexes);
+			aggs.add(receiverAggs);
+		}
+
+		// write to a temporary file first, as the destination may be memory mapped by us or someone else
+		File tempFile = new File(cacheFile.getAbsolutePath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1024*64));
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(numSects);
+		out.writeFloat((float)maxDistance);
+		out.writeByte(methods.length);
+		for (AggregationMethod method : methods)
+			out.writeUTF(method.name());
+		out.writeByte(patchMethods.size());
+		for (AggregationMethod method : patchMethods)
+			out.writeUTF(method.name());
+		int recordLen = 5 + 4*methods.length;
+		long offset = out.size() + 12l*numSects;
+		for (int r=0; r<numSects; r++) {
+			out.writeLong(offset);
+			out.writeInt(sourceIDs.get(r).size());
+			offset += (long)recordLen*sourceIDs.get(r).size();
+		}
+		for (int r=0; r<numSects; r++) {
+			List<Integer> receiverSourceIDs = sourceIDs.get(r);
+			for (int i=0; i<receiverSourceIDs.size(); i++) {
+				out.writeInt(receiverSourceIDs.get(i));
+				out.writeByte(patchIndexes.get(r).get(i));
+				StiffnessAggregation agg = aggs.get(r).get(i);
+				for (AggregationMethod method : methods)
+					out.writeFloat((float)agg.get(method));
+			}
 		}
+		out.close();
+		Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
 	}
-	
+
+	/**
+	 * Loads the given cache file, which can either be in the CSV or binary format. Binary files are memory mapped and
+	 * loaded lazily for each receiver section.
+	 *
+	 * @param cacheFile
+	 * @return number of section-to-section values in the file
+	 * @throws IOException
+	 */
 	public int loadCacheFile(File cacheFile) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(cacheFile));
+		int magic = cacheFile.length() >= 4 ? in.readInt() : 0;
+		in.close();
+		if (magic == MAGIC)
+			return loadBinaryCacheFile(cacheFile);
+		return loadCSVCacheFile(cacheFile);
+	}
+
+	private int loadCSVCacheFile(File cacheFile) throws IOException {
 		System.out.println("Loading "+type+" cache from "+cacheFile.getAbsolutePath()+"...");
 //		CSVFile<String> csv = CSVFile.readFile(cacheFile, true);
 		BufferedInputStream bis = new BufferedInputStream(new FileInputStream(cacheFile), 1024*64);
@@ -181,31 +402,12 @@ public class AggregatedStiffnessCache {
 			System.err.println("Warning: stiffness cache file is invalid, skipping loading");
 			return 0;
 		}
-		AggregationMethod[] methods = new AggregationMethod[header.size()-3];
-		if (methods.length != AggregatedStiffnessCalculator.CACHEABLE_AGG_METHODS.size()) {
-			System.err.println("Warning: aggregation methods have changed and cache is now invalid, skipping loading");
+		String[] names = new String[header.size()-3];
+		for (int i=0; i<names.length; i++)
+			names[i] = header.get(i+3);
+		AggregationMethod[] methods = parseCachedMethods(names);
+		if (methods == null)
 			return 0;
-		}
-		HashSet<AggregationMethod> prevMethods = new HashSet<>();
-		for (int i=0; i<methods.length; i++) {
-			int col = i+3;
-			String name = header.get(col);
-			try {
-				methods[i] = AggregationMethod.valueOf(name);
-			} catch (IllegalArgumentException e) {
-				System.err.println("Warning: aggregation methods have changed (can't find '"+name+"') and cache is now invalid, skipping loading");
-				return 0;
-			}
-			if (!AggregatedStiffnessCalculator.CACHEABLE_AGG_METHODS.contains(methods[i])) {
-				System.err.println("Warning: aggregation methods have changed and cache is now invalid, skipping loading");
-				return 0;
-			}
-			if (prevMethods.contains(methods[i])) {
-				System.err.println("Warning: cache contains duplicate columns and is invalid, skipping loading");
-				return 0;
-			}
-			prevMethods.add(methods[i]);
-		}
 		for (int row=1; row<csv.getNumRows(); row++) {
 			int col = 0;
 			int sourceID = csv.getInt(row, col++);
@@ -225,25 +427,233 @@ public class AggregatedStiffnessCache {
 		System.out.println("Loaded "+(csv.getNumRows()-1)+" values");
 		return csv.getNumRows()-1;
 	}
-	
+
+	/**
+	 * @param names
+	 * @return aggregation methods for the given column names, or null if they are no longer valid
+	 */
+	private static AggregationMethod[] parseCachedMethods(String[] names) {
+		AggregationMethod[] methods = new AggregationMethod[names.length];
+		if (methods.length != AggregatedStiffnessCalculator.CACHEABLE_AGG_METHODS.size()) {
+			System.err.println("Warning: aggregation methods have changed and cache is now invalid, skipping loading");
+			return null;
+		}
+		HashSet<AggregationMethod> prevMethods = new HashSet<>();
+		for (int i=0; i<methods.length; i++) {
+			String name = names[i];
+			try {
+				methods[i] = AggregationMethod.valueOf(name);
+			} catch (IllegalArgumentException e) {
+				System.err.println("Warning: aggregation methods have changed (can't find '"+name+"') and cache is now invalid, skipping loading");
+				return null;
+			}
+			if (!AggregatedStiffnessCalculator.CACHEABLE_AGG_METHODS.contains(methods[i])) {
+				System.err.println("Warning: aggregation methods have changed and cache is now invalid, skipping loading");
+				return null;
+			}
+			if (prevMethods.contains(methods[i])) {
+				System.err.println("Warning: cache contains duplicate columns and is invalid, skipping loading");
+				return null;
+			}
+			prevMethods.add(methods[i]);
+		}
+		return methods;
+	}
+
+	// maximum size of each memory mapped segment of a binary cache file, can be reduced for testing
+	static int MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+	private int loadBinaryCacheFile(File cacheFile) throws IOException {
+		System.out.println("Mapping "+type+" binary cache from "+cacheFile.getAbsolutePath()+"...");
+		try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+				FileChannel channel = raf.getChannel()) {
+			// mappings remain valid after the channel is closed
+			return loadBinaryCacheFile(channel);
+		}
+	}
+
+	private int loadBinaryCacheFile(FileChannel channel) throws IOException {
+		// the header and receiver index are small and at the start of the file, read them into memory
+		ByteBuffer buf = ByteBuffer.allocate((int)Long.min(channel.size(), 1 << 16));
+		readFully(channel, buf, 0l);
+		Preconditions.checkState(buf.getInt() == MAGIC, "Not a binary stiffness cache file");
+		short version = buf.getShort();
+		Preconditions.checkState(version == VERSION, "Unsupported binary stiffness cache version: %s", version);
+		int numSects = buf.getInt();
+		if (numSects != sects.size()) {
+			System.err.println("Warning: stiffness cache file is for "+numSects+" sections but we have "
+					+sects.size()+", skipping loading");
+			return 0;
+		}
+		float fileMaxDist = buf.getFloat();
+		String[] names = new String[buf.get()];
+		for (int i=0; i<names.length; i++)
+			names[i] = readUTF(buf);
+		AggregationMethod[] methods = parseCachedMethods(names);
+		if (methods == null)
+			return 0;
+		AggregationMethod[] patchMethods = new AggregationMethod[buf.get()];
+		for (int i=0; i<patchMethods.length; i++)
+			patchMethods[i] = AggregationMethod.valueOf(readUTF(buf));
+		ByteBuffer indexBuf = ByteBuffer.allocate(12*numSects);
+		readFully(channel, indexBuf, buf.position());
+
+		MappedCacheFile mapped = new MappedCacheFile(channel, indexBuf, numSects, methods, patchMethods);
+		int count = mapped.getNumUnloaded();
+		this.mapped = mapped;
+		System.out.println("Mapped "+count+" values"+(Double.isNaN(fileMaxDist) ? "" : " (distance cutoff: "+fileMaxDist+" km)"));
+		return count;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, position);
+			if (read < 0)
+				throw new EOFException();
+			position += read;
+		}
+		buf.flip();
+	}
+
+	private static String readUTF(ByteBuffer buf) {
+		// method names are always ASCII, for which modified UTF-8 (as written by writeUTF) is identical to UTF-8
+		byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static final int NUM_LOAD_LOCKS = 64;
+
+	/**
+	 * Memory mapped binary cache file. Files may be larger than a single mapping allows (2 GB), so they are mapped
+	 * in segments, each of which holds the records of one or more whole receivers.
+	 */
+	private class MappedCacheFile {
+
+		private final List<MappedByteBuffer> segments;
+		private final AggregationMethod[] methods;
+		private final AggregationMethod[] patchMethods;
+		private final int recordLen;
+		// segment index and offset of the records within that segment, for each receiver
+		private final int[] segmentIndexes;
+		private final int[] segmentOffsets;
+		private final int[] counts;
+
+		// non-zero once loaded, read without locking
+		private final AtomicIntegerArray loaded;
+		private final Object[] locks;
+
+		public MappedCacheFile(FileChannel channel, ByteBuffer indexBuf, int numSects, AggregationMethod[] methods,
+				AggregationMethod[] patchMethods) throws IOException {
+			this.methods = methods;
+			this.patchMethods = patchMethods;
+			this.recordLen = 5 + 4*methods.length;
+			long[] offsets = new long[numSects];
+			counts = new int[numSects];
+			for (int r=0; r<numSects; r++) {
+				offsets[r] = indexBuf.getLong();
+				counts[r] = indexBuf.getInt();
+			}
+			segments = new ArrayList<>();
+			segmentIndexes = new int[numSects];
+			segmentOffsets = new int[numSects];
+			long segmentStart = -1l;
+			long segmentEnd = -1l;
+			for (int r=0; r<numSects; r++) {
+				if (counts[r] == 0)
+					continue;
+				long end = offsets[r] + (long)recordLen*counts[r];
+				Preconditions.checkState(end - offsets[r] <= MAX_SEGMENT_SIZE,
+						"Records for receiver %s are too large to map", r);
+				if (segmentStart < 0l || end - segmentStart > MAX_SEGMENT_SIZE) {
+					if (segmentStart >= 0l)
+						segments.add(channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentEnd - segmentStart));
+					segmentStart = offsets[r];
+				}
+				segmentEnd = end;
+				segmentIndexes[r] = segments.size();
+				segmentOffsets[r] = (int)(offsets[r] - segmentStart);
+			}
+			if (segmentStart >= 0l)
+				segments.add(channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentEnd - segmentStart));
+			loaded = new AtomicIntegerArray(numSects);
+			locks = new Object[NUM_LOAD_LOCKS];
+			for (int i=0; i<locks.length; i++)
+				locks[i] = new Object();
+		}
+
+		public void checkLoad(int receiverID) {
+			if (loaded.get(receiverID) != 0)
+				return;
+			Object lock = locks[receiverID % locks.length];
+			synchronized (lock) {
+				if (loaded.get(receiverID) != 0)
+					return;
+				if (counts[receiverID] > 0) {
+					ByteBuffer view = segments.get(segmentIndexes[receiverID]).duplicate();
+					view.position(segmentOffsets[receiverID]);
+					double[] values = new double[methods.length];
+					for (int i=0; i<counts[receiverID]; i++) {
+						int sourceID = view.getInt();
+						int patchIndex = view.get();
+						for (int m=0; m<values.length; m++)
+							values[m] = view.getFloat();
+						AggregationMethod patchMethod = patchIndex == 0 ? null : patchMethods[patchIndex-1];
+						// don't overwrite anything calculated since the file was mapped
+						if (getCache(patchMethod).get(receiverID, sourceID) == null)
+							putSectAggregated(patchMethod, sourceID, receiverID,
+									new StiffnessAggregation(methods, values.clone()));
+					}
+				}
+				loaded.set(receiverID, 1);
+			}
+		}
+
+		private SparseCache<StiffnessAggregation> getCache(AggregationMethod patchMethod) {
+			if (patchMethod == null)
+				return fullDistCache;
+			return patchSectAggregatedCache.computeIfAbsent(patchMethod, m -> new SparseCache<>(sects.size()));
+		}
+
+		public int getNumUnloaded() {
+			int count = 0;
+			for (int r=0; r<counts.length; r++)
+				if (loaded.get(r) == 0)
+					count += counts[r];
+			return count;
+		}
+
+		public void loadAll() {
+			for (int r=0; r<counts.length; r++)
+				checkLoad(r);
+		}
+	}
+
+	private void loadAllMapped() {
+		MappedCacheFile mapped = this.mapped;
+		if (mapped != null) {
+			mapped.loadAll();
+			this.mapped = null;
+		}
+	}
+
 	public void copyCacheFrom(AggregatedStiffnessCache o) {
 		Preconditions.checkState(type == o.type);
 		Preconditions.checkState(sects.size() == o.sects.size());
-		
+
+		o.loadAllMapped();
 		copyCacheFrom(null, o.fullDistCache);
-		for (AggregationMethod aggMethod : patchSectAggregatedCache.keySet())
+		for (AggregationMethod aggMethod : o.patchSectAggregatedCache.keySet())
 			copyCacheFrom(aggMethod, o.patchSectAggregatedCache.get(aggMethod));
 	}
-	
-	private void copyCacheFrom(AggregationMethod patchAggMethod, StiffnessAggregation[][] cache) {
-		if (cache == null)
-			return;
-		for (int r=0; r<cache.length; r++) {
-			if (cache[r] == null)
+
+	private void copyCacheFrom(AggregationMethod patchAggMethod, SparseCache<StiffnessAggregation> cache) {
+		for (int r=0; r<cache.numReceivers(); r++) {
+			Map<Integer, StiffnessAggregation> receiverCache = cache.getForReceiver(r);
+			if (receiverCache == null)
 				continue;
-			for (int s=0; s<cache[r].length; s++)
-				if (cache[r][s] != null)
-					putSectAggregated(patchAggMethod, s, r, cache[r][s]);
+			for (Integer s : receiverCache.keySet())
+				putSectAggregated(patchAggMethod, s, r, receiverCache.get(s));
 		}
 	}
 
@@ -18,6 +18,8 @@ import java.util.zip.ZipException;
 import org.apache.commons.math3.stat.StatUtils;
 import org.dom4j.DocumentException;
 import org.opensha.commons.util.DataUtils;
+import org.opensha.commons.util.IDPairing;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.SectionDistanceAzimuthCalculator;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.UniqueRupture;
 import org.opensha.sha.faultSurface.FaultSection;
 import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.PatchAlignment;
@@ -702,6 +704,13 @@ public class AggregatedStiffnessCalculator {
 		}
 		
 		StiffnessDistribution dist = calc.calcStiffnessDistribution(source, receiver);
+		return aggRecieverPatches(source, receiver, dist);
+	}
+	
+	private ReceiverDistribution[] aggRecieverPatches(FaultSection source, FaultSection receiver,
+			StiffnessDistribution dist) {
+		int sourceID = source.getSectionId();
+		int receiverID = receiver.getSectionId();
 		double[][] values = dist.get(type);
 		double[] receiverPatchVals = new double[values.length];
 		
@@ -752,14 +761,16 @@ public class AggregatedStiffnessCalculator {
 		return layers[1].isTerminal() && (layers[0].isTerminal() || layers[0] == AggregationMethod.FLATTEN);
 	}
 	
-	private StiffnessAggregation getCachedSectToSect(FaultSection source, FaultSection receiver) {
-		AggregationMethod patchAggMethod = null;
-		if (layers[0].isTerminal()) {
+	private AggregationMethod getSectToSectPatchAggMethod() {
+		if (layers[0].isTerminal())
 			// we aggregated at the patch layer
-			patchAggMethod = layers[0];
-		}  else {
-			Preconditions.checkState(layers[0] == AggregationMethod.FLATTEN);
-		}
+			return layers[0];
+		Preconditions.checkState(layers[0] == AggregationMethod.FLATTEN);
+		return null;
+	}
+	
+	private StiffnessAggregation getCachedSectToSect(FaultSection source, FaultSection receiver) {
+		AggregationMethod patchAggMethod = getSectToSectPatchAggMethod();
 		
 		if (cache == null)
 			cache = calc.getAggregationCache(type);
@@ -767,15 +778,7 @@ public class AggregatedStiffnessCalculator {
 		StiffnessAggregation aggregated = cache.getSectAggregated(patchAggMethod, source, receiver);
 		if (aggregated == null) {
 			// need to calculate and cache it
-			ReceiverDistribution receiverPatchDist = flatten(receiver.getSectionId(), aggRecieverPatches(source, receiver));
-//			Preconditions.checkState(receiverPatchDists.length == 1,
-//					"should only have 1 flattened or procssed distribution at sect-to-sect if cacheable");
-			aggregated = new StiffnessAggregation(receiverPatchDist.values, receiverPatchDist.totNumInteractions);
-			if (D) {
-				System.out.println(source.getSectionId()+" -> "+receiver.getSectionId()+" sect-to-sect "+layers[1]+":");
-				System.out.println("\t"+receiverPatchDist);
-			}
-			cache.putSectAggregated(patchAggMethod, source, receiver, aggregated);
+			aggregated = cacheSectToSect(source, receiver, aggRecieverPatches(source, receiver));
 		} else if (D) {
 			System.out.println(source.getSectionId()+" -> "+receiver.getSectionId()
 				+" sect-to-sect "+layers[1]+" is CACHED w/ patchAgg="+patchAggMethod+":");
@@ -784,6 +787,21 @@ public class AggregatedStiffnessCalculator {
 		return aggregated;
 	}
 	
+	private StiffnessAggregation cacheSectToSect(FaultSection source, FaultSection receiver,
+			ReceiverDistribution[] receiverPatchDists) {
+		ReceiverDistribution receiverPatchDist = flatten(receiver.getSectionId(), receiverPatchDists);
+//		Preconditions.checkState(receiverPatchDists.length == 1,
+//				"should only have 1 flattened or procssed distribution at sect-to-sect if cacheable");
+		StiffnessAggregation aggregated = new StiffnessAggregation(
+				receiverPatchDist.values, receiverPatchDist.totNumInteractions);
+		if (D) {
+			System.out.println(source.getSectionId()+" -> "+receiver.getSectionId()+" sect-to-sect "+layers[1]+":");
+			System.out.println("\t"+receiverPatchDist);
+		}
+		cache.putSectAggregated(getSectToSectPatchAggMethod(), source, receiver, aggregated);
+		return aggregated;
+	}
+	
 	private ReceiverDistribution[] aggSectToSect(FaultSection source, FaultSection receiver) {
 		Preconditions.checkState(allowSectToSelf || source.getSectionId() != receiver.getSectionId(),
 				"Source and receiver ID are the same and allowSectToSelf=false: %s", source.getSectionId());
@@ -835,6 +853,77 @@ public class AggregatedStiffnessCalculator {
 		}
 	}
 	
+	/**
+	 * Calculates and caches the receiver patch aggregations (if the patch layer is terminal) and section-to-section
+	 * aggregations (if cacheable) for all of the given section pairs in parallel, skipping any which are already
+	 * cached. At least one of those levels must be cacheable.
+	 * 
+	 * @param pairs section pairs, with the source section ID as ID1 and the receiver as ID2
+	 * @param threads number of calculation threads
+	 */
+	public void precompute(Collection<IDPairing> pairs, int threads) {
+		boolean patchCacheable = layers[0].isTerminal();
+		boolean sectCacheable = layers.length > 1 && isSectToSectCacheable();
+		Preconditions.checkState(patchCacheable || sectCacheable,
+				"Can only precompute when patch or section-to-section aggregations are cacheable");
+		if (cache == null)
+			cache = calc.getAggregationCache(type);
+		AggregationMethod sectPatchAggMethod = sectCacheable ? getSectToSectPatchAggMethod() : null;
+		List<? extends FaultSection> subSects = calc.getSubSects();
+		List<IDPairing> toCalc = new ArrayList<>();
+		for (IDPairing pair : pairs) {
+			Preconditions.checkState(allowSectToSelf || pair.getID1() != pair.getID2(),
+					"Source and receiver ID are the same and allowSectToSelf=false: %s", pair.getID1());
+			FaultSection source = subSects.get(pair.getID1());
+			FaultSection receiver = subSects.get(pair.getID2());
+			boolean cached;
+			if (patchCacheable)
+				cached = cache.getPatchAggregated(layers[0], source, receiver) != null;
+			else
+				cached = cache.getSectAggregated(sectPatchAggMethod, source, receiver) != null;
+			if (!cached)
+				toCalc.add(pair);
+		}
+		if (!toCalc.isEmpty())
+			calc.calcStiffnessDistributions(toCalc, (sourceID, receiverID, dist) -> {
+				FaultSection source = subSects.get(sourceID);
+				FaultSection receiver = subSects.get(receiverID);
+				// patch level terminal aggregations always create new value arrays (and are cached here)
+				ReceiverDistribution[] receiverPatchDists = aggRecieverPatches(source, receiver, dist);
+				if (!patchCacheable)
+					// flattened patch values are backed by the reused buffers, so aggregate them right away
+					cacheSectToSect(source, receiver, receiverPatchDists);
+			}, threads);
+		if (patchCacheable && sectCacheable)
+			for (IDPairing pair : pairs)
+				// cheap now that the patch level is cached
+				getCachedSectToSect(subSects.get(pair.getID1()), subSects.get(pair.getID2()));
+	}
+	
+	/**
+	 * Calculates and caches aggregations in both directions for every pair of sections within the given distance
+	 * of each other, in parallel. Distance is symmetric, so each unordered pair is only checked once. This is
+	 * useful before building connections or ruptures, which will repeatedly need values for nearby sections.
+	 * 
+	 * @param distAzCalc
+	 * @param maxDist maximum distance between sections (km)
+	 * @param threads number of calculation threads
+	 * @see #precompute(Collection, int)
+	 */
+	public void precomputeWithinDistance(SectionDistanceAzimuthCalculator distAzCalc, double maxDist, int threads) {
+		List<IDPairing> pairs = new ArrayList<>();
+		int numSects = calc.getSubSects().size();
+		for (int id1=0; id1<numSects; id1++) {
+			for (int id2 : distAzCalc.getSectsPossiblyWithinDistance(id1, maxDist)) {
+				if (id2 > id1 && distAzCalc.getDistance(id1, id2) <= maxDist) {
+					pairs.add(new IDPairing(id1, id2));
+					pairs.add(new IDPairing(id2, id1));
+				}
+			}
+		}
+		precompute(pairs, threads);
+	}
+	
 	public double[] calcReceiverPatchAgg(FaultSection source, FaultSection receiver) {
 		Preconditions.checkState(source.getSectionId() != receiver.getSectionId(),
 				"Source and receiver ID are the same and allowSectToSelf=false: %s", source.getSectionId());
@@ -0,0 +1,260 @@
+package org.opensha.sha.simulators.stiffness;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.UniqueRupture;
+import org.opensha.sha.faultSurface.FaultSection;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Batch of aggregated stiffness calculations for a single {@link AggregatedStiffnessCalculator}. Calculations are
+ * first requested (e.g., for every candidate rupture in a set that is about to be tested), which collects the unique
+ * (sources, receivers) sets, then computed once each (optionally in parallel). Results are then retrieved via the
+ * calc(...) methods, which have the same signatures as those in {@link AggregatedStiffnessCalculator} and fall back
+ * to a direct calculation for anything that wasn't requested.
+ * <p>
+ * If deferMissing is enabled, calc(...) instead requests any aggregation which hasn't yet been computed and throws a
+ * {@link MissingAggregationException}. This lets callers evaluate many candidates in rounds: each candidate is
+ * evaluated (with its usual short circuiting) until it needs an aggregation which isn't yet available, then all newly
+ * requested aggregations are computed at once and the paused candidates are evaluated again. Only aggregations which
+ * would be needed by a sequential evaluation are ever computed.
+ * <p>
+ * Unique sets are identified by their section IDs, irrespective of order.
+ */
+public class StiffnessAggregationBatch {
+
+	private final AggregatedStiffnessCalculator aggCalc;
+
+	private final ConcurrentMap<AggregationKey, Aggregation> aggregations;
+	
+	private final boolean deferMissing;
+
+	public StiffnessAggregationBatch(AggregatedStiffnessCalculator aggCalc) {
+		this(aggCalc, false);
+	}
+
+	/**
+	 * @param aggCalc
+	 * @param deferMissing if true, calc(...) calls for aggregations which have not yet been computed will request
+	 * them and throw a {@link MissingAggregationException} rather than calculating them directly
+	 */
+	public StiffnessAggregationBatch(AggregatedStiffnessCalculator aggCalc, boolean deferMissing) {
+		this.aggCalc = aggCalc;
+		this.aggregations = new ConcurrentHashMap<>();
+		this.deferMissing = deferMissing;
+	}
+	
+	/**
+	 * Thrown by calc(...) if deferMissing is enabled and the aggregation has not yet been computed. It will have
+	 * been requested, so will be available after the next call to compute(boolean).
+	 */
+	public static class MissingAggregationException extends RuntimeException {
+		
+		private MissingAggregationException() {
+			// used for control flow, don't bother with a stack trace
+			super("Aggregation has not yet been computed", null, false, false);
+		}
+	}
+
+	public AggregatedStiffnessCalculator getAggregator() {
+		return aggCalc;
+	}
+
+	private static class AggregationKey {
+		private final UniqueRupture sources;
+		private final UniqueRupture receivers;
+		// calc(sources, receiver) and calc(sources, receivers) can differ even with a single receiver
+		private final boolean singleReceiver;
+
+		public AggregationKey(UniqueRupture sources, UniqueRupture receivers, boolean singleReceiver) {
+			this.sources = sources;
+			this.receivers = receivers;
+			this.singleReceiver = singleReceiver;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + receivers.hashCode();
+			result = prime * result + (singleReceiver ? 1231 : 1237);
+			result = prime * result + sources.hashCode();
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			AggregationKey other = (AggregationKey) obj;
+			return singleReceiver == other.singleReceiver && sources.equals(other.sources)
+					&& receivers.equals(other.receivers);
+		}
+	}
+
+	private class Aggregation extends RecursiveAction {
+
+		private final Collection<? extends FaultSection> sources;
+		private final Collection<? extends FaultSection> receivers;
+		private final FaultSection receiver;
+
+		private volatile boolean computed = false;
+		private double value;
+
+		public Aggregation(Collection<? extends FaultSection> sources, Collection<? extends FaultSection> receivers,
+				FaultSection receiver) {
+			this.sources = sources;
+			this.receivers = receivers;
+			this.receiver = receiver;
+		}
+
+		@Override
+		protected void compute() {
+			getValue();
+		}
+
+		public double getValue() {
+			if (!computed) {
+				// if multiple threads get here at once, the result will just be calculated more than once
+				if (receiver == null)
+					value = aggCalc.calc(sources, receivers);
+				else
+					value = aggCalc.calc(sources, receiver);
+				computed = true;
+			}
+			return value;
+		}
+	}
+
+	private AggregationKey key(Collection<? extends FaultSection> sources, Collection<? extends FaultSection> receivers) {
+		return new AggregationKey(UniqueRupture.forSects(sources), UniqueRupture.forSects(receivers), false);
+	}
+
+	private AggregationKey key(Collection<? extends FaultSection> sources, FaultSection receiver) {
+		return new AggregationKey(UniqueRupture.forSects(sources),
+				UniqueRupture.forIDs(List.of(receiver.getSectionId())), true);
+	}
+
+	/**
+	 * Requests the sources to receivers aggregation, which will be computed in the next call to compute(boolean)
+	 *
+	 * @param sources
+	 * @param receivers
+	 */
+	public void request(Collection<? extends FaultSection> sources, Collection<? extends FaultSection> receivers) {
+		aggregations.putIfAbsent(key(sources, receivers), new Aggregation(sources, receivers, null));
+	}
+
+	/**
+	 * Requests the sources to receiver aggregation, which will be computed in the next call to compute(boolean)
+	 *
+	 * @param sources
+	 * @param receiver
+	 */
+	public void request(Collection<? extends FaultSection> sources, FaultSection receiver) {
+		aggregations.putIfAbsent(key(sources, receiver), new Aggregation(sources, null, receiver));
+	}
+
+	/**
+	 * @return true if any requested aggregations have not yet been computed
+	 */
+	public boolean hasPending() {
+		for (Aggregation aggregation : aggregations.values())
+			if (!aggregation.computed)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return number of unique aggregations requested
+	 */
+	public int size() {
+		return aggregations.size();
+	}
+
+	/**
+	 * Computes all requested aggregations which have not yet been computed
+	 *
+	 * @param parallel if true, aggregations will be computed in parallel as fork join tasks (in the current pool if
+	 * called from within one, otherwise in the common pool)
+	 */
+	public void compute(boolean parallel) {
+		List<Aggregation> toCompute = new ArrayList<>();
+		for (Aggregation aggregation : aggregations.values())
+			if (!aggregation.computed)
+				toCompute.add(aggregation);
+		if (parallel && toCompute.size() > 1) {
+			ForkJoinTask.invokeAll(toCompute);
+		} else {
+			for (Aggregation aggregation : toCompute)
+				aggregation.getValue();
+		}
+	}
+
+	/**
+	 * Sources to receivers aggregated value, from this batch if previously requested
+	 *
+	 * @param sources
+	 * @param receivers
+	 * @return value
+	 * @see AggregatedStiffnessCalculator#calc(Collection, Collection)
+	 */
+	public double calc(Collection<? extends FaultSection> sources, Collection<? extends FaultSection> receivers) {
+		AggregationKey key = key(sources, receivers);
+		Aggregation aggregation = aggregations.get(key);
+		if (deferMissing && (aggregation == null || !aggregation.computed)) {
+			aggregations.putIfAbsent(key, new Aggregation(sources, receivers, null));
+			throw new MissingAggregationException();
+		}
+		if (aggregation == null)
+			return aggCalc.calc(sources, receivers);
+		return aggregation.getValue();
+	}
+
+	/**
+	 * Sources to receiver aggregated value, from this batch if previously requested
+	 *
+	 * @param sources
+	 * @param receiver
+	 * @return value
+	 * @see AggregatedStiffnessCalculator#calc(Collection, FaultSection)
+	 */
+	public double calc(Collection<? extends FaultSection> sources, FaultSection receiver) {
+		AggregationKey key = key(sources, receiver);
+		Aggregation aggregation = aggregations.get(key);
+		if (deferMissing && (aggregation == null || !aggregation.computed)) {
+			aggregations.putIfAbsent(key, new Aggregation(sources, null, receiver));
+			throw new MissingAggregationException();
+		}
+		if (aggregation == null)
+			return aggCalc.calc(sources, receiver);
+		return aggregation.getValue();
+	}
+
+	/**
+	 * Convenience method to use the given batch if non null, otherwise calculate directly
+	 *
+	 * @param batch batch, or null
+	 * @param aggCalc calculator, which must match that of the batch if supplied
+	 * @param sources
+	 * @param receivers
+	 * @return value
+	 */
+	public static double calc(StiffnessAggregationBatch batch, AggregatedStiffnessCalculator aggCalc,
+			Collection<? extends FaultSection> sources, Collection<? extends FaultSection> receivers) {
+		if (batch == null)
+			return aggCalc.calc(sources, receivers);
+		Preconditions.checkState(batch.aggCalc == aggCalc, "Batch is for a different aggregator");
+		return batch.calc(sources, receivers);
+	}
+
+}
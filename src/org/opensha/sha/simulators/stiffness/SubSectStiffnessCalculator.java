@@ -7,12 +7,19 @@ import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
 import java.util.zip.ZipException;
 
 import org.dom4j.DocumentException;
@@ -94,6 +101,10 @@ public class SubSectStiffnessCalculator {
 	
 	private transient AggregatedStiffnessCache[] caches;
 	
+	// far field approximation opening angle tolerance, 0 to disable
+	private double farFieldTolerance = 0d;
+	private transient volatile ConcurrentMap<Integer, FarFieldNode> farFieldTrees;
+	
 	public static class PatchLocation {
 		public final Patch patch;
 		public final Location center;
@@ -203,11 +214,37 @@ public class SubSectStiffnessCalculator {
 	public synchronized void setPatchAlignment(PatchAlignment alignment) {
 		if (this.alignment != alignment) {
 			patchesMap = null;
+			farFieldTrees = null;
 			this.alignment = alignment;
 			clearCaches();
 		}
 	}
 	
+	/**
+	 * Enables the far field approximation for source patches. Source patches for each section are organized into a
+	 * tree of progressively larger groups, and the members of a group are all moved to the group centroid for any
+	 * receiver patch where the group radius divided by the distance to the receiver patch is less than the given
+	 * tolerance. Every member of such a group is assigned the stiffness of a single (member sized) patch at the
+	 * centroid, so each value approximates that of the patch itself and patch level aggregations (e.g. maximums or
+	 * counts of positive values) are not skewed. Calculations between a section and itself are always exact.
+	 * <p>
+	 * Larger tolerances are faster and less accurate, see {@link #validateFarField(Collection)} to quantify errors.
+	 * 
+	 * @param tolerance maximum group radius to distance ratio, or 0 to disable (default)
+	 */
+	public synchronized void setFarFieldTolerance(double tolerance) {
+		Preconditions.checkArgument(tolerance >= 0d && tolerance < 1d,
+				"Far field tolerance must be in the range [0,1): %s", tolerance);
+		if (this.farFieldTolerance != tolerance) {
+			this.farFieldTolerance = tolerance;
+			clearCaches();
+		}
+	}
+	
+	public double getFarFieldTolerance() {
+		return farFieldTolerance;
+	}
+	
 	public List<? extends FaultSection> getSubSects() {
 		return subSects;
 	}
@@ -438,42 +475,432 @@ public class SubSectStiffnessCalculator {
 		
 		double[][][] values = new double[StiffnessType.values().length][receiverPatches.size()][sourcePatches.size()];
 		
+		calcPatchValues(sourceID, toPatchArray(sourcePatches), receiverID, receiverPatches, values, true);
+		
+		return new StiffnessDistribution(sourcePatches, receiverPatches, values);
+	}
+	
+	/**
+	 * Calculates stiffness between the given sub sections without the far field approximation (if enabled) and
+	 * without any caching
+	 * 
+	 * @param sourceID
+	 * @param receiverID
+	 * @return stiffness distribution
+	 */
+	public StiffnessDistribution calcExactStiffnessDistribution(int sourceID, int receiverID) {
+		checkInitPatches();
+		List<PatchLocation> sourcePatches = patchesMap.get(subSects.get(sourceID));
+		List<PatchLocation> receiverPatches = patchesMap.get(subSects.get(receiverID));
+		
+		double[][][] values = new double[StiffnessType.values().length][receiverPatches.size()][sourcePatches.size()];
+		
+		calcPatchValues(sourceID, toPatchArray(sourcePatches), receiverID, receiverPatches, values, false);
+		
+		return new StiffnessDistribution(sourcePatches, receiverPatches, values);
+	}
+	
+	private static Patch[] toPatchArray(List<PatchLocation> patches) {
+		Patch[] ret = new Patch[patches.size()];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = patches.get(i).patch;
+		return ret;
+	}
+	
+	/**
+	 * Fills in the given [type][receiver][source] values array with stiffness between each patch pair
+	 */
+	private void calcPatchValues(int sourceID, Patch[] sourcePatches, int receiverID,
+			List<PatchLocation> receiverPatches, double[][][] values, boolean allowFarField) {
 		double[] selfStiffness = null;
 		if (selfStiffnessCap > 0)
 			selfStiffness = getSelfStiffness(receiverID, receiverPatches);
+		
+		double[][] sigmas = values[StiffnessType.SIGMA.ordinal()];
+		double[][] taus = values[StiffnessType.TAU.ordinal()];
+		double[][] cffs = values[StiffnessType.CFF.ordinal()];
+		
+		FarFieldNode farFieldTree = null;
+		if (allowFarField && farFieldTolerance > 0d && sourceID != receiverID)
+			farFieldTree = getFarFieldTree(sourceID);
 
 		for (int r=0; r<receiverPatches.size(); r++) {
-			PatchLocation receiver = receiverPatches.get(r);
+			Patch receiver = receiverPatches.get(r).patch;
 			double cap = Double.NaN;
 			if (selfStiffnessCap > 0)
 				cap = Math.abs(selfStiffness[r])*selfStiffnessCap;
-			for (int s=0; s<sourcePatches.size(); s++) {
-				PatchLocation source = sourcePatches.get(s);
-				double[] stiffness = StiffnessCalc.calcStiffness(
-						lameLambda, lameMu, source.patch, receiver.patch);
-				double sigma, tau, cff;
-				if (stiffness == null) {
-					sigma = Double.NaN;
-					tau = Double.NaN;
-					cff = Double.NaN;
-				} else {
-					sigma = stiffness[0];
-					tau = stiffness[1];
-					cff = StiffnessCalc.calcCoulombStress(tau, sigma, coeffOfFriction);
-					if (selfStiffnessCap > 0) {
-						if (cff > cap)
-							cff = cap;
-						else if (cff < -cap)
-							cff = -cap;
-					}
+			if (farFieldTree != null) {
+				double[] receiverXYZ = toXYZ(receiverPatches.get(r).center);
+				calcFarFieldValues(farFieldTree, sourcePatches, receiver, receiverXYZ, cap,
+						sigmas[r], taus[r], cffs[r]);
+				continue;
+			}
+			for (int s=0; s<sourcePatches.length; s++)
+				setPatchValues(StiffnessCalc.calcStiffness(lameLambda, lameMu, sourcePatches[s], receiver),
+						cap, sigmas[r], taus[r], cffs[r], s);
+		}
+	}
+	
+	/**
+	 * Sets the values at the given index from the given stiffness result
+	 */
+	private void setPatchValues(double[] stiffness, double cap, double[] sigmas, double[] taus,
+			double[] cffs, int index) {
+		double sigma, tau, cff;
+		if (stiffness == null) {
+			sigma = Double.NaN;
+			tau = Double.NaN;
+			cff = Double.NaN;
+		} else {
+			sigma = stiffness[0];
+			tau = stiffness[1];
+			cff = StiffnessCalc.calcCoulombStress(tau, sigma, coeffOfFriction);
+			if (selfStiffnessCap > 0) {
+				if (cff > cap)
+					cff = cap;
+				else if (cff < -cap)
+					cff = -cap;
+			}
+		}
+		sigmas[index] = sigma;
+		taus[index] = tau;
+		cffs[index] = cff;
+	}
+	
+	/*
+	 * Far field approximation
+	 */
+	
+	/**
+	 * Node in a tree of source patches for a single section. Leaf nodes are single patches, and all other nodes
+	 * have an equivalent patch at their centroid which stands in for each of their members.
+	 */
+	private static class FarFieldNode {
+		private final int[] patchIndexes;
+		private final double[] centroid;
+		private final double radius;
+		private final FarFieldNode child1;
+		private final FarFieldNode child2;
+		private final Patch equivPatch;
+		
+		public FarFieldNode(int[] patchIndexes, double[] centroid, double radius, FarFieldNode child1,
+				FarFieldNode child2, Patch equivPatch) {
+			this.patchIndexes = patchIndexes;
+			this.centroid = centroid;
+			this.radius = radius;
+			this.child1 = child1;
+			this.child2 = child2;
+			this.equivPatch = equivPatch;
+		}
+	}
+	
+	private FarFieldNode getFarFieldTree(int sectID) {
+		// local copy, as this can be cleared concurrently if the patch alignment is changed
+		ConcurrentMap<Integer, FarFieldNode> trees = farFieldTrees;
+		if (trees == null) {
+			synchronized (this) {
+				if (farFieldTrees == null)
+					farFieldTrees = new ConcurrentHashMap<>();
+				trees = farFieldTrees;
+			}
+		}
+		FarFieldNode tree = trees.get(sectID);
+		if (tree == null) {
+			// if multiple threads get here at once, it will just be built more than once
+			FaultSection sect = subSects.get(sectID);
+			List<PatchLocation> patches = patchesMap.get(sect);
+			double[][] xyzs = new double[patches.size()][];
+			int[] indexes = new int[patches.size()];
+			for (int i=0; i<indexes.length; i++) {
+				xyzs[i] = toXYZ(patches.get(i).center);
+				indexes[i] = i;
+			}
+			tree = buildFarFieldNode(sect, patches, xyzs, indexes);
+			trees.putIfAbsent(sectID, tree);
+		}
+		return tree;
+	}
+	
+	private FarFieldNode buildFarFieldNode(FaultSection sect, List<PatchLocation> patches, double[][] xyzs,
+			int[] indexes) {
+		double[] centroid = new double[3];
+		for (int index : indexes)
+			for (int i=0; i<3; i++)
+				centroid[i] += xyzs[index][i]/indexes.length;
+		double halfDiagonal = Math.sqrt(2d)*0.5*gridSpacing;
+		if (indexes.length == 1)
+			return new FarFieldNode(indexes, centroid, halfDiagonal, null, null, null);
+		
+		// split along the axis with the largest extent
+		double maxRadius = 0d;
+		int closestIndex = -1;
+		double closestDist = Double.POSITIVE_INFINITY;
+		int splitAxis = 0;
+		double maxExtent = -1d;
+		for (int axis=0; axis<3; axis++) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int index : indexes) {
+				min = Math.min(min, xyzs[index][axis]);
+				max = Math.max(max, xyzs[index][axis]);
+			}
+			if (max - min > maxExtent) {
+				maxExtent = max - min;
+				splitAxis = axis;
+			}
+		}
+		for (int index : indexes) {
+			double dist = distance(xyzs[index], centroid);
+			maxRadius = Math.max(maxRadius, dist);
+			if (dist < closestDist) {
+				closestDist = dist;
+				closestIndex = index;
+			}
+		}
+		final int axis = splitAxis;
+		int[] sorted = IntStream.of(indexes).boxed().sorted((i1, i2) -> Double.compare(xyzs[i1][axis], xyzs[i2][axis]))
+				.mapToInt(Integer::intValue).toArray();
+		int half = sorted.length/2;
+		FarFieldNode child1 = buildFarFieldNode(sect, patches, xyzs, Arrays.copyOfRange(sorted, 0, half));
+		FarFieldNode child2 = buildFarFieldNode(sect, patches, xyzs, Arrays.copyOfRange(sorted, half, sorted.length));
+		
+		// equivalent patch at the centroid, with the mechanism of the closest member and the size of a single member
+		double depth = 0d;
+		for (int index : indexes)
+			depth += patches.get(index).center.getDepth()/indexes.length;
+		Location[] corners = patches.get(closestIndex).corners;
+		double strike = LocationUtils.azimuth(corners[0], corners[1]);
+		double dip = Math.toDegrees(Math.atan2(corners[3].getDepth() - corners[0].getDepth(),
+				LocationUtils.horzDistanceFast(corners[0], corners[3])));
+		FocalMechanism mech = new FocalMechanism(strike, dip, sect.getAveRake());
+		double sideM = gridSpacing*1000d; // km -> m
+		Patch equivPatch = new Patch(fromXYZ(centroid, depth), utmZone, utmChar, sideM, sideM, mech);
+		
+		return new FarFieldNode(indexes, centroid, maxRadius + halfDiagonal, child1, child2, equivPatch);
+	}
+	
+	private void calcFarFieldValues(FarFieldNode node, Patch[] sourcePatches, Patch receiver, double[] receiverXYZ,
+			double cap, double[] sigmas, double[] taus, double[] cffs) {
+		if (node.equivPatch == null) {
+			// single patch, exact
+			int s = node.patchIndexes[0];
+			setPatchValues(StiffnessCalc.calcStiffness(lameLambda, lameMu, sourcePatches[s], receiver),
+					cap, sigmas, taus, cffs, s);
+		} else if (node.radius < farFieldTolerance*distance(receiverXYZ, node.centroid)) {
+			// far enough away to use the equivalent patch for each member
+			double[] stiffness = StiffnessCalc.calcStiffness(lameLambda, lameMu, node.equivPatch, receiver);
+			for (int s : node.patchIndexes)
+				setPatchValues(stiffness, cap, sigmas, taus, cffs, s);
+		} else {
+			calcFarFieldValues(node.child1, sourcePatches, receiver, receiverXYZ, cap, sigmas, taus, cffs);
+			calcFarFieldValues(node.child2, sourcePatches, receiver, receiverXYZ, cap, sigmas, taus, cffs);
+		}
+	}
+	
+	/**
+	 * @return earth-centered cartesian coordinates in km (spherical earth approximation), accounting for depth
+	 */
+	static double[] toXYZ(Location loc) {
+		double latRad = loc.getLatRad();
+		double lonRad = loc.getLonRad();
+		double r = 6371d - loc.getDepth(); // km
+		return new double[] {
+				r*Math.cos(latRad)*Math.cos(lonRad),
+				r*Math.cos(latRad)*Math.sin(lonRad),
+				r*Math.sin(latRad)
+		};
+	}
+	
+	/**
+	 * Inverse of {@link #toXYZ(Location)} for the horizontal position. Centroids of cartesian coordinates lie below
+	 * the surface, so the depth is supplied separately. Working in cartesian coordinates avoids averaging longitudes
+	 * directly, which is wrong for groups that straddle the antimeridian.
+	 */
+	static Location fromXYZ(double[] xyz, double depth) {
+		double lat = Math.toDegrees(Math.atan2(xyz[2], Math.sqrt(xyz[0]*xyz[0] + xyz[1]*xyz[1])));
+		double lon = Math.toDegrees(Math.atan2(xyz[1], xyz[0]));
+		return new Location(lat, lon, depth);
+	}
+	
+	private static double distance(double[] xyz1, double[] xyz2) {
+		double dx = xyz1[0] - xyz2[0];
+		double dy = xyz1[1] - xyz2[1];
+		double dz = xyz1[2] - xyz2[2];
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+	
+	/**
+	 * Compares the far field approximation against the exact calculation for each of the given section pairs.
+	 * 
+	 * @param pairs section pairs, with the source section ID as ID1 and the receiver as ID2
+	 * @return CSV with a row for each pair giving the exact and approximate CFF sums, the relative error of the sum,
+	 * the maximum absolute and RMS patch-to-patch errors, and the fraction of patch pairs which differ
+	 */
+	public CSVFile<String> validateFarField(Collection<IDPairing> pairs) {
+		Preconditions.checkState(farFieldTolerance > 0d, "Far field approximation is not enabled");
+		CSVFile<String> csv = new CSVFile<>(true);
+		csv.addLine("Source ID", "Receiver ID", "Exact CFF Sum", "Approx CFF Sum", "Sum Relative Error",
+				"Max Abs Patch Error", "RMS Patch Error", "Fraction Patches Approximated");
+		MinMaxAveTracker relErrTrack = new MinMaxAveTracker();
+		for (IDPairing pair : pairs) {
+			StiffnessDistribution exact = calcExactStiffnessDistribution(pair.getID1(), pair.getID2());
+			StiffnessDistribution approx = calcStiffnessDistribution(pair.getID1(), pair.getID2());
+			double[][] exactVals = exact.get(StiffnessType.CFF);
+			double[][] approxVals = approx.get(StiffnessType.CFF);
+			double exactSum = 0d;
+			double approxSum = 0d;
+			double maxAbsErr = 0d;
+			double sumSqErr = 0d;
+			int numDiffer = 0;
+			int numValues = 0;
+			for (int r=0; r<exactVals.length; r++) {
+				for (int s=0; s<exactVals[r].length; s++) {
+					double exactVal = exactVals[r][s];
+					double approxVal = approxVals[r][s];
+					if (Double.isNaN(exactVal) || Double.isNaN(approxVal))
+						continue;
+					exactSum += exactVal;
+					approxSum += approxVal;
+					double err = Math.abs(approxVal - exactVal);
+					maxAbsErr = Math.max(maxAbsErr, err);
+					sumSqErr += err*err;
+					if (approxVal != exactVal)
+						numDiffer++;
+					numValues++;
 				}
-				values[StiffnessType.SIGMA.ordinal()][r][s] = sigma;
-				values[StiffnessType.TAU.ordinal()][r][s] = tau;
-				values[StiffnessType.CFF.ordinal()][r][s] = cff;
 			}
+			double relErr = exactSum == 0d ? 0d : Math.abs(approxSum - exactSum)/Math.abs(exactSum);
+			relErrTrack.addValue(relErr);
+			csv.addLine(pair.getID1()+"", pair.getID2()+"", exactSum+"", approxSum+"", relErr+"", maxAbsErr+"",
+					(numValues == 0 ? 0d : Math.sqrt(sumSqErr/numValues))+"",
+					(numValues == 0 ? 0d : (double)numDiffer/numValues)+"");
 		}
+		System.out.println("Far field (tolerance="+(float)farFieldTolerance+") sum relative errors: "+relErrTrack);
+		return csv;
+	}
+	
+	/**
+	 * Callback for batch stiffness calculations
+	 * 
+	 * @see SubSectStiffnessCalculator#calcStiffnessDistributions(Collection, StiffnessDistributionConsumer, int)
+	 */
+	public interface StiffnessDistributionConsumer {
 		
-		return new StiffnessDistribution(sourcePatches, receiverPatches, values);
+		/**
+		 * Called once for each calculated section pair. The distribution is backed by buffers which are reused for
+		 * subsequent calculations in the same thread, so any values that need to be retained must be copied before
+		 * returning. This may be called concurrently from multiple threads.
+		 * 
+		 * @param sourceID
+		 * @param receiverID
+		 * @param dist
+		 */
+		public void accept(int sourceID, int receiverID, StiffnessDistribution dist);
+	}
+	
+	/**
+	 * Calculates stiffness distributions for many section pairs at once, passing each to the given consumer.
+	 * <p>
+	 * Stiffness is not symmetric, so both directions must be calculated separately if both are requested. They do
+	 * share everything else though: pairs are grouped by the lower of the two section IDs, and each of those is
+	 * processed as a single task which looks up the patches of each section once and calculates both directions of
+	 * each pair back to back. Value arrays are reused within each thread rather than allocated for each pair.
+	 * Duplicate pairs are only calculated once.
+	 * 
+	 * @param pairs section pairs to calculate, with the source section ID as ID1 and the receiver as ID2
+	 * @param consumer consumer for each distribution
+	 * @param threads number of threads, or 1 to calculate in the current thread
+	 */
+	public void calcStiffnessDistributions(Collection<IDPairing> pairs, StiffnessDistributionConsumer consumer,
+			int threads) {
+		checkInitPatches();
+		// lower ID: higher ID: directions to calculate
+		Map<Integer, Map<Integer, Integer>> partnersForSects = new HashMap<>();
+		for (IDPairing pair : pairs) {
+			int id1 = pair.getID1();
+			int id2 = pair.getID2();
+			int lowerID = Integer.min(id1, id2);
+			Map<Integer, Integer> partners = partnersForSects.get(lowerID);
+			if (partners == null) {
+				partners = new LinkedHashMap<>();
+				partnersForSects.put(lowerID, partners);
+			}
+			int direction = id1 == lowerID ? LOWER_IS_SOURCE : LOWER_IS_RECEIVER;
+			partners.merge(Integer.max(id1, id2), direction, (d1, d2) -> d1 | d2);
+		}
+		
+		// [type][receiver][source] value buffers, keyed by dimensions. Most sections have similar patch counts, so
+		// there will only be a handful of these per thread
+		ThreadLocal<Map<Long, double[][][]>> buffers = ThreadLocal.withInitial(HashMap::new);
+		
+		List<SectPairsBatchTask> tasks = new ArrayList<>(partnersForSects.size());
+		for (Integer sectID : partnersForSects.keySet())
+			tasks.add(new SectPairsBatchTask(sectID, partnersForSects.get(sectID), consumer, buffers));
+		
+		if (threads <= 1) {
+			for (SectPairsBatchTask task : tasks)
+				task.compute();
+		} else {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(new RecursiveAction() {
+					
+					@Override
+					protected void compute() {
+						invokeAll(tasks);
+					}
+				});
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+	
+	private static final int LOWER_IS_SOURCE = 1;
+	private static final int LOWER_IS_RECEIVER = 2;
+	
+	private class SectPairsBatchTask extends RecursiveAction {
+		
+		private final int sectID;
+		private final Map<Integer, Integer> partnerDirections;
+		private final StiffnessDistributionConsumer consumer;
+		private final ThreadLocal<Map<Long, double[][][]>> buffers;
+
+		public SectPairsBatchTask(int sectID, Map<Integer, Integer> partnerDirections,
+				StiffnessDistributionConsumer consumer, ThreadLocal<Map<Long, double[][][]>> buffers) {
+			this.sectID = sectID;
+			this.partnerDirections = partnerDirections;
+			this.consumer = consumer;
+			this.buffers = buffers;
+		}
+
+		@Override
+		protected void compute() {
+			List<PatchLocation> sectPatchLocs = patchesMap.get(subSects.get(sectID));
+			Patch[] sectPatches = toPatchArray(sectPatchLocs);
+			for (Integer partnerID : partnerDirections.keySet()) {
+				int directions = partnerDirections.get(partnerID);
+				List<PatchLocation> partnerPatchLocs = patchesMap.get(subSects.get(partnerID));
+				if ((directions & LOWER_IS_SOURCE) != 0)
+					calc(sectID, sectPatchLocs, sectPatches, partnerID, partnerPatchLocs);
+				if ((directions & LOWER_IS_RECEIVER) != 0)
+					calc(partnerID, partnerPatchLocs, toPatchArray(partnerPatchLocs), sectID, sectPatchLocs);
+			}
+		}
+		
+		private void calc(int sourceID, List<PatchLocation> sourcePatchLocs, Patch[] sourcePatches,
+				int receiverID, List<PatchLocation> receiverPatches) {
+			Map<Long, double[][][]> threadBuffers = buffers.get();
+			long key = ((long)receiverPatches.size() << 32) | sourcePatches.length;
+			double[][][] values = threadBuffers.get(key);
+			if (values == null) {
+				values = new double[StiffnessType.values().length][receiverPatches.size()][sourcePatches.length];
+				threadBuffers.put(key, values);
+			}
+			calcPatchValues(sourceID, sourcePatches, receiverID, receiverPatches, values, true);
+			consumer.accept(sourceID, receiverID,
+					new StiffnessDistribution(sourcePatchLocs, receiverPatches, values));
+		}
 	}
 	
 	private double[] getSelfStiffness(int sectID, List<PatchLocation> receiverPatches) {
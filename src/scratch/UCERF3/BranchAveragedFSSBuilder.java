@@ -3,6 +3,7 @@ package scratch.UCERF3;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -10,6 +11,8 @@ import java.util.zip.ZipFile;
 import org.opensha.commons.util.DataUtils;
 import org.opensha.commons.util.ExceptionUtils;
 
+import scratch.UCERF3.FaultSystemSolutionFetcher.BranchLoader;
+import scratch.UCERF3.FaultSystemSolutionFetcher.BranchPrefetcher;
 import scratch.UCERF3.enumTreeBranches.DeformationModels;
 import scratch.UCERF3.enumTreeBranches.FaultModels;
 import scratch.UCERF3.inversion.InversionFaultSystemRupSet;
@@ -20,6 +23,7 @@ import scratch.UCERF3.logicTree.APrioriBranchWeightProvider;
 import scratch.UCERF3.logicTree.BranchWeightProvider;
 import scratch.UCERF3.logicTree.LogicTreeBranch;
 import scratch.UCERF3.logicTree.LogicTreeBranchNode;
+import scratch.UCERF3.utils.BranchRateMatrix;
 import scratch.UCERF3.utils.FaultSystemIO;
 
 import com.google.common.base.Preconditions;
@@ -38,6 +42,26 @@ public class BranchAveragedFSSBuilder {
 	@Deprecated
 	public static InversionFaultSystemSolution build(FaultSystemSolutionFetcher fetch, UCERF3PlausibilityConfig laughTest,
 			BranchWeightProvider weightProvider, FaultModels fm, List<String> branchNames) {
+		return build(fetch, null, laughTest, weightProvider, fm, branchNames);
+	}
+	
+	/**
+	 * Builds a branch averaged solution. If a branch rate matrix is supplied, rates are averaged from it rather
+	 * than being loaded for each branch (only magnitudes are loaded). Note that rates are stored as floats in the
+	 * matrix.
+	 * 
+	 * @param fetch
+	 * @param rateMatrix branch rate matrix for the branches in the given fetcher, or null
+	 * @param laughTest
+	 * @param weightProvider
+	 * @param fm
+	 * @param branchNames
+	 * @return
+	 */
+	@Deprecated
+	public static InversionFaultSystemSolution build(FaultSystemSolutionFetcher fetch, BranchRateMatrix rateMatrix,
+			UCERF3PlausibilityConfig laughTest, BranchWeightProvider weightProvider, FaultModels fm,
+			List<String> branchNames) {
 		
 		Preconditions.checkState(weightProvider instanceof APrioriBranchWeightProvider, "Currenlty only a priori branch weights" +
 				" supported as branch averaged DM, Dr, Dsr in rup set will not be consistent otherwise.");
@@ -83,29 +107,68 @@ public class BranchAveragedFSSBuilder {
 		
 		System.out.println(branches.size()+" match criteria");
 		
-		for (int i=0; i<branches.size(); i++) {
-			LogicTreeBranch branch = branches.get(i);
-			if ((i+1) % 10 == 0) {
-				System.out.println("Loading solution "+(i+1));
-				System.gc();
-			}
-			double[] subRates = fetch.getRates(branch);
-			double[] subMags = fetch.getMags(branch);
-			
-			if (rates == null) {
-				rates = new double[subRates.length];
-				mags = new double[subRates.length];
-			} else {
-				Preconditions.checkState(rates.length == subRates.length,
-						"Rupture count discrepancy between branches!");
+		BranchRateMatrix.Block rateBlock = null;
+		double[] blockWeights = null;
+		if (rateMatrix != null) {
+			rateBlock = rateMatrix.getBlock(fm);
+			Preconditions.checkState(rateBlock != null, "Rate matrix doesn't have %s", fm);
+			// weight only the matching branches
+			blockWeights = new double[rateBlock.getNumBranches()];
+			for (int i=0; i<branches.size(); i++) {
+				int index = rateBlock.getBranchIndex(branches.get(i));
+				Preconditions.checkState(index >= 0, "Rate matrix doesn't have branch %s", branches.get(i));
+				blockWeights[index] = weightsList.get(i);
 			}
-			
-			double scaledWeight = weightsList.get(i)/weightSum;
-			
-			for (int r=0; r<rates.length; r++) {
-				rates[r] += subRates[r]*scaledWeight;
-				mags[r] += subMags[r]*scaledWeight;
+		}
+		final boolean loadRates = rateBlock == null;
+		
+		// load rates/mags for upcoming branches in the background
+		BranchPrefetcher<double[][]> prefetcher = new BranchPrefetcher<double[][]>(branches,
+				new BranchLoader<double[][]>() {
+
+					@Override
+					public double[][] load(LogicTreeBranch branch) {
+						double[] rates = loadRates ? fetch.getRates(branch) : null;
+						return new double[][] { rates, fetch.getMags(branch) };
+					}
+				}, 2, 4);
+		
+		try {
+			for (int i=0; i<branches.size(); i++) {
+				LogicTreeBranch branch = branches.get(i);
+				if ((i+1) % 10 == 0) {
+					System.out.println("Loading solution "+(i+1));
+					System.gc();
+				}
+				double[][] loaded = prefetcher.get(branch);
+				double[] subRates = loaded[0];
+				double[] subMags = loaded[1];
+				
+				if (mags == null) {
+					mags = new double[subMags.length];
+					if (loadRates)
+						rates = new double[subMags.length];
+				} else {
+					Preconditions.checkState(mags.length == subMags.length,
+							"Rupture count discrepancy between branches!");
+				}
+				
+				double scaledWeight = weightsList.get(i)/weightSum;
+				
+				for (int r=0; r<mags.length; r++) {
+					if (loadRates)
+						rates[r] += subRates[r]*scaledWeight;
+					mags[r] += subMags[r]*scaledWeight;
+				}
 			}
+		} finally {
+			prefetcher.close();
+		}
+		
+		if (!loadRates) {
+			rates = rateBlock.getWeightedMean(blockWeights);
+			Preconditions.checkState(rates.length == mags.length,
+					"Rupture count discrepancy between rate matrix and branches!");
 		}
 		
 		System.out.println("Creating Branch Averaged FSS for "+weightsList.size()+" solutions!");
@@ -157,6 +220,12 @@ public class BranchAveragedFSSBuilder {
 	public static void main(String[] args) throws ZipException, IOException {
 		File file, outputFile;
 		List<String> branchNames = null;
+		// if set, average rates from a branch rate matrix file next to the compound solution (created if needed)
+		boolean useRateMatrix = false;
+		if (args.length > 0 && args[0].equals("--rate-matrix")) {
+			useRateMatrix = true;
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
 		if (args.length >= 2) {
 			file = new File(args[0]);
 			outputFile = new File(args[1]);
@@ -188,7 +257,22 @@ public class BranchAveragedFSSBuilder {
 		if (fm == null)
 			fm = FaultModels.FM3_1;
 		
-		InversionFaultSystemSolution sol = build(fetcher, laughTest, weightProvider, fm, branchNames);
+		InversionFaultSystemSolution sol;
+		if (useRateMatrix) {
+			String name = file.getName();
+			if (name.toLowerCase().endsWith(".zip"))
+				name = name.substring(0, name.length()-4);
+			File rateMatrixFile = new File(file.getAbsoluteFile().getParentFile(), name+"_rate_matrix.bin");
+			if (!rateMatrixFile.exists()) {
+				System.out.println("Writing rate matrix: "+rateMatrixFile.getAbsolutePath());
+				BranchRateMatrix.write(fetcher, weightProvider, rateMatrixFile);
+			}
+			try (BranchRateMatrix rateMatrix = BranchRateMatrix.load(rateMatrixFile)) {
+				sol = build(fetcher, rateMatrix, laughTest, weightProvider, fm, branchNames);
+			}
+		} else {
+			sol = build(fetcher, laughTest, weightProvider, fm, branchNames);
+		}
 		
 		FaultSystemIO.writeSol(sol, outputFile);
 	}
@@ -1,9 +1,12 @@
 package scratch.UCERF3;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -19,15 +22,11 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
-import org.dom4j.Document;
 import org.dom4j.DocumentException;
-import org.dom4j.Element;
 import org.opensha.commons.data.CSVFile;
 import org.opensha.commons.util.ClassUtils;
 import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.FileUtils;
-import org.opensha.commons.util.XMLUtils;
-import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
 import org.opensha.sha.faultSurface.FaultSection;
 
 import scratch.UCERF3.enumTreeBranches.DeformationModels;
@@ -49,11 +48,16 @@ import scratch.UCERF3.utils.MatrixIO;
 import scratch.UCERF3.utils.FaultSystemIO;
 import scratch.UCERF3.utils.UCERF3_DataUtils;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 
 /**
  * This class loads in a set of InversionFaultSystemSolutions from a zip file. It also has
@@ -62,6 +66,10 @@ import com.google.common.collect.Maps;
  * and deformation models, so they would only be included in the zip file once for each FM/DM
  * combination. See the javadoc for dependencyMap below for specifics of these mappings.
  * 
+ * Optionally, files which are still identical between branches after these mappings can be stored
+ * only once as content addressed blobs (named by their SHA-256 hash), with a reference table mapping
+ * the original entry names to the shared blob. See {@link #toZipFile(File, FaultSystemSolutionFetcher, boolean)}.
+ * 
  * There are also special methods for loading in individual components of a solution when you
  * only need one or two fields and don't want the overhead of loading a fault system solution.
  * 
@@ -70,12 +78,25 @@ import com.google.common.collect.Maps;
  */
 public class CompoundFaultSystemSolution extends FaultSystemSolutionFetcher {
 	
+	/**
+	 * Reference table entry name. Each line is: entryName\tblobName
+	 */
+	private static final String CONTENT_REFS_NAME = "content_references.txt";
+	private static final String CONTENT_BLOB_PREFIX = "content_";
+	
 	private ZipFile zip;
 	private List<LogicTreeBranch> branches;
+	// mapping from original entry names to shared content blobs, empty if not deduplicated
+	private Map<String, String> contentRefs;
 	
 	public CompoundFaultSystemSolution(ZipFile zip) {
 		this.zip = zip;
 		branches = Lists.newArrayList();
+		try {
+			contentRefs = loadContentRefs(zip);
+		} catch (IOException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
 		
 		Enumeration<? extends ZipEntry> zipEnum = zip.entries();
 		// need to sort to ensure consistent iteration order for parallel runs
@@ -89,9 +110,17 @@ public class CompoundFaultSystemSolution extends FaultSystemSolutionFetcher {
 				return o1.getName().compareTo(o2.getName());
 			}
 		});
+		List<String> ratesNames = Lists.newArrayList();
 		for (ZipEntry entry : entriesList)
 			if (entry.getName().endsWith("_rates.bin"))
-				branches.add(VariableLogicTreeBranch.fromFileName(entry.getName()));
+				ratesNames.add(entry.getName());
+		// rates files can also be stored as shared blobs
+		for (String name : contentRefs.keySet())
+			if (name.endsWith("_rates.bin"))
+				ratesNames.add(name);
+		Collections.sort(ratesNames);
+		for (String name : ratesNames)
+			branches.add(VariableLogicTreeBranch.fromFileName(name));
 		
 		System.out.println("Detected "+branches.size()+" branches in zip file!");
 	}
@@ -104,8 +133,8 @@ public class CompoundFaultSystemSolution extends FaultSystemSolutionFetcher {
 	@Override
 	protected InversionFaultSystemSolution fetchSolution(LogicTreeBranch branch) {
 		try {
-			Map<String, String> nameRemappings = getRemappings(branch);
-			FaultSystemSolution sol = FaultSystemIO.loadSolAsApplicable(zip, nameRemappings);
+			Map<String, String> nameRemappings = getResolvedRemappings(branch);
+			FaultSystemSolution sol = FaultSystemIO.loadSolAsApplicable(zip, nameRemappings, getEntryCache());
 			Preconditions.checkState(sol instanceof InversionFaultSystemSolution,
 					"Non IVFSS in Compound Sol?");
 			
@@ -121,10 +150,10 @@ public class CompoundFaultSystemSolution extends FaultSystemSolutionFetcher {
 	
 	public double[] loadDoubleArray(LogicTreeBranch branch, String fileName) {
 		try {
-			Map<String, String> nameRemappings = getRemappings(branch);
+			Map<String, String> nameRemappings = getResolvedRemappings(branch);
 			String remapped = nameRemappings.get(fileName);
 			if (remapped == null)
-				remapped = branch.buildFileName()+"_"+fileName;
+				remapped = resolveContentRef(branch.buildFileName()+"_"+fileName);
 			ZipEntry ratesEntry = zip.getEntry(remapped);
 			return MatrixIO.doubleArrayFromInputStream(
 					new BufferedInputStream(zip.getInputStream(ratesEntry)), ratesEntry.getSize());
@@ -135,7 +164,7 @@ public class CompoundFaultSystemSolution extends FaultSystemSolutionFetcher {
 	
 	public String getInfo(LogicTreeBranch branch) {
 		try {
-			Map<String, String> nameRemappings = getRemappings(branch);
+			Map<String, String> nameRemappings = getResolvedRemappings(branch);
 			ZipEntry infoEntry = zip.getEntry(nameRemappings.get("info.txt"));
 			StringBuilder text = new StringBuilder();
 		    String NL = System.getProperty("line.separator");
@@ -164,17 +193,15 @@ public class CompoundFaultSystemSolution extends FaultSystemSolutionFetcher {
 	}
 	
 	public List<FaultSection> getSubSects(LogicTreeBranch branch) throws DocumentException, IOException {
-		Map<String, String> nameRemappings = getRemappings(branch);
+		Map<String, String> nameRemappings = getResolvedRemappings(branch);
 		ZipEntry fsdEntry = zip.getEntry(nameRemappings.get("fault_sections.xml"));
-		Document doc = XMLUtils.loadDocument(
-				new BufferedInputStream(zip.getInputStream(fsdEntry)));
-		Element fsEl = doc.getRootElement().element(FaultSectionPrefData.XML_METADATA_NAME+"List");
-		Preconditions.checkNotNull(fsEl, "Fault sections element not found");
-		return FaultSystemIO.fsDataFromXML(fsEl);
+		List<FaultSection> sects = new ArrayList<>();
+		FaultSystemIO.fsDataFromXML(new BufferedInputStream(zip.getInputStream(fsdEntry)), sects);
+		return sects;
 	}
 	
 	public GridSourceProvider loadGridSourceProviderFile(LogicTreeBranch branch) throws DocumentException, IOException {
-		Map<String, String> nameRemappings = getRemappings(branch);
+		Map<String, String> nameRemappings = getResolvedRemappings(branch);
 		ZipEntry gridSourcesEntry = zip.getEntry(nameRemappings.get("grid_sources.xml"));
 		ZipEntry gridSourcesBinEntry = zip.getEntry(nameRemappings.get("grid_sources.bin"));
 		if (gridSourcesBinEntry == null)
@@ -255,6 +282,7 @@ public class CompoundFaultSystemSolution extends FaultSystemSolutionFetcher {
 		dependencyMap.put("sub_seismo_on_fault_mfds.bin", null);
 		dependencyMap.put("plausibility.json", buildList(FaultModels.class));
 		dependencyMap.put("cluster_ruptures.json", null);
+		dependencyMap.put("cluster_ruptures.bin", null);
 	}
 	
 	private static List<Class<? extends LogicTreeBranchNode<?>>> buildList(
@@ -269,7 +297,25 @@ public class CompoundFaultSystemSolution extends FaultSystemSolutionFetcher {
 		toZipFile(file, this);
 	}
 	
+	public void toZipFile(File file, boolean deduplicateContent) throws IOException {
+		toZipFile(file, this, deduplicateContent);
+	}
+	
 	public static void toZipFile(File file, FaultSystemSolutionFetcher fetcher) throws IOException {
+		toZipFile(file, fetcher, false);
+	}
+	
+	/**
+	 * Writes a compound zip file for all branches of the given fetcher
+	 * 
+	 * @param file
+	 * @param fetcher
+	 * @param deduplicateContent if true, identical files from different branches will be written only once as
+	 * shared content addressed blobs. Such files are smaller but can't be read by older versions of this code.
+	 * @throws IOException
+	 */
+	public static void toZipFile(File file, FaultSystemSolutionFetcher fetcher, boolean deduplicateContent)
+			throws IOException {
 		System.out.println("Making compound zip file: "+file.getName());
 		File tempDir = FileUtils.createTempDir();
 		
@@ -283,6 +329,9 @@ public class CompoundFaultSystemSolution extends FaultSystemSolutionFetcher {
 			FaultSystemIO.writeSolFilesForZip(sol, tempDir, zipFileNames, remappings);
 		}
 		
+		if (deduplicateContent)
+			deduplicateContent(tempDir, zipFileNames);
+		
 		FileUtils.createZipFile(file.getAbsolutePath(), tempDir.getAbsolutePath(), zipFileNames);
 		
 		System.out.println("Deleting temp files");
@@ -291,6 +340,102 @@ public class CompoundFaultSystemSolution extends FaultSystemSolutionFetcher {
 		System.out.println("Done saving!");
 	}
 	
+	/**
+	 * Replaces files with identical contents by a single content addressed blob, and writes the reference
+	 * table from the original names to the blobs. Unique files are left as is.
+	 * 
+	 * @param dir
+	 * @param zipFileNames
+	 * @throws IOException
+	 */
+	private static void deduplicateContent(File dir, HashSet<String> zipFileNames) throws IOException {
+		System.out.println("Deduplicating "+zipFileNames.size()+" files");
+		// sorted for consistent blob assignment
+		List<String> names = Lists.newArrayList(zipFileNames);
+		Collections.sort(names);
+		ListMultimap<String, String> hashToNames = ArrayListMultimap.create();
+		for (String name : names) {
+			File f = new File(dir, name);
+			String hash = Files.asByteSource(f).hash(Hashing.sha256()).toString();
+			// include the size as a guard against collisions with different sized files
+			hashToNames.put(hash+"_"+f.length(), name);
+		}
+		
+		Map<String, String> refs = Maps.newTreeMap();
+		int numBlobs = 0;
+		long savedBytes = 0l;
+		for (String key : hashToNames.keySet()) {
+			List<String> dups = hashToNames.get(key);
+			if (dups.size() < 2)
+				continue;
+			String first = dups.get(0);
+			String hash = key.substring(0, key.indexOf('_'));
+			int extIndex = first.lastIndexOf('.');
+			String blobName = CONTENT_BLOB_PREFIX+hash+(extIndex >= 0 ? first.substring(extIndex) : "");
+			File blobFile = new File(dir, blobName);
+			Files.move(new File(dir, first), blobFile);
+			zipFileNames.add(blobName);
+			for (String name : dups) {
+				if (!name.equals(first)) {
+					File dup = new File(dir, name);
+					Preconditions.checkState(dup.delete(), "Couldn't delete duplicate file: %s", dup);
+				}
+				zipFileNames.remove(name);
+				refs.put(name, blobName);
+			}
+			numBlobs++;
+			savedBytes += blobFile.length()*(dups.size()-1);
+		}
+		if (refs.isEmpty())
+			return;
+		
+		File refsFile = new File(dir, CONTENT_REFS_NAME);
+		BufferedWriter writer = Files.newWriter(refsFile, Charsets.UTF_8);
+		for (String name : refs.keySet())
+			writer.write(name+"\t"+refs.get(name)+"\n");
+		writer.close();
+		zipFileNames.add(CONTENT_REFS_NAME);
+		System.out.println("Replaced "+refs.size()+" duplicate files with "
+				+numBlobs+" shared blobs, saved "+(savedBytes/1024/1024)+" MB");
+	}
+	
+	private static Map<String, String> loadContentRefs(ZipFile zip) throws IOException {
+		Map<String, String> refs = Maps.newHashMap();
+		ZipEntry refsEntry = zip.getEntry(CONTENT_REFS_NAME);
+		if (refsEntry == null)
+			return refs;
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(zip.getInputStream(refsEntry), Charsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty())
+				continue;
+			int index = line.indexOf('\t');
+			Preconditions.checkState(index > 0, "Bad content reference line: %s", line);
+			refs.put(line.substring(0, index), line.substring(index+1));
+		}
+		reader.close();
+		return refs;
+	}
+	
+	private String resolveContentRef(String name) {
+		String blobName = contentRefs.get(name);
+		return blobName == null ? name : blobName;
+	}
+	
+	/**
+	 * @param branch
+	 * @return remappings for the given branch, resolved to shared content blobs where applicable
+	 */
+	private Map<String, String> getResolvedRemappings(LogicTreeBranch branch) {
+		Map<String, String> remappings = getRemappings(branch);
+		if (!contentRefs.isEmpty())
+			for (Map.Entry<String, String> entry : remappings.entrySet())
+				entry.setValue(resolveContentRef(entry.getValue()));
+		return remappings;
+	}
+	
 	private static Map<String, String> getRemappings(LogicTreeBranch branch) {
 		Map<String, String> remappings = Maps.newHashMap();
 		
@@ -3,22 +3,34 @@
  */
 package scratch.UCERF3;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.RandomAccess;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 
 import org.apache.commons.math3.stat.StatUtils;
 import org.opensha.commons.calc.FaultMomentCalc;
+import org.opensha.commons.geo.Location;
 import org.opensha.commons.geo.LocationList;
 import org.opensha.commons.geo.Region;
 import org.opensha.commons.geo.RegionUtils;
@@ -34,11 +46,12 @@ import org.opensha.sha.faultSurface.RuptureSurface;
 import org.opensha.sha.gui.infoTools.CalcProgressBar;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.HashBasedTable;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Table;
-import com.google.common.collect.Table.Cell;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 
 import scratch.UCERF3.analysis.DeformationModelsCalc;
 
@@ -61,7 +74,8 @@ public class FaultSystemRupSet implements Serializable {
 	private double[] rupAreas;
 	private double[] rupLengths;
 	private double[] sectAreas;
-	private List<List<Integer>> sectionForRups;
+	// section indices for each rupture, in compressed sparse row (CSR) form
+	private IntCSR sectionsForRups;
 	private String info;
 
 	private PlausibilityConfiguration plausibilityConfig;
@@ -178,9 +192,212 @@ public class FaultSystemRupSet implements Serializable {
 		this.sectAreas = sectAreas;
 		
 		Preconditions.checkArgument(sectionForRups.size() == numRups, "array sizes inconsistent!");
-		this.sectionForRups = sectionForRups;
+		IntCSR sectionsForRups;
+		if (sectionForRups instanceof IntCSRListView)
+			// already compact (e.g. from another rupture set or shared between branches), reuse the arrays
+			sectionsForRups = ((IntCSRListView)sectionForRups).csr;
+		else
+			sectionsForRups = IntCSR.build(sectionForRups);
+		for (int r=0; r<numRups; r++) {
+			for (int i=sectionsForRups.offsets[r]; i<sectionsForRups.offsets[r+1]; i++) {
+				int s = sectionsForRups.indices[i];
+				Preconditions.checkArgument(s >= 0 && s < numSects,
+						"Rupture %s has section index %s, but there are %s sections", r, s, numSects);
+			}
+		}
+		this.sectionsForRups = sectionsForRups;
 		
 		this.info = info;
+		
+		// (re)build derived section/parent section to rupture mappings
+		rupturesForSections = null;
+		rupturesForParentSections = null;
+		rupturesForSections = buildRupturesForSections();
+		// new caches rather than clearing, as they may be shared with other rupture sets
+		fractSectsInsideRegions = buildRegionCache();
+		fractRupsInsideRegions = buildRegionCache();
+		sectGeometryHash = null;
+		rupSectionsHash = null;
+	}
+	
+	/**
+	 * Immutable compressed sparse row (CSR) storage of a list of int lists. Values for row i are
+	 * indices[offsets[i]] through indices[offsets[i+1]-1]. Rows can optionally be keyed by a sorted array of IDs.
+	 */
+	private static class IntCSR implements Serializable {
+		
+		private final int[] keys;
+		private final int[] offsets;
+		private final int[] indices;
+		
+		private transient volatile String hash;
+		
+		public IntCSR(int[] keys, int[] offsets, int[] indices) {
+			this.keys = keys;
+			this.offsets = offsets;
+			this.indices = indices;
+		}
+		
+		/**
+		 * @return hash of the contents, computed once as this is immutable
+		 */
+		public String getHash() {
+			String hash = this.hash;
+			if (hash == null) {
+				Hasher hasher = Hashing.murmur3_128().newHasher();
+				hasher.putInt(offsets.length);
+				for (int offset : offsets)
+					hasher.putInt(offset);
+				for (int index : indices)
+					hasher.putInt(index);
+				hash = hasher.hash().toString();
+				this.hash = hash;
+			}
+			return hash;
+		}
+		
+		public static IntCSR build(List<? extends List<Integer>> lists) {
+			int[] offsets = new int[lists.size()+1];
+			for (int i=0; i<lists.size(); i++)
+				offsets[i+1] = offsets[i] + lists.get(i).size();
+			int[] indices = new int[offsets[lists.size()]];
+			for (int i=0; i<lists.size(); i++) {
+				int index = offsets[i];
+				for (int val : lists.get(i))
+					indices[index++] = val;
+			}
+			return new IntCSR(null, offsets, indices);
+		}
+		
+		/**
+		 * Reads rows written by {@link scratch.UCERF3.utils.MatrixIO#intListListToFile(List, File)} directly into
+		 * CSR arrays
+		 */
+		public static IntCSR read(InputStream is) throws IOException {
+			if (!(is instanceof BufferedInputStream))
+				is = new BufferedInputStream(is);
+			DataInputStream in = new DataInputStream(is);
+			try {
+				int size = in.readInt();
+				Preconditions.checkState(size > 0, "Size must be > 0!");
+				int[] offsets = new int[size+1];
+				// total length isn't stored, start assuming a few values per row and grow as needed
+				int[] indices = new int[size*4];
+				for (int i=0; i<size; i++) {
+					int rowSize = in.readInt();
+					Preconditions.checkState(rowSize >= 0, "Row size must be >= 0!");
+					int end = offsets[i] + rowSize;
+					if (end > indices.length)
+						indices = Arrays.copyOf(indices, Math.max(end, indices.length*2));
+					for (int j=offsets[i]; j<end; j++)
+						indices[j] = in.readInt();
+					offsets[i+1] = end;
+				}
+				if (indices.length > offsets[size])
+					indices = Arrays.copyOf(indices, offsets[size]);
+				return new IntCSR(null, offsets, indices);
+			} finally {
+				in.close();
+			}
+		}
+		
+		public int size() {
+			return offsets.length-1;
+		}
+		
+		public List<Integer> get(int row) {
+			Preconditions.checkElementIndex(row, offsets.length-1);
+			return new IntArrayView(indices, offsets[row], offsets[row+1]-offsets[row]);
+		}
+		
+		/**
+		 * @param key
+		 * @return values for the given key, or null if the key is not present or has no values
+		 */
+		public List<Integer> getForKey(int key) {
+			int row = Arrays.binarySearch(keys, key);
+			if (row < 0 || offsets[row+1] == offsets[row])
+				return null;
+			return get(row);
+		}
+	}
+	
+	/**
+	 * Read-only {@link List} view of a range of an int array, used to expose CSR data via the List API
+	 * without storing boxed values
+	 */
+	private static class IntArrayView extends AbstractList<Integer> implements RandomAccess {
+		
+		private final int[] array;
+		private final int offset;
+		private final int size;
+
+		public IntArrayView(int[] array, int offset, int size) {
+			this.array = array;
+			this.offset = offset;
+			this.size = size;
+		}
+
+		@Override
+		public Integer get(int index) {
+			Preconditions.checkElementIndex(index, size);
+			return array[offset+index];
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+	
+	/**
+	 * Read-only {@link List} view of all rows of a CSR. Rupture sets initialized with one of these share its arrays
+	 */
+	private static class IntCSRListView extends AbstractList<List<Integer>> implements RandomAccess, Serializable {
+		
+		private final IntCSR csr;
+
+		public IntCSRListView(IntCSR csr) {
+			this.csr = csr;
+		}
+
+		@Override
+		public List<Integer> get(int index) {
+			return csr.get(index);
+		}
+
+		@Override
+		public int size() {
+			return csr.size();
+		}
+	}
+	
+	/**
+	 * Converts the given rupture section indexes to a compact, immutable form. Rupture sets initialized with the
+	 * returned list share its backing arrays rather than building their own, so this can be used to share the
+	 * rupture to section mapping between rupture sets (e.g., logic tree branches) without storing boxed values.
+	 * 
+	 * @param sectionForRups
+	 * @return compact read-only copy of the given list
+	 */
+	public static List<List<Integer>> toCompactSectionIndices(List<List<Integer>> sectionForRups) {
+		if (sectionForRups instanceof IntCSRListView)
+			return sectionForRups;
+		return new IntCSRListView(IntCSR.build(sectionForRups));
+	}
+	
+	/**
+	 * Reads rupture section indexes written by {@link scratch.UCERF3.utils.MatrixIO#intListListToFile(List, File)}
+	 * directly into the compact form returned by {@link #toCompactSectionIndices(List)}, without building
+	 * intermediate lists. The stream is closed when done.
+	 * 
+	 * @param is
+	 * @return compact read-only list
+	 * @throws IOException
+	 */
+	public static List<List<Integer>> readCompactSectionIndices(InputStream is) throws IOException {
+		Preconditions.checkNotNull(is, "InputStream cannot be null!");
+		return new IntCSRListView(IntCSR.read(is));
 	}
 	
 	/**
@@ -197,16 +414,26 @@ public class FaultSystemRupSet implements Serializable {
 	}
 	
 	public void clearCache() {
-		rupturesForSectionCache.clear();
-		rupturesForParentSectionCache.clear();
-		fractRupsInsideRegions.clear();
+		rupturesForSections = null;
+		rupturesForParentSections = null;
+		fractSectsInsideRegions.invalidateAll();
+		fractRupsInsideRegions.invalidateAll();
+		sectGeometryHash = null;
+		rupSectionsHash = null;
 	}
 	
 	public void copyCacheFrom(FaultSystemRupSet rupSet) {
 		if (rupSet.getNumRuptures() != getNumRuptures() || rupSet.getNumSections() != getNumSections())
 			return;
-		rupturesForSectionCache = rupSet.rupturesForSectionCache;
-		rupturesForParentSectionCache = rupSet.rupturesForParentSectionCache;
+		IntCSR rupturesForSections = rupSet.rupturesForSections;
+		if (rupturesForSections != null)
+			this.rupturesForSections = rupturesForSections;
+		IntCSR rupturesForParentSections = rupSet.rupturesForParentSections;
+		if (rupturesForParentSections != null)
+			this.rupturesForParentSections = rupturesForParentSections;
+		// region fraction caches are keyed by section geometry (and the rupture to section mapping for ruptures), so
+		// they can be shared
+		fractSectsInsideRegions = rupSet.fractSectsInsideRegions;
 		fractRupsInsideRegions = rupSet.fractRupsInsideRegions;
 	}
 	
@@ -232,7 +459,7 @@ public class FaultSystemRupSet implements Serializable {
 	 * @return
 	 */
 	public List<List<Integer>> getSectionIndicesForAllRups() {
-		return sectionForRups;
+		return new IntCSRListView(sectionsForRups);
 	}
 	
 	/**
@@ -241,7 +468,7 @@ public class FaultSystemRupSet implements Serializable {
 	 * @return
 	 */
 	public List<Integer> getSectionsIndicesForRup(int rupIndex) {
-		return sectionForRups.get(rupIndex);
+		return sectionsForRups.get(rupIndex);
 	}
 	
 	/**
@@ -396,6 +623,9 @@ public class FaultSystemRupSet implements Serializable {
 	
 	/**
 	 * This gives the magnitude for each rth rupture
+	 * <p>
+	 * The returned array may be shared with other rupture sets (e.g., logic tree branches loaded from the same
+	 * compound solution) and must not be modified.
 	 * @return
 	 */
 	public double[] getMagForAllRups() {
@@ -429,6 +659,9 @@ public class FaultSystemRupSet implements Serializable {
 	
 	/**
 	 * This gives the average rake for all ruptures
+	 * <p>
+	 * The returned array may be shared with other rupture sets (e.g., logic tree branches loaded from the same
+	 * compound solution) and must not be modified.
 	 * @return
 	 */
 	public double[] getAveRakeForAllRups() {
@@ -445,6 +678,8 @@ public class FaultSystemRupSet implements Serializable {
 	}
 	
 	/**
+	 * The returned array may be shared with other rupture sets (e.g., logic tree branches loaded from the same
+	 * compound solution) and must not be modified.
 	 * @return Area (SI units: sq-m)
 	 */
 	public double[] getAreaForAllRups() {
@@ -460,6 +695,8 @@ public class FaultSystemRupSet implements Serializable {
 	}
 	
 	/**
+	 * The returned array may be shared with other rupture sets (e.g., logic tree branches loaded from the same
+	 * compound solution) and must not be modified.
 	 * @return Area (SI units: sq-m)
 	 */
 	public double[] getAreaForAllSections() {
@@ -548,6 +785,9 @@ public class FaultSystemRupSet implements Serializable {
 	
 	/**
 	 * This returns the length (SI units: m) of each rupture.
+	 * <p>
+	 * The returned array may be shared with other rupture sets (e.g., logic tree branches loaded from the same
+	 * compound solution) and must not be modified.
 	 * @return
 	 */
 	public double[] getLengthForAllRups() {
@@ -623,7 +863,46 @@ public class FaultSystemRupSet implements Serializable {
 		this.info = info;
 	}
 	
-	private Table<Region, Boolean, double[]> fractRupsInsideRegions = HashBasedTable.create();
+	/**
+	 * If non null, fractions of each section inside regions (see {@link #getFractSectsInsideRegion(Region, boolean)})
+	 * will be stored in this directory and reused between runs. Files are keyed by hashes of the section and region
+	 * geometry, so a single directory can be shared by all rupture sets.
+	 */
+	public static File REGION_FRACTS_CACHE_DIR = null;
+	
+	private static final int MAX_CACHED_REGIONS = 50;
+	
+	// least recently used caches of region fractions, keyed by section geometry, region geometry and trace only flag.
+	// rupture fractions are also keyed by the rupture to section mapping
+	private transient Cache<String, SectRegionFracts> fractSectsInsideRegions = buildRegionCache();
+	private transient Cache<String, double[]> fractRupsInsideRegions = buildRegionCache();
+	private transient volatile String sectGeometryHash;
+	// only used for subclasses which don't call init, otherwise the hash is stored with the rupture sections
+	private transient volatile String rupSectionsHash;
+	
+	private static <E> Cache<String, E> buildRegionCache() {
+		return CacheBuilder.newBuilder().maximumSize(MAX_CACHED_REGIONS).build();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		fractSectsInsideRegions = buildRegionCache();
+		fractRupsInsideRegions = buildRegionCache();
+	}
+	
+	/**
+	 * Fraction of each section inside a region, and the number of surface (or trace) points used for each section
+	 * which are used to weight sections when combining them into ruptures
+	 */
+	private static class SectRegionFracts {
+		private final double[] fractInside;
+		private final int[] numPts;
+		
+		private SectRegionFracts(double[] fractInside, int[] numPts) {
+			this.fractInside = fractInside;
+			this.numPts = numPts;
+		}
+	}
 	
 	/**
 	 * 
@@ -631,56 +910,228 @@ public class FaultSystemRupSet implements Serializable {
 	 * @param traceOnly
 	 * @return
 	 */
-	public double[] getFractRupsInsideRegion(Region region, boolean traceOnly) {
+	public double[] getFractRupsInsideRegion(final Region region, final boolean traceOnly) {
 		if (region == null) {
 			double[] ret = new double[getNumRuptures()];
 			for (int r=0; r<ret.length; r++)
 				ret[r] = 1d;
 			return ret;
 		}
-		if (!fractRupsInsideRegions.contains(region, traceOnly)) {
-			if (fractRupsInsideRegions.size() > 10) { // max cache size
-				Set<Cell<Region, Boolean, double[]>> cells = fractRupsInsideRegions.cellSet();
-				cells.remove(cells.iterator().next());
-			}
-			double[] fractSectsInside = new double[getNumSections()];
-			double gridSpacing=1;
-			int[] numPtsInSection = new int[getNumSections()];
-			int numRuptures = getNumRuptures();
-			
-			for(int s=0;s<getNumSections(); s++) {
-				RuptureSurface surf = getFaultSectionData(s).getFaultSurface(gridSpacing, false, true);
-				if (traceOnly) {
-					FaultTrace trace = surf.getEvenlyDiscritizedUpperEdge();
-					numPtsInSection[s] = trace.size();
-					fractSectsInside[s] = RegionUtils.getFractionInside(region, trace);
-				} else {
-					LocationList surfLocs = surf.getEvenlyDiscritizedListOfLocsOnSurface();
-					numPtsInSection[s] = surfLocs.size();
-					fractSectsInside[s] = RegionUtils.getFractionInside(region, surfLocs);
+		try {
+			String key = getRegionCacheKey(region, traceOnly)+"_"+getRupSectionsHash();
+			return fractRupsInsideRegions.get(key, new Callable<double[]>() {
+
+				@Override
+				public double[] call() {
+					final SectRegionFracts sectFracts = getSectRegionFracts(region, traceOnly);
+					final double[] fractRupsInside = new double[getNumRuptures()];
+					// area (number of points) weighted average of the fraction of each section inside
+					IntStream.range(0, fractRupsInside.length).parallel().forEach(rup -> {
+						double weightedFract = 0d;
+						int totNumPts = 0;
+						for (int s : getSectionsIndicesForRup(rup)) {
+							weightedFract += sectFracts.fractInside[s]*sectFracts.numPts[s];
+							totNumPts += sectFracts.numPts[s];
+						}
+						fractRupsInside[rup] = weightedFract/totNumPts;
+					});
+					return fractRupsInside;
 				}
-			}
-			
-			double[] fractRupsInside = new double[numRuptures];
-			
-			for(int rup=0; rup<numRuptures; rup++) {
-				List<Integer> sectionsIndicesForRup = getSectionsIndicesForRup(rup);
-				int totNumPts = 0;
-				for(Integer s:sectionsIndicesForRup) {
-					fractRupsInside[rup] += fractSectsInside[s]*numPtsInSection[s];
-					totNumPts += numPtsInSection[s];
+			});
+		} catch (ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e.getCause());
+		}
+	}
+	
+	/**
+	 * 
+	 * @param region
+	 * @param traceOnly
+	 * @return fraction of each section which is inside the given region
+	 */
+	public double[] getFractSectsInsideRegion(Region region, boolean traceOnly) {
+		Preconditions.checkNotNull(region, "Region cannot be null");
+		return Arrays.copyOf(getSectRegionFracts(region, traceOnly).fractInside, getNumSections());
+	}
+	
+	private SectRegionFracts getSectRegionFracts(final Region region, final boolean traceOnly) {
+		final String key = getRegionCacheKey(region, traceOnly);
+		try {
+			return fractSectsInsideRegions.get(key, new Callable<SectRegionFracts>() {
+
+				@Override
+				public SectRegionFracts call() {
+					File cacheFile = null;
+					if (REGION_FRACTS_CACHE_DIR != null) {
+						cacheFile = new File(REGION_FRACTS_CACHE_DIR, "sect_region_fracts_"+key+".bin");
+						SectRegionFracts fracts = readSectRegionFracts(cacheFile, getNumSections());
+						if (fracts != null)
+							return fracts;
+					}
+					SectRegionFracts fracts = calcSectRegionFracts(region, traceOnly);
+					if (cacheFile != null)
+						writeSectRegionFracts(fracts, cacheFile);
+					return fracts;
 				}
-				fractRupsInside[rup] /= totNumPts;
+			});
+		} catch (ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e.getCause());
+		}
+	}
+	
+	private SectRegionFracts calcSectRegionFracts(final Region region, final boolean traceOnly) {
+		final double[] fractSectsInside = new double[getNumSections()];
+		final double gridSpacing=1;
+		final int[] numPtsInSection = new int[getNumSections()];
+		
+		IntStream.range(0, getNumSections()).parallel().forEach(s -> {
+			RuptureSurface surf = getFaultSectionData(s).getFaultSurface(gridSpacing, false, true);
+			if (traceOnly) {
+				FaultTrace trace = surf.getEvenlyDiscritizedUpperEdge();
+				numPtsInSection[s] = trace.size();
+				fractSectsInside[s] = RegionUtils.getFractionInside(region, trace);
+			} else {
+				LocationList surfLocs = surf.getEvenlyDiscritizedListOfLocsOnSurface();
+				numPtsInSection[s] = surfLocs.size();
+				fractSectsInside[s] = RegionUtils.getFractionInside(region, surfLocs);
+			}
+		});
+		return new SectRegionFracts(fractSectsInside, numPtsInSection);
+	}
+	
+	/**
+	 * Reads cached section fractions, returning null if the file doesn't exist or is invalid
+	 */
+	private static SectRegionFracts readSectRegionFracts(File file, int numSects) {
+		if (!file.exists())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != numSects)
+				return null;
+			double[] fractInside = new double[numSects];
+			int[] numPts = new int[numSects];
+			for (int s=0; s<numSects; s++) {
+				fractInside[s] = in.readDouble();
+				numPts[s] = in.readInt();
+			}
+			return new SectRegionFracts(fractInside, numPts);
+		} catch (IOException e) {
+			System.err.println("WARNING: couldn't read region fractions cache file "+file.getAbsolutePath()
+					+": "+e.getMessage());
+			return null;
+		}
+	}
+	
+	private static void writeSectRegionFracts(SectRegionFracts fracts, File file) {
+		// write to a temporary file first so that concurrent runs never see a partial file
+		File tempFile = new File(file.getParentFile(), file.getName()+".tmp"+Thread.currentThread().getId());
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(fracts.fractInside.length);
+			for (int s=0; s<fracts.fractInside.length; s++) {
+				out.writeDouble(fracts.fractInside[s]);
+				out.writeInt(fracts.numPts[s]);
+			}
+			out.close();
+			Files.move(tempFile, file);
+		} catch (IOException e) {
+			System.err.println("WARNING: couldn't write region fractions cache file "+file.getAbsolutePath()
+					+": "+e.getMessage());
+			tempFile.delete();
+		}
+	}
+	
+	private String getRegionCacheKey(Region region, boolean traceOnly) {
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		putLocs(hasher, region.getBorder());
+		List<LocationList> interiors = region.getInteriors();
+		if (interiors != null)
+			for (LocationList interior : interiors)
+				putLocs(hasher, interior);
+		return getSectGeometryHash()+"_"+hasher.hash()+(traceOnly ? "_trace" : "_surf");
+	}
+	
+	/**
+	 * @return hash of the rupture to section mapping
+	 */
+	private String getRupSectionsHash() {
+		IntCSR csr = sectionsForRups;
+		if (csr == null) {
+			// subclass which doesn't call init, hash a compact copy
+			String hash = rupSectionsHash;
+			if (hash == null) {
+				List<List<Integer>> sectionForRups = getSectionIndicesForAllRups();
+				if (sectionForRups instanceof IntCSRListView)
+					hash = ((IntCSRListView)sectionForRups).csr.getHash();
+				else
+					hash = IntCSR.build(sectionForRups).getHash();
+				rupSectionsHash = hash;
 			}
-			fractRupsInsideRegions.put(region, traceOnly, fractRupsInside);
+			return hash;
 		}
-		return fractRupsInsideRegions.get(region, traceOnly);
+		return csr.getHash();
 	}
 	
 	/**
-	 * this caches the ruptures involving each section
+	 * @return hash of all section properties which affect the fault surfaces used for region fractions
 	 */
-	private List<List<Integer>> rupturesForSectionCache = null;
+	private String getSectGeometryHash() {
+		String hash = sectGeometryHash;
+		if (hash == null) {
+			Hasher hasher = Hashing.murmur3_128().newHasher();
+			hasher.putInt(getNumSections());
+			for (FaultSection sect : getFaultSectionDataList()) {
+				putLocs(hasher, sect.getFaultTrace());
+				hasher.putDouble(sect.getAveDip());
+				hasher.putDouble(sect.getDipDirection());
+				hasher.putDouble(sect.getOrigAveUpperDepth());
+				hasher.putDouble(sect.getReducedAveUpperDepth());
+				hasher.putDouble(sect.getAveLowerDepth());
+				hasher.putDouble(sect.getAseismicSlipFactor());
+			}
+			hash = hasher.hash().toString();
+			sectGeometryHash = hash;
+		}
+		return hash;
+	}
+	
+	private static void putLocs(Hasher hasher, LocationList locs) {
+		hasher.putInt(locs.size());
+		for (Location loc : locs) {
+			hasher.putDouble(loc.getLatitude());
+			hasher.putDouble(loc.getLongitude());
+			hasher.putDouble(loc.getDepth());
+		}
+	}
+	
+	// ruptures involving each section, in increasing order. Built from the section indices for each rupture on
+	// initialization (or on first use for subclasses which don't call init)
+	private volatile IntCSR rupturesForSections;
+	
+	private IntCSR buildRupturesForSections() {
+		CalcProgressBar p = null;
+		if (showProgress) {
+			p = new CalcProgressBar("Calculating Ruptures for each Section", "Calculating Ruptures for each Section");
+		}
+		int numSects = getNumSections();
+		int numRups = getNumRuptures();
+		// two passes: count then fill
+		int[] offsets = new int[numSects+1];
+		for (int rupID=0; rupID<numRups; rupID++)
+			for (int secID : getSectionsIndicesForRup(rupID))
+				offsets[secID+1]++;
+		for (int secID=0; secID<numSects; secID++)
+			offsets[secID+1] += offsets[secID];
+		int[] indices = new int[offsets[numSects]];
+		int[] filled = new int[numSects];
+		for (int rupID=0; rupID<numRups; rupID++) {
+			if (p != null) p.updateProgress(rupID, numRups);
+			for (int secID : getSectionsIndicesForRup(rupID))
+				indices[offsets[secID] + filled[secID]++] = rupID;
+		}
+		if (p != null) p.dispose();
+		return new IntCSR(null, offsets, indices);
+	}
 	
 	/**
 	 * This returns the a list of all ruptures that occur on each section
@@ -688,87 +1139,88 @@ public class FaultSystemRupSet implements Serializable {
 	 * @return
 	 */
 	public final List<Integer> getRupturesForSection(int secIndex) {
-		if (rupturesForSectionCache == null) {
+		IntCSR csr = rupturesForSections;
+		if (csr == null) {
 			synchronized (this) {
-				if (rupturesForSectionCache != null)
-					return rupturesForSectionCache.get(secIndex);
-				CalcProgressBar p = null;
-				if (showProgress) {
-					p = new CalcProgressBar("Calculating Ruptures for each Section", "Calculating Ruptures for each Section");
+				csr = rupturesForSections;
+				if (csr == null) {
+					csr = buildRupturesForSections();
+					rupturesForSections = csr;
 				}
-				ArrayList<List<Integer>> rupturesForSectionCache = new ArrayList<List<Integer>>();
-				for (int secID=0; secID<getNumSections(); secID++)
-					rupturesForSectionCache.add(new ArrayList<Integer>());
-
-				int numRups = getNumRuptures();
-				for (int rupID=0; rupID<numRups; rupID++) {
-					if (p != null) p.updateProgress(rupID, numRups);
-					for (int secID : getSectionsIndicesForRup(rupID)) {
-						rupturesForSectionCache.get(secID).add(rupID);
-					}
-				}
-				// now make the immutable
-				for (int i=0; i<rupturesForSectionCache.size(); i++)
-					rupturesForSectionCache.set(i, Collections.unmodifiableList(rupturesForSectionCache.get(i)));
-				this.rupturesForSectionCache = rupturesForSectionCache;
-				if (p != null) p.dispose();
 			}
 		}
-		
-		return rupturesForSectionCache.get(secIndex);
+		return csr.get(secIndex);
 	}
 	
-	/**
-	 * this caches the ruptures involving each section
-	 */
-	private Map<Integer, List<Integer>> rupturesForParentSectionCache = null;
+	// ruptures involving each parent section, in increasing order, keyed by sorted parent section IDs
+	private volatile IntCSR rupturesForParentSections;
+	
+	private IntCSR buildRupturesForParentSections() {
+		CalcProgressBar p = null;
+		if (showProgress) {
+			p = new CalcProgressBar("Calculating Ruptures for each Parent Section", "Calculating Ruptures for each Parent Section");
+		}
+		int numSects = getNumSections();
+		int numRups = getNumRuptures();
+		
+		// map each section to the index of its parent in the sorted parent ID list
+		int[] sectParents = new int[numSects];
+		for (int s=0; s<numSects; s++)
+			sectParents[s] = getFaultSectionData(s).getParentSectionId();
+		int[] parentIDs = IntStream.of(sectParents).filter(id -> id >= 0).distinct().sorted().toArray();
+		int[] sectParentIndexes = new int[numSects];
+		for (int s=0; s<numSects; s++)
+			sectParentIndexes[s] = sectParents[s] < 0 ? -1 : Arrays.binarySearch(parentIDs, sectParents[s]);
+		
+		// two passes: count then fill. a rupture is only listed once for each parent that it involves
+		int[] offsets = new int[parentIDs.length+1];
+		int[] lastRup = new int[parentIDs.length];
+		Arrays.fill(lastRup, -1);
+		for (int rupID=0; rupID<numRups; rupID++) {
+			for (int secID : getSectionsIndicesForRup(rupID)) {
+				int parentIndex = sectParentIndexes[secID];
+				if (parentIndex >= 0 && lastRup[parentIndex] != rupID) {
+					lastRup[parentIndex] = rupID;
+					offsets[parentIndex+1]++;
+				}
+			}
+		}
+		for (int i=0; i<parentIDs.length; i++)
+			offsets[i+1] += offsets[i];
+		int[] indices = new int[offsets[parentIDs.length]];
+		int[] filled = new int[parentIDs.length];
+		Arrays.fill(lastRup, -1);
+		for (int rupID=0; rupID<numRups; rupID++) {
+			if (p != null) p.updateProgress(rupID, numRups);
+			for (int secID : getSectionsIndicesForRup(rupID)) {
+				int parentIndex = sectParentIndexes[secID];
+				if (parentIndex >= 0 && lastRup[parentIndex] != rupID) {
+					lastRup[parentIndex] = rupID;
+					indices[offsets[parentIndex] + filled[parentIndex]++] = rupID;
+				}
+			}
+		}
+		if (p != null) p.dispose();
+		return new IntCSR(parentIDs, offsets, indices);
+	}
 	
 	/**
 	 * This returns the a list of all ruptures that occur on each parent section
 	 * @param secIndex
-	 * @return
+	 * @return list of ruptures, or null if no ruptures involve the given parent section
 	 */
 	public final List<Integer> getRupturesForParentSection(int parentSectID) {
-		if (rupturesForParentSectionCache == null) {
+		IntCSR csr = rupturesForParentSections;
+		if (csr == null) {
 			synchronized (this) {
-				if (rupturesForParentSectionCache != null)
-					return rupturesForParentSectionCache.get(parentSectID);
-				CalcProgressBar p = null;
-				if (showProgress) {
-					p = new CalcProgressBar("Calculating Ruptures for each Parent Section", "Calculating Ruptures for each Parent Section");
+				csr = rupturesForParentSections;
+				if (csr == null) {
+					csr = buildRupturesForParentSections();
+					rupturesForParentSections = csr;
 				}
-				// note this assumes that sections are in order
-				rupturesForParentSectionCache = Maps.newConcurrentMap();
-
-				int numRups = getNumRuptures();
-				for (int rupID=0; rupID<numRups; rupID++) {
-					if (p != null) p.updateProgress(rupID, numRups);
-					HashSet<Integer> parents = new HashSet<Integer>();
-					for (int secID : getSectionsIndicesForRup(rupID)) {
-						int parent = getFaultSectionData(secID).getParentSectionId();
-						if (parent < 0)
-							continue;
-						if (!parents.contains(parent))
-							parents.add(parent);
-					}
-					for (int parent : parents) {
-						List<Integer> rupsForParent = rupturesForParentSectionCache.get(parent);
-						if (rupsForParent == null) {
-							rupsForParent = new ArrayList<Integer>();
-							rupturesForParentSectionCache.put(parent, rupsForParent);
-						}
-						rupsForParent.add(rupID);
-					}
-				}
-				
-				// now make the immutable
-				for (Integer key : rupturesForParentSectionCache.keySet())
-					rupturesForParentSectionCache.put(key, Collections.unmodifiableList(rupturesForParentSectionCache.get(key)));
-				if (p != null) p.dispose();
 			}
 		}
-		
-		return rupturesForParentSectionCache.get(parentSectID);
+		return csr.getForKey(parentSectID);
 	}
 	
 	public final List<Integer> getParentSectionsForRup(int rupIndex) {
@@ -1,16 +1,31 @@
 package scratch.UCERF3;
 
+import java.io.Closeable;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import org.opensha.commons.util.ExceptionUtils;
 
 import scratch.UCERF3.enumTreeBranches.FaultModels;
 import scratch.UCERF3.inversion.InversionFaultSystemSolution;
 import scratch.UCERF3.logicTree.LogicTreeBranch;
 import scratch.UCERF3.logicTree.LogicTreeBranchNode;
 
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -26,6 +41,11 @@ public abstract class FaultSystemSolutionFetcher implements Iterable<InversionFa
 	// this is for copying caches from previous rup sets of the same fault model
 	private Map<FaultModels, FaultSystemRupSet> rupSetCacheMap = Maps.newHashMap();
 	
+	private boolean entryInterning = true;
+	// decoded data shared between branches, keyed by (content addressed) entry name. soft values so that this
+	// never prevents data from being garbage collected when memory is needed
+	private Cache<String, Object> entryCache = CacheBuilder.newBuilder().softValues().build();
+	
 	public abstract Collection<LogicTreeBranch> getBranches();
 	
 	protected abstract InversionFaultSystemSolution fetchSolution(LogicTreeBranch branch);
@@ -60,6 +80,30 @@ public abstract class FaultSystemSolutionFetcher implements Iterable<InversionFa
 	public void setCacheCopying(boolean cacheCopying) {
 		this.cacheCopying = cacheCopying;
 	}
+	
+	/**
+	 * @return cache of decoded data which implementations should use to share identical (immutable) data between
+	 * branches, or null if interning is disabled
+	 */
+	protected Cache<String, Object> getEntryCache() {
+		return entryInterning ? entryCache : null;
+	}
+
+	public boolean isEntryInterningEnabled() {
+		return entryInterning;
+	}
+
+	/**
+	 * Enables or disables sharing of identical decoded data (e.g., magnitudes, areas and rupture sections) between
+	 * solutions for different branches. Disabling this also clears any shared data.
+	 * 
+	 * @param entryInterning
+	 */
+	public void setEntryInterning(boolean entryInterning) {
+		this.entryInterning = entryInterning;
+		if (!entryInterning)
+			entryCache.invalidateAll();
+	}
 
 	@Override
 	public Iterator<InversionFaultSystemSolution> iterator() {
@@ -84,6 +128,249 @@ public abstract class FaultSystemSolutionFetcher implements Iterable<InversionFa
 		};
 	}
 	
+	/**
+	 * Loads data (e.g., a solution or some of its arrays) for a single logic tree branch
+	 *
+	 * @param <E>
+	 */
+	public interface BranchLoader<E> {
+		public E load(LogicTreeBranch branch) throws Exception;
+	}
+	
+	/**
+	 * Loads data for branches ahead of the consumer on a pool of decode threads, so that zip seeks and
+	 * decompression overlap with processing. Branches are prefetched in the given order, starting after the most
+	 * recently requested branch. At most maxQueued loaded but not yet requested results are held at once
+	 * (back-pressure). If a memory budget is supplied, this is further limited to the number of results which fit
+	 * in the budget, based on the average estimated size of results loaded so far (only a single result is
+	 * prefetched until the first size is known).
+	 * <p>
+	 * Prefetching only helps if branches are requested in (roughly) the given order; consumers which process
+	 * branches in an unknown order should not use this.
+	 * <p>
+	 * Branches which are requested out of order, or which were already requested, are loaded on the calling
+	 * thread. All methods are thread safe, and idle decode threads exit on their own, so closing is only
+	 * necessary to abandon prefetched data early.
+	 *
+	 * @param <E>
+	 */
+	public static class BranchPrefetcher<E> implements Closeable, Iterable<Map.Entry<LogicTreeBranch, E>> {
+		
+		private final List<LogicTreeBranch> branches;
+		private final Map<LogicTreeBranch, Integer> indexes;
+		private final BranchLoader<E> loader;
+		private final int maxQueued;
+		private final long memoryBudget;
+		private final ToLongFunction<? super E> sizeEstimator;
+		private final ThreadPoolExecutor exec;
+		
+		// prefetched (or in progress) results, keyed by branch index
+		private final Map<Integer, Future<E>> futures = Maps.newHashMap();
+		private int nextSubmit = 0;
+		private boolean closed = false;
+		
+		// running total of estimated result sizes, for the memory budget
+		private long totalSize = 0l;
+		private int numSized = 0;
+		
+		/**
+		 * @param branches branches in the order in which they will (typically) be requested
+		 * @param loader
+		 * @param decodeThreads number of threads used for loading
+		 * @param maxQueued maximum number of loaded results not yet requested
+		 */
+		public BranchPrefetcher(Collection<LogicTreeBranch> branches, BranchLoader<E> loader,
+				int decodeThreads, int maxQueued) {
+			this(branches, loader, decodeThreads, maxQueued, 0l, null);
+		}
+		
+		/**
+		 * @param branches branches in the order in which they will (typically) be requested
+		 * @param loader
+		 * @param decodeThreads number of threads used for loading
+		 * @param maxQueued maximum number of loaded results not yet requested
+		 * @param memoryBudget maximum estimated size in bytes of loaded results not yet requested, or 0 for no limit
+		 * @param sizeEstimator estimates the size in bytes of a loaded result, required if memoryBudget > 0
+		 */
+		public BranchPrefetcher(Collection<LogicTreeBranch> branches, BranchLoader<E> loader,
+				int decodeThreads, int maxQueued, long memoryBudget, ToLongFunction<? super E> sizeEstimator) {
+			Preconditions.checkArgument(decodeThreads > 0, "Must have at least one decode thread");
+			Preconditions.checkArgument(maxQueued > 0, "Must allow at least one queued branch");
+			Preconditions.checkArgument(memoryBudget >= 0l, "Memory budget can't be negative");
+			Preconditions.checkArgument(memoryBudget == 0l || sizeEstimator != null,
+					"Must supply a size estimator with a memory budget");
+			this.memoryBudget = memoryBudget;
+			this.sizeEstimator = sizeEstimator;
+			this.branches = Lists.newArrayList(branches);
+			this.indexes = Maps.newHashMap();
+			for (int i=0; i<this.branches.size(); i++)
+				indexes.putIfAbsent(this.branches.get(i), i);
+			this.loader = loader;
+			this.maxQueued = maxQueued;
+			exec = new ThreadPoolExecutor(decodeThreads, decodeThreads, 10l, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						
+						private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+						
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = defaultFactory.newThread(r);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			exec.allowCoreThreadTimeOut(true);
+		}
+		
+		/**
+		 * Returns data for the given branch, blocking until it has been loaded, and schedules upcoming branches
+		 * to be prefetched.
+		 * 
+		 * @param branch
+		 * @return
+		 */
+		public E get(LogicTreeBranch branch) {
+			Integer index = indexes.get(branch);
+			Preconditions.checkArgument(index != null, "Unknown branch: %s", branch);
+			Future<E> future;
+			synchronized (this) {
+				Preconditions.checkState(!closed, "Prefetcher has been closed");
+				future = futures.remove(index);
+				// drop anything far behind this branch, it's likely not going to be requested
+				Iterator<Integer> it = futures.keySet().iterator();
+				while (it.hasNext()) {
+					int prevIndex = it.next();
+					if (prevIndex < index - maxQueued) {
+						futures.get(prevIndex).cancel(false);
+						it.remove();
+					}
+				}
+				if (nextSubmit <= index)
+					nextSubmit = index+1;
+				int limit = getQueueLimit();
+				while (futures.size() < limit && nextSubmit < branches.size()) {
+					final LogicTreeBranch next = branches.get(nextSubmit);
+					futures.put(nextSubmit++, exec.submit(new Callable<E>() {
+
+						@Override
+						public E call() throws Exception {
+							return loader.load(next);
+						}
+					}));
+				}
+			}
+			try {
+				E result = future == null ? loader.load(branch) : future.get();
+				if (memoryBudget > 0l && result != null) {
+					long size = sizeEstimator.applyAsLong(result);
+					synchronized (this) {
+						totalSize += size;
+						numSized++;
+					}
+				}
+				return result;
+			} catch (ExecutionException e) {
+				throw ExceptionUtils.asRuntimeException(e.getCause());
+			} catch (Exception e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
+		
+		private int getQueueLimit() {
+			if (memoryBudget == 0l)
+				return maxQueued;
+			if (numSized == 0)
+				return 1;
+			long aveSize = Long.max(1l, totalSize/numSized);
+			return (int)Long.max(1l, Long.min(maxQueued, memoryBudget/aveSize));
+		}
+		
+		/**
+		 * @return iterator over all branches and their data, in order. Data for previous branches is not retained.
+		 */
+		@Override
+		public Iterator<Map.Entry<LogicTreeBranch, E>> iterator() {
+			final Iterator<LogicTreeBranch> branchIt = branches.iterator();
+			return new Iterator<Map.Entry<LogicTreeBranch,E>>() {
+
+				@Override
+				public boolean hasNext() {
+					return branchIt.hasNext();
+				}
+
+				@Override
+				public Map.Entry<LogicTreeBranch, E> next() {
+					LogicTreeBranch branch = branchIt.next();
+					return Maps.immutableEntry(branch, get(branch));
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException("Not supported by this iterator");
+				}
+			};
+		}
+		
+		/**
+		 * Cancels all outstanding loads and discards prefetched data
+		 */
+		@Override
+		public synchronized void close() {
+			closed = true;
+			for (Future<E> future : futures.values())
+				future.cancel(true);
+			futures.clear();
+			exec.shutdownNow();
+		}
+	}
+	
+	/**
+	 * @param decodeThreads
+	 * @param maxQueued
+	 * @param memoryBudget maximum estimated size in bytes of prefetched solutions, or 0 for no limit
+	 * @return prefetcher for solutions of all branches in this fetcher, in order
+	 * @see BranchPrefetcher
+	 * @see #estimateSolutionSize(FaultSystemSolution)
+	 */
+	public BranchPrefetcher<InversionFaultSystemSolution> getPrefetcher(int decodeThreads, int maxQueued,
+			long memoryBudget) {
+		return new BranchPrefetcher<InversionFaultSystemSolution>(getBranches(),
+				new BranchLoader<InversionFaultSystemSolution>() {
+
+					@Override
+					public InversionFaultSystemSolution load(LogicTreeBranch branch) {
+						return getSolution(branch);
+					}
+				}, decodeThreads, maxQueued, memoryBudget, FaultSystemSolutionFetcher::estimateSolutionSize);
+	}
+	
+	// rough size of a fault section including its trace and metadata, in bytes
+	private static final long EST_BYTES_PER_SECTION = 2048l;
+	
+	/**
+	 * Rough estimate of the memory used by the given solution: the rupture rates, rupture and section data arrays,
+	 * rupture to section mappings and fault sections. Data shared between branches (see
+	 * {@link #setEntryInterning(boolean)}) is counted in full, so this errs on the side of overestimating.
+	 * 
+	 * @param sol
+	 * @return estimated size in bytes
+	 */
+	public static long estimateSolutionSize(FaultSystemSolution sol) {
+		FaultSystemRupSet rupSet = sol.getRupSet();
+		long numRups = rupSet.getNumRuptures();
+		long numSects = rupSet.getNumSections();
+		long numRupSects = 0l;
+		for (List<Integer> sects : rupSet.getSectionIndicesForAllRups())
+			numRupSects += sects.size();
+		// rates, mags, rakes, areas and lengths
+		long size = 5l*8l*numRups;
+		// section indices for each rupture and ruptures for each section, as CSR int arrays
+		size += 2l*4l*(numRups + numSects + numRupSects);
+		// section slip rates, std devs and areas, plus the sections themselves
+		size += numSects*(3l*8l + EST_BYTES_PER_SECTION);
+		return size;
+	}
+	
 	public static double calcScaledAverage(double[] vals, double[] weights) {
 		if (vals.length == 1)
 			return vals[0];
@@ -143,6 +430,63 @@ public abstract class FaultSystemSolutionFetcher implements Iterable<InversionFa
 		return getSubsetSample(fetch, branches);
 	}
 	
+	/**
+	 * Fetcher which loads solutions for upcoming branches in the background, see
+	 * {@link FaultSystemSolutionFetcher#getPrefetching(FaultSystemSolutionFetcher, int, int, long)}. Should be
+	 * closed when done to discard any unused prefetched solutions.
+	 */
+	public static class PrefetchingFetcher extends FaultSystemSolutionFetcher implements Closeable {
+		
+		private final FaultSystemSolutionFetcher fetch;
+		private final BranchPrefetcher<InversionFaultSystemSolution> prefetcher;
+
+		private PrefetchingFetcher(final FaultSystemSolutionFetcher fetch, int decodeThreads, int maxQueued,
+				long memoryBudget) {
+			this.fetch = fetch;
+			this.prefetcher = new BranchPrefetcher<InversionFaultSystemSolution>(fetch.getBranches(),
+					new BranchLoader<InversionFaultSystemSolution>() {
+
+						@Override
+						public InversionFaultSystemSolution load(LogicTreeBranch branch) {
+							return fetch.fetchSolution(branch);
+						}
+					}, decodeThreads, maxQueued, memoryBudget, FaultSystemSolutionFetcher::estimateSolutionSize);
+		}
+
+		@Override
+		public Collection<LogicTreeBranch> getBranches() {
+			return fetch.getBranches();
+		}
+
+		@Override
+		protected InversionFaultSystemSolution fetchSolution(LogicTreeBranch branch) {
+			return prefetcher.get(branch);
+		}
+
+		@Override
+		public void close() {
+			prefetcher.close();
+		}
+	}
+	
+	/**
+	 * Wraps the given fetcher such that solutions for upcoming branches (in the order returned by
+	 * {@link #getBranches()}) are loaded in the background as solutions are requested. This is only useful for
+	 * (possibly multithreaded) consumers which request branches in that order.
+	 * 
+	 * @param fetch
+	 * @param decodeThreads number of threads used for loading
+	 * @param maxQueued maximum number of prefetched solutions held at once
+	 * @param memoryBudget maximum estimated size in bytes of prefetched solutions, or 0 for no limit
+	 * @return
+	 * @see BranchPrefetcher
+	 * @see #estimateSolutionSize(FaultSystemSolution)
+	 */
+	public static PrefetchingFetcher getPrefetching(
+			final FaultSystemSolutionFetcher fetch, int decodeThreads, int maxQueued, long memoryBudget) {
+		return new PrefetchingFetcher(fetch, decodeThreads, maxQueued, memoryBudget);
+	}
+	
 	public static FaultSystemSolutionFetcher getSubsetSample(
 			final FaultSystemSolutionFetcher fetch, final List<LogicTreeBranch> branches) {
 		return new FaultSystemSolutionFetcher() {
@@ -119,6 +119,7 @@ import scratch.UCERF3.CompoundFaultSystemSolution;
 import scratch.UCERF3.FaultSystemRupSet;
 import scratch.UCERF3.FaultSystemSolution;
 import scratch.UCERF3.FaultSystemSolutionFetcher;
+import scratch.UCERF3.FaultSystemSolutionFetcher.PrefetchingFetcher;
 import scratch.UCERF3.enumTreeBranches.DeformationModels;
 import scratch.UCERF3.enumTreeBranches.FaultModels;
 import scratch.UCERF3.enumTreeBranches.InversionModels;
@@ -9147,6 +9148,25 @@ public abstract class CompoundFSSPlots implements Serializable {
 	 * @author kevin
 	 *
 	 */
+	/**
+	 * Hands out branches, and their indexes, in a fixed order to tasks as they start. This makes the order in which
+	 * solutions are requested known regardless of how tasks are scheduled, so that they can be prefetched.
+	 */
+	private static class OrderedBranchSource {
+		
+		private final List<LogicTreeBranch> branches;
+		private int nextIndex = 0;
+		
+		public OrderedBranchSource(Collection<LogicTreeBranch> branches) {
+			this.branches = Lists.newArrayList(branches);
+		}
+		
+		public synchronized int nextIndex() {
+			Preconditions.checkState(nextIndex < branches.size(), "No branches left");
+			return nextIndex++;
+		}
+	}
+
 	protected static class PlotSolComputeTask implements Task {
 
 		private Collection<CompoundFSSPlots> plots;
@@ -9155,6 +9175,8 @@ public abstract class CompoundFSSPlots implements Serializable {
 		private boolean mpj;
 		private FaultSystemSolutionERF erf;
 		private int index;
+		// if non null, the branch and index are assigned from this when computed
+		private OrderedBranchSource branchSource;
 		
 		private long overheadMillis;
 
@@ -9164,6 +9186,12 @@ public abstract class CompoundFSSPlots implements Serializable {
 			this(plots, fetcher, branch, false, index);
 		}
 
+		private PlotSolComputeTask(Collection<CompoundFSSPlots> plots,
+				FaultSystemSolutionFetcher fetcher, OrderedBranchSource branchSource) {
+			this(plots, fetcher, null, false, -1);
+			this.branchSource = branchSource;
+		}
+
 		public PlotSolComputeTask(Collection<CompoundFSSPlots> plots,
 				FaultSystemSolutionFetcher fetcher, LogicTreeBranch branch,
 				boolean mpj, int index) {
@@ -9190,6 +9218,10 @@ public abstract class CompoundFSSPlots implements Serializable {
 
 		@Override
 		public void compute() {
+			if (branchSource != null) {
+				index = branchSource.nextIndex();
+				branch = branchSource.branches.get(index);
+			}
 			try {
 				Stopwatch overheadWatch = Stopwatch.createStarted();
 				debug("Fetching solution for branch: "+branch);
@@ -9263,13 +9295,20 @@ public abstract class CompoundFSSPlots implements Serializable {
 	 */
 	public static void batchPlot(Collection<CompoundFSSPlots> plots,
 			FaultSystemSolutionFetcher fetcher, int threads) {
+		
+		// load upcoming solutions in the background so that compute threads aren't waiting on zip I/O. tasks
+		// take branches in order as they start (rather than each task being bound to a branch), so the order in
+		// which solutions are requested is known. prefetched solutions are limited to a quarter of the free heap
+		int decodeThreads = Math.max(1, threads/4);
+		Runtime rt = Runtime.getRuntime();
+		long memoryBudget = Long.max(1l, (rt.maxMemory() - (rt.totalMemory() - rt.freeMemory()))/4);
+		OrderedBranchSource branchSource = new OrderedBranchSource(fetcher.getBranches());
+		PrefetchingFetcher prefetching = FaultSystemSolutionFetcher.getPrefetching(
+				fetcher, decodeThreads, threads, memoryBudget);
 
 		List<Task> tasks = Lists.newArrayList();
-		int index = 0;
-		for (LogicTreeBranch branch : fetcher.getBranches()) {
-			tasks.add(new PlotSolComputeTask(plots, fetcher, branch,
-					index++));
-		}
+		for (int i=0; i<branchSource.branches.size(); i++)
+			tasks.add(new PlotSolComputeTask(plots, prefetching, branchSource));
 
 		System.out.println("Making " + plots.size() + " plot(s) with "
 				+ tasks.size() + " branches");
@@ -9279,6 +9318,8 @@ public abstract class CompoundFSSPlots implements Serializable {
 			comp.computeThreaded(threads);
 		} catch (InterruptedException e) {
 			ExceptionUtils.throwAsRuntimeException(e);
+		} finally {
+			prefetching.close();
 		}
 		
 		for (CompoundFSSPlots plot : plots)
@@ -0,0 +1,845 @@
+package scratch.UCERF3.erf.ETAS;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import org.opensha.commons.data.function.HistogramFunction;
+import org.opensha.commons.util.ExceptionUtils;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.FaultSystemRupSet;
+import scratch.UCERF3.erf.utils.ProbabilityModelsCalc;
+
+/**
+ * Single pass, memory bounded aggregation framework for large sets of ETAS catalogs. Statistics are computed by
+ * {@link CatalogAccumulator}s which see each catalog exactly once and can be merged, so that a catalog set can be
+ * streamed from disk (e.g. with {@link ETAS_CatalogIO#getBinaryCatalogsIterable(File, double)}) and processed
+ * in parallel without ever holding more than a bounded number of catalogs in memory.
+ * <p>
+ * Accumulators are built on a few mergeable, fixed memory data structures: {@link QuantileSketch} for distributions
+ * of magnitudes and times, {@link CountMinSketch} for section participation counts, and {@link FixedBinHistogram}.
+ */
+public class ETAS_CatalogAggregation {
+
+	/**
+	 * Statistic computed in a single pass over a set of catalogs. Implementations need not be thread safe;
+	 * each thread gets its own copy via {@link #newEmptyCopy()} and copies are combined with
+	 * {@link #merge(CatalogAccumulator)} at the end.
+	 */
+	public interface CatalogAccumulator {
+
+		/**
+		 * Processes the given catalog
+		 * @param catalog
+		 */
+		public void processCatalog(List<ETAS_EqkRupture> catalog);
+
+		/**
+		 * @return a new empty accumulator with the same configuration as this one
+		 */
+		public CatalogAccumulator newEmptyCopy();
+
+		/**
+		 * Merges the results of the given accumulator (which will be a copy created by {@link #newEmptyCopy()})
+		 * into this one
+		 * @param other
+		 */
+		public void merge(CatalogAccumulator other);
+	}
+
+	/**
+	 * Processes all catalogs with the given accumulators in a single pass. Catalogs are read from the iterable on
+	 * the calling thread and handed off to worker threads through a bounded queue, so at most
+	 * queueSize + numThreads catalogs are in memory at any time.
+	 *
+	 * @param catalogs catalogs to process, ideally a streaming iterable
+	 * @param numThreads number of worker threads
+	 * @param queueSize maximum number of catalogs loaded but not yet processed
+	 * @param accumulators accumulators which will be populated
+	 * @return number of catalogs processed
+	 */
+	public static int aggregate(Iterable<? extends List<ETAS_EqkRupture>> catalogs, int numThreads, int queueSize,
+			List<? extends CatalogAccumulator> accumulators) {
+		Preconditions.checkArgument(numThreads > 0, "Must have at least 1 thread");
+		Preconditions.checkArgument(queueSize > 0, "Queue size must be positive");
+		Preconditions.checkArgument(!accumulators.isEmpty(), "Must supply at least one accumulator");
+
+		if (numThreads == 1) {
+			int count = 0;
+			for (List<ETAS_EqkRupture> catalog : catalogs) {
+				for (CatalogAccumulator accumulator : accumulators)
+					accumulator.processCatalog(catalog);
+				count++;
+			}
+			return count;
+		}
+
+		BlockingQueue<List<ETAS_EqkRupture>> queue = new ArrayBlockingQueue<>(queueSize);
+		// sentinel to signal the end of the catalogs
+		List<ETAS_EqkRupture> end = new ArrayList<>();
+
+		List<List<CatalogAccumulator>> threadAccumulators = new ArrayList<>();
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t=0; t<numThreads; t++) {
+			List<CatalogAccumulator> myAccumulators = new ArrayList<>();
+			for (CatalogAccumulator accumulator : accumulators)
+				myAccumulators.add(accumulator.newEmptyCopy());
+			threadAccumulators.add(myAccumulators);
+			futures.add(exec.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							List<ETAS_EqkRupture> catalog = queue.take();
+							if (catalog == end) {
+								// put it back for the other threads
+								queue.put(end);
+								break;
+							}
+							for (CatalogAccumulator accumulator : myAccumulators)
+								accumulator.processCatalog(catalog);
+						}
+					} catch (InterruptedException e) {
+						throw ExceptionUtils.asRuntimeException(e);
+					}
+				}
+			}));
+		}
+
+		int count = 0;
+		try {
+			Iterator<? extends List<ETAS_EqkRupture>> it = catalogs.iterator();
+			while (it.hasNext()) {
+				offer(queue, it.next(), futures);
+				count++;
+			}
+			offer(queue, end, futures);
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			if (e instanceof ExecutionException)
+				throw ExceptionUtils.asRuntimeException(e.getCause());
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			// no-op if all workers finished normally, otherwise makes sure that they don't wait on the queue forever
+			exec.shutdownNow();
+		}
+
+		for (List<CatalogAccumulator> myAccumulators : threadAccumulators)
+			for (int i=0; i<accumulators.size(); i++)
+				accumulators.get(i).merge(myAccumulators.get(i));
+
+		return count;
+	}
+
+	/**
+	 * Adds the given catalog to the queue, checking for worker failures while waiting so that we never block forever
+	 * on a full queue if all workers have died
+	 */
+	private static void offer(BlockingQueue<List<ETAS_EqkRupture>> queue, List<ETAS_EqkRupture> catalog,
+			List<Future<?>> futures) throws InterruptedException, ExecutionException {
+		while (!queue.offer(catalog, 1, TimeUnit.SECONDS)) {
+			boolean allDone = true;
+			for (Future<?> future : futures) {
+				if (future.isDone())
+					// will throw if it failed
+					future.get();
+				else
+					allDone = false;
+			}
+			Preconditions.checkState(!allDone, "All aggregation workers exited before the end of the catalogs");
+		}
+	}
+
+	/**
+	 * Mergeable quantile sketch with bounded relative error (in the style of DDSketch). Values are assigned to
+	 * logarithmically spaced buckets such that any quantile returned is within the relative accuracy of the true
+	 * value. Memory depends only on the log of the range of values, not the number of values. Only non-negative
+	 * values are supported, and values below {@link #MIN_INDEXABLE} are tracked as zero.
+	 */
+	public static class QuantileSketch {
+
+		public static final double MIN_INDEXABLE = 1e-12;
+
+		private final double relativeAccuracy;
+		private final double gamma;
+		private final double logGamma;
+
+		private long[] counts;
+		private int offset;
+		private long zeroCount;
+		private long count;
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+
+		/**
+		 * @param relativeAccuracy relative accuracy of returned quantiles, e.g. 0.01 for 1%
+		 */
+		public QuantileSketch(double relativeAccuracy) {
+			Preconditions.checkArgument(relativeAccuracy > 0 && relativeAccuracy < 1,
+					"Relative accuracy must be in (0,1): %s", relativeAccuracy);
+			this.relativeAccuracy = relativeAccuracy;
+			this.gamma = (1d + relativeAccuracy)/(1d - relativeAccuracy);
+			this.logGamma = Math.log(gamma);
+		}
+
+		private int index(double value) {
+			return (int)Math.ceil(Math.log(value)/logGamma);
+		}
+
+		private double value(int index) {
+			return 2d*Math.pow(gamma, index)/(gamma + 1d);
+		}
+
+		private void ensureCapacity(int minIndex, int maxIndex) {
+			if (counts == null) {
+				counts = new long[maxIndex - minIndex + 1];
+				offset = minIndex;
+				return;
+			}
+			int curMax = offset + counts.length - 1;
+			if (minIndex >= offset && maxIndex <= curMax)
+				return;
+			int newMin = Integer.min(minIndex, offset);
+			int newMax = Integer.max(maxIndex, curMax);
+			// grow with some padding to avoid frequent copies
+			int pad = Integer.max(8, (newMax - newMin)/4);
+			if (newMin < offset)
+				newMin -= pad;
+			if (newMax > curMax)
+				newMax += pad;
+			long[] newCounts = new long[newMax - newMin + 1];
+			System.arraycopy(counts, 0, newCounts, offset - newMin, counts.length);
+			counts = newCounts;
+			offset = newMin;
+		}
+
+		public void add(double value) {
+			add(value, 1l);
+		}
+
+		public void add(double value, long num) {
+			Preconditions.checkArgument(value >= 0d, "Only non-negative values are supported: %s", value);
+			if (value < MIN_INDEXABLE) {
+				zeroCount += num;
+			} else {
+				int index = index(value);
+				ensureCapacity(index, index);
+				counts[index - offset] += num;
+			}
+			count += num;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		public void merge(QuantileSketch other) {
+			Preconditions.checkArgument((float)relativeAccuracy == (float)other.relativeAccuracy,
+					"Can't merge sketches with different relative accuracies");
+			if (other.count == 0l)
+				return;
+			if (other.counts != null) {
+				ensureCapacity(other.offset, other.offset + other.counts.length - 1);
+				for (int i=0; i<other.counts.length; i++)
+					counts[other.offset + i - offset] += other.counts[i];
+			}
+			zeroCount += other.zeroCount;
+			count += other.count;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMin() {
+			return count == 0l ? Double.NaN : min;
+		}
+
+		public double getMax() {
+			return count == 0l ? Double.NaN : max;
+		}
+
+		public double getRelativeAccuracy() {
+			return relativeAccuracy;
+		}
+
+		/**
+		 * @param quantile quantile in [0,1]
+		 * @return approximate value at the given quantile, or NaN if empty
+		 */
+		public double getQuantile(double quantile) {
+			Preconditions.checkArgument(quantile >= 0d && quantile <= 1d, "Quantile must be in [0,1]: %s", quantile);
+			if (count == 0l)
+				return Double.NaN;
+			if (quantile == 0d)
+				return min;
+			if (quantile == 1d)
+				return max;
+			double rank = quantile*(count - 1);
+			long cumulative = zeroCount;
+			if (cumulative > rank)
+				return 0d;
+			for (int i=0; i<counts.length; i++) {
+				cumulative += counts[i];
+				if (cumulative > rank)
+					return Math.max(min, Math.min(max, value(offset + i)));
+			}
+			return max;
+		}
+
+		/**
+		 * @param value
+		 * @return approximate fraction of values &le; the given value
+		 */
+		public double getCDF(double value) {
+			if (count == 0l)
+				return Double.NaN;
+			long cumulative = zeroCount;
+			if (value >= MIN_INDEXABLE && counts != null) {
+				int maxIndex = index(value);
+				for (int i=0; i<counts.length && offset + i <= maxIndex; i++)
+					cumulative += counts[i];
+			}
+			return (double)cumulative/(double)count;
+		}
+	}
+
+	/**
+	 * Count-min sketch for approximate counts of integer keys (e.g. section indexes) in fixed memory. Estimates
+	 * never underestimate the true count, and overestimate by at most (total count)*e/width with probability
+	 * 1-exp(-depth).
+	 */
+	public static class CountMinSketch {
+
+		private final int width;
+		private final int depth;
+		private final long[][] table;
+		private long totalCount;
+
+		public CountMinSketch(int width, int depth) {
+			Preconditions.checkArgument(width > 0 && depth > 0, "Width and depth must be positive");
+			this.width = width;
+			this.depth = depth;
+			this.table = new long[depth][width];
+		}
+
+		private int bucket(int row, int key) {
+			// 64-bit mix of the key with a row dependent seed
+			long h = (key + 1l) * 0x9E3779B97F4A7C15l + (row + 1l) * 0xC2B2AE3D27D4EB4Fl;
+			h ^= h >>> 33;
+			h *= 0xFF51AFD7ED558CCDl;
+			h ^= h >>> 33;
+			h *= 0xC4CEB9FE1A85EC53l;
+			h ^= h >>> 33;
+			return (int)((h >>> 1) % width);
+		}
+
+		public void add(int key) {
+			add(key, 1l);
+		}
+
+		public void add(int key, long num) {
+			for (int row=0; row<depth; row++)
+				table[row][bucket(row, key)] += num;
+			totalCount += num;
+		}
+
+		public long estimate(int key) {
+			long ret = Long.MAX_VALUE;
+			for (int row=0; row<depth; row++)
+				ret = Long.min(ret, table[row][bucket(row, key)]);
+			return ret;
+		}
+
+		public long getTotalCount() {
+			return totalCount;
+		}
+
+		public void merge(CountMinSketch other) {
+			Preconditions.checkArgument(width == other.width && depth == other.depth,
+					"Can't merge count-min sketches with different dimensions");
+			for (int row=0; row<depth; row++)
+				for (int col=0; col<width; col++)
+					table[row][col] += other.table[row][col];
+			totalCount += other.totalCount;
+		}
+	}
+
+	/**
+	 * Fixed bin histogram with counts stored as longs. Values outside of the range are clamped to the first or
+	 * last bin.
+	 */
+	public static class FixedBinHistogram {
+
+		private final double min;
+		private final int num;
+		private final double delta;
+		private final long[] counts;
+
+		/**
+		 * @param min center of the first bin
+		 * @param num number of bins
+		 * @param delta bin width
+		 */
+		public FixedBinHistogram(double min, int num, double delta) {
+			Preconditions.checkArgument(num > 0 && delta > 0, "Must have at least one bin with positive width");
+			this.min = min;
+			this.num = num;
+			this.delta = delta;
+			this.counts = new long[num];
+		}
+
+		public void add(double value) {
+			add(value, 1l);
+		}
+
+		public void add(double value, long numToAdd) {
+			int index = (int)Math.round((value - min)/delta);
+			if (index < 0)
+				index = 0;
+			else if (index >= num)
+				index = num-1;
+			counts[index] += numToAdd;
+		}
+
+		public long getCount(int index) {
+			return counts[index];
+		}
+
+		public void merge(FixedBinHistogram other) {
+			Preconditions.checkArgument(num == other.num && (float)min == (float)other.min
+					&& (float)delta == (float)other.delta, "Can't merge histograms with different bins");
+			for (int i=0; i<num; i++)
+				counts[i] += other.counts[i];
+		}
+
+		public HistogramFunction toHistogramFunction() {
+			HistogramFunction hist = new HistogramFunction(min, num, delta);
+			for (int i=0; i<num; i++)
+				hist.set(i, counts[i]);
+			return hist;
+		}
+	}
+
+	/**
+	 * Tracks magnitude distributions: all events, and the maximum magnitude in each catalog (including
+	 * the fraction of catalogs with no events)
+	 */
+	public static class MagnitudeAccumulator implements CatalogAccumulator {
+
+		private final double relativeAccuracy;
+		private final QuantileSketch eventMags;
+		private final QuantileSketch catalogMaxMags;
+		private final FixedBinHistogram magHist;
+		private int numCatalogs;
+		private int numEmpty;
+
+		public MagnitudeAccumulator() {
+			this(0.001);
+		}
+
+		public MagnitudeAccumulator(double relativeAccuracy) {
+			this.relativeAccuracy = relativeAccuracy;
+			eventMags = new QuantileSketch(relativeAccuracy);
+			catalogMaxMags = new QuantileSketch(relativeAccuracy);
+			magHist = new FixedBinHistogram(0.05, 100, 0.1);
+		}
+
+		@Override
+		public void processCatalog(List<ETAS_EqkRupture> catalog) {
+			numCatalogs++;
+			if (catalog.isEmpty()) {
+				numEmpty++;
+				return;
+			}
+			double maxMag = Double.NEGATIVE_INFINITY;
+			for (ETAS_EqkRupture rup : catalog) {
+				double mag = rup.getMag();
+				eventMags.add(mag);
+				magHist.add(mag);
+				maxMag = Math.max(maxMag, mag);
+			}
+			catalogMaxMags.add(maxMag);
+		}
+
+		@Override
+		public MagnitudeAccumulator newEmptyCopy() {
+			return new MagnitudeAccumulator(relativeAccuracy);
+		}
+
+		@Override
+		public void merge(CatalogAccumulator other) {
+			MagnitudeAccumulator o = (MagnitudeAccumulator)other;
+			eventMags.merge(o.eventMags);
+			catalogMaxMags.merge(o.catalogMaxMags);
+			magHist.merge(o.magHist);
+			numCatalogs += o.numCatalogs;
+			numEmpty += o.numEmpty;
+		}
+
+		public QuantileSketch getEventMagnitudes() {
+			return eventMags;
+		}
+
+		/**
+		 * @return sketch of the maximum magnitude in each non-empty catalog
+		 */
+		public QuantileSketch getCatalogMaxMagnitudes() {
+			return catalogMaxMags;
+		}
+
+		/**
+		 * @return histogram of event magnitudes with 0.1 magnitude unit bins from 0 to 10
+		 */
+		public HistogramFunction getMagnitudeHistogram() {
+			return magHist.toHistogramFunction();
+		}
+
+		public int getNumCatalogs() {
+			return numCatalogs;
+		}
+
+		public int getNumEmptyCatalogs() {
+			return numEmpty;
+		}
+
+		/**
+		 * @param mag
+		 * @return approximate fraction of catalogs with at least one event with M&gt;mag
+		 */
+		public double getProbMaxMagAbove(double mag) {
+			if (numCatalogs == 0)
+				return Double.NaN;
+			long numNonEmpty = catalogMaxMags.getCount();
+			double fractBelow = numNonEmpty == 0l ? 0d : catalogMaxMags.getCDF(mag);
+			return (1d - fractBelow)*(double)numNonEmpty/(double)numCatalogs;
+		}
+	}
+
+	/**
+	 * Tracks the distribution of the time (in years) from the start of the simulation until the first event at or
+	 * above a given magnitude
+	 */
+	public static class FirstEventTimeAccumulator implements CatalogAccumulator {
+
+		private final long simulationStartTime;
+		private final double minMag;
+		private final QuantileSketch timeYears;
+		private int numCatalogs;
+
+		public FirstEventTimeAccumulator(long simulationStartTime, double minMag) {
+			this.simulationStartTime = simulationStartTime;
+			this.minMag = minMag;
+			this.timeYears = new QuantileSketch(0.01);
+		}
+
+		@Override
+		public void processCatalog(List<ETAS_EqkRupture> catalog) {
+			numCatalogs++;
+			long firstTime = Long.MAX_VALUE;
+			for (ETAS_EqkRupture rup : catalog)
+				if (rup.getMag() >= minMag)
+					firstTime = Long.min(firstTime, rup.getOriginTime());
+			if (firstTime < Long.MAX_VALUE) {
+				double years = (double)(firstTime - simulationStartTime)/ProbabilityModelsCalc.MILLISEC_PER_YEAR;
+				timeYears.add(Math.max(0d, years));
+			}
+		}
+
+		@Override
+		public FirstEventTimeAccumulator newEmptyCopy() {
+			return new FirstEventTimeAccumulator(simulationStartTime, minMag);
+		}
+
+		@Override
+		public void merge(CatalogAccumulator other) {
+			FirstEventTimeAccumulator o = (FirstEventTimeAccumulator)other;
+			timeYears.merge(o.timeYears);
+			numCatalogs += o.numCatalogs;
+		}
+
+		/**
+		 * @return sketch of the time in years until the first event, for catalogs which had such an event
+		 */
+		public QuantileSketch getFirstEventTimes() {
+			return timeYears;
+		}
+
+		public int getNumCatalogs() {
+			return numCatalogs;
+		}
+
+		/**
+		 * @param years
+		 * @return approximate fraction of catalogs with an event at or above the magnitude within the given time
+		 */
+		public double getProbWithin(double years) {
+			if (numCatalogs == 0)
+				return Double.NaN;
+			if (timeYears.getCount() == 0l)
+				return 0d;
+			return timeYears.getCDF(years)*(double)timeYears.getCount()/(double)numCatalogs;
+		}
+	}
+
+	/**
+	 * Tracks the number of catalogs in which each subsection participates in at least one fault system rupture
+	 * at or above the given magnitude, using a count-min sketch so that memory is bounded independently of the
+	 * number of sections.
+	 */
+	public static class SectionParticipationAccumulator implements CatalogAccumulator {
+
+		private final FaultSystemRupSet rupSet;
+		private final double minMag;
+		private final int width;
+		private final int depth;
+		private final CountMinSketch sketch;
+		private int numCatalogs;
+
+		public SectionParticipationAccumulator(FaultSystemRupSet rupSet, double minMag) {
+			// default dimensions give errors below ~0.1% of the total count with >99% probability
+			this(rupSet, minMag, 4096, 5);
+		}
+
+		public SectionParticipationAccumulator(FaultSystemRupSet rupSet, double minMag, int width, int depth) {
+			this.rupSet = rupSet;
+			this.minMag = minMag;
+			this.width = width;
+			this.depth = depth;
+			this.sketch = new CountMinSketch(width, depth);
+		}
+
+		@Override
+		public void processCatalog(List<ETAS_EqkRupture> catalog) {
+			numCatalogs++;
+			HashSet<Integer> sects = new HashSet<>();
+			for (ETAS_EqkRupture rup : catalog)
+				if (rup.getFSSIndex() >= 0 && rup.getMag() >= minMag)
+					sects.addAll(rupSet.getSectionsIndicesForRup(rup.getFSSIndex()));
+			for (int sectIndex : sects)
+				sketch.add(sectIndex);
+		}
+
+		@Override
+		public SectionParticipationAccumulator newEmptyCopy() {
+			return new SectionParticipationAccumulator(rupSet, minMag, width, depth);
+		}
+
+		@Override
+		public void merge(CatalogAccumulator other) {
+			SectionParticipationAccumulator o = (SectionParticipationAccumulator)other;
+			sketch.merge(o.sketch);
+			numCatalogs += o.numCatalogs;
+		}
+
+		public int getNumCatalogs() {
+			return numCatalogs;
+		}
+
+		/**
+		 * @param sectIndex
+		 * @return approximate (upper bound) probability that the given section participates in one or more
+		 * ruptures at or above the minimum magnitude
+		 */
+		public double getParticipationProb(int sectIndex) {
+			if (numCatalogs == 0)
+				return Double.NaN;
+			return Math.min(1d, (double)sketch.estimate(sectIndex)/(double)numCatalogs);
+		}
+
+		/**
+		 * @return approximate participation probabilities for all sections
+		 */
+		public double[] getParticipationProbs() {
+			double[] ret = new double[rupSet.getNumSections()];
+			for (int s=0; s<ret.length; s++)
+				ret[s] = getParticipationProb(s);
+			return ret;
+		}
+	}
+
+	/**
+	 * Fixed bin histogram of the number of events at or above the given magnitude in each catalog
+	 */
+	public static class CountHistogramAccumulator implements CatalogAccumulator {
+
+		private final double minMag;
+		private final int maxCount;
+		private final FixedBinHistogram hist;
+
+		/**
+		 * @param minMag
+		 * @param maxCount counts above this value are included in the last bin
+		 */
+		public CountHistogramAccumulator(double minMag, int maxCount) {
+			this.minMag = minMag;
+			this.maxCount = maxCount;
+			this.hist = new FixedBinHistogram(0d, maxCount+1, 1d);
+		}
+
+		@Override
+		public void processCatalog(List<ETAS_EqkRupture> catalog) {
+			int count = 0;
+			for (ETAS_EqkRupture rup : catalog)
+				if (rup.getMag() >= minMag)
+					count++;
+			hist.add(count);
+		}
+
+		@Override
+		public CountHistogramAccumulator newEmptyCopy() {
+			return new CountHistogramAccumulator(minMag, maxCount);
+		}
+
+		@Override
+		public void merge(CatalogAccumulator other) {
+			hist.merge(((CountHistogramAccumulator)other).hist);
+		}
+
+		public HistogramFunction getHistogram() {
+			return hist.toHistogramFunction();
+		}
+	}
+
+	/**
+	 * Exact histogram of a scalar value computed from each catalog (e.g. the number of events or the total moment),
+	 * with bins of the given width centered on multiples of that width. The range of bins grows as needed, so it
+	 * need not be known in advance. Catalogs for which the value is not finite (e.g. the log of the moment of an
+	 * empty catalog) are counted but not binned.
+	 */
+	public static class ScalarHistogramAccumulator implements CatalogAccumulator {
+
+		private final ToDoubleFunction<List<ETAS_EqkRupture>> valueFunc;
+		private final double delta;
+
+		private long[] counts;
+		private int offset;
+		private int numCatalogs;
+		private int numNonFinite;
+
+		/**
+		 * @param valueFunc function which computes the value for a catalog, must be thread safe
+		 * @param delta bin width
+		 */
+		public ScalarHistogramAccumulator(ToDoubleFunction<List<ETAS_EqkRupture>> valueFunc, double delta) {
+			Preconditions.checkArgument(delta > 0, "Bin width must be positive");
+			this.valueFunc = valueFunc;
+			this.delta = delta;
+		}
+
+		private void ensureCapacity(int minIndex, int maxIndex) {
+			if (counts == null) {
+				counts = new long[maxIndex - minIndex + 1];
+				offset = minIndex;
+				return;
+			}
+			int curMax = offset + counts.length - 1;
+			if (minIndex >= offset && maxIndex <= curMax)
+				return;
+			int newMin = Integer.min(minIndex, offset);
+			int newMax = Integer.max(maxIndex, curMax);
+			long[] newCounts = new long[newMax - newMin + 1];
+			System.arraycopy(counts, 0, newCounts, offset - newMin, counts.length);
+			counts = newCounts;
+			offset = newMin;
+		}
+
+		@Override
+		public void processCatalog(List<ETAS_EqkRupture> catalog) {
+			numCatalogs++;
+			double value = valueFunc.applyAsDouble(catalog);
+			if (!Double.isFinite(value)) {
+				numNonFinite++;
+				return;
+			}
+			int index = (int)Math.round(value/delta);
+			ensureCapacity(index, index);
+			counts[index - offset]++;
+		}
+
+		@Override
+		public ScalarHistogramAccumulator newEmptyCopy() {
+			return new ScalarHistogramAccumulator(valueFunc, delta);
+		}
+
+		@Override
+		public void merge(CatalogAccumulator other) {
+			ScalarHistogramAccumulator o = (ScalarHistogramAccumulator)other;
+			Preconditions.checkArgument((float)delta == (float)o.delta, "Can't merge histograms with different bins");
+			if (o.counts != null) {
+				ensureCapacity(o.offset, o.offset + o.counts.length - 1);
+				for (int i=0; i<o.counts.length; i++)
+					counts[o.offset + i - offset] += o.counts[i];
+			}
+			numCatalogs += o.numCatalogs;
+			numNonFinite += o.numNonFinite;
+		}
+
+		public int getNumCatalogs() {
+			return numCatalogs;
+		}
+
+		/**
+		 * @return number of catalogs for which the value was not finite, and which are excluded from the histogram
+		 */
+		public int getNumNonFinite() {
+			return numNonFinite;
+		}
+
+		/**
+		 * @return histogram spanning all populated bins, or null if no finite values were encountered
+		 */
+		public HistogramFunction getHistogram() {
+			if (counts == null)
+				return null;
+			int first = 0;
+			while (counts[first] == 0l)
+				first++;
+			int last = counts.length-1;
+			while (counts[last] == 0l)
+				last--;
+			HistogramFunction hist = new HistogramFunction((offset + first)*delta, last - first + 1, delta);
+			for (int i=first; i<=last; i++)
+				hist.set(i - first, counts[i]);
+			return hist;
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("USAGE: <catalogs.bin> <min-mag> [<threads>]");
+			System.exit(2);
+		}
+		File binFile = new File(args[0]);
+		double minMag = Double.parseDouble(args[1]);
+		int threads = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		MagnitudeAccumulator mags = new MagnitudeAccumulator();
+		CountHistogramAccumulator counts = new CountHistogramAccumulator(minMag, 1000);
+		int num = aggregate(ETAS_CatalogIO.getBinaryCatalogsIterable(binFile, 0d), threads, 4*threads,
+				Arrays.asList(mags, counts));
+
+		System.out.println("Processed "+num+" catalogs");
+		QuantileSketch maxMags = mags.getCatalogMaxMagnitudes();
+		for (double q : new double[] { 0.025, 0.5, 0.975 })
+			System.out.println("Catalog max mag, p"+(float)(q*100d)+": "+(float)maxMags.getQuantile(q));
+		System.out.println("P(M>"+(float)minMag+"): "+(float)mags.getProbMaxMagAbove(minMag));
+	}
+
+}
@@ -6,6 +6,7 @@ import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -447,7 +448,20 @@ public class ETAS_CatalogIO {
 		Preconditions.checkNotNull(file, "File cannot be null!");
 		Preconditions.checkArgument(numCatalogs > 0, "Must supply at least one catalog");
 		
-		FileOutputStream fout = new FileOutputStream(file);
+		return initCatalogsBinary(new FileOutputStream(file), numCatalogs);
+	}
+	
+	/**
+	 * Writes the multiple catalog file header to the given stream, for callers that need direct access to the
+	 * underlying file (e.g. to sync it to disk)
+	 * 
+	 * @param fout
+	 * @param numCatalogs
+	 * @return buffered output stream, positioned after the header ({@link #CATALOGS_HEADER_LEN} bytes)
+	 * @throws IOException
+	 */
+	public static DataOutputStream initCatalogsBinary(FileOutputStream fout, int numCatalogs) throws IOException {
+		Preconditions.checkNotNull(fout, "Output stream cannot be null!");
 		Preconditions.checkArgument(numCatalogs > 0, "Must supply at least one catalog");
 		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, buffer_len));
 
@@ -483,30 +497,7 @@ public class ETAS_CatalogIO {
 		if (catalog instanceof ETAS_Catalog && ((ETAS_Catalog)catalog).getSimulationMetadata() != null) {
 			// we have metadata
 			out.writeShort(3);
-			ETAS_SimulationMetadata meta = ((ETAS_Catalog)catalog).getSimulationMetadata();
-			out.writeInt(meta.totalNumRuptures);
-			out.writeLong(meta.randomSeed);
-			out.writeInt(meta.catalogIndex);
-			if (meta.rangeHistCatalogIDs == null) {
-				out.writeInt(-1);
-				out.writeInt(-1);
-			} else {
-				out.writeInt(meta.rangeHistCatalogIDs.lowerEndpoint());
-				out.writeInt(meta.rangeHistCatalogIDs.upperEndpoint());
-			}
-			if (meta.rangeTriggerRupIDs == null) {
-				out.writeInt(-1);
-				out.writeInt(-1);
-			} else {
-				out.writeInt(meta.rangeTriggerRupIDs.lowerEndpoint());
-				out.writeInt(meta.rangeTriggerRupIDs.upperEndpoint());
-			}
-			out.writeLong(meta.simulationStartTime);
-			out.writeLong(meta.simulationStartTime);
-			out.writeInt(meta.numSpontaneousRuptures);
-			out.writeInt(meta.numSupraSeis);
-			out.writeDouble(meta.minMag);
-			out.writeDouble(meta.maxMag);
+			writeBinaryMetadata(out, ((ETAS_Catalog)catalog).getSimulationMetadata());
 		} else {
 			// no metadata
 			out.writeShort(2);
@@ -514,6 +505,37 @@ public class ETAS_CatalogIO {
 		// write catalog size as int
 		out.writeInt(catalog.size());
 
+		for (ETAS_EqkRupture rup : catalog)
+			writeRuptureBinary(out, rup);
+	}
+	
+	private static void writeBinaryMetadata(DataOutput out, ETAS_SimulationMetadata meta) throws IOException {
+		out.writeInt(meta.totalNumRuptures);
+		out.writeLong(meta.randomSeed);
+		out.writeInt(meta.catalogIndex);
+		if (meta.rangeHistCatalogIDs == null) {
+			out.writeInt(-1);
+			out.writeInt(-1);
+		} else {
+			out.writeInt(meta.rangeHistCatalogIDs.lowerEndpoint());
+			out.writeInt(meta.rangeHistCatalogIDs.upperEndpoint());
+		}
+		if (meta.rangeTriggerRupIDs == null) {
+			out.writeInt(-1);
+			out.writeInt(-1);
+		} else {
+			out.writeInt(meta.rangeTriggerRupIDs.lowerEndpoint());
+			out.writeInt(meta.rangeTriggerRupIDs.upperEndpoint());
+		}
+		out.writeLong(meta.simulationStartTime);
+		out.writeLong(meta.simulationStartTime);
+		out.writeInt(meta.numSpontaneousRuptures);
+		out.writeInt(meta.numSupraSeis);
+		out.writeDouble(meta.minMag);
+		out.writeDouble(meta.maxMag);
+	}
+	
+	private static void writeRuptureBinary(DataOutput out, ETAS_EqkRupture rup) throws IOException {
 		// text fields: Year\tMonth\tDay\tHour\tMinute\tSec\tLat\tLon\tDepth\tMagnitude\t"
 		// "ID\tparID\tGen\tOrigTime\tdistToParent\tnthERFIndex\tFSS_ID\tGridNodeIndex
 
@@ -531,25 +553,134 @@ public class ETAS_CatalogIO {
 		// FSS index - int
 		// grid node index - int
 		// [version 2+] etas k - double
+		
+		out.writeInt(rup.getID());
+		out.writeInt(rup.getParentID());
+		out.writeShort(rup.getGeneration());
+		out.writeLong(rup.getOriginTime());
+		Location hypo = rup.getHypocenterLocation();
+		out.writeDouble(hypo.getLatitude());
+		out.writeDouble(hypo.getLongitude());
+		out.writeDouble(hypo.getDepth());
+		out.writeDouble(rup.getMag());
+		out.writeDouble(rup.getDistanceToParent());
+		out.writeInt(rup.getNthERF_Index());
+		out.writeInt(rup.getFSSIndex());
+		out.writeInt(rup.getGridNodeIndex());
+		out.writeDouble(rup.getETAS_k());
+	}
+	
+	/**
+	 * Writes a single catalog in the version 3 binary format one rupture at a time, as they are simulated, rather
+	 * than all at once at the end. Each rupture is a fixed width record, and the fixed length header is written
+	 * with a rupture count of -1 until {@link #finish(ETAS_SimulationMetadata)} is called, at which point the header
+	 * is overwritten with the final metadata and rupture count.
+	 * <p>
+	 * A file that was not finished (e.g. due to a crash) can be detected with
+	 * {@link ETAS_CatalogIO#isBinaryCatalogFileComplete(File)}. Catalogs can't be resumed part way through a
+	 * simulation, so such files are simply rerun.
+	 */
+	public static class IncrementalBinaryCatalogWriter implements Closeable {
+		
+		private static final short VERSION = 3;
+		
+		private File file;
+		private RandomAccessFile raFile;
+		private DataOutputStream out;
+		private int numRuptures = 0;
+		private boolean finished = false;
+		
+		/**
+		 * @param file output file, will be overwritten if it exists
+		 * @param simulationStartTime start time of the simulation in epoch milliseconds, used in the placeholder
+		 * header until the catalog is finished
+		 * @throws IOException
+		 */
+		public IncrementalBinaryCatalogWriter(File file, long simulationStartTime) throws IOException {
+			Preconditions.checkNotNull(file, "File cannot be null!");
+			this.file = file;
+			raFile = new RandomAccessFile(file, "rw");
+			raFile.setLength(0l);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(raFile.getFD()), buffer_len));
+			
+			// placeholder metadata, will be replaced when finished
+			ETAS_SimulationMetadata placeholder = ETAS_SimulationMetadata.instance(-1, 0l, -1, null, null,
+					simulationStartTime, simulationStartTime, 0, 0, Double.NaN, Double.NaN);
+			out.writeShort(VERSION);
+			writeBinaryMetadata(out, placeholder);
+			// -1 rupture count indicates that this catalog is in progress
+			out.writeInt(-1);
+		}
+		
+		public synchronized void append(ETAS_EqkRupture rup) throws IOException {
+			Preconditions.checkState(!finished, "Already finished");
+			writeRuptureBinary(out, rup);
+			numRuptures++;
+		}
+		
+		public int getNumRuptures() {
+			return numRuptures;
+		}
+		
+		/**
+		 * Flushes all ruptures to disk and writes the final header, then closes the file
+		 * 
+		 * @param meta final simulation metadata for this catalog
+		 * @throws IOException
+		 */
+		public synchronized void finish(ETAS_SimulationMetadata meta) throws IOException {
+			Preconditions.checkState(!finished, "Already finished");
+			Preconditions.checkNotNull(meta, "Metadata must be supplied");
+			out.flush();
+			long expectedLen = getCatalogLengthBytes(numRuptures, VERSION, true);
+			Preconditions.checkState(raFile.length() == expectedLen,
+					"Unexpected file length after writing %s ruptures: %s != %s", numRuptures, raFile.length(), expectedLen);
+			raFile.getFD().sync();
+			// now write the real header
+			raFile.seek(0l);
+			raFile.writeShort(VERSION);
+			writeBinaryMetadata(raFile, meta);
+			raFile.writeInt(numRuptures);
+			raFile.getFD().sync();
+			finished = true;
+			close();
+		}
 
-		for (ETAS_EqkRupture rup : catalog) {
-			out.writeInt(rup.getID());
-			out.writeInt(rup.getParentID());
-			out.writeShort(rup.getGeneration());
-			out.writeLong(rup.getOriginTime());
-			Location hypo = rup.getHypocenterLocation();
-			out.writeDouble(hypo.getLatitude());
-			out.writeDouble(hypo.getLongitude());
-			out.writeDouble(hypo.getDepth());
-			out.writeDouble(rup.getMag());
-			out.writeDouble(rup.getDistanceToParent());
-			out.writeInt(rup.getNthERF_Index());
-			out.writeInt(rup.getFSSIndex());
-			out.writeInt(rup.getGridNodeIndex());
-			out.writeDouble(rup.getETAS_k());
+		/**
+		 * Closes the file. If {@link #finish(ETAS_SimulationMetadata)} has not been called, the file will be left
+		 * in an incomplete state.
+		 */
+		@Override
+		public synchronized void close() throws IOException {
+			if (out != null) {
+				if (!finished)
+					System.err.println("WARNING: closing incomplete binary catalog: "+file.getAbsolutePath());
+				out.close();
+				out = null;
+			}
 		}
+		
 	}
-
+	
+	/**
+	 * Overwrites the metadata in the header of a complete version 3 binary catalog file in place
+	 * 
+	 * @param file
+	 * @param meta
+	 * @throws IOException
+	 */
+	public static void updateBinaryMetadata(File file, ETAS_SimulationMetadata meta) throws IOException {
+		Preconditions.checkState(isBinaryCatalogFileComplete(file), "Can only update metadata for complete binary catalogs");
+		RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+		try {
+			short version = raFile.readShort();
+			Preconditions.checkState(version == 3, "Can only update metadata for version 3 binary catalogs");
+			writeBinaryMetadata(raFile, meta);
+		} finally {
+			raFile.close();
+		}
+	}
+	
 	public static ETAS_Catalog loadCatalogBinary(File file) throws IOException {
 		return loadCatalogBinary(file, -10d);
 	}
@@ -580,6 +711,10 @@ public class ETAS_CatalogIO {
 	}
 
 	public static final int buffer_len = 6553600;
+	/**
+	 * Length in bytes of the header at the start of a multiple catalog binary file (the number of catalogs)
+	 */
+	public static final int CATALOGS_HEADER_LEN = 4;
 
 	private static InputStream getIS(File file) throws IOException {
 		Preconditions.checkNotNull(file, "File cannot be null!");
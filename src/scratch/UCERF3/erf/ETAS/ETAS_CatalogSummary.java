@@ -0,0 +1,332 @@
+package scratch.UCERF3.erf.ETAS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opensha.commons.eq.MagUtils;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.FaultSystemRupSet;
+
+/**
+ * Compact per-catalog summary statistics which are accumulated online as events are written during an ETAS
+ * simulation, and written as a small binary sidecar file next to the catalog. This allows common multi-catalog
+ * questions (max magnitude distributions, counts above magnitude thresholds, time of the first fault system
+ * rupture, parent section participation) to be answered without reloading every event of every catalog.
+ *
+ * Binary format (big endian, as written by {@link DataOutputStream}):
+ * <pre>
+ * version - short
+ * numEvents - int
+ * numSpontaneous - int
+ * numSupraSeis - int
+ * maxMag - double
+ * totalMoment - double
+ * firstFSS_OT - long (-1 if none)
+ * firstFSS_Index - int (-1 if none)
+ * firstFSS_Mag - double (NaN if none)
+ * numMagThresholds - int
+ * for each threshold: magThreshold - double, count - int, firstOT - long (-1 if none)
+ * numParents - int (-1 if parent section participation was not tracked)
+ * for each parent section: parentID - int, count - int
+ * </pre>
+ */
+public class ETAS_CatalogSummary {
+
+	public static final String SUMMARY_FILE_NAME = "simulatedEventsSummary.bin";
+
+	private static final short VERSION = 1;
+
+	public static final double[] DEFAULT_MAG_THRESHOLDS = { 2.5d, 3d, 4d, 5d, 6d, 6.7d, 7d, 7.5d, 8d };
+
+	private int numEvents;
+	private int numSpontaneous;
+	private int numSupraSeis;
+	private double maxMag = Double.NaN;
+	private double totalMoment;
+
+	private long firstFSS_OT = -1l;
+	private int firstFSS_Index = -1;
+	private double firstFSS_Mag = Double.NaN;
+
+	private double[] magThresholds;
+	private int[] magCounts;
+	private long[] magFirstOTs;
+
+	// can be null if parent participation is not tracked
+	private transient FaultSystemRupSet rupSet;
+	private Map<Integer, Integer> parentParticCounts;
+
+	/**
+	 * Summary with the default magnitude thresholds and no parent section participation tracking
+	 */
+	public ETAS_CatalogSummary() {
+		this(DEFAULT_MAG_THRESHOLDS, null);
+	}
+
+	/**
+	 * @param magThresholds magnitude thresholds for which counts (M&ge;threshold) and first origin times will be tracked
+	 * @param rupSet if non null, participation counts for each parent section will be tracked for fault system ruptures
+	 */
+	public ETAS_CatalogSummary(double[] magThresholds, FaultSystemRupSet rupSet) {
+		if (magThresholds == null)
+			magThresholds = new double[0];
+		magThresholds = Arrays.copyOf(magThresholds, magThresholds.length);
+		Arrays.sort(magThresholds);
+		this.magThresholds = magThresholds;
+		this.magCounts = new int[magThresholds.length];
+		this.magFirstOTs = new long[magThresholds.length];
+		Arrays.fill(magFirstOTs, -1l);
+		this.rupSet = rupSet;
+		if (rupSet != null)
+			parentParticCounts = new HashMap<>();
+	}
+
+	/**
+	 * Builds a summary for an existing catalog
+	 *
+	 * @param catalog
+	 * @param magThresholds
+	 * @param rupSet
+	 * @return
+	 */
+	public static ETAS_CatalogSummary build(List<ETAS_EqkRupture> catalog, double[] magThresholds, FaultSystemRupSet rupSet) {
+		ETAS_CatalogSummary summary = new ETAS_CatalogSummary(magThresholds, rupSet);
+		for (ETAS_EqkRupture rup : catalog)
+			summary.addEvent(rup);
+		return summary;
+	}
+
+	/**
+	 * Updates this summary with the given event. This should be called once for each event in the catalog, in any
+	 * order.
+	 *
+	 * @param rup
+	 */
+	public void addEvent(ETAS_EqkRupture rup) {
+		numEvents++;
+		if (rup.getGeneration() == 0)
+			numSpontaneous++;
+		double mag = rup.getMag();
+		if (Double.isNaN(maxMag) || mag > maxMag)
+			maxMag = mag;
+		totalMoment += MagUtils.magToMoment(mag);
+		long ot = rup.getOriginTime();
+		for (int i=0; i<magThresholds.length && mag >= magThresholds[i]; i++) {
+			magCounts[i]++;
+			if (magFirstOTs[i] < 0l || ot < magFirstOTs[i])
+				magFirstOTs[i] = ot;
+		}
+		int fssIndex = rup.getFSSIndex();
+		if (fssIndex >= 0) {
+			numSupraSeis++;
+			if (firstFSS_Index < 0 || ot < firstFSS_OT) {
+				firstFSS_OT = ot;
+				firstFSS_Index = fssIndex;
+				firstFSS_Mag = mag;
+			}
+			if (parentParticCounts != null) {
+				for (int parentID : rupSet.getParentSectionsForRup(fssIndex)) {
+					Integer prev = parentParticCounts.get(parentID);
+					parentParticCounts.put(parentID, prev == null ? 1 : prev + 1);
+				}
+			}
+		}
+	}
+
+	public int getNumEvents() {
+		return numEvents;
+	}
+
+	public int getNumSpontaneous() {
+		return numSpontaneous;
+	}
+
+	public int getNumSupraSeis() {
+		return numSupraSeis;
+	}
+
+	/**
+	 * @return maximum magnitude in the catalog, or NaN if empty
+	 */
+	public double getMaxMag() {
+		return maxMag;
+	}
+
+	public double getTotalMoment() {
+		return totalMoment;
+	}
+
+	/**
+	 * @return origin time of the first fault system rupture, or -1 if none
+	 */
+	public long getFirstFSS_OriginTime() {
+		return firstFSS_OT;
+	}
+
+	/**
+	 * @return fault system rupture index of the first fault system rupture, or -1 if none
+	 */
+	public int getFirstFSS_Index() {
+		return firstFSS_Index;
+	}
+
+	/**
+	 * @return magnitude of the first fault system rupture, or NaN if none
+	 */
+	public double getFirstFSS_Mag() {
+		return firstFSS_Mag;
+	}
+
+	public double[] getMagThresholds() {
+		return Arrays.copyOf(magThresholds, magThresholds.length);
+	}
+
+	private int getThresholdIndex(double magThreshold) {
+		for (int i=0; i<magThresholds.length; i++)
+			if ((float)magThresholds[i] == (float)magThreshold)
+				return i;
+		throw new IllegalArgumentException("Magnitude threshold "+(float)magThreshold+" was not tracked in this summary. "
+				+ "Tracked thresholds: "+Arrays.toString(magThresholds));
+	}
+
+	/**
+	 * @param magThreshold magnitude threshold, must be one of the tracked thresholds
+	 * @return number of events with M&ge;magThreshold
+	 * @throws IllegalArgumentException if the given threshold was not tracked
+	 */
+	public int getCountAbove(double magThreshold) {
+		return magCounts[getThresholdIndex(magThreshold)];
+	}
+
+	/**
+	 * @param magThreshold magnitude threshold, must be one of the tracked thresholds
+	 * @return origin time of the first event with M&ge;magThreshold, or -1 if none
+	 * @throws IllegalArgumentException if the given threshold was not tracked
+	 */
+	public long getFirstOriginTimeAbove(double magThreshold) {
+		return magFirstOTs[getThresholdIndex(magThreshold)];
+	}
+
+	/**
+	 * @return true if parent section participation counts were tracked
+	 */
+	public boolean hasParentParticipation() {
+		return parentParticCounts != null;
+	}
+
+	/**
+	 * @return unmodifiable map from parent section ID to the number of fault system ruptures in this catalog which
+	 * involved that parent section, or null if not tracked
+	 */
+	public Map<Integer, Integer> getParentParticipationCounts() {
+		if (parentParticCounts == null)
+			return null;
+		return Collections.unmodifiableMap(parentParticCounts);
+	}
+
+	/**
+	 * @param catalogDir catalog results directory
+	 * @return the summary sidecar file for the given directory (which may not exist)
+	 */
+	public static File getSummaryFile(File catalogDir) {
+		return new File(catalogDir, SUMMARY_FILE_NAME);
+	}
+
+	public void writeSummary(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+		out.writeShort(VERSION);
+		out.writeInt(numEvents);
+		out.writeInt(numSpontaneous);
+		out.writeInt(numSupraSeis);
+		out.writeDouble(maxMag);
+		out.writeDouble(totalMoment);
+		out.writeLong(firstFSS_OT);
+		out.writeInt(firstFSS_Index);
+		out.writeDouble(firstFSS_Mag);
+		out.writeInt(magThresholds.length);
+		for (int i=0; i<magThresholds.length; i++) {
+			out.writeDouble(magThresholds[i]);
+			out.writeInt(magCounts[i]);
+			out.writeLong(magFirstOTs[i]);
+		}
+		if (parentParticCounts == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(parentParticCounts.size());
+			for (Integer parentID : parentParticCounts.keySet()) {
+				out.writeInt(parentID);
+				out.writeInt(parentParticCounts.get(parentID));
+			}
+		}
+
+		out.close();
+	}
+
+	public static ETAS_CatalogSummary loadSummary(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+		try {
+			short version = in.readShort();
+			Preconditions.checkState(version == VERSION, "Unknown catalog summary version: %s", version);
+
+			ETAS_CatalogSummary summary = new ETAS_CatalogSummary(null, null);
+			summary.numEvents = in.readInt();
+			summary.numSpontaneous = in.readInt();
+			summary.numSupraSeis = in.readInt();
+			summary.maxMag = in.readDouble();
+			summary.totalMoment = in.readDouble();
+			summary.firstFSS_OT = in.readLong();
+			summary.firstFSS_Index = in.readInt();
+			summary.firstFSS_Mag = in.readDouble();
+			int numThresholds = in.readInt();
+			summary.magThresholds = new double[numThresholds];
+			summary.magCounts = new int[numThresholds];
+			summary.magFirstOTs = new long[numThresholds];
+			for (int i=0; i<numThresholds; i++) {
+				summary.magThresholds[i] = in.readDouble();
+				summary.magCounts[i] = in.readInt();
+				summary.magFirstOTs[i] = in.readLong();
+			}
+			int numParents = in.readInt();
+			if (numParents >= 0) {
+				summary.parentParticCounts = new HashMap<>();
+				for (int i=0; i<numParents; i++) {
+					int parentID = in.readInt();
+					summary.parentParticCounts.put(parentID, in.readInt());
+				}
+			}
+			return summary;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Loads the summary sidecar from the given catalog directory if it exists
+	 *
+	 * @param catalogDir
+	 * @return summary, or null if no summary file exists
+	 * @throws IOException
+	 */
+	public static ETAS_CatalogSummary loadSummaryIfPresent(File catalogDir) throws IOException {
+		File file = getSummaryFile(catalogDir);
+		if (!file.exists())
+			return null;
+		return loadSummary(file);
+	}
+
+}
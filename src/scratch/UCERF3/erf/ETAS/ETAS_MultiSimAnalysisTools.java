@@ -92,6 +92,7 @@ import scratch.UCERF3.analysis.FaultBasedMapGen;
 import scratch.UCERF3.analysis.FaultSysSolutionERF_Calc;
 import scratch.UCERF3.erf.FSSRupsInRegionCache;
 import scratch.UCERF3.erf.FaultSystemSolutionERF;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogAggregation.ScalarHistogramAccumulator;
 import scratch.UCERF3.erf.ETAS.ETAS_Simulator.TestScenario;
 import scratch.UCERF3.erf.ETAS.ETAS_Params.ETAS_ParameterList;
 import scratch.UCERF3.erf.ETAS.ETAS_Params.U3ETAS_ProbabilityModelOptions;
@@ -1028,63 +1029,46 @@ public class ETAS_MultiSimAnalysisTools {
 		gp.saveAsTXT(new File(outputDir, prefix + ".txt").getAbsolutePath());
 	}
 
-	private static void plotNumEventsHistogram(List<List<ETAS_EqkRupture>> catalogs, File outputDir, String prefix)
-			throws IOException {
-		MinMaxAveTracker track = new MinMaxAveTracker();
-
-		for (List<ETAS_EqkRupture> catalog : catalogs)
-			track.addValue(catalog.size());
-
-		HistogramFunction hist = HistogramFunction.getEncompassingHistogram(track.getMin(), track.getMax(), 5000d);
-
-		for (List<ETAS_EqkRupture> catalog : catalogs)
-			hist.add((double) catalog.size(), 1d);
-
-		List<DiscretizedFunc> funcs = Lists.newArrayList();
-		List<PlotCurveCharacterstics> chars = Lists.newArrayList();
-
-		funcs.add(hist);
-		chars.add(new PlotCurveCharacterstics(PlotLineType.HISTOGRAM, 1f, Color.BLACK));
-
-		PlotSpec spec = new PlotSpec(funcs, chars, "# Events Distribution", "# Events", "# Catalogs");
-
-		HeadlessGraphPanel gp = new HeadlessGraphPanel();
-
-		setFontSizes(gp);
-
-		gp.drawGraphPanel(spec, false, false);
-		gp.getChartPanel().setSize(1000, 800);
-		gp.saveAsPNG(new File(outputDir, prefix + ".png").getAbsolutePath());
-		gp.saveAsPDF(new File(outputDir, prefix + ".pdf").getAbsolutePath());
-		gp.saveAsTXT(new File(outputDir, prefix + ".txt").getAbsolutePath());
+	/**
+	 * Plots histograms of the number of events and of the total moment in each catalog. Both are computed in a single
+	 * parallel pass over the catalogs, so that catalogs can be streamed from disk.
+	 * 
+	 * @param catalogs ETAS catalogs, ideally a streaming iterable
+	 * @param outputDir
+	 * @param numPrefix file prefix for the number of events histogram
+	 * @param momentPrefix file prefix for the total moment histogram
+	 * @param numThreads number of threads used to process catalogs
+	 * @throws IOException
+	 */
+	private static void plotNumEventsAndMomentHistograms(Iterable<? extends List<ETAS_EqkRupture>> catalogs,
+			File outputDir, String numPrefix, String momentPrefix, int numThreads) throws IOException {
+		ScalarHistogramAccumulator numAccumulator = new ScalarHistogramAccumulator(catalog -> catalog.size(), 5000d);
+		// empty catalogs have no moment and are excluded
+		ScalarHistogramAccumulator momentAccumulator = new ScalarHistogramAccumulator(
+				catalog -> Math.log10(calcTotalMoment(catalog)), 0.05);
+		ETAS_CatalogAggregation.aggregate(catalogs, numThreads, 4*numThreads,
+				Lists.newArrayList(numAccumulator, momentAccumulator));
+
+		HistogramFunction numHist = numAccumulator.getHistogram();
+		Preconditions.checkState(numHist != null, "No catalogs supplied");
+		plotCatalogHistogram(numHist, outputDir, numPrefix, "# Events Distribution", "# Events");
+
+		HistogramFunction momentHist = momentAccumulator.getHistogram();
+		Preconditions.checkState(momentHist != null, "No non-empty catalogs supplied");
+		if (momentAccumulator.getNumNonFinite() > 0)
+			System.out.println("Excluded "+momentAccumulator.getNumNonFinite()+" empty catalogs from moment histogram");
+		plotCatalogHistogram(momentHist, outputDir, momentPrefix, "Moment Distribution", "Log10(Total Moment) (N-m)");
 	}
 
-	private static void plotTotalMomentHistogram(List<List<ETAS_EqkRupture>> catalogs, File outputDir, String prefix)
-			throws IOException {
-
-		double[] moments = new double[catalogs.size()];
-
-		for (int i = 0; i < catalogs.size(); i++)
-			for (ETAS_EqkRupture rup : catalogs.get(i))
-				moments[i] += MagUtils.magToMoment(rup.getMag());
-
-		double[] log10Moments = new double[moments.length];
-		for (int i = 0; i < moments.length; i++)
-			log10Moments[i] = Math.log10(moments[i]);
-
-		HistogramFunction hist = HistogramFunction.getEncompassingHistogram(StatUtils.min(log10Moments),
-				StatUtils.max(log10Moments), 0.05);
-
-		for (double val : log10Moments)
-			hist.add(val, 1d);
-
+	private static void plotCatalogHistogram(HistogramFunction hist, File outputDir, String prefix, String title,
+			String xAxisLabel) throws IOException {
 		List<DiscretizedFunc> funcs = Lists.newArrayList();
 		List<PlotCurveCharacterstics> chars = Lists.newArrayList();
 
 		funcs.add(hist);
 		chars.add(new PlotCurveCharacterstics(PlotLineType.HISTOGRAM, 1f, Color.BLACK));
 
-		PlotSpec spec = new PlotSpec(funcs, chars, "Moment Distribution", "Log10(Total Moment) (N-m)", "# Catalogs");
+		PlotSpec spec = new PlotSpec(funcs, chars, title, xAxisLabel, "# Catalogs");
 
 		HeadlessGraphPanel gp = new HeadlessGraphPanel();
 
@@ -5275,8 +5259,8 @@ public class ETAS_MultiSimAnalysisTools {
 		// prevTime = rup.getOriginTime();
 		// }
 		// }
-		// plotNumEventsHistogram(myCatalogs, myOutput, "num_events_hist");
-		// plotTotalMomentHistogram(myCatalogs, myOutput, "moment_hist");
+		// plotNumEventsAndMomentHistograms(myCatalogs, myOutput, "num_events_hist", "moment_hist",
+		// 		Runtime.getRuntime().availableProcessors());
 		// System.exit(0);
 
 		File fssFile = new File("dev/scratch/UCERF3/data/scratch/InversionSolutions/"
@@ -114,6 +114,7 @@ import scratch.UCERF3.analysis.GMT_CA_Maps;
 import scratch.UCERF3.enumTreeBranches.FaultModels;
 import scratch.UCERF3.enumTreeBranches.ScalingRelationships;
 import scratch.UCERF3.erf.FaultSystemSolutionERF;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO.IncrementalBinaryCatalogWriter;
 import scratch.UCERF3.erf.ETAS.ETAS_SimAnalysisTools.EpicenterMapThread;
 import scratch.UCERF3.erf.ETAS.association.FiniteFaultMappingData;
 import scratch.UCERF3.erf.ETAS.ETAS_Params.ETAS_ParameterList;
@@ -226,8 +227,67 @@ public class ETAS_Simulator {
 			boolean includeIndirectTriggering, double gridSeisDiscr, String simulationName,
 			Long randomSeed, List<float[]> fractionSrcInCubeList, List<int[]> srcInCubeList, int[] inputIsCubeInsideFaultPolygon, 
 			ETAS_ParameterList etasParams, ETAS_CubeDiscretizationParams cubeParams, ETAS_LongTermMFDs longTermMFDs) throws IOException {
+		return runETAS_Simulation(resultsDir, erf, griddedRegion, scenarioRups, histQkList, includeSpontEvents,
+				includeIndirectTriggering, gridSeisDiscr, simulationName, randomSeed, fractionSrcInCubeList, srcInCubeList,
+				inputIsCubeInsideFaultPolygon, etasParams, cubeParams, longTermMFDs, null, false);
+	}
+	
+	/**
+	 * Same as above, but with a custom catalog summary that will be updated as each event is written and then
+	 * saved to {@link ETAS_CatalogSummary#SUMMARY_FILE_NAME} in the results directory, and optional binary
+	 * catalog output.
+	 * 
+	 * @param summary - summary to be populated and written, or null to skip the summary sidecar file
+	 * @param binaryCatalog - if true, events will be written to "simulatedEvents.bin" in the compact binary format
+	 * as they are simulated, instead of to "simulatedEvents.txt"
+	 * @return simulation metadata object
+	 * @throws IOException
+	 */
+	public static ETAS_SimulationMetadata runETAS_Simulation(File resultsDir, AbstractNthRupERF erf,
+			GriddedRegion griddedRegion, List<ETAS_EqkRupture> scenarioRups, List<? extends ObsEqkRupture> histQkList, boolean includeSpontEvents,
+			boolean includeIndirectTriggering, double gridSeisDiscr, String simulationName,
+			Long randomSeed, List<float[]> fractionSrcInCubeList, List<int[]> srcInCubeList, int[] inputIsCubeInsideFaultPolygon, 
+			ETAS_ParameterList etasParams, ETAS_CubeDiscretizationParams cubeParams, ETAS_LongTermMFDs longTermMFDs,
+			ETAS_CatalogSummary summary, boolean binaryCatalog) throws IOException {
 		long simulationStartTime = System.currentTimeMillis();
 		
+		// directory for saving results
+		if(!resultsDir.exists()) resultsDir.mkdir();
+		
+		// remove any catalog file of the other format left over from a previous attempt, so that it can never be
+		// loaded in place of this one
+		File asciiFile = new File(resultsDir, "simulatedEvents.txt");
+		File binaryFile = new File(resultsDir, "simulatedEvents.bin");
+		if (binaryCatalog && asciiFile.exists())
+			Preconditions.checkState(asciiFile.delete(), "Couldn't delete stale catalog: %s", asciiFile.getAbsolutePath());
+		else if (!binaryCatalog && binaryFile.exists())
+			Preconditions.checkState(binaryFile.delete(), "Couldn't delete stale catalog: %s", binaryFile.getAbsolutePath());
+		
+		if (!binaryCatalog)
+			return doRunETAS_Simulation(resultsDir, erf, griddedRegion, scenarioRups, histQkList, includeSpontEvents,
+					includeIndirectTriggering, gridSeisDiscr, simulationName, randomSeed, fractionSrcInCubeList, srcInCubeList,
+					inputIsCubeInsideFaultPolygon, etasParams, cubeParams, longTermMFDs, summary, simulationStartTime, null);
+		
+		IncrementalBinaryCatalogWriter simulatedEventsBinaryWriter =
+				new IncrementalBinaryCatalogWriter(binaryFile, simulationStartTime);
+		try {
+			return doRunETAS_Simulation(resultsDir, erf, griddedRegion, scenarioRups, histQkList, includeSpontEvents,
+					includeIndirectTriggering, gridSeisDiscr, simulationName, randomSeed, fractionSrcInCubeList, srcInCubeList,
+					inputIsCubeInsideFaultPolygon, etasParams, cubeParams, longTermMFDs, summary, simulationStartTime,
+					simulatedEventsBinaryWriter);
+		} finally {
+			// no-op if finished, otherwise releases the file (which will be left incomplete)
+			simulatedEventsBinaryWriter.close();
+		}
+	}
+	
+	private static ETAS_SimulationMetadata doRunETAS_Simulation(File resultsDir, AbstractNthRupERF erf,
+			GriddedRegion griddedRegion, List<ETAS_EqkRupture> scenarioRups, List<? extends ObsEqkRupture> histQkList, boolean includeSpontEvents,
+			boolean includeIndirectTriggering, double gridSeisDiscr, String simulationName,
+			Long randomSeed, List<float[]> fractionSrcInCubeList, List<int[]> srcInCubeList, int[] inputIsCubeInsideFaultPolygon, 
+			ETAS_ParameterList etasParams, ETAS_CubeDiscretizationParams cubeParams, ETAS_LongTermMFDs longTermMFDs,
+			ETAS_CatalogSummary summary, long simulationStartTime, IncrementalBinaryCatalogWriter simulatedEventsBinaryWriter)
+					throws IOException {
 		// Overide to Poisson if needed
 		if (etasParams.getU3ETAS_ProbModel() == U3ETAS_ProbabilityModelOptions.POISSON) {
 			erf.setParameter(ProbabilityModelParam.NAME, ProbabilityModelOptions.POISSON);
@@ -258,15 +318,15 @@ public class ETAS_Simulator {
 		// this could be input value
 		SeisDepthDistribution seisDepthDistribution = new SeisDepthDistribution();
 		
-		// directory for saving results
-		if(!resultsDir.exists()) resultsDir.mkdir();
-		
 		// set file for writing simulation info & write some preliminary stuff to it
 		// TODO this is closed below; why the warning?
 		int bufferSize = 1000000;
 		Writer info_fr = new BufferedWriter(new FileWriter(new File(resultsDir, "infoString.txt")), bufferSize);
-		Writer simulatedEventsFileWriter = new BufferedWriter(new FileWriter(new File(resultsDir, "simulatedEvents.txt")), bufferSize);
-		ETAS_CatalogIO.writeEventHeaderToFile(simulatedEventsFileWriter);
+		Writer simulatedEventsFileWriter = null;
+		if (simulatedEventsBinaryWriter == null) {
+			simulatedEventsFileWriter = new BufferedWriter(new FileWriter(new File(resultsDir, "simulatedEvents.txt")), bufferSize);
+			ETAS_CatalogIO.writeEventHeaderToFile(simulatedEventsFileWriter);
+		}
 
 		info_fr.write(simulationName+"\n");
 		info_fr.write("\nrandomSeed="+etas_utils.getRandomSeed()+"\n");
@@ -769,7 +829,12 @@ public class ETAS_Simulator {
 				etas_utils.setETAS_ParamsForRupture(rup, etasParams);
 			}
 			
-			ETAS_CatalogIO.writeEventToFile(simulatedEventsFileWriter, rup);
+			if (simulatedEventsBinaryWriter != null)
+				simulatedEventsBinaryWriter.append(rup);
+			else
+				ETAS_CatalogIO.writeEventToFile(simulatedEventsFileWriter, rup);
+			if (summary != null)
+				summary.addEvent(rup);
 			
 			long rupOT = rup.getOriginTime();
 			
@@ -986,8 +1051,14 @@ public class ETAS_Simulator {
 		info_fr.close();
 		ETAS_SimulationMetadata meta = ETAS_SimulationMetadata.instance(randomSeed, -1, rangeHistCatalogParentIDs, rangeTriggerRupIDs,
 				simulationStartTime, System.currentTimeMillis(), ETAS_Utils.magMin_DEFAULT, simulatedRupsQueue);
-		ETAS_CatalogIO.writeMetadataToFile(simulatedEventsFileWriter, meta);
-		simulatedEventsFileWriter.close();
+		if (simulatedEventsBinaryWriter != null) {
+			simulatedEventsBinaryWriter.finish(meta);
+		} else {
+			ETAS_CatalogIO.writeMetadataToFile(simulatedEventsFileWriter, meta);
+			simulatedEventsFileWriter.close();
+		}
+		if (summary != null)
+			summary.writeSummary(ETAS_CatalogSummary.getSummaryFile(resultsDir));
 
 		ETAS_SimAnalysisTools.writeMemoryUse("Memory at end of simultation");
 		return meta;
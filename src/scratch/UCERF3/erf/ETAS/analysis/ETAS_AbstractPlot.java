@@ -1,8 +1,15 @@
 package scratch.UCERF3.erf.ETAS.analysis;
 
 import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
@@ -16,9 +23,14 @@ import java.util.concurrent.TimeUnit;
 
 import org.opensha.commons.gui.plot.HeadlessGraphPanel;
 import org.opensha.commons.gui.plot.PlotPreferences;
+import org.opensha.commons.util.ClassUtils;
 import org.opensha.commons.util.ExceptionUtils;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import com.google.common.primitives.Doubles;
 
 import scratch.UCERF3.FaultSystemSolution;
@@ -41,6 +53,7 @@ public abstract class ETAS_AbstractPlot {
 	private AsyncManager asyncManager;
 	
 	private int numProcessed = 0;
+	private int numRestored = 0;
 
 	protected ETAS_AbstractPlot(ETAS_Config config, ETAS_Launcher launcher) {
 		this.config = config;
@@ -133,6 +146,184 @@ public abstract class ETAS_AbstractPlot {
 		return numProcessed;
 	}
 	
+	/**
+	 * @return the number of catalogs which were already processed in a previous run and restored via
+	 * restoreState(File, File), or 0 if no state was restored
+	 */
+	public int getNumRestored() {
+		return numRestored;
+	}
+	
+	/**
+	 * If overridden to return true, the intermediate state accumulated by doProcessCatalog can be written to disk
+	 * with writeState(DataOutputStream) and restored with readState(DataInputStream). This allows plots for a
+	 * simulation which is still running to be regenerated by only processing catalogs which have completed since
+	 * the last update. Plots which return true must override both writeState and readState to return true.
+	 * @return
+	 */
+	public boolean isStateCheckpointable() {
+		return false;
+	}
+	
+	/**
+	 * Key describing any configuration which affects the intermediate state of this plot (e.g., prefix, magnitude
+	 * bins, duration). Previously checkpointed state will only be restored if this key and the plot version match.
+	 * Default implementation returns the class name.
+	 * @return
+	 */
+	protected String getStateKey() {
+		return getClass().getName();
+	}
+	
+	/**
+	 * Writes all intermediate state accumulated by doProcessCatalog. Will only be called after any asynchronous
+	 * processing has completed, and before finalization. Default implementation writes nothing and returns false.
+	 * @param out
+	 * @return true if state was written, false if this plot doesn't support checkpointing
+	 * @throws IOException
+	 */
+	protected boolean writeState(DataOutputStream out) throws IOException {
+		return false;
+	}
+	
+	/**
+	 * Restores intermediate state as written by writeState(DataOutputStream). Will only be called before any
+	 * catalogs have been processed. Default implementation reads nothing and returns false.
+	 * @param in
+	 * @return true if state was restored, false if this plot doesn't support checkpointing
+	 * @throws IOException
+	 */
+	protected boolean readState(DataInputStream in) throws IOException {
+		return false;
+	}
+	
+	private static final short STATE_FORMAT_VERSION = 2;
+	
+	/**
+	 * Number of bytes hashed at the start of the input file, and before the end of the previously processed length
+	 */
+	private static final int STATE_HASH_BYTES = 64*1024;
+	
+	/**
+	 * Hashes the first and last STATE_HASH_BYTES of the first length bytes of the input file. Binary catalog files
+	 * only grow while a simulation is running, so this will still match once more catalogs have been appended, but
+	 * not if the file has been replaced (e.g. by a rerun of the simulation with the same output path).
+	 * @param inputFile
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	private static long hashInputPrefix(File inputFile, long length) throws IOException {
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		hasher.putLong(length);
+		try (RandomAccessFile raFile = new RandomAccessFile(inputFile, "r")) {
+			byte[] buffer = new byte[(int)Long.min(length, STATE_HASH_BYTES)];
+			raFile.readFully(buffer);
+			hasher.putBytes(buffer);
+			raFile.seek(length - buffer.length);
+			raFile.readFully(buffer);
+			hasher.putBytes(buffer);
+		}
+		return hasher.hash().asLong();
+	}
+	
+	private File getStateFile(File stateDir) {
+		String key = getStateKey();
+		return new File(stateDir, ClassUtils.getClassNameWithoutPackage(getClass())
+				+"_"+Integer.toHexString(key.hashCode())+".state");
+	}
+	
+	/**
+	 * Catalogs in a binary file are always in the same order, including when a partial file is later finalized.
+	 * Results directories are iterated in name order, and new catalogs can complete before earlier ones, so state
+	 * can only be checkpointed for binary files.
+	 * @param inputFile
+	 * @return name used to verify that the state was computed from the same input, or null if not supported
+	 */
+	private static String getStateInputName(File inputFile) {
+		if (inputFile.isDirectory())
+			return null;
+		String name = inputFile.getAbsolutePath();
+		if (name.endsWith("_partial.bin"))
+			name = name.substring(0, name.length()-"_partial.bin".length())+".bin";
+		return name;
+	}
+	
+	/**
+	 * Attempts to restore intermediate state from a previous checkpoint, if this plot supports checkpointing and
+	 * a matching state file exists. If restored, the first getNumRestored() catalogs from the given input file have
+	 * already been incorporated and should not be passed in again.
+	 * @param stateDir
+	 * @param inputFile
+	 * @return the number of catalogs restored (0 if none)
+	 */
+	public final int restoreState(File stateDir, File inputFile) {
+		Preconditions.checkState(numProcessed == 0, "Can only restore state before processing");
+		String inputName = getStateInputName(inputFile);
+		if (!isStateCheckpointable() || inputName == null)
+			return 0;
+		File stateFile = getStateFile(stateDir);
+		if (!stateFile.exists())
+			return 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+			if (in.readShort() != STATE_FORMAT_VERSION || !getStateKey().equals(in.readUTF())
+					|| in.readInt() != getVersion() || !inputName.equals(in.readUTF()))
+				return 0;
+			long inputLength = in.readLong();
+			long inputHash = in.readLong();
+			if (inputFile.length() < inputLength || hashInputPrefix(inputFile, inputLength) != inputHash) {
+				System.out.println("Input file has been replaced since state was checkpointed for "
+						+ClassUtils.getClassNameWithoutPackage(getClass())+", will process all catalogs");
+				return 0;
+			}
+			int prevProcessed = in.readInt();
+			if (!readState(in))
+				return 0;
+			numProcessed = prevProcessed;
+			numRestored = prevProcessed;
+			return prevProcessed;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Couldn't restore state for "+ClassUtils.getClassNameWithoutPackage(getClass())
+				+", will process all catalogs: "+e.getMessage());
+			return 0;
+		}
+	}
+	
+	/**
+	 * Writes the current intermediate state to disk, if this plot supports checkpointing. Should be called after
+	 * all catalogs have been processed and before finalization.
+	 * @param stateDir
+	 * @param inputFile
+	 * @throws IOException
+	 */
+	public final void checkpointState(File stateDir, File inputFile) throws IOException {
+		String inputName = getStateInputName(inputFile);
+		if (!isStateCheckpointable() || inputName == null)
+			return;
+		if (asyncManager != null)
+			asyncManager.waitOnFutures();
+		Preconditions.checkState(stateDir.exists() || stateDir.mkdir(),
+				"State dir doesn't exist and couldn't be created: %s", stateDir.getAbsolutePath());
+		File stateFile = getStateFile(stateDir);
+		File tmpFile = new File(stateDir, stateFile.getName()+".tmp");
+		boolean written;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+			out.writeShort(STATE_FORMAT_VERSION);
+			out.writeUTF(getStateKey());
+			out.writeInt(getVersion());
+			out.writeUTF(inputName);
+			long inputLength = inputFile.length();
+			out.writeLong(inputLength);
+			out.writeLong(hashInputPrefix(inputFile, inputLength));
+			out.writeInt(numProcessed);
+			written = writeState(out);
+		}
+		if (written)
+			Files.move(tmpFile, stateFile);
+		else
+			tmpFile.delete();
+	}
+	
 	public long getProcessTimeMS() {
 		return processStopwatch.elapsed(TimeUnit.MILLISECONDS);
 	}
@@ -1,9 +1,12 @@
 package scratch.UCERF3.erf.ETAS.analysis;
 
 import java.awt.Color;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -103,6 +106,56 @@ public class ETAS_GriddedNucleationPlot extends ETAS_AbstractPlot {
 		return hasTriggered;
 	}
 
+	@Override
+	public boolean isStateCheckpointable() {
+		return true;
+	}
+
+	@Override
+	protected String getStateKey() {
+		return super.getStateKey()+"_"+prefix+"_"+hasSpont+"_"+hasTriggered+"_"+discr+"_"+Arrays.toString(mags);
+	}
+
+	@Override
+	protected boolean writeState(DataOutputStream out) throws IOException {
+		out.writeInt(numCatalogs);
+		out.writeInt(numRupsSkipped);
+		for (int i=0; i<totalIncrCounts.size(); i++)
+			out.writeDouble(totalIncrCounts.getY(i));
+		writeXYZs(out, totalXYZs);
+		writeXYZs(out, triggeredXYZs);
+		writeXYZs(out, triggeredPrimaryXYZs);
+		return true;
+	}
+
+	@Override
+	protected boolean readState(DataInputStream in) throws IOException {
+		numCatalogs = in.readInt();
+		numRupsSkipped = in.readInt();
+		for (int i=0; i<totalIncrCounts.size(); i++)
+			totalIncrCounts.set(i, in.readDouble());
+		readXYZs(in, totalXYZs);
+		readXYZs(in, triggeredXYZs);
+		readXYZs(in, triggeredPrimaryXYZs);
+		return true;
+	}
+
+	private static void writeXYZs(DataOutputStream out, GriddedGeoDataSet[] xyzs) throws IOException {
+		if (xyzs == null)
+			return;
+		for (GriddedGeoDataSet xyz : xyzs)
+			for (int i=0; i<xyz.size(); i++)
+				out.writeDouble(xyz.get(i));
+	}
+
+	private static void readXYZs(DataInputStream in, GriddedGeoDataSet[] xyzs) throws IOException {
+		if (xyzs == null)
+			return;
+		for (GriddedGeoDataSet xyz : xyzs)
+			for (int i=0; i<xyz.size(); i++)
+				xyz.set(i, in.readDouble());
+	}
+
 	@Override
 	protected void doProcessCatalog(ETAS_Catalog completeCatalog, ETAS_Catalog triggeredOnlyCatalog,
 			FaultSystemSolution fss) {
@@ -2,9 +2,12 @@ package scratch.UCERF3.erf.ETAS.analysis;
 
 import java.awt.Color;
 import java.awt.geom.Point2D;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 
@@ -78,6 +81,56 @@ public class ETAS_StationarityPlot extends ETAS_AbstractPlot {
 		return false;
 	}
 
+	@Override
+	public boolean isStateCheckpointable() {
+		return true;
+	}
+
+	@Override
+	protected String getStateKey() {
+		return super.getStateKey()+"_"+prefix+"_"+xVals.size()+"_"+Arrays.toString(mags);
+	}
+
+	@Override
+	protected boolean writeState(DataOutputStream out) throws IOException {
+		for (int i=0; i<totalCountHist.size(); i++)
+			out.writeDouble(totalCountHist.getY(i));
+		out.writeInt(simFuncs.size());
+		for (int s=0; s<simFuncs.size(); s++) {
+			for (EvenlyDiscretizedFunc magFunc : simFuncs.get(s))
+				writeYVals(out, magFunc);
+			writeYVals(out, simMomFuncs.get(s));
+		}
+		return true;
+	}
+
+	@Override
+	protected boolean readState(DataInputStream in) throws IOException {
+		for (int i=0; i<totalCountHist.size(); i++)
+			totalCountHist.set(i, in.readDouble());
+		int numSims = in.readInt();
+		for (int s=0; s<numSims; s++) {
+			EvenlyDiscretizedFunc[] magFuncs = new EvenlyDiscretizedFunc[mags.length];
+			for (int m=0; m<mags.length; m++)
+				magFuncs[m] = readYVals(in);
+			simFuncs.add(magFuncs);
+			simMomFuncs.add(readYVals(in));
+		}
+		return true;
+	}
+
+	private static void writeYVals(DataOutputStream out, EvenlyDiscretizedFunc func) throws IOException {
+		for (int i=0; i<func.size(); i++)
+			out.writeDouble(func.getY(i));
+	}
+
+	private EvenlyDiscretizedFunc readYVals(DataInputStream in) throws IOException {
+		EvenlyDiscretizedFunc func = new EvenlyDiscretizedFunc(xVals.getMinX(), xVals.getMaxX(), xVals.size());
+		for (int i=0; i<func.size(); i++)
+			func.set(i, in.readDouble());
+		return func;
+	}
+
 	@Override
 	protected void doProcessCatalog(ETAS_Catalog completeCatalog, ETAS_Catalog triggeredOnlyCatalog,
 			FaultSystemSolution fss) {
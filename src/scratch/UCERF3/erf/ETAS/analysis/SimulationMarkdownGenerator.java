@@ -445,7 +445,8 @@ public class SimulationMarkdownGenerator {
 				if (maxCatalogs > 0 && maxCatalogs < compNumSims)
 					compNumSims = maxCatalogs;
 				if (meta.simulationsProcessed < compNumSims) {
-					System.out.println("Reprocessing all plots as previous version was on incomplete simulation");
+					System.out.println("Reprocessing all plots as previous version was on incomplete simulation "
+							+ "(resuming from checkpointed state where available)");
 				} else if (meta.plots != null ) {
 					Map<String, ETAS_AbstractPlot> plotClassNameMap = new HashMap<>();
 					for (ETAS_AbstractPlot plot : plots)
@@ -508,6 +509,25 @@ public class SimulationMarkdownGenerator {
 		
 		Preconditions.checkState(!plotsToProcess.isEmpty(), "No plots to process?");
 		
+		// restore any checkpointed intermediate state so that we only need to process new catalogs. state isn't
+		// used or written when the number of catalogs is limited, as it could include catalogs beyond that limit
+		File stateDir = new File(plotsDir, "state");
+		boolean useState = maxCatalogs <= 0;
+		Map<ETAS_AbstractPlot, Integer> plotNumRestored = new HashMap<>();
+		int minRestored = Integer.MAX_VALUE;
+		for (ETAS_AbstractPlot plot : plotsToProcess) {
+			int numRestored = 0;
+			if (useState && !forceUpdateAll && stateDir.exists()) {
+				numRestored = plot.restoreState(stateDir, inputFile);
+				if (numRestored > 0)
+					System.out.println("\tRestored state for "+ClassUtils.getClassNameWithoutPackage(plot.getClass())
+						+" with "+numRestored+" catalogs already processed");
+			}
+			plotNumRestored.put(plot, numRestored);
+			minRestored = Integer.min(minRestored, numRestored);
+		}
+		final int minCatalogIndex = minRestored;
+		
 		// process catalogs
 		Stopwatch totalProcessWatch = Stopwatch.createStarted();
 		double loadMag = inputFile.isDirectory() && !config.hasTriggers() ? getPreferredMinMag(config) : 0d;
@@ -516,12 +536,15 @@ public class SimulationMarkdownGenerator {
 			
 			@Override
 			public void processCatalog(ETAS_Catalog catalog, int index) {
+				if (index < minCatalogIndex)
+					// already processed by all plots
+					return;
 				ETAS_Catalog triggeredOnlyCatalog = null;
 				if (isFilterSpontaneous)
 					triggeredOnlyCatalog = ETAS_Launcher.getFilteredNoSpontaneous(config, catalog);
 				for (ETAS_AbstractPlot plot : plots) {
 					try {
-						if (plotsToProcess.contains(plot))
+						if (plotsToProcess.contains(plot) && index >= plotNumRestored.get(plot))
 							plot.processCatalog(catalog, triggeredOnlyCatalog, fss);
 					} catch (Exception e) {
 						System.err.println("Error processing catalog with plot "
@@ -540,6 +563,24 @@ public class SimulationMarkdownGenerator {
 		if (numProcessed == 0)
 			return null;
 		
+		for (ETAS_AbstractPlot plot : new ArrayList<>(plotsToProcess)) {
+			if (plot.getNumRestored() > numProcessed) {
+				System.err.println("Restored state for "+ClassUtils.getClassNameWithoutPackage(plot.getClass())
+					+" included "+plot.getNumRestored()+" catalogs, but only "+numProcessed+" found. Disabling plot");
+				plotsToProcess.remove(plot);
+				continue;
+			}
+			if (!useState)
+				continue;
+			try {
+				plot.checkpointState(stateDir, inputFile);
+			} catch (Exception e) {
+				System.err.println("Error checkpointing state for "+ClassUtils.getClassNameWithoutPackage(plot.getClass())
+					+", will reprocess all catalogs next time");
+				e.printStackTrace();
+			}
+		}
+		
 		List<String> lines = new ArrayList<>();
 		
 		String simName = config.getSimulationName();
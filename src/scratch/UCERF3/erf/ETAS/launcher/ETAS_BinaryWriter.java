@@ -2,6 +2,8 @@ package scratch.UCERF3.erf.ETAS.launcher;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -11,12 +13,19 @@ import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.opensha.commons.util.ClassUtils;
 import org.opensha.commons.util.ExceptionUtils;
 
 import com.google.common.base.Preconditions;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
@@ -41,17 +50,64 @@ class ETAS_BinaryWriter {
 			writers.add(new InProgressWriter(outputDir, numCatalogs, config, binaryConfig));
 	}
 	
+	/**
+	 * @return indexes of catalogs that have been written and synced to disk by every output
+	 */
 	public HashSet<Integer> getDoneIndexes() {
 		HashSet<Integer> doneSet = null;
 		for (InProgressWriter writer : writers) {
 			if (doneSet == null)
-				doneSet = writer.doneSet;
+				doneSet = new HashSet<>(writer.doneSet);
 			else
 				doneSet.retainAll(writer.doneSet);
 		}
 		return doneSet;
 	}
 	
+	/**
+	 * @param binFile consolidated binary catalogs file
+	 * @return file containing the catalog offset index for the given binary catalogs file
+	 */
+	public static File getIndexFile(File binFile) {
+		String name = binFile.getName();
+		Preconditions.checkArgument(name.endsWith(".bin"), "Not a binary catalogs file: %s", name);
+		return new File(binFile.getParentFile(), name.substring(0, name.length()-4)+"_index.bin");
+	}
+	
+	/**
+	 * Loads a catalog offset index written alongside a consolidated binary catalogs file.
+	 * 
+	 * @param indexFile
+	 * @return map from catalog index to the byte offset in the binary catalogs file at which that catalog begins,
+	 * sorted by catalog index. Catalogs can be read directly from those offsets with
+	 * {@link ETAS_CatalogIO#loadCatalogBinary(java.io.InputStream, double)}
+	 * @throws IOException
+	 */
+	public static Map<Integer, Long> loadCatalogIndex(File indexFile) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			int num = in.readInt();
+			Preconditions.checkState(num >= 0, "Bad number of index entries: %s", num);
+			Map<Integer, Long> offsets = new TreeMap<>();
+			for (int i=0; i<num; i++) {
+				int catalogIndex = in.readInt();
+				long offset = in.readLong();
+				Preconditions.checkState(offsets.put(catalogIndex, offset) == null,
+						"Duplicate catalog index encountered: %s", catalogIndex);
+			}
+			return offsets;
+		}
+	}
+	
+	private static void writeCatalogIndex(File indexFile, Map<Integer, Long> offsets) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+			out.writeInt(offsets.size());
+			for (Map.Entry<Integer, Long> entry : offsets.entrySet()) {
+				out.writeInt(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+		}
+	}
+	
 	public static File locateCatalogFile(File catalogDir) {
 		// check ASCII first
 		File asciiFile = new File(catalogDir, "simulatedEvents.txt");
@@ -101,6 +157,13 @@ class ETAS_BinaryWriter {
 //		System.out.println("DONE PROCESSING WRITERS FOR: "+catalogFile.getAbsolutePath());
 	}
 	
+	/**
+	 * Filters and encodes the given catalog in the calling thread, then queues it to be written. This is thread safe
+	 * and does not block on the output files, which are written by a single writer thread per output.
+	 * 
+	 * @param catalog
+	 * @throws IOException if a previous write has failed
+	 */
 	public void processCatalog(ETAS_Catalog catalog) throws IOException {
 		for (InProgressWriter writer : writers) {
 //			System.out.println("\tPROCESSING WRITER: "+writer.inProgressFile.getName());
@@ -108,10 +171,14 @@ class ETAS_BinaryWriter {
 		}
 	}
 	
+	/**
+	 * Blocks until all catalogs queued so far have been written and synced to disk
+	 * 
+	 * @throws IOException
+	 */
 	public void flushWriters() throws IOException {
 		for (InProgressWriter writer : writers)
-			if (writer.dOut != null)
-				writer.dOut.flush();
+			writer.flush();
 	}
 	
 	public void finalize() throws IOException {
@@ -119,24 +186,86 @@ class ETAS_BinaryWriter {
 			writer.finalize();
 	}
 	
+	/**
+	 * Queued item for the writer thread. Either encoded catalog bytes (and the catalog index, or -1 if unknown), or a
+	 * control marker (flush/close) with a latch that will be released once the writer thread has processed everything
+	 * queued before it.
+	 */
+	private static class StagedCatalog {
+		private final byte[] bytes;
+		private final int catalogIndex;
+		private final boolean close;
+		private final CountDownLatch latch;
+		
+		private StagedCatalog(byte[] bytes, int catalogIndex) {
+			this.bytes = bytes;
+			this.catalogIndex = catalogIndex;
+			this.close = false;
+			this.latch = null;
+		}
+		
+		private StagedCatalog(boolean close) {
+			this.bytes = null;
+			this.catalogIndex = -1;
+			this.close = close;
+			this.latch = new CountDownLatch(1);
+		}
+	}
+	
+	/**
+	 * Thread-local encoding buffers, so that worker threads never contend with each other while serializing
+	 */
+	private static final ThreadLocal<ByteArrayOutputStream> encodeBuffers =
+			ThreadLocal.withInitial(() -> new ByteArrayOutputStream(1024*64));
+	
+	/**
+	 * Maximum time between fsync calls on the in-progress file while catalogs are being written
+	 */
+	private static final long SYNC_INTERVAL_MILLIS = 60000l;
+	/**
+	 * Maximum number of catalogs to write in a single batch before checking if we need to sync
+	 */
+	private static final int MAX_BATCH_SIZE = 100;
+	
 	private class InProgressWriter {
 		
 		private File inProgressFile;
 		private File destFile;
+		
+		// these are only accessed from the writer thread once it has been started
 		private DataOutputStream dOut;
+		private FileOutputStream fOut;
+		private long lastSyncTime;
+		// file offset at which the next catalog will be written
+		private long writePos;
+		// file offset of each catalog written so far, for the index
+		private Map<Integer, Long> offsets;
+		// catalogs that have been written but not yet synced
+		private List<Integer> pendingDone;
 
 		private int numCatalogs;
 		private BinaryFilteredOutputConfig binaryConf;
 		private ETAS_Config config;
 		
-		private HashSet<Integer> doneSet;
-		private boolean warnedNoMeta = false;
+		// catalogs that have been written and synced
+		private Set<Integer> doneSet;
+		// catalogs that have been queued (or already written), used to skip duplicates
+		private Set<Integer> queuedSet;
+		private volatile boolean warnedNoMeta = false;
+		
+		private ConcurrentLinkedQueue<StagedCatalog> queue;
+		private volatile Thread writerThread;
+		private volatile IOException writeException;
 
 		public InProgressWriter(File outputDir, int numCatalogs, ETAS_Config config, BinaryFilteredOutputConfig binaryConf) throws IOException {
 			this.numCatalogs = numCatalogs;
 			this.binaryConf = binaryConf;
 			this.config = config;
-			this.doneSet = new HashSet<>();
+			this.doneSet = ConcurrentHashMap.newKeySet();
+			this.queuedSet = ConcurrentHashMap.newKeySet();
+			this.queue = new ConcurrentLinkedQueue<>();
+			this.offsets = new TreeMap<>();
+			this.pendingDone = new ArrayList<>();
 			
 			if (outputDir != null) {
 				String prefix = binaryConf.getPrefix();
@@ -146,6 +275,7 @@ class ETAS_BinaryWriter {
 					BinarayCatalogsMetadataIterator metadataIt = ETAS_CatalogIO.getBinaryCatalogsMetadataIterator(inProgressFile);
 					
 					long writePos = -1;
+					long startPos = ETAS_CatalogIO.CATALOGS_HEADER_LEN;
 					while (metadataIt.hasNext()) {
 						if (!metadataIt.isNextFullyWritten())
 							// partial, stop here
@@ -156,7 +286,9 @@ class ETAS_BinaryWriter {
 							Preconditions.checkState(!doneSet.contains(meta.catalogIndex),
 									"Duplicate catalog index encountered: %s", meta.catalogIndex);
 							doneSet.add(meta.catalogIndex);
+							offsets.put(meta.catalogIndex, startPos);
 							writePos = endIndex;
+							startPos = endIndex;
 						} else {
 							System.out.println("Old catalog format encountered without metadata, can't restart this (or subsequent) catalogs");
 							break;
@@ -176,17 +308,39 @@ class ETAS_BinaryWriter {
 							System.out.println("Write position is before end, will overwrite "+overwrite+" bytes (current lengh="+len+")");
 						}
 						raFile.seek(writePos);
-						FileOutputStream fout = new FileOutputStream(raFile.getFD());
-						dOut = new DataOutputStream(new BufferedOutputStream(fout, ETAS_CatalogIO.buffer_len));
+						fOut = new FileOutputStream(raFile.getFD());
+						dOut = new DataOutputStream(new BufferedOutputStream(fOut, ETAS_CatalogIO.buffer_len));
+						this.writePos = writePos;
 					}
+					queuedSet.addAll(doneSet);
 				}
 				destFile = new File(outputDir, prefix+".bin");
 			}
 		}
 		
-		public synchronized void processCatalog(ETAS_Catalog catalog) throws IOException {
-			if (dOut == null)
-				dOut = ETAS_CatalogIO.initCatalogsBinary(inProgressFile, numCatalogs);
+		private void checkWriteException() throws IOException {
+			if (writeException != null)
+				throw new IOException("Exception in binary writer thread for "+inProgressFile.getName(), writeException);
+		}
+		
+		private synchronized void checkStartWriterThread() {
+			// only synchronized until the thread has been started (double checked below)
+			if (writerThread != null)
+				return;
+			writerThread = new Thread(this::writeLoop, "ETAS binary writer: "+inProgressFile.getName());
+			writerThread.setDaemon(true);
+			writerThread.start();
+		}
+		
+		private void enqueue(StagedCatalog staged) throws IOException {
+			checkWriteException();
+			if (writerThread == null)
+				checkStartWriterThread();
+			queue.add(staged);
+			LockSupport.unpark(writerThread);
+		}
+		
+		public void processCatalog(ETAS_Catalog catalog) throws IOException {
 			ETAS_SimulationMetadata meta = catalog.getSimulationMetadata();
 			if (meta == null) {
 				if (!warnedNoMeta) {
@@ -195,32 +349,143 @@ class ETAS_BinaryWriter {
 				}
 			} else {
 				Preconditions.checkState(meta.catalogIndex >= 0, "Bad catalog index: %s", meta.catalogIndex);
-				if (doneSet.contains(meta.catalogIndex)) {
+				if (!queuedSet.add(meta.catalogIndex)) {
 					System.err.println("WARNING: already processed index "+meta.catalogIndex+", skipping");
 					return;
 				}
 			}
 			catalog = binaryConf.filter(config, catalog);
-			ETAS_CatalogIO.writeCatalogBinary(dOut, catalog);
-			if (meta != null)
-				doneSet.add(meta.catalogIndex);
-//			dOut.flush();
+			// encode in this thread into a thread local buffer
+			ByteArrayOutputStream buffer = encodeBuffers.get();
+			byte[] bytes;
+			try {
+				ETAS_CatalogIO.writeCatalogBinary(new DataOutputStream(buffer), catalog);
+				bytes = buffer.toByteArray();
+			} finally {
+				// always reset, otherwise a partially encoded catalog would be prepended to the next one
+				buffer.reset();
+			}
+			enqueue(new StagedCatalog(bytes, meta == null ? -1 : meta.catalogIndex));
 		}
 		
-		public synchronized void processPreStaged(int index, File catalogDir) throws IOException {
-			if (dOut == null)
-				dOut = ETAS_CatalogIO.initCatalogsBinary(inProgressFile, numCatalogs);
+		public void processPreStaged(int index, File catalogDir) throws IOException {
+			if (!queuedSet.add(index)) {
+				System.err.println("WARNING: already processed index "+index+", skipping");
+				return;
+			}
 			File stagedFile = binaryConf.getPreStagedCatalogFile(catalogDir);
-			BufferedInputStream in = new BufferedInputStream(new FileInputStream(stagedFile));
-			ByteStreams.copy(in, dOut);
-			in.close();
-			doneSet.add(index);
-//			dOut.flush();
+			enqueue(new StagedCatalog(Files.toByteArray(stagedFile), index));
+		}
+		
+		/**
+		 * Blocks until everything queued so far has been written and synced to disk
+		 */
+		public void flush() throws IOException {
+			if (writerThread == null)
+				// nothing has ever been queued
+				return;
+			StagedCatalog marker = new StagedCatalog(false);
+			enqueue(marker);
+			awaitMarker(marker);
+			checkWriteException();
+		}
+		
+		private void awaitMarker(StagedCatalog marker) throws IOException {
+			try {
+				while (!marker.latch.await(1, TimeUnit.SECONDS)) {
+					checkWriteException();
+					if (!writerThread.isAlive())
+						throw new IllegalStateException("Binary writer thread died for "+inProgressFile.getName());
+				}
+			} catch (InterruptedException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
+		
+		private void writeLoop() {
+			lastSyncTime = System.currentTimeMillis();
+			try {
+				while (true) {
+					StagedCatalog staged = queue.poll();
+					if (staged == null) {
+						// nothing to do, sync if we're due and then wait for more work
+						if (System.currentTimeMillis() - lastSyncTime >= SYNC_INTERVAL_MILLIS)
+							sync();
+						LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+						continue;
+					}
+					int batchSize = 0;
+					while (staged != null) {
+						if (staged.latch != null) {
+							// control marker, everything before it has been written
+							sync();
+							if (staged.close && dOut != null) {
+								dOut.close();
+								dOut = null;
+								fOut = null;
+							}
+							staged.latch.countDown();
+							if (staged.close)
+								return;
+						} else {
+							write(staged);
+							batchSize++;
+						}
+						if (batchSize >= MAX_BATCH_SIZE)
+							break;
+						staged = queue.poll();
+					}
+					if (System.currentTimeMillis() - lastSyncTime >= SYNC_INTERVAL_MILLIS)
+						sync();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				writeException = e;
+			}
+		}
+		
+		private void write(StagedCatalog staged) throws IOException {
+			if (dOut == null) {
+				fOut = new FileOutputStream(inProgressFile);
+				dOut = ETAS_CatalogIO.initCatalogsBinary(fOut, numCatalogs);
+				writePos = ETAS_CatalogIO.CATALOGS_HEADER_LEN;
+			}
+			dOut.write(staged.bytes);
+			if (staged.catalogIndex >= 0) {
+				offsets.put(staged.catalogIndex, writePos);
+				pendingDone.add(staged.catalogIndex);
+			}
+			writePos += staged.bytes.length;
+		}
+		
+		private void sync() throws IOException {
+			if (dOut != null) {
+				dOut.flush();
+				fOut.getFD().sync();
+			}
+			// only now are these catalogs safely on disk
+			doneSet.addAll(pendingDone);
+			pendingDone.clear();
+			lastSyncTime = System.currentTimeMillis();
 		}
 		
 		public void finalize() throws IOException {
-			dOut.close();
-			Files.move(inProgressFile, destFile);
+			checkStartWriterThread();
+			StagedCatalog marker = new StagedCatalog(true);
+			enqueue(marker);
+			awaitMarker(marker);
+			checkWriteException();
+			try {
+				writerThread.join();
+			} catch (InterruptedException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+			if (inProgressFile.exists()) {
+				Files.move(inProgressFile, destFile);
+				writeCatalogIndex(getIndexFile(destFile), offsets);
+			} else
+				System.err.println("WARNING: no catalogs were written to "+inProgressFile.getName()
+					+", not creating "+destFile.getName());
 		}
 	}
 	
@@ -37,6 +37,7 @@ import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
 import scratch.UCERF3.erf.ETAS.ETAS_SimAnalysisTools;
 import scratch.UCERF3.erf.ETAS.ETAS_SimulationMetadata;
 import scratch.UCERF3.erf.ETAS.ETAS_Params.U3ETAS_ProbabilityModelOptions;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogSummary;
 import scratch.UCERF3.erf.ETAS.ETAS_Params.U3ETAS_StatewideCatalogCompletenessParam;
 import scratch.UCERF3.utils.FaultSystemIO;
 import scratch.UCERF3.utils.U3_EqkCatalogStatewideCompleteness;
@@ -57,6 +58,8 @@ public class ETAS_Config {
 	private String simulationName = null;
 	private int numRetries = 3;
 	private File outputDir;
+	private boolean writeCatalogSummaries = false;
+	private double[] catalogSummaryMagThresholds = null;
 	
 	// input ruptures
 	private File triggerCatalog = null;
@@ -1098,6 +1101,30 @@ public class ETAS_Config {
 		return comcatMetadata;
 	}
 
+	/**
+	 * @return true if a per-catalog summary sidecar file should be written for each simulation
+	 */
+	public boolean isWriteCatalogSummaries() {
+		return writeCatalogSummaries;
+	}
+
+	public void setWriteCatalogSummaries(boolean writeCatalogSummaries) {
+		this.writeCatalogSummaries = writeCatalogSummaries;
+	}
+
+	/**
+	 * @return magnitude thresholds tracked in per-catalog summary files, or the defaults if not specified
+	 */
+	public double[] getCatalogSummaryMagThresholds() {
+		if (catalogSummaryMagThresholds == null)
+			return ETAS_CatalogSummary.DEFAULT_MAG_THRESHOLDS;
+		return catalogSummaryMagThresholds;
+	}
+
+	public void setCatalogSummaryMagThresholds(double[] catalogSummaryMagThresholds) {
+		this.catalogSummaryMagThresholds = catalogSummaryMagThresholds;
+	}
+
 	public String getConfigCommand() {
 		return configCommand;
 	}
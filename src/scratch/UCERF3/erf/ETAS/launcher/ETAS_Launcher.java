@@ -72,6 +72,7 @@ import scratch.UCERF3.enumTreeBranches.FaultModels;
 import scratch.UCERF3.enumTreeBranches.SpatialSeisPDF;
 import scratch.UCERF3.enumTreeBranches.TotalMag5Rate;
 import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogSummary;
 import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO.ETAS_Catalog;
 import scratch.UCERF3.erf.ETAS.ETAS_CubeDiscretizationParams;
 import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
@@ -908,7 +909,10 @@ public class ETAS_Launcher {
 						meta = ETAS_Simulator.runETAS_Simulation(tempResultsDir, (FaultSystemSolutionERF_ETAS)erf, griddedRegion,
 								triggers, histQkList, config.isIncludeSpontaneous(), config.isIncludeIndirectTriggering(),
 								config.getGridSeisDiscr(), simulationName, randSeed,
-								fractionSrcAtPointList, srcAtPointList, isCubeInsideFaultPolygon, params, cubeParams, longTermMFDs);
+								fractionSrcAtPointList, srcAtPointList, isCubeInsideFaultPolygon, params, cubeParams, longTermMFDs,
+								config.isWriteCatalogSummaries() ?
+										new ETAS_CatalogSummary(config.getCatalogSummaryMagThresholds(), sol.getRupSet()) : null,
+								config.isBinaryOutput());
 					}
 					meta = meta.getModCatalogIndex(index);
 					
@@ -916,7 +920,25 @@ public class ETAS_Launcher {
 					File asciiFile = new File(tempResultsDir, "simulatedEvents.txt");
 					ETAS_Catalog catalog = null;
 					waitOnDirCreation(resultsDir, 5, 2000);
-					if (config.isBinaryOutput()) {
+					File summaryFile = ETAS_CatalogSummary.getSummaryFile(tempResultsDir);
+					if (summaryFile.exists() && !tempResultsDir.equals(resultsDir))
+						Files.copy(summaryFile, ETAS_CatalogSummary.getSummaryFile(resultsDir));
+					// fault based simulations write binary directly when binary output is enabled, gridded only
+					// simulations always write ASCII
+					boolean simulatedBinary = config.isBinaryOutput() && !config.isGriddedOnly();
+					if (simulatedBinary) {
+						// already written as binary by the simulator, just need to set the catalog index
+						File tempBinaryFile = new File(tempResultsDir, "simulatedEvents.bin");
+						ETAS_CatalogIO.updateBinaryMetadata(tempBinaryFile, meta);
+						File binaryFile = new File(resultsDir, "simulatedEvents.bin");
+						if (!tempBinaryFile.equals(binaryFile))
+							Files.move(tempBinaryFile, binaryFile);
+						// make sure that a stale ASCII catalog from a previous run is never loaded instead
+						File staleAscii = new File(resultsDir, asciiFile.getName());
+						if (staleAscii.exists())
+							staleAscii.delete();
+						debug("completed binary output "+index);
+					} else if (config.isBinaryOutput()) {
 						// convert to binary
 						catalog = ETAS_CatalogIO.loadCatalog(asciiFile);
 						catalog.setSimulationMetadata(meta);
@@ -943,7 +965,7 @@ public class ETAS_Launcher {
 					}
 					if (binaryPreStage) {
 						if (catalog == null)
-							catalog = ETAS_CatalogIO.loadCatalog(asciiFile);
+							catalog = ETAS_CatalogIO.loadCatalog(ETAS_BinaryWriter.locateCatalogFile(resultsDir));
 						preStage(index, catalog, resultsDir);
 					}
 					success = true;
@@ -40,6 +40,8 @@ import com.google.common.primitives.Ints;
 
 import scratch.UCERF3.CompoundFaultSystemSolution;
 import scratch.UCERF3.FaultSystemRupSet;
+import scratch.UCERF3.FaultSystemSolutionFetcher.BranchLoader;
+import scratch.UCERF3.FaultSystemSolutionFetcher.BranchPrefetcher;
 import scratch.UCERF3.FaultSystemSolution;
 import scratch.UCERF3.enumTreeBranches.DeformationModels;
 import scratch.UCERF3.enumTreeBranches.FaultModels;
@@ -343,132 +345,148 @@ public class TrueMeanBuilder {
 		// keyed to just FM, DM, Scale
 		Map<LogicTreeBranch, boolean[]> minMagArrays = Maps.newHashMap();
 		
-		for (LogicTreeBranch branch : branches) {
-			FaultModels fm = branch.getValue(FaultModels.class);
-			// mapping from FM IDs to global IDs
-			Map<Integer, Integer> globalRupIDsMap = fmGlobalRupIDsMaps.get(fm);
-			Map<Integer, Integer> globalSectIDsMap = fmGlobalSectIDsMaps.get(fm);
-
-			// loading things this way is more efficient than loading the whole solution in
-			// we only do that if needed.
-			double[] mags = cfss.getMags(branch);
-			double[] rates = cfss.getRates(branch);
-			double[] areas = cfss.loadDoubleArray(branch, "rup_areas.bin");
-			double[] rakes = cfss.loadDoubleArray(branch, "rakes.bin");
-			
-			origNumRups += mags.length;
-			origNumSects += fmGlobalSectIDsMaps.get(fm).size();
+		// load the arrays for upcoming branches in the background
+		BranchPrefetcher<double[][]> prefetcher = new BranchPrefetcher<double[][]>(branches,
+				new BranchLoader<double[][]>() {
 
-			double scaledWt = weightProvider.getWeight(branch) / totWeight;
+					@Override
+					public double[][] load(LogicTreeBranch branch) {
+						return new double[][] { cfss.getMags(branch), cfss.getRates(branch),
+							cfss.loadDoubleArray(branch, "rup_areas.bin"), cfss.loadDoubleArray(branch, "rakes.bin") };
+					}
+				}, 2, 4);
+		
+		try {
+			for (LogicTreeBranch branch : branches) {
+				FaultModels fm = branch.getValue(FaultModels.class);
+				// mapping from FM IDs to global IDs
+				Map<Integer, Integer> globalRupIDsMap = fmGlobalRupIDsMaps.get(fm);
+				Map<Integer, Integer> globalSectIDsMap = fmGlobalSectIDsMaps.get(fm);
 
-			List<? extends FaultSection> fsd = null;
-			InversionFaultSystemRupSet rupSet = null;
-			
-			LogicTreeBranch fmDmScaleBranch = (LogicTreeBranch) branch.clone();
-			for (int i=0; i<branch.size(); i++) {
-				LogicTreeBranchNode<?> val = branch.getValue(i);
-				if (!(val instanceof FaultModels || val instanceof DeformationModels || val instanceof ScalingRelationships))
-					fmDmScaleBranch.clearValue(i);
-			}
-			boolean[] belowMinMag = minMagArrays.get(fmDmScaleBranch);
-			if (belowMinMag == null) {
-				// we need to load the rupSet
-				rupSet = cfss.getSolution(branch).getRupSet();
-				fsd = rupSet.getFaultSectionDataList();
-				rupSetCount++;
-				belowMinMag = rupSet.getRuptureBelowSectMinMagArray();
-//				int numBelows = 0;
-//				for (boolean below : belowMinMag)
-//					if (below)
-//						numBelows++;
-//				System.out.println("Loaded belows. "+numBelows+"/"+belowMinMag.length+" are below. Branch: "+fmDmScaleBranch);
-				minMagArrays.put(fmDmScaleBranch, belowMinMag);
-			}
-			
-			boolean print = false;
-			for (int r=0; r<mags.length; r++) {
-				// check if it's below sect min mag (and should be skipped)
-				if (belowMinMag[r])
-					continue;
+				// loading things this way is more efficient than loading the whole solution in
+				// we only do that if needed.
+				double[][] loaded = prefetcher.get(branch);
+				double[] mags = loaded[0];
+				double[] rates = loaded[1];
+				double[] areas = loaded[2];
+				double[] rakes = loaded[3];
 				
-				int globalRupID = globalRupIDsMap.get(r);
-				HashMap<UniqueRupture, UniqueRupture> rupRates = uniqueRupturesList.get(globalRupID);
+				origNumRups += mags.length;
+				origNumSects += fmGlobalSectIDsMaps.get(fm).size();
+
+				double scaledWt = weightProvider.getWeight(branch) / totWeight;
 
-				UniqueRupture rup = new UniqueRupture(globalRupID, rakes[r], areas[r]);
-				double scaledRate = rates[r] * scaledWt;
+				List<? extends FaultSection> fsd = null;
+				InversionFaultSystemRupSet rupSet = null;
 				
-				// see if we already have a matching rupture
-				UniqueRupture matchedRup = rupRates.get(rup);
-				if (matchedRup == null) {
-					// this is a new rupture (either first for this global ID, or has a property
-					// change such as rake/area
-					
-					// see if we're done and it's just belowSectMinMag rups
-					// if we haven't added anything for a ton of branches then assume done
-					int numSinceChanged = branchCnt - lastChangedBranch;
-					if (numSinceChanged > 150 || (numSinceChanged > 10 && uniqueRupCount == 1634466))
-						continue;
-					// FM3.1
-					if (fms.length == 1 && numSinceChanged > 10 && uniqueRupCount == 930563)
-						continue;
-					// FM3.2
-					if (fms.length == 1 && numSinceChanged > 10 && uniqueRupCount == 1128358)
+				LogicTreeBranch fmDmScaleBranch = (LogicTreeBranch) branch.clone();
+				for (int i=0; i<branch.size(); i++) {
+					LogicTreeBranchNode<?> val = branch.getValue(i);
+					if (!(val instanceof FaultModels || val instanceof DeformationModels || val instanceof ScalingRelationships))
+						fmDmScaleBranch.clearValue(i);
+				}
+				boolean[] belowMinMag = minMagArrays.get(fmDmScaleBranch);
+				if (belowMinMag == null) {
+					// we need to load the rupSet
+					rupSet = cfss.getSolution(branch).getRupSet();
+					fsd = rupSet.getFaultSectionDataList();
+					rupSetCount++;
+					belowMinMag = rupSet.getRuptureBelowSectMinMagArray();
+	//				int numBelows = 0;
+	//				for (boolean below : belowMinMag)
+	//					if (below)
+	//						numBelows++;
+	//				System.out.println("Loaded belows. "+numBelows+"/"+belowMinMag.length+" are below. Branch: "+fmDmScaleBranch);
+					minMagArrays.put(fmDmScaleBranch, belowMinMag);
+				}
+				
+				boolean print = false;
+				for (int r=0; r<mags.length; r++) {
+					// check if it's below sect min mag (and should be skipped)
+					if (belowMinMag[r])
 						continue;
 					
-					// set fault section data
-					List<Integer> subSectIndexes = subSectIndexesMap.get(fm).get(r);
-					if (rupSet == null) {
-						// we need to load the rupSet
-						rupSet = cfss.getSolution(branch).getRupSet();
-						fsd = rupSet.getFaultSectionDataList();
-						rupSetCount++;
-					}
-					List<UniqueSection> rupSects = Lists.newArrayList();
-					for (int ind : subSectIndexes) {
-						// get UniqueSection instances for each subsection
-						// this will add new UniqueSections to the list if there are upper depth
-						// changes
-						int globalSectID = globalSectIDsMap.get(ind);
-						FaultSection sectFSD = fsd.get(ind);
-						UniqueSection sect = new UniqueSection(sectFSD, globalSectID);
-						UniqueSection matchedSect = uniqueSectionsList.get(globalSectID).get(sect);
-						if (matchedSect == null) {
-							matchedSect = sect;
-							uniqueSectionsList.get(globalSectID).put(sect, sect);
-							uniqueSectCount++;
+					int globalRupID = globalRupIDsMap.get(r);
+					HashMap<UniqueRupture, UniqueRupture> rupRates = uniqueRupturesList.get(globalRupID);
+
+					UniqueRupture rup = new UniqueRupture(globalRupID, rakes[r], areas[r]);
+					double scaledRate = rates[r] * scaledWt;
+					
+					// see if we already have a matching rupture
+					UniqueRupture matchedRup = rupRates.get(rup);
+					if (matchedRup == null) {
+						// this is a new rupture (either first for this global ID, or has a property
+						// change such as rake/area
+						
+						// see if we're done and it's just belowSectMinMag rups
+						// if we haven't added anything for a ton of branches then assume done
+						int numSinceChanged = branchCnt - lastChangedBranch;
+						if (numSinceChanged > 150 || (numSinceChanged > 10 && uniqueRupCount == 1634466))
+							continue;
+						// FM3.1
+						if (fms.length == 1 && numSinceChanged > 10 && uniqueRupCount == 930563)
+							continue;
+						// FM3.2
+						if (fms.length == 1 && numSinceChanged > 10 && uniqueRupCount == 1128358)
+							continue;
+						
+						// set fault section data
+						List<Integer> subSectIndexes = subSectIndexesMap.get(fm).get(r);
+						if (rupSet == null) {
+							// we need to load the rupSet
+							rupSet = cfss.getSolution(branch).getRupSet();
+							fsd = rupSet.getFaultSectionDataList();
+							rupSetCount++;
 						}
-						matchedSect.addBranch(branch, sectFSD);
-						rupSects.add(matchedSect);
+						List<UniqueSection> rupSects = Lists.newArrayList();
+						for (int ind : subSectIndexes) {
+							// get UniqueSection instances for each subsection
+							// this will add new UniqueSections to the list if there are upper depth
+							// changes
+							int globalSectID = globalSectIDsMap.get(ind);
+							FaultSection sectFSD = fsd.get(ind);
+							UniqueSection sect = new UniqueSection(sectFSD, globalSectID);
+							UniqueSection matchedSect = uniqueSectionsList.get(globalSectID).get(sect);
+							if (matchedSect == null) {
+								matchedSect = sect;
+								uniqueSectionsList.get(globalSectID).put(sect, sect);
+								uniqueSectCount++;
+							}
+							matchedSect.addBranch(branch, sectFSD);
+							rupSects.add(matchedSect);
+						}
+						rup.sects = rupSects;
+						
+						if (uniqueRupCount % 100000 == 0)
+							print = true;
+						uniqueRupCount++;
+						lastChangedBranch = branchCnt;
+						rupRates.put(rup, rup);
+						matchedRup = rup;
 					}
-					rup.sects = rupSects;
+					// add my rate/mag to the matched rup
+					double mag = mags[r];
+					int index = matchedRup.rupMFD.getXIndex(mag);
+					if (index >= 0)
+						matchedRup.rupMFD.set(index, matchedRup.rupMFD.getY(index)+scaledRate);
+					else
+						matchedRup.rupMFD.set(mag, scaledRate);
+					matchedRup.branchesWithRup.add(branch);
+					matchedRup.cnt++;
 					
-					if (uniqueRupCount % 100000 == 0)
-						print = true;
-					uniqueRupCount++;
-					lastChangedBranch = branchCnt;
-					rupRates.put(rup, rup);
-					matchedRup = rup;
+					// sanity checks
+					origTotalRate += scaledWt*rates[r];
+					origAvgMFD.add(mags[r], rates[r]*scaledWt);
 				}
-				// add my rate/mag to the matched rup
-				double mag = mags[r];
-				int index = matchedRup.rupMFD.getXIndex(mag);
-				if (index >= 0)
-					matchedRup.rupMFD.set(index, matchedRup.rupMFD.getY(index)+scaledRate);
-				else
-					matchedRup.rupMFD.set(mag, scaledRate);
-				matchedRup.branchesWithRup.add(branch);
-				matchedRup.cnt++;
-				
-				// sanity checks
-				origTotalRate += scaledWt*rates[r];
-				origAvgMFD.add(mags[r], rates[r]*scaledWt);
+				branchCnt++;
+				print = print || branchCnt % 10 == 0;
+				if (print)
+					System.out.println("unique rup count: "+uniqueRupCount
+							+"; unique sect count: "+uniqueSectCount+"; branch count: "+branchCnt
+							+"; loaded rupSet count: "+rupSetCount);
 			}
-			branchCnt++;
-			print = print || branchCnt % 10 == 0;
-			if (print)
-				System.out.println("unique rup count: "+uniqueRupCount
-						+"; unique sect count: "+uniqueSectCount+"; branch count: "+branchCnt
-						+"; loaded rupSet count: "+rupSetCount);
+		} finally {
+			prefetcher.close();
 		}
 		// metrics
 		double keptPercent = 100d*(double)uniqueRupCount/(double)origNumRups;
@@ -6,12 +6,14 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.opensha.commons.data.function.AbstractDiscretizedFunc;
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
@@ -27,6 +29,7 @@ import scratch.UCERF3.FaultSystemSolution;
 import scratch.UCERF3.inversion.InversionFaultSystemSolution;
 import scratch.UCERF3.utils.FaultSystemIO;
 import scratch.UCERF3.utils.MatrixIO;
+import scratch.UCERF3.utils.StreamingXMLUtils;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
@@ -92,17 +95,41 @@ public class GridSourceFileReader extends AbstractGridSourceProvider implements
 	}
 	
 	/**
-	 * This writes gridded seismicity MFDs to the given XML file
+	 * This writes gridded seismicity MFDs to the given XML file. The file is streamed one node at a time, and
+	 * has the same structure as that written by {@link #toXMLMetadata(Element)}.
 	 * @param file
 	 * @throws IOException
 	 */
 	public void writeGriddedSeisFile(File file) throws IOException {
-		Document doc = XMLUtils.createDocumentWithRoot();
-		Element root = doc.getRootElement();
+		StreamingXMLUtils.Writer writer = new StreamingXMLUtils.Writer(file);
 		
-		toXMLMetadata(root);
+		// each element is built in this temporary parent, then written and discarded
+		Element temp = DocumentHelper.createElement("temp");
+		region.toXMLMetadata(temp);
+		writer.writeElement(temp.element(GriddedRegion.XML_METADATA_NAME));
+		temp.clearContent();
+		
+		Element nodeListEl = DocumentHelper.createElement(NODE_MFD_LIST_EL_NAME);
+		nodeListEl.addAttribute("num", region.getNumLocations()+"");
+		writer.startElement(nodeListEl);
+		for (int i=0; i<region.getNumLocations(); i++) {
+			Element nodeEl = temp.addElement(NODE_MFD_ITEM_EL_NAME);
+			nodeEl.addAttribute("index", i+"");
+			
+			IncrementalMagFreqDist subSeisMFD = nodeSubSeisMFDs.get(i);
+			IncrementalMagFreqDist unassociatedMFD = nodeUnassociatedMFDs.get(i);
+			
+			if (subSeisMFD != null)
+				subSeisMFD.toXMLMetadata(nodeEl, SUB_SIZE_MFD_EL_NAME);
+			if (unassociatedMFD != null)
+				unassociatedMFD.toXMLMetadata(nodeEl, UNASSOCIATED_MFD_EL_NAME);
+			
+			writer.writeElement(nodeEl);
+			temp.clearContent();
+		}
+		writer.endElement();
 		
-		XMLUtils.writeDocumentToFile(file, doc);
+		writer.close();
 	}
 	
 	private static double[] funcToArray(boolean x, DiscretizedFunc func, double minX) {
@@ -192,10 +219,7 @@ public class GridSourceFileReader extends AbstractGridSourceProvider implements
 	public static GridSourceFileReader fromBinStreams(InputStream binFileStream, InputStream regXMLFileStream)
 			throws IOException, DocumentException {
 		// load region
-		Document doc = XMLUtils.loadDocument(regXMLFileStream);
-		Element regionEl = doc.getRootElement().element(GriddedRegion.XML_METADATA_NAME);
-		
-		GriddedRegion region = GriddedRegion.fromXMLMetadata(regionEl);
+		GriddedRegion region = loadRegion(regXMLFileStream);
 		
 		List<double[]> arrays = MatrixIO.doubleArraysListFromInputStream(binFileStream);
 		Preconditions.checkState(arrays.size() == region.getNodeCount()*2+1); // +1 for the x values
@@ -248,6 +272,20 @@ public class GridSourceFileReader extends AbstractGridSourceProvider implements
 		fileBased.writeGriddedSeisFile(file);
 	}
 	
+	private static GriddedRegion loadRegion(InputStream regXMLFileStream) throws IOException {
+		Element[] regionEl = { null };
+		StreamingXMLUtils.read(new BufferedInputStream(regXMLFileStream), null, new StreamingXMLUtils.ElementHandler() {
+			
+			@Override
+			public void handle(Element container, Element el) {
+				if (el.getName().equals(GriddedRegion.XML_METADATA_NAME))
+					regionEl[0] = el;
+			}
+		});
+		Preconditions.checkNotNull(regionEl[0], "Gridded region element not found");
+		return GriddedRegion.fromXMLMetadata(regionEl[0]);
+	}
+	
 	/**
 	 * Loads grid sources from the given file
 	 * @param file
@@ -256,19 +294,55 @@ public class GridSourceFileReader extends AbstractGridSourceProvider implements
 	 * @throws DocumentException
 	 */
 	public static GridSourceFileReader fromFile(File file) throws IOException, DocumentException {
-		Document doc = XMLUtils.loadDocument(file);
-		return fromXMLMetadata(doc.getRootElement());
+		return fromInputStream(new FileInputStream(file));
 	}
 	
 	/**
-	 * Loads grid sources from the given input stream
-	 * @param is
+	 * Loads grid sources from the given input stream. The file is streamed, so only one node is held
+	 * in memory as XML at a time.
+	 * @param is input stream, which will be closed
 	 * @return
+	 * @throws IOException
 	 * @throws DocumentException
 	 */
-	public static GridSourceFileReader fromInputStream(InputStream is) throws DocumentException {
-		Document doc = XMLUtils.loadDocument(is);
-		return fromXMLMetadata(doc.getRootElement());
+	public static GridSourceFileReader fromInputStream(InputStream is) throws IOException, DocumentException {
+		GriddedRegion[] region = { null };
+		int[] numNodes = { -1 };
+		Map<Integer, IncrementalMagFreqDist> nodeSubSeisMFDs = Maps.newHashMap();
+		Map<Integer, IncrementalMagFreqDist> nodeUnassociatedMFDs = Maps.newHashMap();
+		
+		StreamingXMLUtils.read(new BufferedInputStream(is), Collections.singleton(NODE_MFD_LIST_EL_NAME),
+				new StreamingXMLUtils.ElementHandler() {
+			
+			@Override
+			public void handle(Element container, Element el) {
+				if (el.getName().equals(GriddedRegion.XML_METADATA_NAME)) {
+					region[0] = GriddedRegion.fromXMLMetadata(el);
+				} else if (container.getName().equals(NODE_MFD_LIST_EL_NAME)
+						&& el.getName().equals(NODE_MFD_ITEM_EL_NAME)) {
+					int index = Integer.parseInt(el.attributeValue("index"));
+					
+					nodeSubSeisMFDs.put(index, loadMFD(el.element(SUB_SIZE_MFD_EL_NAME)));
+					nodeUnassociatedMFDs.put(index, loadMFD(el.element(UNASSOCIATED_MFD_EL_NAME)));
+				}
+			}
+
+			@Override
+			public void containerEnded(Element container) {
+				if (container.getName().equals(NODE_MFD_LIST_EL_NAME)) {
+					String num = container.attributeValue("num");
+					Preconditions.checkState(num != null, "Node MFD list is missing the node count");
+					numNodes[0] = Integer.parseInt(num);
+				}
+			}
+		});
+		
+		Preconditions.checkNotNull(region[0], "Gridded region element not found");
+		Preconditions.checkState(numNodes[0] >= 0, "Node MFD list element not found");
+		Preconditions.checkState(nodeSubSeisMFDs.size() == numNodes[0],
+				"Num MFDs inconsistant with number listed in XML file");
+		
+		return new GridSourceFileReader(region[0], nodeSubSeisMFDs, nodeUnassociatedMFDs);
 	}
 	
 	/**
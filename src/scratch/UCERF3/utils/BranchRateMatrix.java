@@ -0,0 +1,544 @@
+package scratch.UCERF3.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import scratch.UCERF3.FaultSystemSolutionFetcher;
+import scratch.UCERF3.FaultSystemSolutionFetcher.BranchLoader;
+import scratch.UCERF3.FaultSystemSolutionFetcher.BranchPrefetcher;
+import scratch.UCERF3.enumTreeBranches.FaultModels;
+import scratch.UCERF3.logicTree.BranchWeightProvider;
+import scratch.UCERF3.logicTree.LogicTreeBranch;
+import scratch.UCERF3.logicTree.VariableLogicTreeBranch;
+
+/**
+ * Rupture rates for every logic tree branch stored in a single binary (branch x rupture) float matrix, with one block
+ * per fault model. The file is memory mapped when read, so that branch-level statistics (weighted mean, min/max,
+ * fractiles) can be computed without loading each branch's solution.
+ * <p>
+ * File format (big endian):
+ * <pre>
+ * magic - int
+ * version - short
+ * numBlocks - int
+ * for each block:
+ *   faultModel - UTF
+ *   numBranches - int
+ *   numRuptures - int
+ *   dataOffset - long (from the start of the file)
+ *   for each branch:
+ *     branchFileName - UTF
+ *     weight - double
+ * for each block (at dataOffset):
+ *   for each branch:
+ *     for each rupture: rate - float
+ * </pre>
+ */
+public class BranchRateMatrix implements Closeable {
+
+	private static final int MAGIC = 0x4252524D; // "BRRM"
+	private static final short VERSION = 1;
+
+	// number of ruptures processed at once by each thread when computing statistics
+	private static final int RUP_CHUNK_SIZE = 1024;
+
+	private RandomAccessFile raf;
+	private Map<FaultModels, Block> blocks;
+
+	private BranchRateMatrix(File file) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		FileChannel channel = raf.getChannel();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel.position(0l))));
+		Preconditions.checkState(in.readInt() == MAGIC, "Not a branch rate matrix file: %s", file);
+		short version = in.readShort();
+		Preconditions.checkState(version == VERSION, "Unsupported branch rate matrix version: %s", version);
+		int numBlocks = in.readInt();
+		blocks = Maps.newLinkedHashMap();
+		for (int i=0; i<numBlocks; i++) {
+			FaultModels fm = FaultModels.valueOf(in.readUTF());
+			int numBranches = in.readInt();
+			int numRups = in.readInt();
+			long dataOffset = in.readLong();
+			List<LogicTreeBranch> branches = new ArrayList<>(numBranches);
+			double[] weights = new double[numBranches];
+			for (int b=0; b<numBranches; b++) {
+				branches.add(VariableLogicTreeBranch.fromFileName(in.readUTF()));
+				weights[b] = in.readDouble();
+			}
+			Preconditions.checkState(channel.size() >= dataOffset + 4l*numBranches*numRups,
+					"File is too short for %s block", fm);
+			blocks.put(fm, new Block(fm, branches, weights, numRups, channel, dataOffset));
+		}
+		// don't close the input stream, as that would close the channel
+	}
+
+	/**
+	 * Memory maps the given branch rate matrix file
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static BranchRateMatrix load(File file) throws IOException {
+		return new BranchRateMatrix(file);
+	}
+
+	/**
+	 * Writes rates for each branch in the given fetcher to a branch rate matrix file. Branches are grouped by
+	 * fault model, and rates are loaded in the background ahead of writing. The file is first written to a
+	 * temporary file in the same directory, which is renamed on success, so a partial file is never left behind.
+	 *
+	 * @param fetch
+	 * @param weightProvider
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(final FaultSystemSolutionFetcher fetch, BranchWeightProvider weightProvider, File file)
+			throws IOException {
+		Preconditions.checkArgument(!fetch.getBranches().isEmpty(), "Fetcher has no branches");
+		Map<FaultModels, List<LogicTreeBranch>> fmBranches = Maps.newLinkedHashMap();
+		for (LogicTreeBranch branch : fetch.getBranches()) {
+			FaultModels fm = branch.getValue(FaultModels.class);
+			Preconditions.checkState(fm != null, "Branch has no fault model: %s", branch);
+			List<LogicTreeBranch> branches = fmBranches.get(fm);
+			if (branches == null) {
+				branches = Lists.newArrayList();
+				fmBranches.put(fm, branches);
+			}
+			branches.add(branch);
+		}
+
+		// rupture counts are needed for the header. keep the first rates for each fault model so that they're
+		// not loaded twice
+		Map<FaultModels, Integer> fmRupCounts = Maps.newHashMap();
+		Map<FaultModels, double[]> fmFirstRates = Maps.newHashMap();
+		for (FaultModels fm : fmBranches.keySet()) {
+			double[] rates = fetch.getRates(fmBranches.get(fm).get(0));
+			fmRupCounts.put(fm, rates.length);
+			fmFirstRates.put(fm, rates);
+		}
+
+		// build the header to determine data offsets. offsets are fixed width so the header length doesn't depend
+		// on their values
+		byte[] header = buildHeader(fmBranches, fmRupCounts, weightProvider, null);
+		long[] dataOffsets = new long[fmBranches.size()];
+		long offset = header.length;
+		// pad to 8 bytes
+		offset += (8 - offset % 8) % 8;
+		int blockIndex = 0;
+		for (FaultModels fm : fmBranches.keySet()) {
+			dataOffsets[blockIndex++] = offset;
+			offset += 4l*fmBranches.get(fm).size()*fmRupCounts.get(fm);
+		}
+		header = buildHeader(fmBranches, fmRupCounts, weightProvider, dataOffsets);
+
+		File tempFile = new File(file.getAbsoluteFile().getParentFile(), file.getName()+".tmp");
+		boolean success = false;
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tempFile), 1024*1024));
+			try {
+				out.write(header);
+				while (out.size() < dataOffsets[0])
+					out.writeByte(0);
+
+				for (FaultModels fm : fmBranches.keySet()) {
+					List<LogicTreeBranch> branches = fmBranches.get(fm);
+					int numRups = fmRupCounts.get(fm);
+					System.out.println("Writing rates for "+branches.size()+" "+fm.getShortName()+" branches");
+					writeRates(out, fmFirstRates.remove(fm));
+					if (branches.size() == 1)
+						continue;
+					BranchPrefetcher<double[]> prefetcher = new BranchPrefetcher<double[]>(
+							branches.subList(1, branches.size()), new BranchLoader<double[]>() {
+
+								@Override
+								public double[] load(LogicTreeBranch branch) {
+									return fetch.getRates(branch);
+								}
+							}, 2, 4);
+					try {
+						for (LogicTreeBranch branch : branches.subList(1, branches.size())) {
+							double[] rates = prefetcher.get(branch);
+							Preconditions.checkState(rates.length == numRups,
+									"Rupture count discrepancy between %s branches: %s != %s",
+									fm.getShortName(), rates.length, numRups);
+							writeRates(out, rates);
+						}
+					} finally {
+						prefetcher.close();
+					}
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			success = true;
+		} finally {
+			if (!success)
+				tempFile.delete();
+		}
+	}
+
+	private static void writeRates(DataOutputStream out, double[] rates) throws IOException {
+		for (double rate : rates)
+			out.writeFloat((float)rate);
+	}
+
+	private static byte[] buildHeader(Map<FaultModels, List<LogicTreeBranch>> fmBranches,
+			Map<FaultModels, Integer> fmRupCounts, BranchWeightProvider weightProvider, long[] dataOffsets)
+					throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(fmBranches.size());
+		int blockIndex = 0;
+		for (FaultModels fm : fmBranches.keySet()) {
+			List<LogicTreeBranch> branches = fmBranches.get(fm);
+			out.writeUTF(fm.name());
+			out.writeInt(branches.size());
+			out.writeInt(fmRupCounts.get(fm));
+			out.writeLong(dataOffsets == null ? 0l : dataOffsets[blockIndex]);
+			for (LogicTreeBranch branch : branches) {
+				out.writeUTF(branch.buildFileName());
+				out.writeDouble(weightProvider.getWeight(branch));
+			}
+			blockIndex++;
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return fault models with rates in this matrix
+	 */
+	public List<FaultModels> getFaultModels() {
+		return Collections.unmodifiableList(Lists.newArrayList(blocks.keySet()));
+	}
+
+	/**
+	 * @param fm
+	 * @return rates for the given fault model, or null if not present
+	 */
+	public Block getBlock(FaultModels fm) {
+		return blocks.get(fm);
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/**
+	 * Processes a contiguous range of ruptures for every branch
+	 */
+	private interface ChunkProcessor {
+		/**
+		 * @param startRup first rupture index of this chunk
+		 * @param rates rates for each branch (first index) and rupture in this chunk (second index)
+		 * @param numRups number of ruptures in this chunk, which can be less than the array length
+		 */
+		public void process(int startRup, float[][] rates, int numRups);
+	}
+
+	/**
+	 * Memory mapped rates for all branches of a single fault model
+	 */
+	public static class Block {
+
+		private final FaultModels fm;
+		private final List<LogicTreeBranch> branches;
+		// keyed by file name, so that lookups don't depend on the branch implementation
+		private final Map<String, Integer> branchIndexes;
+		private final double[] weights;
+		private final double weightSum;
+		private final int numRups;
+
+		// each mapped segment holds rowsPerSegment complete branch rows, as a single mapping is limited to 2 GB
+		private final FloatBuffer[] segments;
+		private final int rowsPerSegment;
+
+		private Block(FaultModels fm, List<LogicTreeBranch> branches, double[] weights, int numRups,
+				FileChannel channel, long dataOffset) throws IOException {
+			this.fm = fm;
+			this.branches = Collections.unmodifiableList(branches);
+			branchIndexes = new HashMap<>();
+			for (int b=0; b<branches.size(); b++)
+				branchIndexes.put(branches.get(b).buildFileName(), b);
+			this.weights = weights;
+			double weightSum = 0d;
+			for (double weight : weights) {
+				Preconditions.checkState(weight >= 0d, "Negative branch weight: %s", weight);
+				weightSum += weight;
+			}
+			this.weightSum = weightSum;
+			this.numRups = numRups;
+
+			long rowBytes = 4l*numRups;
+			rowsPerSegment = (int)Math.max(1l, Math.min(branches.size(), Integer.MAX_VALUE / Math.max(rowBytes, 1l)));
+			int numSegments = (branches.size() + rowsPerSegment - 1) / rowsPerSegment;
+			segments = new FloatBuffer[numSegments];
+			for (int s=0; s<numSegments; s++) {
+				int numRows = Math.min(rowsPerSegment, branches.size() - s*rowsPerSegment);
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+						dataOffset + s*rowsPerSegment*rowBytes, numRows*rowBytes);
+				segments[s] = mapped.asFloatBuffer();
+			}
+		}
+
+		public FaultModels getFaultModel() {
+			return fm;
+		}
+
+		public List<LogicTreeBranch> getBranches() {
+			return branches;
+		}
+
+		public int getNumBranches() {
+			return branches.size();
+		}
+
+		public int getNumRuptures() {
+			return numRups;
+		}
+
+		/**
+		 * @param branch
+		 * @return index of the given branch in this block, or -1 if not present
+		 */
+		public int getBranchIndex(LogicTreeBranch branch) {
+			Integer index = branchIndexes.get(branch.buildFileName());
+			return index == null ? -1 : index;
+		}
+
+		/**
+		 * @param branchIndex
+		 * @return weight for the given branch, not normalized
+		 */
+		public double getWeight(int branchIndex) {
+			return weights[branchIndex];
+		}
+
+		/**
+		 * Reads rates for a range of ruptures from a single branch into the given array. Thread safe.
+		 */
+		private void read(int branchIndex, int startRup, float[] dest, int numRups) {
+			// duplicate so that concurrent reads don't share a position
+			FloatBuffer buf = segments[branchIndex / rowsPerSegment].duplicate();
+			buf.position((branchIndex % rowsPerSegment)*this.numRups + startRup);
+			buf.get(dest, 0, numRups);
+		}
+
+		/**
+		 * @param branchIndex
+		 * @return rates for every rupture for the given branch
+		 */
+		public float[] getRates(int branchIndex) {
+			Preconditions.checkElementIndex(branchIndex, branches.size());
+			float[] rates = new float[numRups];
+			read(branchIndex, 0, rates, numRups);
+			return rates;
+		}
+
+		/**
+		 * @param branchIndex
+		 * @param rupIndex
+		 * @return rate for the given branch and rupture
+		 */
+		public double getRate(int branchIndex, int rupIndex) {
+			Preconditions.checkElementIndex(branchIndex, branches.size());
+			Preconditions.checkElementIndex(rupIndex, numRups);
+			return segments[branchIndex / rowsPerSegment].get((branchIndex % rowsPerSegment)*numRups + rupIndex);
+		}
+
+		/**
+		 * Processes all ruptures in parallel chunks. Each chunk reads a contiguous range from every branch row.
+		 */
+		private void processChunks(final ChunkProcessor processor) {
+			int numChunks = (numRups + RUP_CHUNK_SIZE - 1) / RUP_CHUNK_SIZE;
+			final int numBranches = branches.size();
+			final ThreadLocal<float[][]> chunkRates = new ThreadLocal<float[][]>() {
+
+				@Override
+				protected float[][] initialValue() {
+					return new float[numBranches][RUP_CHUNK_SIZE];
+				}
+			};
+			IntStream.range(0, numChunks).parallel().forEach(c -> {
+				int startRup = c*RUP_CHUNK_SIZE;
+				int len = Math.min(RUP_CHUNK_SIZE, numRups - startRup);
+				float[][] rates = chunkRates.get();
+				for (int b=0; b<numBranches; b++)
+					read(b, startRup, rates[b], len);
+				processor.process(startRup, rates, len);
+			});
+		}
+
+		/**
+		 * @return weighted mean rate across all branches for each rupture
+		 */
+		public double[] getWeightedMean() {
+			return getWeightedMean(weights);
+		}
+
+		/**
+		 * Weighted mean with custom branch weights, e.g. to average a subset of branches by giving all others a
+		 * weight of zero.
+		 * 
+		 * @param weights weight for each branch (not necessarily normalized), in the order of {@link #getBranches()}
+		 * @return weighted mean rate across all branches for each rupture
+		 */
+		public double[] getWeightedMean(double[] weights) {
+			Preconditions.checkArgument(weights.length == branches.size(),
+					"Have %s weights but %s branches", weights.length, branches.size());
+			double weightSum = 0d;
+			for (double weight : weights) {
+				Preconditions.checkArgument(weight >= 0d, "Negative branch weight: %s", weight);
+				weightSum += weight;
+			}
+			Preconditions.checkState(weightSum > 0d, "Branch weights sum to zero");
+			final double[] mean = new double[numRups];
+			final double[] normWeights = new double[weights.length];
+			for (int b=0; b<weights.length; b++)
+				normWeights[b] = weights[b]/weightSum;
+			processChunks(new ChunkProcessor() {
+
+				@Override
+				public void process(int startRup, float[][] rates, int numRups) {
+					for (int b=0; b<rates.length; b++) {
+						double weight = normWeights[b];
+						if (weight == 0d)
+							continue;
+						float[] row = rates[b];
+						for (int i=0; i<numRups; i++)
+							mean[startRup+i] += weight*row[i];
+					}
+				}
+			});
+			return mean;
+		}
+
+		/**
+		 * @return minimum rate across all branches (including those with zero weight) for each rupture
+		 */
+		public double[] getMin() {
+			return getExtreme(false);
+		}
+
+		/**
+		 * @return maximum rate across all branches (including those with zero weight) for each rupture
+		 */
+		public double[] getMax() {
+			return getExtreme(true);
+		}
+
+		private double[] getExtreme(final boolean max) {
+			final double[] ret = new double[numRups];
+			processChunks(new ChunkProcessor() {
+
+				@Override
+				public void process(int startRup, float[][] rates, int numRups) {
+					float[] extreme = Arrays.copyOf(rates[0], numRups);
+					for (int b=1; b<rates.length; b++) {
+						float[] row = rates[b];
+						if (max) {
+							for (int i=0; i<numRups; i++)
+								if (row[i] > extreme[i])
+									extreme[i] = row[i];
+						} else {
+							for (int i=0; i<numRups; i++)
+								if (row[i] < extreme[i])
+									extreme[i] = row[i];
+						}
+					}
+					for (int i=0; i<numRups; i++)
+						ret[startRup+i] = extreme[i];
+				}
+			});
+			return ret;
+		}
+
+		/**
+		 * Computes weighted fractiles across branches for each rupture. The fractile for a given fraction is the
+		 * smallest rate for which the normalized cumulative weight of all branches with rates less than or equal
+		 * to it is at least that fraction.
+		 *
+		 * @param fractions fractions in the range [0, 1]
+		 * @return fractile rates, indexed by fraction, then by rupture
+		 */
+		public double[][] getFractiles(final double... fractions) {
+			Preconditions.checkState(weightSum > 0d, "Branch weights sum to zero");
+			for (double fraction : fractions)
+				Preconditions.checkArgument(fraction >= 0d && fraction <= 1d, "Bad fraction: %s", fraction);
+			final double[][] ret = new double[fractions.length][numRups];
+			final int numBranches = branches.size();
+			final ThreadLocal<long[]> sortKeys = new ThreadLocal<long[]>() {
+
+				@Override
+				protected long[] initialValue() {
+					return new long[numBranches];
+				}
+			};
+			processChunks(new ChunkProcessor() {
+
+				@Override
+				public void process(int startRup, float[][] rates, int numRups) {
+					long[] keys = sortKeys.get();
+					for (int i=0; i<numRups; i++) {
+						// sort (rate, branch index) pairs as longs, with order preserving rate bits in the high word
+						for (int b=0; b<numBranches; b++) {
+							int bits = Float.floatToIntBits(rates[b][i]);
+							bits ^= (bits >> 31) & 0x7fffffff;
+							keys[b] = ((long)bits << 32) | b;
+						}
+						Arrays.sort(keys);
+						for (int j=0; j<fractions.length; j++) {
+							double cumWeight = 0d;
+							int b = -1;
+							for (int k=0; k<numBranches; k++) {
+								int index = (int)keys[k];
+								if (weights[index] == 0d)
+									continue;
+								b = index;
+								cumWeight += weights[index]/weightSum;
+								if (cumWeight >= fractions[j] - 1e-10)
+									break;
+							}
+							ret[j][startRup+i] = rates[b][i];
+						}
+					}
+				}
+			});
+			return ret;
+		}
+
+	}
+
+}
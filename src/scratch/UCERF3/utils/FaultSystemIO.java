@@ -4,6 +4,7 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
@@ -16,6 +17,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -24,6 +26,7 @@ import org.apache.commons.io.IOUtils;
 import org.dom4j.Attribute;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.opensha.commons.data.function.AbstractDiscretizedFunc;
 import org.opensha.commons.data.function.DiscretizedFunc;
@@ -36,12 +39,15 @@ import org.opensha.commons.util.LazilyInitializedList;
 import org.opensha.commons.util.XMLUtils;
 import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRupture;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRuptureBinaryIO;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRuptureBinaryIO.Compression;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.PlausibilityConfiguration;
 import org.opensha.sha.earthquake.param.ProbabilityModelOptions;
 import org.opensha.sha.faultSurface.FaultSection;
 import org.opensha.sha.magdist.IncrementalMagFreqDist;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -65,6 +71,13 @@ public class FaultSystemIO {
 	private static final boolean D = true;
 	private static final boolean DD = D && false;
 	
+	/**
+	 * Cluster ruptures are written in the compact binary format (cluster_ruptures.bin) by default, which is much
+	 * smaller and faster to load. If true, they will instead be written as JSON (cluster_ruptures.json), which can
+	 * be read by older versions of this code. Either format will be loaded when reading.
+	 */
+	public static boolean WRITE_CLUSTER_RUPTURES_JSON = false;
+	
 	/*	******************************************
 	 * 		FILE READING
 	 *	******************************************/
@@ -121,6 +134,52 @@ public class FaultSystemIO {
 		return (InversionFaultSystemSolution)sol;
 	}
 	
+	/**
+	 * Loads a FaultSystemRupSet from a zip file lazily: each data file is only decoded the first time that it is
+	 * accessed, and the zip file is kept open until the returned rupture set is closed. This is always loaded as a
+	 * plain FaultSystemRupSet, even if inversion metadata is present.
+	 * @param file
+	 * @param loadDiagnostics if true, the plausibility configuration and cluster ruptures will be available (if
+	 * present in the zip file), otherwise they are skipped
+	 * @return
+	 * @throws IOException
+	 * @see LazyZipFaultSystemRupSet
+	 */
+	public static LazyZipFaultSystemRupSet loadRupSetLazily(File file, boolean loadDiagnostics) throws IOException {
+		return new LazyZipFaultSystemRupSet(new ZipFile(file), null, loadDiagnostics);
+	}
+	
+	/**
+	 * Loads a FaultSystemSolution from a zip file lazily: rates are loaded immediately, but all other data files
+	 * are only decoded the first time that they are accessed, and the zip file is kept open until the returned
+	 * solution is closed. This is always loaded as a plain FaultSystemSolution, even if inversion metadata is present.
+	 * @param file
+	 * @param loadDiagnostics if true, the plausibility configuration and cluster ruptures will be available (if
+	 * present in the zip file), otherwise they are skipped
+	 * @return
+	 * @throws IOException
+	 * @see LazyZipFaultSystemRupSet.Solution
+	 */
+	public static LazyZipFaultSystemRupSet.Solution loadSolLazily(File file, boolean loadDiagnostics)
+			throws IOException {
+		return loadSolLazily(new ZipFile(file), null, loadDiagnostics);
+	}
+	
+	/**
+	 * Loads a FaultSystemSolution lazily from the given zip file, which will be kept open
+	 * @param zip
+	 * @param nameRemappings
+	 * @param loadDiagnostics
+	 * @return
+	 * @throws IOException
+	 * @see #loadSolLazily(File, boolean)
+	 */
+	public static LazyZipFaultSystemRupSet.Solution loadSolLazily(ZipFile zip, Map<String, String> nameRemappings,
+			boolean loadDiagnostics) throws IOException {
+		LazyZipFaultSystemRupSet rupSet = new LazyZipFaultSystemRupSet(zip, nameRemappings, loadDiagnostics);
+		return new LazyZipFaultSystemRupSet.Solution(rupSet, nameRemappings);
+	}
+	
 	/**
 	 * 
 	 * @param file
@@ -205,7 +264,7 @@ public class FaultSystemIO {
 	 * @throws DocumentException 
 	 */
 	private static FaultSystemRupSet loadRupSetAsApplicable(File file) throws ZipException, IOException, DocumentException {
-		return loadRupSetAsApplicable(new ZipFile(file), null);
+		return loadRupSetAsApplicable(new ZipFile(file), null, null);
 	}
 	
 	/**
@@ -216,13 +275,13 @@ public class FaultSystemIO {
 	 * @throws IOException 
 	 * @throws DocumentException 
 	 */
-	private static FaultSystemRupSet loadRupSetAsApplicable(ZipFile zip, Map<String, String> nameRemappings) throws IOException, DocumentException {
+	private static FaultSystemRupSet loadRupSetAsApplicable(ZipFile zip, Map<String, String> nameRemappings,
+			Cache<String, Object> entryCache) throws IOException, DocumentException {
 		if (DD) System.out.println("loadRupSetAsApplicable started");
 		
 		if (DD) System.out.println("loading mags");
 		ZipEntry magEntry = zip.getEntry(getRemappedName("mags.bin", nameRemappings));
-		double[] mags = MatrixIO.doubleArrayFromInputStream(
-				new BufferedInputStream(zip.getInputStream(magEntry)), magEntry.getSize());
+		double[] mags = loadSharedDoubleArray(zip, magEntry, entryCache);
 		
 		if (DD) System.out.println("loading sect slips");
 		ZipEntry sectSlipsEntry = zip.getEntry(getRemappedName("sect_slips.bin", nameRemappings));
@@ -246,67 +305,27 @@ public class FaultSystemIO {
 		
 		if (DD) System.out.println("loading rakes");
 		ZipEntry rakesEntry = zip.getEntry(getRemappedName("rakes.bin", nameRemappings));
-		double[] rakes = MatrixIO.doubleArrayFromInputStream(
-				new BufferedInputStream(zip.getInputStream(rakesEntry)), rakesEntry.getSize());
+		double[] rakes = loadSharedDoubleArray(zip, rakesEntry, entryCache);
 		
 		ZipEntry rupAreasEntry = zip.getEntry(getRemappedName("rup_areas.bin", nameRemappings));
-		double[] rupAreas;
-		if (rupAreasEntry != null)
-			rupAreas = MatrixIO.doubleArrayFromInputStream(
-					new BufferedInputStream(zip.getInputStream(rupAreasEntry)),
-					rupAreasEntry.getSize());
-		else
-			rupAreas = null;
+		double[] rupAreas = loadSharedDoubleArray(zip, rupAreasEntry, entryCache);
 		
 		if (DD) System.out.println("loading rakes");
 		ZipEntry rupLenghtsEntry = zip.getEntry(getRemappedName("rup_lengths.bin", nameRemappings));
-		double[] rupLengths;
-		if (rupLenghtsEntry != null)
-			rupLengths = MatrixIO.doubleArrayFromInputStream(
-					new BufferedInputStream(zip.getInputStream(rupLenghtsEntry)),
-					rupLenghtsEntry.getSize());
-		else
-			rupLengths = null;
+		double[] rupLengths = loadSharedDoubleArray(zip, rupLenghtsEntry, entryCache);
 
 		if (DD) System.out.println("loading sect areas");
 		ZipEntry sectAreasEntry = zip.getEntry(getRemappedName("sect_areas.bin", nameRemappings));
-		double[] sectAreas;
-		if (sectAreasEntry != null)
-			sectAreas = MatrixIO.doubleArrayFromInputStream(
-					new BufferedInputStream(zip.getInputStream(sectAreasEntry)),
-					sectAreasEntry.getSize());
-		else
-			sectAreas = null;
+		double[] sectAreas = loadSharedDoubleArray(zip, sectAreasEntry, entryCache);
 
 		if (DD) System.out.println("loading rup sections");
 		ZipEntry rupSectionsEntry = zip.getEntry(getRemappedName("rup_sections.bin", nameRemappings));
-		List<List<Integer>> sectionForRups;
-		if (rupSectionsEntry != null)
-			sectionForRups = MatrixIO.intListListFromInputStream(
-					new BufferedInputStream(zip.getInputStream(rupSectionsEntry)));
-		else
-			sectionForRups = null;
+		List<List<Integer>> sectionForRups = loadSharedIntListList(zip, rupSectionsEntry, entryCache);
 		
 		if (DD) System.out.println("loading FSD");
-		String fsdRemappedName = getRemappedName("fault_sections.xml", nameRemappings);
-		ZipEntry fsdEntry = zip.getEntry(fsdRemappedName);
-		if (fsdEntry == null && fsdRemappedName.startsWith("FM")) {
-			// might be a legacy compound solution before the bug fix
-			// try removing the DM from the name
-			int ind = fsdRemappedName.indexOf("fault_sections");
-			// the -1 removes the underscore before fault
-			String prefix = fsdRemappedName.substring(0, ind-1);
-			prefix = prefix.substring(0, prefix.lastIndexOf("_"));
-			fsdRemappedName = prefix+"_fault_sections.xml";
-			fsdEntry = zip.getEntry(fsdRemappedName);
-			if (fsdEntry != null)
-				System.out.println("WARNING: using old non DM-specific fault_sections.xml file, " +
-						"may have incorrect non reduced slip rates: "+fsdRemappedName);
-		}
-		Document doc = XMLUtils.loadDocument(
-				new BufferedInputStream(zip.getInputStream(fsdEntry)));
-		Element fsEl = doc.getRootElement().element(FaultSectionPrefData.XML_METADATA_NAME+"List");
-		ArrayList<FaultSection> faultSectionData = fsDataFromXML(fsEl);
+		ZipEntry fsdEntry = getFaultSectionsEntry(zip, nameRemappings);
+		ArrayList<FaultSection> faultSectionData = new ArrayList<>();
+		Element fsEl = fsDataFromXML(new BufferedInputStream(zip.getInputStream(fsdEntry)), faultSectionData);
 		
 		ZipEntry infoEntry = zip.getEntry(getRemappedName("info.txt", nameRemappings));
 		String info = loadInfoFromEntry(zip, infoEntry);
@@ -319,14 +338,22 @@ public class FaultSystemIO {
 		LogicTreeBranch branch = null;
 		UCERF3PlausibilityConfig filter = null;
 		if (invXMLEntry != null) {
-			Document invDoc = XMLUtils.loadDocument(zip.getInputStream(invXMLEntry));
-			Element invRoot = invDoc.getRootElement().element("InversionFaultSystemRupSet");
+			Map<String, Element> invEls = Maps.newHashMap();
+			StreamingXMLUtils.read(new BufferedInputStream(zip.getInputStream(invXMLEntry)),
+					Collections.singleton("InversionFaultSystemRupSet"), new StreamingXMLUtils.ElementHandler() {
+						
+						@Override
+						public void handle(Element container, Element el) {
+							if (container.getName().equals("InversionFaultSystemRupSet"))
+								invEls.put(el.getName(), el);
+						}
+					});
 			
-			Element branchEl = invRoot.element(LogicTreeBranch.XML_METADATA_NAME);
+			Element branchEl = invEls.get(LogicTreeBranch.XML_METADATA_NAME);
 			if (branchEl != null)
 				branch = LogicTreeBranch.fromXMLMetadata(branchEl);
 			
-			Element filterEl = invRoot.element(UCERF3PlausibilityConfig.XML_METADATA_NAME);
+			Element filterEl = invEls.get(UCERF3PlausibilityConfig.XML_METADATA_NAME);
 			if (filterEl != null)
 				filter = UCERF3PlausibilityConfig.fromXMLMetadata(filterEl);
 		}
@@ -401,8 +428,20 @@ public class FaultSystemIO {
 		}
 		
 		if (DD) System.out.println("loading cluster ruptures");
+		ZipEntry clustersBinEntry = zip.getEntry(getRemappedName("cluster_ruptures.bin", nameRemappings));
 		ZipEntry clustersEntry = zip.getEntry(getRemappedName("cluster_ruptures.json", nameRemappings));
-		if (clustersEntry != null) {
+		if (clustersBinEntry != null) {
+			if (DD) System.out.println("will load binary cluster ruptures lazily");
+			Callable<List<ClusterRupture>> call = new Callable<List<ClusterRupture>>() {
+
+				@Override
+				public List<ClusterRupture> call() throws Exception {
+					System.out.println("Loading binary ClusterRupture list (lazily) from "+zip.getName());
+					return ClusterRuptureBinaryIO.read(zip.getInputStream(clustersBinEntry), faultSectionData);
+				}
+			};
+			rupSet.setClusterRuptures(new LazilyInitializedList<>(rupSet.getNumRuptures(), call));
+		} else if (clustersEntry != null) {
 //			InputStreamReader json = new InputStreamReader(
 //					new BufferedInputStream(zip.getInputStream(clustersEntry), 1024*128));
 //			List<ClusterRupture> clusterRuptures = ClusterRupture.readJSON(json, faultSectionData);
@@ -488,50 +527,204 @@ public class FaultSystemIO {
 		return rupSet;
 	}
 	
-	public static ArrayList<FaultSection> fsDataFromXML(Element el) {
+	/**
+	 * Finds the fault sections XML entry in the given zip file, including legacy compound solution names
+	 * 
+	 * @param zip
+	 * @param nameRemappings
+	 * @return fault sections entry, or null if not found
+	 */
+	static ZipEntry getFaultSectionsEntry(ZipFile zip, Map<String, String> nameRemappings) {
+		String fsdRemappedName = getRemappedName("fault_sections.xml", nameRemappings);
+		ZipEntry fsdEntry = zip.getEntry(fsdRemappedName);
+		if (fsdEntry == null && fsdRemappedName.startsWith("FM")) {
+			// might be a legacy compound solution before the bug fix
+			// try removing the DM from the name
+			int ind = fsdRemappedName.indexOf("fault_sections");
+			// the -1 removes the underscore before fault
+			String prefix = fsdRemappedName.substring(0, ind-1);
+			prefix = prefix.substring(0, prefix.lastIndexOf("_"));
+			fsdRemappedName = prefix+"_fault_sections.xml";
+			fsdEntry = zip.getEntry(fsdRemappedName);
+			if (fsdEntry != null)
+				System.out.println("WARNING: using old non DM-specific fault_sections.xml file, " +
+						"may have incorrect non reduced slip rates: "+fsdRemappedName);
+		}
+		return fsdEntry;
+	}
+	
+	/**
+	 * Loads fault section data from the given fault sections XML entry
+	 * 
+	 * @param zip
+	 * @param fsdEntry
+	 * @return
+	 * @throws IOException
+	 * @throws DocumentException
+	 */
+	static ArrayList<FaultSection> loadFaultSections(ZipFile zip, ZipEntry fsdEntry) throws IOException {
 		ArrayList<FaultSection> list = new ArrayList<>();
-		
-		for (int i=0; i<el.elements().size(); i++) {
-			Element subEl = el.element("i"+i);
+		fsDataFromXML(new BufferedInputStream(zip.getInputStream(fsdEntry)), list);
+		return list;
+	}
+	
+	/**
+	 * Streams fault section data from the given fault sections XML document, without loading the full document
+	 * into memory
+	 * 
+	 * @param is input stream, which will be closed
+	 * @param sects list to which sections will be added, in order
+	 * @return fault section list element, containing only its attributes (e.g., fault and deformation model names)
+	 * @throws IOException
+	 */
+	public static Element fsDataFromXML(InputStream is, List<FaultSection> sects) throws IOException {
+		String listName = FaultSectionPrefData.XML_METADATA_NAME+"List";
+		Element[] listEl = { null };
+		int startSize = sects.size();
+		StreamingXMLUtils.read(is, Collections.singleton(listName), new StreamingXMLUtils.ElementHandler() {
 			
-			Attribute classAt = subEl.attribute("class");
-			FaultSection sect;
-			if (classAt == null || classAt.getValue().equals(FaultSectionPrefData.class.getCanonicalName())) {
-				// default to FaultSectionPrefData
-				sect = FaultSectionPrefData.fromXMLMetadata(subEl);
-			} else {
-				// use reflection
-				String className = classAt.getValue();
-				Object sectObj;
-				try {
-					sectObj = MetadataLoader.loadXMLwithReflection(subEl, className);
-				} catch (ClassNotFoundException e) {
-					throw new IllegalStateException(
-							"Defined fault section class not found, cannot load from XML: "+className, e);
-				} catch (NoSuchMethodException e) {
-					throw new IllegalStateException(
-							"Defined fault section class does not contain static "
-							+ "fromXMLMetadata(Element) method, cannot load from XML: "+className, e);
-				} catch (IllegalArgumentException e) {
-					throw new IllegalStateException(
-							"Defined fault section class does has unexpected method signature for "
-							+ "fromXMLMetadata(Element) method, cannot load from XML: "+className, e);
-				} catch (Exception e) {
-					throw new IllegalStateException(
-							"Other error loading fault section class from XML via reflection: "+className, e);
-				}
-				Preconditions.checkState(sectObj instanceof FaultSection,
-						"Fault section could be instantiated from XML, "
-						+ "but does not implement FaultSection: %s", className);
-				sect = (FaultSection)sectObj;
+			@Override
+			public void handle(Element container, Element el) {
+				if (!container.getName().equals(listName))
+					return;
+				listEl[0] = container;
+				int index = sects.size() - startSize;
+				Preconditions.checkState(el.getName().equals("i"+index),
+						"Fault sections out of order: expected i%s, encountered %s", index, el.getName());
+				sects.add(fsDataFromXMLElement(el));
+			}
+		});
+		Preconditions.checkNotNull(listEl[0], "Fault section list element not found: %s", listName);
+		return listEl[0];
+	}
+	
+	/**
+	 * Loads a double array from the given entry, or returns null if the entry is null. If a cache is supplied,
+	 * the array is shared with any other rupture sets loaded from the same entry with that cache, and must not
+	 * be modified.
+	 * 
+	 * @param zip
+	 * @param entry
+	 * @param entryCache
+	 * @return
+	 * @throws IOException
+	 */
+	private static double[] loadSharedDoubleArray(ZipFile zip, ZipEntry entry, Cache<String, Object> entryCache)
+			throws IOException {
+		if (entry == null)
+			return null;
+		Callable<double[]> loader = new Callable<double[]>() {
+
+			@Override
+			public double[] call() throws IOException {
+				return MatrixIO.doubleArrayFromInputStream(
+						new BufferedInputStream(zip.getInputStream(entry)), entry.getSize());
+			}
+		};
+		if (entryCache == null)
+			return loadUnchecked(loader);
+		return (double[])getCached(zip, entry, entryCache, loader);
+	}
+	
+	/**
+	 * Loads an int list list from the given entry, or returns null if the entry is null. If a cache is supplied,
+	 * the list is stored in compact CSR form (see {@link FaultSystemRupSet#toCompactSectionIndices(List)}) and
+	 * its arrays are shared by all rupture sets loaded from the same entry with that cache.
+	 * 
+	 * @param zip
+	 * @param entry
+	 * @param entryCache
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<List<Integer>> loadSharedIntListList(ZipFile zip, ZipEntry entry,
+			Cache<String, Object> entryCache) throws IOException {
+		if (entry == null)
+			return null;
+		Callable<List<List<Integer>>> loader = new Callable<List<List<Integer>>>() {
+
+			@Override
+			public List<List<Integer>> call() throws IOException {
+				if (entryCache == null)
+					return MatrixIO.intListListFromInputStream(new BufferedInputStream(zip.getInputStream(entry)));
+				// share compact arrays which rupture sets can use directly, rather than boxed lists
+				return FaultSystemRupSet.readCompactSectionIndices(zip.getInputStream(entry));
 			}
-			list.add(sect);
+		};
+		if (entryCache == null)
+			return loadUnchecked(loader);
+		return (List<List<Integer>>)getCached(zip, entry, entryCache, loader);
+	}
+	
+	private static <E> E loadUnchecked(Callable<E> loader) throws IOException {
+		try {
+			return loader.call();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw ExceptionUtils.asRuntimeException(e);
 		}
+	}
+	
+	private static Object getCached(ZipFile zip, ZipEntry entry, Cache<String, Object> entryCache,
+			Callable<?> loader) throws IOException {
+		// entry names are content addresses within a zip file
+		String key = zip.getName()+":"+entry.getName();
+		try {
+			return entryCache.get(key, loader);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw ExceptionUtils.asRuntimeException(e.getCause());
+		}
+	}
+	
+	public static ArrayList<FaultSection> fsDataFromXML(Element el) {
+		ArrayList<FaultSection> list = new ArrayList<>();
+		
+		for (int i=0; i<el.elements().size(); i++)
+			list.add(fsDataFromXMLElement(el.element("i"+i)));
 		
 		return list;
 	}
 	
-	private static String loadInfoFromEntry(ZipFile zip, ZipEntry infoEntry) throws IOException {
+	private static FaultSection fsDataFromXMLElement(Element subEl) {
+		Attribute classAt = subEl.attribute("class");
+		FaultSection sect;
+		if (classAt == null || classAt.getValue().equals(FaultSectionPrefData.class.getCanonicalName())) {
+			// default to FaultSectionPrefData
+			sect = FaultSectionPrefData.fromXMLMetadata(subEl);
+		} else {
+			// use reflection
+			String className = classAt.getValue();
+			Object sectObj;
+			try {
+				sectObj = MetadataLoader.loadXMLwithReflection(subEl, className);
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException(
+						"Defined fault section class not found, cannot load from XML: "+className, e);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalStateException(
+						"Defined fault section class does not contain static "
+						+ "fromXMLMetadata(Element) method, cannot load from XML: "+className, e);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalStateException(
+						"Defined fault section class does has unexpected method signature for "
+						+ "fromXMLMetadata(Element) method, cannot load from XML: "+className, e);
+			} catch (Exception e) {
+				throw new IllegalStateException(
+						"Other error loading fault section class from XML via reflection: "+className, e);
+			}
+			Preconditions.checkState(sectObj instanceof FaultSection,
+					"Fault section could be instantiated from XML, "
+					+ "but does not implement FaultSection: %s", className);
+			sect = (FaultSection)sectObj;
+		}
+		return sect;
+	}
+	
+	static String loadInfoFromEntry(ZipFile zip, ZipEntry infoEntry) throws IOException {
 		if (infoEntry != null) {
 			StringBuilder text = new StringBuilder();
 			String NL = System.getProperty("line.separator");
@@ -588,8 +781,25 @@ public class FaultSystemIO {
 	 */
 	public static FaultSystemSolution loadSolAsApplicable(ZipFile zip, Map<String, String> nameRemappings)
 			throws IOException, DocumentException {
+		return loadSolAsApplicable(zip, nameRemappings, null);
+	}
+	
+	/**
+	 * Loads a solution from the given zip file as the deepest possible subclass. If an entry cache is supplied,
+	 * immutable rupture data arrays (magnitudes, rakes, areas, lengths and rupture sections) are shared between
+	 * all solutions loaded from the same zip entries with that cache.
+	 * 
+	 * @param zip
+	 * @param nameRemappings
+	 * @param entryCache cache of decoded entries, or null
+	 * @return
+	 * @throws IOException
+	 * @throws DocumentException
+	 */
+	public static FaultSystemSolution loadSolAsApplicable(ZipFile zip, Map<String, String> nameRemappings,
+			Cache<String, Object> entryCache) throws IOException, DocumentException {
 		// first load the rupture set
-		FaultSystemRupSet rupSet = loadRupSetAsApplicable(zip, nameRemappings);
+		FaultSystemRupSet rupSet = loadRupSetAsApplicable(zip, nameRemappings, entryCache);
 		
 		// safe to use rupSet info string as we just loaded it from the same zip file
 		String infoString = rupSet.getInfoString();
@@ -746,10 +956,9 @@ public class FaultSystemIO {
 		if (D) System.out.println("Saving fault section xml");
 		File fsdFile = new File(tempDir, getRemappedName("fault_sections.xml", nameRemappings));
 		if (!zipFileNames.contains(fsdFile.getName())) {
-			Document doc = XMLUtils.createDocumentWithRoot();
-			Element root = doc.getRootElement();
-			fsDataToXML(root, FaultSectionPrefData.XML_METADATA_NAME+"List", rupSet);
-			XMLUtils.writeDocumentToFile(fsdFile, doc);
+			StreamingXMLUtils.Writer writer = new StreamingXMLUtils.Writer(fsdFile);
+			fsDataToXML(writer, FaultSectionPrefData.XML_METADATA_NAME+"List", rupSet);
+			writer.close();
 			zipFileNames.add(fsdFile.getName());
 		}
 		
@@ -851,9 +1060,15 @@ public class FaultSystemIO {
 		List<ClusterRupture> clusterRuptures = rupSet.getClusterRuptures();
 		if (clusterRuptures != null) {
 			if (D) System.out.println("Saving cluster ruptures");
-			File clusterFile = new File(tempDir, getRemappedName("cluster_ruptures.json", nameRemappings));
-			ClusterRupture.writeJSON(clusterFile, clusterRuptures, rupSet.getFaultSectionDataList());
-			zipFileNames.add(clusterFile.getName());
+			if (WRITE_CLUSTER_RUPTURES_JSON) {
+				File clusterFile = new File(tempDir, getRemappedName("cluster_ruptures.json", nameRemappings));
+				ClusterRupture.writeJSON(clusterFile, clusterRuptures, rupSet.getFaultSectionDataList());
+				zipFileNames.add(clusterFile.getName());
+			} else {
+				File clusterBinFile = new File(tempDir, getRemappedName("cluster_ruptures.bin", nameRemappings));
+				ClusterRuptureBinaryIO.write(clusterBinFile, clusterRuptures, Compression.DEFLATE);
+				zipFileNames.add(clusterBinFile.getName());
+			}
 		}
 		
 		// InversionFaultSystemRupSet specific
@@ -935,6 +1150,45 @@ public class FaultSystemIO {
 		fsDataToXML(parent, elName, fm, dm, rupSet.getFaultSectionDataList());
 	}
 	
+	/**
+	 * Streams fault section data to the given writer, one section at a time. Output is identical in structure to
+	 * {@link #fsDataToXML(Element, String, FaultModels, DeformationModels, List)}.
+	 * 
+	 * @param writer
+	 * @param elName
+	 * @param rupSet
+	 * @throws IOException
+	 */
+	public static void fsDataToXML(StreamingXMLUtils.Writer writer, String elName, FaultSystemRupSet rupSet)
+			throws IOException {
+		FaultModels fm = null;
+		DeformationModels dm = null;
+		if (rupSet instanceof InversionFaultSystemRupSet) {
+			InversionFaultSystemRupSet invRupSet = (InversionFaultSystemRupSet)rupSet;
+			fm = invRupSet.getFaultModel();
+			dm = invRupSet.getDeformationModel();
+		}
+		List<? extends FaultSection> fsd = rupSet.getFaultSectionDataList();
+		
+		Element el = DocumentHelper.createElement(elName);
+		if (dm != null)
+			el.addAttribute("defModName", dm.name());
+		if (fm != null)
+			el.addAttribute("faultModName", fm.name());
+		writer.startElement(el);
+		
+		for (int i=0; i<fsd.size(); i++) {
+			// build each section in a temporary parent, then write and discard it
+			String sectElName = "i"+i;
+			fsd.get(i).toXMLMetadata(el, sectElName);
+			Element sectEl = el.element(sectElName);
+			writer.writeElement(sectEl);
+			el.remove(sectEl);
+		}
+		
+		writer.endElement();
+	}
+	
 	public static void fsDataToXML(Element parent, String elName,
 			FaultModels fm, DeformationModels dm, List<? extends FaultSection> fsd) {
 		Element el = parent.addElement(elName);
@@ -964,7 +1218,7 @@ public class FaultSystemIO {
 			filter.toXMLMetadata(el);
 	}
 	
-	private static String getRemappedName(String name, Map<String, String> nameRemappings) {
+	static String getRemappedName(String name, Map<String, String> nameRemappings) {
 		if (nameRemappings == null)
 			return name;
 		return nameRemappings.get(name);
@@ -0,0 +1,527 @@
+package scratch.UCERF3.utils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.commons.util.LazilyInitializedList;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRupture;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRuptureBinaryIO;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.PlausibilityConfiguration;
+import org.opensha.sha.faultSurface.FaultSection;
+import org.opensha.sha.magdist.IncrementalMagFreqDist;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.FaultSystemRupSet;
+import scratch.UCERF3.FaultSystemSolution;
+import scratch.UCERF3.griddedSeismicity.GridSourceFileReader;
+import scratch.UCERF3.griddedSeismicity.GridSourceProvider;
+
+/**
+ * {@link FaultSystemRupSet} which is backed by an open zip file, and only decodes each data file the first time that
+ * it is accessed. This is useful for tools (e.g., hazard calculations) which only need a subset of the data in a
+ * rupture set, and avoids paying for rupture diagnostics data (plausibility configuration and cluster ruptures)
+ * unless they are explicitly requested.
+ * <p>
+ * Each entry is decoded at most once, on the first thread to request it (other threads block until it has been
+ * decoded). Independent entries can also be decoded in parallel ahead of time via {@link #prefetch(Executor)}.
+ * <p>
+ * This is always loaded as a plain {@link FaultSystemRupSet}; any inversion-specific metadata in the zip file is
+ * ignored. Use {@link FaultSystemIO#loadRupSet(java.io.File)} if that is needed.
+ * <p>
+ * The zip file is kept open until {@link #close()} is called, after which any entries which have not yet been
+ * loaded will no longer be available.
+ */
+public class LazyZipFaultSystemRupSet extends FaultSystemRupSet implements Closeable {
+
+	private final ZipFile zip;
+	private final int numRuptures;
+
+	private volatile LazyEntry<List<? extends FaultSection>> faultSectionData;
+	private volatile LazyEntry<double[]> mags;
+	private volatile LazyEntry<double[]> sectSlipRates;
+	private volatile LazyEntry<double[]> sectSlipRateStdDevs;
+	private volatile LazyEntry<double[]> rakes;
+	private volatile LazyEntry<double[]> rupAreas;
+	private volatile LazyEntry<double[]> rupLengths;
+	private volatile LazyEntry<double[]> sectAreas;
+	private volatile LazyEntry<List<List<Integer>>> sectionForRups;
+	private volatile LazyEntry<String> info;
+
+	private volatile LazyEntry<PlausibilityConfiguration> plausibilityConfig;
+	private volatile LazyEntry<List<ClusterRupture>> clusterRuptures;
+
+	/**
+	 * @param zip zip file, which will be kept open
+	 * @param nameRemappings entry name remappings (for compound solutions), or null
+	 * @param loadDiagnostics if true, the plausibility configuration and cluster ruptures will be (lazily) loaded if
+	 * present. Otherwise they will be skipped and their getters will return null unless set explicitly.
+	 * @throws IOException
+	 */
+	LazyZipFaultSystemRupSet(ZipFile zip, Map<String, String> nameRemappings, boolean loadDiagnostics)
+			throws IOException {
+		this.zip = zip;
+
+		ZipEntry magEntry = zip.getEntry(FaultSystemIO.getRemappedName("mags.bin", nameRemappings));
+		Preconditions.checkNotNull(magEntry, "Zip file doesn't contain mags.bin: %s", zip.getName());
+		Preconditions.checkState(magEntry.getSize() >= 0, "Unknown size for mags.bin in %s", zip.getName());
+		// entries are raw big endian doubles, so we can get the rupture count without decoding anything
+		numRuptures = (int)(magEntry.getSize()/8l);
+
+		ZipEntry fsdEntry = FaultSystemIO.getFaultSectionsEntry(zip, nameRemappings);
+		Preconditions.checkNotNull(fsdEntry, "Zip file doesn't contain fault_sections.xml: %s", zip.getName());
+		faultSectionData = new LazyEntry<>(() -> FaultSystemIO.loadFaultSections(zip, fsdEntry));
+
+		mags = doubleEntry(magEntry, numRuptures);
+		sectSlipRates = doubleEntry(zip.getEntry(FaultSystemIO.getRemappedName("sect_slips.bin", nameRemappings)), -1);
+		sectSlipRateStdDevs = doubleEntry(zip.getEntry(
+				FaultSystemIO.getRemappedName("sect_slips_std_dev.bin", nameRemappings)), -1);
+		ZipEntry rakesEntry = zip.getEntry(FaultSystemIO.getRemappedName("rakes.bin", nameRemappings));
+		Preconditions.checkNotNull(rakesEntry, "Zip file doesn't contain rakes.bin: %s", zip.getName());
+		rakes = doubleEntry(rakesEntry, numRuptures);
+		rupAreas = doubleEntry(zip.getEntry(FaultSystemIO.getRemappedName("rup_areas.bin", nameRemappings)),
+				numRuptures);
+		rupLengths = doubleEntry(zip.getEntry(FaultSystemIO.getRemappedName("rup_lengths.bin", nameRemappings)),
+				numRuptures);
+		sectAreas = doubleEntry(zip.getEntry(FaultSystemIO.getRemappedName("sect_areas.bin", nameRemappings)), -1);
+
+		ZipEntry rupSectionsEntry = zip.getEntry(FaultSystemIO.getRemappedName("rup_sections.bin", nameRemappings));
+		Preconditions.checkNotNull(rupSectionsEntry, "Zip file doesn't contain rup_sections.bin: %s", zip.getName());
+		sectionForRups = new LazyEntry<>(() -> {
+			// straight to compact form, which the rupture set getters and any derived mappings use as is
+			List<List<Integer>> sects = FaultSystemRupSet.readCompactSectionIndices(
+					zip.getInputStream(rupSectionsEntry));
+			Preconditions.checkState(sects.size() == numRuptures, "array sizes inconsistent!");
+			return sects;
+		});
+
+		ZipEntry infoEntry = zip.getEntry(FaultSystemIO.getRemappedName("info.txt", nameRemappings));
+		info = new LazyEntry<>(() -> FaultSystemIO.loadInfoFromEntry(zip, infoEntry));
+
+		ZipEntry plausibilityEntry = loadDiagnostics ?
+				zip.getEntry(FaultSystemIO.getRemappedName("plausibility.json", nameRemappings)) : null;
+		if (plausibilityEntry == null) {
+			plausibilityConfig = completed(null);
+		} else {
+			plausibilityConfig = new LazyEntry<>(() -> {
+				InputStreamReader json = new InputStreamReader(
+						new BufferedInputStream(zip.getInputStream(plausibilityEntry)));
+				try {
+					return PlausibilityConfiguration.readJSON(json, getFaultSectionDataList());
+				} catch (Exception e) {
+					e.printStackTrace();
+					System.err.println("WARNING: Plausibilty configuration specified, but reading it failed. Skipping");
+					return null;
+				} finally {
+					json.close();
+				}
+			});
+		}
+
+		ZipEntry clustersBinEntry = loadDiagnostics ?
+				zip.getEntry(FaultSystemIO.getRemappedName("cluster_ruptures.bin", nameRemappings)) : null;
+		ZipEntry clustersEntry = loadDiagnostics ?
+				zip.getEntry(FaultSystemIO.getRemappedName("cluster_ruptures.json", nameRemappings)) : null;
+		if (clustersBinEntry != null) {
+			clusterRuptures = completed(new LazilyInitializedList<>(numRuptures, new Callable<List<ClusterRupture>>() {
+
+				@Override
+				public List<ClusterRupture> call() throws Exception {
+					System.out.println("Loading binary ClusterRupture list (lazily) from "+zip.getName());
+					return ClusterRuptureBinaryIO.read(zip.getInputStream(clustersBinEntry), getFaultSectionDataList());
+				}
+			}));
+		} else if (clustersEntry != null) {
+			clusterRuptures = completed(new LazilyInitializedList<>(numRuptures, new Callable<List<ClusterRupture>>() {
+
+				@Override
+				public List<ClusterRupture> call() throws Exception {
+					System.out.println("Loading ClusterRupture list (lazily) from "+zip.getName());
+					InputStreamReader json = new InputStreamReader(
+							new BufferedInputStream(zip.getInputStream(clustersEntry), 1024*128));
+					return ClusterRupture.readJSON(json, getFaultSectionDataList());
+				}
+			}));
+		} else {
+			clusterRuptures = completed(null);
+		}
+	}
+
+	/**
+	 * Entry which is decoded on the first call to {@link #load()}. Decoding happens on the calling thread, unless
+	 * it has already been started on another thread (e.g., via {@link LazyZipFaultSystemRupSet#prefetch(Executor)}),
+	 * in which case we wait for that to finish.
+	 *
+	 * @param <E>
+	 */
+	private static class LazyEntry<E> extends FutureTask<E> {
+
+		public LazyEntry(Callable<E> callable) {
+			super(callable);
+		}
+
+		public E load() {
+			// no-op if it's already been run, or is currently running on another thread
+			run();
+			try {
+				return get();
+			} catch (InterruptedException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			} catch (ExecutionException e) {
+				throw ExceptionUtils.asRuntimeException(e.getCause());
+			}
+		}
+	}
+
+	private static <E> LazyEntry<E> completed(E value) {
+		LazyEntry<E> entry = new LazyEntry<>(() -> value);
+		entry.run();
+		return entry;
+	}
+
+	private LazyEntry<double[]> doubleEntry(ZipEntry entry, int expectedLength) {
+		if (entry == null)
+			return completed(null);
+		return new LazyEntry<>(() -> {
+			double[] array = MatrixIO.doubleArrayFromInputStream(
+					new BufferedInputStream(zip.getInputStream(entry)), entry.getSize());
+			if (expectedLength >= 0)
+				Preconditions.checkState(array.length == expectedLength, "array sizes inconsistent!");
+			else
+				Preconditions.checkState(array.length == getNumSections(), "array sizes inconsistent!");
+			return array;
+		});
+	}
+
+	/**
+	 * Decodes all entries which are needed for typical calculations (fault sections, magnitudes, rakes, areas,
+	 * lengths, slip rates and rupture sections) in parallel in the common fork join pool. Returns immediately;
+	 * getters will block until their data has been decoded.
+	 */
+	public void prefetch() {
+		prefetch(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Decodes all entries which are needed for typical calculations (fault sections, magnitudes, rakes, areas,
+	 * lengths, slip rates and rupture sections) in parallel with the given executor. Returns immediately;
+	 * getters will block until their data has been decoded.
+	 *
+	 * @param exec
+	 */
+	public void prefetch(Executor exec) {
+		// sections first, as the section array entries validate against them
+		List<LazyEntry<?>> entries = new ArrayList<>();
+		entries.add(faultSectionData);
+		entries.add(sectionForRups);
+		entries.add(mags);
+		entries.add(rakes);
+		entries.add(rupAreas);
+		entries.add(rupLengths);
+		entries.add(sectAreas);
+		entries.add(sectSlipRates);
+		entries.add(sectSlipRateStdDevs);
+		entries.add(info);
+		for (LazyEntry<?> entry : entries)
+			if (!entry.isDone())
+				exec.execute(entry);
+	}
+
+	/**
+	 * Closes the underlying zip file. Any entries which have not yet been loaded will no longer be available, so
+	 * this should only be called once all needed data has been accessed.
+	 */
+	@Override
+	public void close() throws IOException {
+		zip.close();
+	}
+
+	@Override
+	public int getNumRuptures() {
+		return numRuptures;
+	}
+
+	@Override
+	public int getNumSections() {
+		return getFaultSectionDataList().size();
+	}
+
+	@Override
+	public List<List<Integer>> getSectionIndicesForAllRups() {
+		return sectionForRups.load();
+	}
+
+	@Override
+	public List<Integer> getSectionsIndicesForRup(int rupIndex) {
+		return sectionForRups.load().get(rupIndex);
+	}
+
+	@Override
+	public void setMagForallRups(double[] mags) {
+		Preconditions.checkArgument(mags.length == getNumRuptures(),
+				"Called setMag for "+mags.length+" rups but rup set has "+getNumRuptures()+" rups!");
+		this.mags = completed(mags);
+	}
+
+	@Override
+	public double[] getMagForAllRups() {
+		return mags.load();
+	}
+
+	@Override
+	public double getMagForRup(int rupIndex) {
+		return mags.load()[rupIndex];
+	}
+
+	@Override
+	public double[] getAveRakeForAllRups() {
+		return rakes.load();
+	}
+
+	@Override
+	public double getAveRakeForRup(int rupIndex) {
+		return rakes.load()[rupIndex];
+	}
+
+	@Override
+	public double[] getAreaForAllRups() {
+		return rupAreas.load();
+	}
+
+	@Override
+	public double getAreaForRup(int rupIndex) {
+		return rupAreas.load()[rupIndex];
+	}
+
+	@Override
+	public double[] getAreaForAllSections() {
+		return sectAreas.load();
+	}
+
+	@Override
+	public double getAreaForSection(int sectIndex) {
+		return sectAreas.load()[sectIndex];
+	}
+
+	@Override
+	public List<? extends FaultSection> getFaultSectionDataList() {
+		return faultSectionData.load();
+	}
+
+	@Override
+	public FaultSection getFaultSectionData(int sectIndex) {
+		return faultSectionData.load().get(sectIndex);
+	}
+
+	@Override
+	public double[] getLengthForAllRups() {
+		return rupLengths.load();
+	}
+
+	@Override
+	public double getLengthForRup(int rupIndex) {
+		return rupLengths.load()[rupIndex];
+	}
+
+	@Override
+	public double getSlipRateForSection(int sectIndex) {
+		return sectSlipRates.load()[sectIndex];
+	}
+
+	@Override
+	public double[] getSlipRateForAllSections() {
+		return sectSlipRates.load();
+	}
+
+	@Override
+	public double getSlipRateStdDevForSection(int sectIndex) {
+		return sectSlipRateStdDevs.load()[sectIndex];
+	}
+
+	@Override
+	public double[] getSlipRateStdDevForAllSections() {
+		return sectSlipRateStdDevs.load();
+	}
+
+	@Override
+	public String getInfoString() {
+		return info.load();
+	}
+
+	@Override
+	public void setInfoString(String info) {
+		this.info = completed(info);
+	}
+
+	@Override
+	public PlausibilityConfiguration getPlausibilityConfiguration() {
+		return plausibilityConfig.load();
+	}
+
+	@Override
+	public void setPlausibilityConfiguration(PlausibilityConfiguration plausibilityConfig) {
+		this.plausibilityConfig = completed(plausibilityConfig);
+	}
+
+	@Override
+	public List<ClusterRupture> getClusterRuptures() {
+		return clusterRuptures.load();
+	}
+
+	@Override
+	public void setClusterRuptures(List<ClusterRupture> clusterRuptures) {
+		if (clusterRuptures != null)
+			Preconditions.checkState(clusterRuptures.size() == getNumRuptures(),
+					"Cluster ruptures list is of size=%s but numRuptures=%s",
+					clusterRuptures.size(), getNumRuptures());
+		this.clusterRuptures = completed(clusterRuptures);
+	}
+
+	/**
+	 * {@link FaultSystemSolution} for a {@link LazyZipFaultSystemRupSet}. Rates are loaded immediately, but rupture
+	 * MFDs, sub seismogenic MFDs and grid sources are only decoded on first access.
+	 */
+	public static class Solution extends FaultSystemSolution implements Closeable {
+
+		private final LazyZipFaultSystemRupSet rupSet;
+
+		private volatile LazyEntry<DiscretizedFunc[]> rupMFDs;
+		private volatile LazyEntry<List<? extends IncrementalMagFreqDist>> subSeisMFDs;
+		private volatile LazyEntry<GridSourceProvider> gridSources;
+
+		Solution(LazyZipFaultSystemRupSet rupSet, Map<String, String> nameRemappings) throws IOException {
+			this.rupSet = rupSet;
+			ZipFile zip = rupSet.zip;
+
+			ZipEntry ratesEntry = zip.getEntry(FaultSystemIO.getRemappedName("rates.bin", nameRemappings));
+			Preconditions.checkNotNull(ratesEntry, "Zip file doesn't contain rates.bin: %s", zip.getName());
+			double[] rates = MatrixIO.doubleArrayFromInputStream(
+					new BufferedInputStream(zip.getInputStream(ratesEntry)), ratesEntry.getSize());
+			// info string is loaded lazily from the rupture set
+			init(rupSet, rates, null, null);
+
+			ZipEntry rupMFDsEntry = zip.getEntry(FaultSystemIO.getRemappedName("rup_mfds.bin", nameRemappings));
+			if (rupMFDsEntry == null)
+				rupMFDs = completed(null);
+			else
+				rupMFDs = new LazyEntry<>(() -> {
+					DiscretizedFunc[] mfds = MatrixIO.discFuncsFromInputStream(zip.getInputStream(rupMFDsEntry));
+					Preconditions.checkState(mfds.length == rupSet.getNumRuptures());
+					return mfds;
+				});
+
+			ZipEntry subSeisMFDsEntry = zip.getEntry(
+					FaultSystemIO.getRemappedName("sub_seismo_on_fault_mfds.bin", nameRemappings));
+			if (subSeisMFDsEntry == null)
+				subSeisMFDs = completed(null);
+			else
+				subSeisMFDs = new LazyEntry<>(() -> {
+					DiscretizedFunc[] origSubSeisMFDs = MatrixIO.discFuncsFromInputStream(
+							zip.getInputStream(subSeisMFDsEntry));
+					Preconditions.checkState(origSubSeisMFDs.length == rupSet.getNumSections());
+					List<IncrementalMagFreqDist> mfds = new ArrayList<>();
+					for (DiscretizedFunc func : origSubSeisMFDs)
+						mfds.add(FaultSystemIO.asIncr(func));
+					return mfds;
+				});
+
+			ZipEntry gridSourcesEntry = zip.getEntry(FaultSystemIO.getRemappedName("grid_sources.xml", nameRemappings));
+			ZipEntry gridSourcesBinEntry = zip.getEntry(
+					FaultSystemIO.getRemappedName("grid_sources.bin", nameRemappings));
+			ZipEntry gridSourcesRegEntry = zip.getEntry(
+					FaultSystemIO.getRemappedName("grid_sources_reg.xml", nameRemappings));
+			if (gridSourcesEntry != null)
+				gridSources = new LazyEntry<>(() -> GridSourceFileReader.fromInputStream(
+						zip.getInputStream(gridSourcesEntry)));
+			else if (gridSourcesBinEntry != null && gridSourcesRegEntry != null)
+				gridSources = new LazyEntry<>(() -> GridSourceFileReader.fromBinStreams(
+						zip.getInputStream(gridSourcesBinEntry), zip.getInputStream(gridSourcesRegEntry)));
+			else
+				gridSources = completed(null);
+		}
+
+		@Override
+		public LazyZipFaultSystemRupSet getRupSet() {
+			return rupSet;
+		}
+
+		/**
+		 * Decodes all rupture set entries needed for typical calculations, as well as rupture MFDs and sub
+		 * seismogenic MFDs, in parallel with the given executor. Grid sources are not included. Returns immediately.
+		 *
+		 * @param exec
+		 * @see LazyZipFaultSystemRupSet#prefetch(Executor)
+		 */
+		public void prefetch(Executor exec) {
+			rupSet.prefetch(exec);
+			if (!rupMFDs.isDone())
+				exec.execute(rupMFDs);
+			if (!subSeisMFDs.isDone())
+				exec.execute(subSeisMFDs);
+		}
+
+		@Override
+		public GridSourceProvider getGridSourceProvider() {
+			return gridSources.load();
+		}
+
+		@Override
+		public void setGridSourceProvider(GridSourceProvider gridSourceProvider) {
+			this.gridSources = completed(gridSourceProvider);
+		}
+
+		@Override
+		public DiscretizedFunc getRupMagDist(int rupIndex) {
+			DiscretizedFunc[] mfds = rupMFDs.load();
+			if (mfds == null)
+				return null;
+			return mfds[rupIndex];
+		}
+
+		@Override
+		public DiscretizedFunc[] getRupMagDists() {
+			return rupMFDs.load();
+		}
+
+		@Override
+		public void setRupMagDists(DiscretizedFunc[] rupMFDs) {
+			Preconditions.checkArgument(rupMFDs == null || rupMFDs.length == getRupSet().getNumRuptures());
+			this.rupMFDs = completed(rupMFDs);
+		}
+
+		@Override
+		public List<? extends IncrementalMagFreqDist> getSubSeismoOnFaultMFD_List() {
+			return subSeisMFDs.load();
+		}
+
+		@Override
+		public void setSubSeismoOnFaultMFD_List(List<? extends IncrementalMagFreqDist> subSeismoOnFaultMFDs) {
+			this.subSeisMFDs = completed(subSeismoOnFaultMFDs);
+		}
+
+		/**
+		 * Closes the underlying zip file
+		 *
+		 * @see LazyZipFaultSystemRupSet#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			rupSet.close();
+		}
+	}
+
+}
@@ -0,0 +1,302 @@
+package scratch.UCERF3.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.dom4j.Attribute;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.opensha.commons.util.XMLUtils;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * StAX based streaming XML reading/writing for large metadata files (e.g., fault sections or grid source MFDs) which
+ * would otherwise be loaded into a full DOM tree.
+ * <p>
+ * Documents are treated as a hierarchy of container elements (e.g., a list) holding record elements (e.g., each
+ * fault section). Records are still converted to/from dom4j {@link Element}s so that existing fromXMLMetadata and
+ * toXMLMetadata methods can be used, but only one record is held in memory at a time.
+ */
+public class StreamingXMLUtils {
+
+	/**
+	 * Handler for each record element encountered while streaming
+	 */
+	public interface ElementHandler {
+
+		/**
+		 * @param container container element holding this record. This only contains its attributes (no child
+		 * elements), but its parent containers are available via {@link Element#getParent()}.
+		 * @param el fully populated, detached record element
+		 */
+		public void handle(Element container, Element el);
+
+		/**
+		 * Called at the end of each container element, including the root. This is the only callback for
+		 * containers without any records.
+		 * @param container container element, which only contains its attributes
+		 */
+		public default void containerEnded(Element container) {}
+	}
+
+	/**
+	 * Streams through the given XML document. The root element, and any elements with names in containerNames, are
+	 * treated as containers: they are passed to the handler only as the (attributes only) container of their
+	 * children. Every other element is built as a complete dom4j element, passed to the handler, and then
+	 * discarded.
+	 * <p>
+	 * Whitespace-only text in elements which have child elements is ignored (as it is just formatting).
+	 *
+	 * @param is input stream, which will be closed
+	 * @param containerNames names of container elements (in addition to the root), or null for root only
+	 * @param handler
+	 * @throws IOException
+	 */
+	public static void read(InputStream is, Set<String> containerNames, ElementHandler handler) throws IOException {
+		if (containerNames == null)
+			containerNames = Collections.emptySet();
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		XMLStreamReader reader = null;
+		try {
+			reader = factory.createXMLStreamReader(is);
+
+			// current container, holding only its attributes
+			Element container = null;
+			// record element currently being built, and its ancestors within that record
+			Deque<Element> building = new ArrayDeque<>();
+			Deque<StringBuilder> texts = new ArrayDeque<>();
+
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					String name = reader.getLocalName();
+					Element el;
+					if (!building.isEmpty()) {
+						el = building.peek().addElement(name);
+						building.push(el);
+						texts.push(new StringBuilder());
+					} else if (container == null) {
+						el = DocumentHelper.createElement(name);
+						container = el;
+					} else if (containerNames.contains(name)) {
+						el = container.addElement(name);
+						container = el;
+					} else {
+						el = DocumentHelper.createElement(name);
+						building.push(el);
+						texts.push(new StringBuilder());
+					}
+					for (int i=0; i<reader.getAttributeCount(); i++)
+						el.addAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					if (!texts.isEmpty())
+						texts.peek().append(reader.getText());
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if (!building.isEmpty()) {
+						Element done = building.pop();
+						String text = texts.pop().toString();
+						if (done.elements().isEmpty() ? !text.isEmpty() : !text.trim().isEmpty())
+							done.addText(text);
+						if (building.isEmpty())
+							handler.handle(container, done);
+					} else {
+						Preconditions.checkState(container != null);
+						handler.containerEnded(container);
+						// done with this container, detach it so that the container hierarchy stays small
+						Element parent = container.getParent();
+						if (parent != null)
+							parent.remove(container);
+						container = parent;
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {}
+			}
+			is.close();
+		}
+	}
+
+	/**
+	 * Streaming XML writer. The root element (with the same name as those created by
+	 * {@link XMLUtils#createDocumentWithRoot()}) is written on construction, and all open elements are closed
+	 * by {@link #close()}. Output is indented with tabs.
+	 */
+	public static class Writer implements Closeable {
+
+		private final OutputStream out;
+		private final XMLStreamWriter writer;
+		private int depth = 0;
+		// true if the element at the given depth has child elements
+		private final Deque<Boolean> hasChildren = new ArrayDeque<>();
+
+		public Writer(File file) throws IOException {
+			this(new BufferedOutputStream(new FileOutputStream(file), 1024*128));
+		}
+
+		/**
+		 * @param out output stream, which will be closed when this writer is closed
+		 * @throws IOException
+		 */
+		public Writer(OutputStream out) throws IOException {
+			this.out = out;
+			try {
+				writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+				writer.writeStartDocument("UTF-8", "1.0");
+				startElement(XMLUtils.createDocumentWithRoot().getRootElement().getName());
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+
+		private void indent() throws XMLStreamException {
+			writer.writeCharacters("\n");
+			for (int i=0; i<depth; i++)
+				writer.writeCharacters("\t");
+		}
+
+		private void writeStart(String name, Iterator<Attribute> attributes) throws XMLStreamException {
+			if (!hasChildren.isEmpty()) {
+				hasChildren.pop();
+				hasChildren.push(true);
+			}
+			indent();
+			writer.writeStartElement(name);
+			while (attributes != null && attributes.hasNext()) {
+				Attribute att = attributes.next();
+				writer.writeAttribute(att.getName(), att.getValue());
+			}
+			hasChildren.push(false);
+			depth++;
+		}
+
+		private void writeEnd() throws XMLStreamException {
+			depth--;
+			if (hasChildren.pop())
+				indent();
+			writer.writeEndElement();
+		}
+
+		/**
+		 * Starts a new container element with the given name, which must later be closed via {@link #endElement()}
+		 *
+		 * @param name
+		 * @throws IOException
+		 */
+		public void startElement(String name) throws IOException {
+			try {
+				writeStart(name, null);
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Starts a new container element with the name and attributes (but not children) of the given element,
+		 * which must later be closed via {@link #endElement()}
+		 *
+		 * @param el
+		 * @throws IOException
+		 */
+		public void startElement(Element el) throws IOException {
+			try {
+				writeStart(el.getName(), el.attributeIterator());
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Closes the most recently started container element
+		 *
+		 * @throws IOException
+		 */
+		public void endElement() throws IOException {
+			Preconditions.checkState(depth > 1, "No open elements (other than the root)");
+			try {
+				writeEnd();
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Writes the given element and all of its children within the current container
+		 *
+		 * @param el
+		 * @throws IOException
+		 */
+		public void writeElement(Element el) throws IOException {
+			try {
+				doWriteElement(el);
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+		}
+
+		private void doWriteElement(Element el) throws XMLStreamException {
+			writeStart(el.getName(), el.attributeIterator());
+			Iterator<Element> children = el.elementIterator();
+			if (children.hasNext()) {
+				while (children.hasNext())
+					doWriteElement(children.next());
+			} else {
+				String text = el.getText();
+				if (!text.isEmpty())
+					writer.writeCharacters(text);
+			}
+			writeEnd();
+		}
+
+		/**
+		 * Closes all open elements (including the root) and the underlying output stream
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				while (depth > 0)
+					writeEnd();
+				writer.writeCharacters("\n");
+				writer.writeEndDocument();
+				writer.close();
+			} catch (XMLStreamException e) {
+				throw new IOException(e);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+}
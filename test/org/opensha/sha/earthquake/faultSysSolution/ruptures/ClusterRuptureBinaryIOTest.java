@@ -0,0 +1,123 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+import org.dom4j.DocumentException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.util.FileUtils;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRuptureBinaryIO.Compression;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.RuptureConnectionSearch;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.SectionDistanceAzimuthCalculator;
+
+import com.google.common.io.Files;
+
+import scratch.UCERF3.FaultSystemRupSet;
+import scratch.UCERF3.utils.FaultSystemIO;
+
+/**
+ * Round trip tests for the binary ClusterRupture format, both directly and through FaultSystemIO
+ */
+public class ClusterRuptureBinaryIOTest {
+
+	private static FaultSystemRupSet rupSet;
+	private static List<ClusterRupture> ruptures;
+
+	private File tempDir;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws IOException, DocumentException {
+		rupSet = FaultSystemIO.loadRupSet(new File("test/resources/scratch/UCERF3/utils/testAlpineVernonInversion.zip"));
+		if (rupSet.getClusterRuptures() == null)
+			rupSet.buildClusterRups(new RuptureConnectionSearch(rupSet,
+					new SectionDistanceAzimuthCalculator(rupSet.getFaultSectionDataList())));
+		// copy so that we never compare against a lazily loaded list
+		ruptures = new ArrayList<>(rupSet.getClusterRuptures());
+		assertFalse(ruptures.isEmpty());
+	}
+
+	@Before
+	public void setUp() {
+		tempDir = Files.createTempDir();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	private static void assertSameRuptures(List<ClusterRupture> expected, List<ClusterRupture> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int r=0; r<expected.size(); r++) {
+			ClusterRupture e = expected.get(r);
+			ClusterRupture a = actual.get(r);
+			assertEquals("Rupture "+r+" mismatch", e.unique, a.unique);
+			assertEquals("Rupture "+r+" mismatch", e.toString(), a.toString());
+			assertEquals("Rupture "+r+" mismatch", e.getTotalNumJumps(), a.getTotalNumJumps());
+			Iterator<Jump> eJumps = e.getJumpsIterable().iterator();
+			Iterator<Jump> aJumps = a.getJumpsIterable().iterator();
+			while (eJumps.hasNext()) {
+				Jump eJump = eJumps.next();
+				Jump aJump = aJumps.next();
+				assertEquals(eJump, aJump);
+				assertEquals(eJump.distance, aJump.distance, 0d);
+			}
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		for (Compression compression : Compression.values()) {
+			// small block size so that many blocks are used, including a partial last block
+			for (int blockSize : new int[] { 7, ClusterRuptureBinaryIO.DEFAULT_BLOCK_SIZE }) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				ClusterRuptureBinaryIO.write(out, ruptures, compression, blockSize);
+				byte[] data = out.toByteArray();
+				assertTrue(ClusterRuptureBinaryIO.isBinary(data));
+				List<ClusterRupture> loaded = ClusterRuptureBinaryIO.read(data, rupSet.getFaultSectionDataList());
+				// access out of order first to make sure that lazy decoding doesn't depend on order
+				assertEquals(ruptures.get(ruptures.size()-1).toString(), loaded.get(ruptures.size()-1).toString());
+				assertSameRuptures(ruptures, loaded);
+			}
+		}
+	}
+
+	@Test
+	public void testFaultSystemIODefaultsToBinary() throws IOException, DocumentException {
+		File file = new File(tempDir, "rup_set.zip");
+		FaultSystemIO.writeRupSet(rupSet, file);
+		try (ZipFile zip = new ZipFile(file)) {
+			assertNotNull(zip.getEntry("cluster_ruptures.bin"));
+			assertNull(zip.getEntry("cluster_ruptures.json"));
+		}
+		assertSameRuptures(ruptures, FaultSystemIO.loadRupSet(file).getClusterRuptures());
+	}
+
+	@Test
+	public void testFaultSystemIOJSON() throws IOException, DocumentException {
+		File file = new File(tempDir, "rup_set.zip");
+		boolean prevJSON = FaultSystemIO.WRITE_CLUSTER_RUPTURES_JSON;
+		try {
+			FaultSystemIO.WRITE_CLUSTER_RUPTURES_JSON = true;
+			FaultSystemIO.writeRupSet(rupSet, file);
+		} finally {
+			FaultSystemIO.WRITE_CLUSTER_RUPTURES_JSON = prevJSON;
+		}
+		try (ZipFile zip = new ZipFile(file)) {
+			assertNotNull(zip.getEntry("cluster_ruptures.json"));
+			assertNull(zip.getEntry("cluster_ruptures.bin"));
+		}
+		assertSameRuptures(ruptures, FaultSystemIO.loadRupSet(file).getClusterRuptures());
+	}
+
+}
@@ -0,0 +1,246 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.DocumentException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.util.FileUtils;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.BatchCoulombPlausibilityFilter;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.PlausibilityConfiguration;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.PlausibilityFilter;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.impl.JumpAzimuthChangeFilter.SimpleAzimuthCalc;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.strategies.ClusterConnectionStrategy;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.strategies.ClusterJumpTable;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.strategies.DistCutoffClosestSectClusterConnectionStrategy;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.strategies.ExhaustiveUnilateralRuptureGrowingStrategy;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.RuptureSpillFile;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.SectionDistanceAzimuthCalculator;
+import org.opensha.sha.faultSurface.FaultSection;
+import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator;
+import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator.AggregationMethod;
+import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator;
+import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.PatchAlignment;
+import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.StiffnessType;
+
+import com.google.common.io.Files;
+
+import scratch.UCERF3.FaultSystemRupSet;
+import scratch.UCERF3.inversion.laughTest.PlausibilityResult;
+import scratch.UCERF3.utils.FaultSystemIO;
+
+/**
+ * Verifies that multi threaded rupture building gives exactly the same ruptures, in the same order, as a single
+ * threaded build
+ */
+public class ClusterRuptureBuilderIntegrationTest {
+
+	private static List<? extends FaultSection> subSects;
+	private static SectionDistanceAzimuthCalculator distAzCalc;
+
+	@BeforeClass
+	public static void setUp() throws IOException, DocumentException {
+		FaultSystemRupSet rupSet = FaultSystemIO.loadRupSet(
+				new File("test/resources/scratch/UCERF3/utils/testAlpineVernonInversion.zip"));
+		subSects = rupSet.getFaultSectionDataList();
+		distAzCalc = new SectionDistanceAzimuthCalculator(subSects);
+	}
+
+	private static PlausibilityConfiguration buildConfig(int maxSplays) {
+		ClusterConnectionStrategy connStrat = new DistCutoffClosestSectClusterConnectionStrategy(
+				subSects, distAzCalc, 15d);
+		return PlausibilityConfiguration.builder(connStrat, distAzCalc)
+				.maxSplays(maxSplays)
+				.minSectsPerParent(2, true, true)
+				.jumpAzChange(new SimpleAzimuthCalc(distAzCalc), 60f)
+				.cumulativeAzChange(560f)
+				.cumulativeRakeChange(180f)
+				.build();
+	}
+
+	static void assertSameRuptures(List<ClusterRupture> expected, List<ClusterRupture> actual) {
+		assertEquals("Rupture count mismatch", expected.size(), actual.size());
+		for (int r=0; r<expected.size(); r++) {
+			assertEquals("Rupture "+r+" mismatch", expected.get(r).unique, actual.get(r).unique);
+			assertEquals("Rupture "+r+" mismatch", expected.get(r).toString(), actual.get(r).toString());
+		}
+	}
+
+	private void doTestThreadedEquivalence(int maxSplays) {
+		List<ClusterRupture> sequential = new ClusterRuptureBuilder(buildConfig(maxSplays)).build(
+				new ExhaustiveUnilateralRuptureGrowingStrategy(), 1);
+		assertFalse(sequential.isEmpty());
+		for (int threads : new int[] { 2, 8 }) {
+			List<ClusterRupture> threaded = new ClusterRuptureBuilder(buildConfig(maxSplays)).build(
+					new ExhaustiveUnilateralRuptureGrowingStrategy(), threads);
+			assertSameRuptures(sequential, threaded);
+		}
+	}
+
+	private static PlausibilityConfiguration buildCoulombConfig() {
+		SubSectStiffnessCalculator stiffnessCalc = new SubSectStiffnessCalculator(
+				subSects, 2d, 3e4, 3e4, 0.5, PatchAlignment.FILL_OVERLAP, 1d);
+		AggregatedStiffnessCalculator sumAgg = new AggregatedStiffnessCalculator(StiffnessType.CFF, stiffnessCalc, true,
+				AggregationMethod.FLATTEN, AggregationMethod.SUM, AggregationMethod.SUM, AggregationMethod.SUM);
+		AggregatedStiffnessCalculator fractIntsAgg = new AggregatedStiffnessCalculator(StiffnessType.CFF, stiffnessCalc, true,
+				AggregationMethod.FLATTEN, AggregationMethod.NUM_POSITIVE, AggregationMethod.SUM, AggregationMethod.NORM_BY_COUNT);
+		ClusterConnectionStrategy connStrat = new DistCutoffClosestSectClusterConnectionStrategy(
+				subSects, distAzCalc, 15d);
+		// Coulomb filters before and after other filters, to make sure that the configured order is respected
+		return PlausibilityConfiguration.builder(connStrat, distAzCalc)
+				.maxSplays(0)
+				.clusterCoulomb(sumAgg, 0f)
+				.minSectsPerParent(2, true, true)
+				.jumpAzChange(new SimpleAzimuthCalc(distAzCalc), 60f)
+				.netRupCoulomb(fractIntsAgg, 0.5f)
+				.cumulativeRakeChange(180f)
+				.build();
+	}
+
+	/**
+	 * @param filter
+	 * @return filter which delegates to the given filter, but isn't a {@link BatchCoulombPlausibilityFilter}
+	 */
+	private static PlausibilityFilter unbatched(PlausibilityFilter filter) {
+		return new PlausibilityFilter() {
+
+			@Override
+			public String getShortName() {
+				return filter.getShortName();
+			}
+
+			@Override
+			public String getName() {
+				return filter.getName();
+			}
+
+			@Override
+			public PlausibilityResult apply(ClusterRupture rupture, boolean verbose) {
+				return filter.apply(rupture, verbose);
+			}
+
+			@Override
+			public boolean isDirectional(boolean splayed) {
+				return filter.isDirectional(splayed);
+			}
+		};
+	}
+
+	@Test
+	public void testBatchedCoulombEquivalence() {
+		PlausibilityConfiguration config = buildCoulombConfig();
+		List<PlausibilityFilter> unbatchedFilters = new ArrayList<>();
+		int numBatch = 0;
+		for (PlausibilityFilter filter : config.getFilters()) {
+			if (filter instanceof BatchCoulombPlausibilityFilter)
+				numBatch++;
+			unbatchedFilters.add(unbatched(filter));
+		}
+		assertEquals(2, numBatch);
+		List<FaultSubsectionCluster> clusters = config.getConnectionStrategy().getClusters();
+		List<ClusterRupture> expected = new ClusterRuptureBuilder(clusters, unbatchedFilters, 0, distAzCalc).build(
+				new ExhaustiveUnilateralRuptureGrowingStrategy(), 1);
+		assertFalse(expected.isEmpty());
+		for (int threads : new int[] { 1, 4 }) {
+			List<ClusterRupture> batched = new ClusterRuptureBuilder(config).build(
+					new ExhaustiveUnilateralRuptureGrowingStrategy(), threads);
+			assertSameRuptures(expected, batched);
+		}
+	}
+
+	@Test
+	public void testJumpTableDistances() {
+		ClusterConnectionStrategy connStrat = buildConfig(0).getConnectionStrategy();
+		ClusterJumpTable table = connStrat.getJumpTable();
+		int numJumps = 0;
+		for (FaultSubsectionCluster from : connStrat.getClusters()) {
+			for (Jump jump : from.getConnections()) {
+				int conn = table.getConnectionIndex(jump.fromCluster, jump.toCluster);
+				assertTrue(conn >= 0);
+				double expected = Double.POSITIVE_INFINITY;
+				for (FaultSection s1 : jump.fromCluster.subSects)
+					for (FaultSection s2 : jump.toCluster.subSects)
+						expected = Double.min(expected, distAzCalc.getDistance(s1, s2));
+				assertEquals(expected, table.getDistance(conn), 0d);
+				assertEquals(expected, table.getMinDistance(conn, jump.fromCluster, jump.toCluster), 0d);
+				assertEquals(expected, distAzCalc.getDistance(table.getFromSectID(conn), table.getToSectID(conn)), 0d);
+				assertEquals(distAzCalc.getAzimuth(table.getFromSectID(conn), table.getToSectID(conn)),
+						table.getAzimuth(conn), 0d);
+				assertEquals(jump.fromCluster.parentSectionID,
+						subSects.get(table.getFromSectID(conn)).getParentSectionId());
+				numJumps++;
+			}
+		}
+		assertTrue(numJumps > 0);
+	}
+
+	@Test
+	public void testSpatialIndexPruningEquivalence() {
+		for (int threads : new int[] { 1, 4 }) {
+			ClusterConnectionStrategy unpruned = new DistCutoffClosestSectClusterConnectionStrategy(
+					subSects, distAzCalc, 15d);
+			unpruned.setSpatialIndexPruning(false);
+			unpruned.checkBuildThreaded(threads);
+			// enabled by default
+			ClusterConnectionStrategy pruned = new DistCutoffClosestSectClusterConnectionStrategy(
+					subSects, distAzCalc, 15d);
+			pruned.checkBuildThreaded(threads);
+			List<FaultSubsectionCluster> expected = unpruned.getClusters();
+			List<FaultSubsectionCluster> actual = pruned.getClusters();
+			assertEquals(expected.size(), actual.size());
+			int numJumps = 0;
+			for (int c=0; c<expected.size(); c++) {
+				assertEquals(expected.get(c).getConnections().toString(), actual.get(c).getConnections().toString());
+				numJumps += expected.get(c).getConnections().size();
+			}
+			assertTrue(numJumps > 0);
+		}
+	}
+
+	@Test
+	public void testThreadedEquivalence() {
+		doTestThreadedEquivalence(0);
+	}
+
+	@Test
+	public void testThreadedEquivalenceWithSplays() {
+		doTestThreadedEquivalence(1);
+	}
+
+	@Test
+	public void testThreadedSpillEquivalence() throws IOException {
+		List<ClusterRupture> sequential = new ClusterRuptureBuilder(buildConfig(1)).build(
+				new ExhaustiveUnilateralRuptureGrowingStrategy(), 1);
+		assertFalse(sequential.isEmpty());
+		File tempDir = Files.createTempDir();
+		try {
+			RuptureSpillFile spillFile = new RuptureSpillFile(new File(tempDir, "rups.spill"));
+			try (RuptureSpillFile.Writer writer = spillFile.writer()) {
+				int count = new ClusterRuptureBuilder(buildConfig(1)).build(
+						new ExhaustiveUnilateralRuptureGrowingStrategy(), 8, writer);
+				assertEquals(sequential.size(), count);
+			}
+			// temporary spill files for each start cluster should have been deleted as they were merged
+			assertEquals(2, tempDir.listFiles().length);
+			try (RuptureSpillFile.Reader reader = spillFile.reader()) {
+				int r = 0;
+				for (int[] sectIDs : reader) {
+					List<FaultSection> expected = sequential.get(r).buildOrderedSectionList();
+					assertEquals("Rupture "+r+" mismatch", expected.size(), sectIDs.length);
+					for (int i=0; i<sectIDs.length; i++)
+						assertEquals("Rupture "+r+" mismatch", expected.get(i).getSectionId(), sectIDs[i]);
+					r++;
+				}
+				assertEquals(sequential.size(), r);
+			}
+		} finally {
+			FileUtils.deleteRecursive(tempDir);
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.dom4j.DocumentException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.ClusterRupture;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.Jump;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.impl.CumulativeAzimuthChangeFilter;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.impl.CumulativeRakeChangeFilter;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.impl.JumpAzimuthChangeFilter.SimpleAzimuthCalc;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.impl.JumpDistFilter;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.SectionDistanceAzimuthCalculator;
+
+import scratch.UCERF3.FaultSystemRupSet;
+import scratch.UCERF3.inversion.laughTest.PlausibilityResult;
+import scratch.UCERF3.utils.FaultSystemIO;
+
+/**
+ * Verifies that incremental evaluation of each {@link IncrementalPlausibilityFilter}, extending the state one jump
+ * at a time as the rupture builder does, gives the same result as full evaluation for every intermediate rupture
+ * of a real rupture set.
+ */
+public class IncrementalPlausibilityFilterIntegrationTest {
+
+	private static FaultSystemRupSet rupSet;
+	private static SectionDistanceAzimuthCalculator distAzCalc;
+
+	@BeforeClass
+	public static void setUp() throws IOException, DocumentException {
+		rupSet = FaultSystemIO.loadRupSet(new File("test/resources/scratch/UCERF3/utils/testAlpineVernonInversion.zip"));
+		distAzCalc = new SectionDistanceAzimuthCalculator(rupSet.getFaultSectionDataList());
+	}
+
+	/**
+	 * @param rupture
+	 * @return each intermediate rupture when building up the given rupture one jump at a time (including the
+	 * initial single cluster rupture and the full rupture), along with the jump taken to get there
+	 */
+	private static List<ClusterRupture> getBuildSequence(ClusterRupture rupture, List<Jump> jumpsTaken) {
+		List<ClusterRupture> sequence = new ArrayList<>();
+		ClusterRupture current = new ClusterRupture(rupture.clusters[0]);
+		sequence.add(current);
+		jumpsTaken.add(null);
+		LinkedList<Jump> remaining = new LinkedList<>();
+		for (Jump jump : rupture.getJumpsIterable())
+			remaining.add(jump);
+		while (!remaining.isEmpty()) {
+			Jump next = null;
+			for (Jump jump : remaining) {
+				if (current.contains(jump.fromSection)) {
+					next = jump;
+					break;
+				}
+			}
+			assertNotNull("No jump can be taken from "+current, next);
+			remaining.remove(next);
+			current = current.take(next);
+			sequence.add(current);
+			jumpsTaken.add(next);
+		}
+		assertEquals(rupture.getTotalNumSects(), current.getTotalNumSects());
+		return sequence;
+	}
+
+	/**
+	 * @param values
+	 * @return median of all positive values, used as a threshold such that some ruptures pass and some fail
+	 */
+	private static float medianPositive(List<Float> values) {
+		List<Float> positive = new ArrayList<>();
+		for (float value : values)
+			if (value > 0f)
+				positive.add(value);
+		assertFalse("No positive values", positive.isEmpty());
+		float[] sorted = new float[positive.size()];
+		for (int i=0; i<sorted.length; i++)
+			sorted[i] = positive.get(i);
+		Arrays.sort(sorted);
+		return sorted[sorted.length/2];
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void doTestEquivalence(IncrementalPlausibilityFilter filter) {
+		int numPass = 0;
+		int numFail = 0;
+		for (ClusterRupture rupture : rupSet.getClusterRuptures()) {
+			List<Jump> jumpsTaken = new ArrayList<>();
+			List<ClusterRupture> sequence = getBuildSequence(rupture, jumpsTaken);
+			Object state = null;
+			for (int i=0; i<sequence.size(); i++) {
+				ClusterRupture current = sequence.get(i);
+				if (i == 0)
+					state = filter.buildState(current, false);
+				else
+					state = filter.extendState(state, sequence.get(i-1), jumpsTaken.get(i), current, false);
+				PlausibilityResult incremental = filter.testState(state, current, false);
+				PlausibilityResult full = filter.apply(current, false);
+				assertEquals(filter.getShortName()+" mismatch for "+current, full, incremental);
+				// building from scratch must also match
+				assertEquals(filter.getShortName()+" mismatch from scratch for "+current,
+						full, filter.testState(filter.buildState(current, false), current, false));
+				if (full.isPass())
+					numPass++;
+				else
+					numFail++;
+			}
+		}
+		// make sure that the threshold actually exercised both outcomes
+		assertTrue(filter.getShortName()+" never passed", numPass > 0);
+		assertTrue(filter.getShortName()+" never failed", numFail > 0);
+	}
+
+	@Test
+	public void testCumulativeAzimuthChange() {
+		CumulativeAzimuthChangeFilter unlimited = new CumulativeAzimuthChangeFilter(
+				new SimpleAzimuthCalc(distAzCalc), Float.POSITIVE_INFINITY);
+		List<Float> values = new ArrayList<>();
+		for (ClusterRupture rupture : rupSet.getClusterRuptures())
+			values.add(unlimited.getValue(rupture));
+		doTestEquivalence(new CumulativeAzimuthChangeFilter(new SimpleAzimuthCalc(distAzCalc), medianPositive(values)));
+	}
+
+	@Test
+	public void testCumulativeRakeChange() {
+		CumulativeRakeChangeFilter unlimited = new CumulativeRakeChangeFilter(Float.POSITIVE_INFINITY);
+		List<Float> values = new ArrayList<>();
+		for (ClusterRupture rupture : rupSet.getClusterRuptures())
+			values.add(unlimited.getValue(rupture));
+		doTestEquivalence(new CumulativeRakeChangeFilter(medianPositive(values)));
+	}
+
+	@Test
+	public void testJumpDist() {
+		JumpDistFilter unlimited = new JumpDistFilter(Double.POSITIVE_INFINITY);
+		List<Float> values = new ArrayList<>();
+		for (ClusterRupture rupture : rupSet.getClusterRuptures())
+			values.add(unlimited.getValue(rupture));
+		doTestEquivalence(new JumpDistFilter(medianPositive(values)));
+	}
+
+}
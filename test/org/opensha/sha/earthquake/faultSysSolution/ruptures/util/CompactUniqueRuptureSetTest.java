@@ -0,0 +1,108 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompactUniqueRuptureSetTest {
+
+	/**
+	 * @return random rupture with 1 to 4 ranges, with IDs large enough to need multi byte encodings
+	 */
+	private static UniqueRupture randomRupture(Random r) {
+		int numRanges = 1 + r.nextInt(4);
+		List<Integer> ids = new ArrayList<>();
+		int id = r.nextInt(r.nextBoolean() ? 100 : 100000);
+		for (int i=0; i<numRanges; i++) {
+			int len = 1 + r.nextInt(20);
+			for (int j=0; j<len; j++)
+				ids.add(id++);
+			// gap, so that ranges aren't merged
+			id += 2 + r.nextInt(r.nextBoolean() ? 10 : 5000);
+		}
+		return UniqueRupture.forIDs(ids);
+	}
+
+	@Test
+	public void testMatchesHashSet() {
+		Random r = new Random(1234l);
+		HashSet<UniqueRupture> expected = new HashSet<>();
+		// smallest possible starting size, so that there are many rehashes and arena resizes
+		CompactUniqueRuptureSet set = new CompactUniqueRuptureSet(1);
+		int initialArena = set.getArenaBytes();
+		assertEquals(0, initialArena);
+		for (int i=0; i<50000; i++) {
+			// draw from a limited pool so that there are many duplicates
+			UniqueRupture rup = randomRupture(new Random(r.nextInt(30000)));
+			assertEquals(expected.contains(rup), set.contains(rup));
+			assertEquals(expected.add(rup), set.add(rup));
+			assertTrue(set.contains(rup));
+		}
+		assertEquals(expected.size(), set.size());
+		assertTrue(set.size() < 50000);
+		// arena should have grown well past its initial allocation (64 bytes for the minimum table size)
+		assertTrue(set.getArenaBytes() > expected.size());
+		for (UniqueRupture rup : expected)
+			assertTrue(set.contains(rup));
+		// ruptures that were never added
+		for (int i=0; i<1000; i++) {
+			UniqueRupture rup = randomRupture(new Random(1000000 + i));
+			assertEquals(expected.contains(rup), set.contains(rup));
+		}
+	}
+
+	@Test
+	public void testFingerprintCollisions() {
+		Random r = new Random(4321l);
+		List<UniqueRupture> rups = new ArrayList<>();
+		HashSet<UniqueRupture> unique = new HashSet<>();
+		while (rups.size() < 500) {
+			UniqueRupture rup = randomRupture(r);
+			if (unique.add(rup))
+				rups.add(rup);
+		}
+		CompactUniqueRuptureSet set = new CompactUniqueRuptureSet(1);
+		// force every rupture into one of two fingerprints, so that matches must be verified against the encoding
+		for (int i=0; i<rups.size()-100; i++)
+			assertTrue(set.add(rups.get(i), 1l + (i % 2)));
+		assertEquals(rups.size()-100, set.size());
+		for (int i=0; i<rups.size(); i++) {
+			boolean added = i < rups.size()-100;
+			assertEquals(added, set.contains(rups.get(i), 1l + (i % 2)));
+			// fingerprint matches are required, the same rupture with the other fingerprint is never found
+			assertFalse(set.contains(rups.get(i), 2l - (i % 2)));
+			assertEquals(!added, set.add(rups.get(i), 1l + (i % 2)));
+		}
+		assertEquals(rups.size(), set.size());
+	}
+
+	@Test
+	public void testPrefixRanges() {
+		// ruptures whose encodings share prefixes with each other, all with the same fingerprint
+		CompactUniqueRuptureSet set = new CompactUniqueRuptureSet();
+		UniqueRupture single = UniqueRupture.forIDs(Arrays.asList(5, 6, 7));
+		UniqueRupture longer = UniqueRupture.forIDs(Arrays.asList(5, 6, 7, 8));
+		UniqueRupture twoRanges = UniqueRupture.forIDs(Arrays.asList(5, 6, 7, 10));
+		assertTrue(set.add(single, 7l));
+		assertFalse(set.contains(longer, 7l));
+		assertFalse(set.contains(twoRanges, 7l));
+		assertTrue(set.add(twoRanges, 7l));
+		assertTrue(set.add(longer, 7l));
+		assertTrue(set.contains(single, 7l));
+		assertTrue(set.contains(longer, 7l));
+		assertTrue(set.contains(twoRanges, 7l));
+		assertEquals(3, set.size());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testZeroFingerprint() {
+		new CompactUniqueRuptureSet().add(UniqueRupture.forIDs(Arrays.asList(1)), 0l);
+	}
+
+}
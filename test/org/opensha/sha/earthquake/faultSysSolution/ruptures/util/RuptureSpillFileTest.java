@@ -0,0 +1,89 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensha.commons.util.FileUtils;
+import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
+import org.opensha.sha.faultSurface.FaultSection;
+
+import com.google.common.io.Files;
+
+public class RuptureSpillFileTest {
+
+	private File tempDir;
+
+	@Before
+	public void setUp() {
+		tempDir = Files.createTempDir();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	private static List<FaultSection> buildSects(int... ids) {
+		List<FaultSection> sects = new ArrayList<>();
+		for (int id : ids) {
+			FaultSectionPrefData sect = new FaultSectionPrefData();
+			sect.setSectionId(id);
+			sects.add(sect);
+		}
+		return sects;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Random r = new Random(1234l);
+		List<int[]> expected = new ArrayList<>();
+		RuptureSpillFile spill = new RuptureSpillFile(new File(tempDir, "rups.spill"));
+		try (RuptureSpillFile.Writer writer = spill.writer()) {
+			for (int i=0; i<1000; i++) {
+				// include jumps back and forth, and large IDs which need multi byte varints
+				int[] ids = new int[1 + r.nextInt(20)];
+				for (int j=0; j<ids.length; j++)
+					ids[j] = r.nextInt(100000);
+				assertEquals(i, writer.write(buildSects(ids)));
+				expected.add(ids);
+			}
+		}
+		assertFalse("Temporary index wasn't deleted",
+				new File(tempDir, spill.getIndexFile().getName()+".tmp").exists());
+
+		try (RuptureSpillFile.Reader reader = spill.reader()) {
+			assertEquals(expected.size(), reader.size());
+			int index = 0;
+			for (int[] ids : reader)
+				assertArrayEquals(expected.get(index++), ids);
+			assertEquals(expected.size(), index);
+			for (int i=expected.size(); --i>=0;)
+				assertArrayEquals(expected.get(i), reader.getSectIDs(i));
+		}
+
+		spill.delete();
+		assertFalse(spill.getDataFile().exists());
+		assertFalse(spill.getIndexFile().exists());
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		RuptureSpillFile spill = new RuptureSpillFile(new File(tempDir, "empty.spill"));
+		spill.writer().close();
+		try (RuptureSpillFile.Reader reader = spill.reader()) {
+			assertEquals(0, reader.size());
+			Iterator<int[]> it = reader.iterator();
+			assertFalse(it.hasNext());
+		}
+	}
+
+}
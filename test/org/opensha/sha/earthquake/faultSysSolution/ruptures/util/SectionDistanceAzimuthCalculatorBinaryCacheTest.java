@@ -0,0 +1,201 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.FileUtils;
+import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
+import org.opensha.sha.faultSurface.FaultSection;
+import org.opensha.sha.faultSurface.FaultTrace;
+
+import com.google.common.io.Files;
+
+/**
+ * Round trip tests for binary distance/azimuth cache files
+ */
+public class SectionDistanceAzimuthCalculatorBinaryCacheTest {
+
+	private static final int NUM_SECTS = 50;
+
+	private File tempDir;
+	private List<FaultSection> sects;
+
+	@Before
+	public void setUp() {
+		tempDir = Files.createTempDir();
+		sects = new ArrayList<>();
+		for (int i=0; i<NUM_SECTS; i++) {
+			FaultTrace trace = new FaultTrace(null);
+			trace.add(new Location(34d + 0.1*i, -118d));
+			trace.add(new Location(34d + 0.1*i + 0.08, -118d));
+			FaultSectionPrefData sect = new FaultSectionPrefData();
+			sect.setFaultTrace(trace);
+			sect.setAveDip(90d);
+			sect.setDipDirection(90f);
+			sect.setAveUpperDepth(0d);
+			sect.setAveLowerDepth(10d);
+			sect.setSectionId(i);
+			sect.setParentSectionId(i/10);
+			// leave some names null
+			if (i % 3 != 0)
+				sect.setSectionName("Test Sect "+i);
+			sects.add(sect);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	/**
+	 * Populates random distances and azimuths for about half of the section pairs
+	 * @return populated calculator
+	 */
+	private SectionDistanceAzimuthCalculator buildPopulated(Random r) {
+		SectionDistanceAzimuthCalculator calc = new SectionDistanceAzimuthCalculator(sects);
+		for (int id1=0; id1<NUM_SECTS; id1++) {
+			for (int id2=0; id2<NUM_SECTS; id2++) {
+				if (id1 == id2)
+					continue;
+				if (id1 < id2 && r.nextBoolean())
+					calc.setDistance(id1, id2, (float)(100d*r.nextDouble()));
+				if (r.nextBoolean())
+					calc.setAzimuth(id1, id2, (float)(360d*r.nextDouble() - 180d));
+			}
+		}
+		return calc;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		SectionDistanceAzimuthCalculator orig = buildPopulated(new Random(1234l));
+		double cutoff = 50d;
+		File cacheFile = new File(tempDir, "cache.bin");
+		orig.writeBinaryCacheFile(cacheFile, cutoff);
+
+		SectionDistanceAzimuthCalculator loaded = new SectionDistanceAzimuthCalculator(sects);
+		loaded.loadCacheFile(cacheFile);
+		// nothing should be allocated in memory just from loading or reading values
+		for (int id1=0; id1<NUM_SECTS; id1++) {
+			for (int id2=0; id2<NUM_SECTS; id2++) {
+				if (id1 == id2)
+					continue;
+				boolean origDist = orig.isDistanceCached(id1, id2);
+				boolean expectDist = origDist && orig.getDistance(id1, id2) <= cutoff;
+				assertEquals(expectDist, loaded.isDistanceCached(id1, id2));
+				if (expectDist)
+					assertEquals(orig.getDistance(id1, id2), loaded.getDistance(id1, id2), 0d);
+				boolean expectAz = orig.isAzimuthCached(id1, id2) && (!origDist || orig.getDistance(id1, id2) <= cutoff);
+				assertEquals(expectAz, loaded.isAzimuthCached(id1, id2));
+				if (expectAz)
+					assertEquals(orig.getAzimuth(id1, id2), loaded.getAzimuth(id1, id2), 0d);
+			}
+		}
+		assertEquals(0, loaded.getNumCachedDistances());
+		assertEquals(0, loaded.getNumCachedAzimuths());
+	}
+
+	@Test
+	public void testRewriteMergesMappedAndInMemory() throws IOException {
+		SectionDistanceAzimuthCalculator orig = buildPopulated(new Random(4321l));
+		File cacheFile = new File(tempDir, "cache.bin");
+		orig.writeBinaryCacheFile(cacheFile, Double.POSITIVE_INFINITY);
+
+		SectionDistanceAzimuthCalculator loaded = new SectionDistanceAzimuthCalculator(sects);
+		loaded.loadCacheFile(cacheFile);
+		// add some new values, and override some mapped values
+		Random r = new Random(5678l);
+		for (int i=0; i<100; i++) {
+			int id1 = r.nextInt(NUM_SECTS-1);
+			int id2 = id1 + 1 + r.nextInt(NUM_SECTS-id1-1);
+			float dist = (float)(100d*r.nextDouble());
+			float az = (float)(360d*r.nextDouble() - 180d);
+			loaded.setDistance(id1, id2, dist);
+			loaded.setAzimuth(id2, id1, az);
+			orig.setDistance(id1, id2, dist);
+			orig.setAzimuth(id2, id1, az);
+		}
+		File rewriteFile = new File(tempDir, "rewrite.bin");
+		loaded.writeBinaryCacheFile(rewriteFile, Double.POSITIVE_INFINITY);
+
+		SectionDistanceAzimuthCalculator reloaded = new SectionDistanceAzimuthCalculator(sects);
+		reloaded.loadCacheFile(rewriteFile);
+		for (int id1=0; id1<NUM_SECTS; id1++) {
+			for (int id2=0; id2<NUM_SECTS; id2++) {
+				if (id1 == id2)
+					continue;
+				assertEquals(orig.isDistanceCached(id1, id2), reloaded.isDistanceCached(id1, id2));
+				if (orig.isDistanceCached(id1, id2))
+					assertEquals(orig.getDistance(id1, id2), reloaded.getDistance(id1, id2), 0d);
+				assertEquals(orig.isAzimuthCached(id1, id2), reloaded.isAzimuthCached(id1, id2));
+				if (orig.isAzimuthCached(id1, id2))
+					assertEquals(orig.getAzimuth(id1, id2), reloaded.getAzimuth(id1, id2), 0d);
+			}
+		}
+	}
+
+	@Test
+	public void testBeyondCutoff() throws IOException {
+		double cutoff = 15d;
+		SectionDistanceAzimuthCalculator orig = new SectionDistanceAzimuthCalculator(sects);
+		// only a few distances cached, the rest within the cutoff should be computed when writing
+		orig.getDistance(0, 1);
+		orig.getDistance(20, 40);
+		File cacheFile = new File(tempDir, "cache.bin");
+		orig.writeBinaryCacheFile(cacheFile, cutoff);
+
+		SectionDistanceAzimuthCalculator exact = new SectionDistanceAzimuthCalculator(sects);
+		SectionDistanceAzimuthCalculator loaded = new SectionDistanceAzimuthCalculator(sects);
+		loaded.loadCacheFile(cacheFile);
+		int numWithin = 0;
+		int numBeyond = 0;
+		for (int id1=0; id1<NUM_SECTS; id1++) {
+			List<Integer> possiblyWithin = loaded.getSectsPossiblyWithinDistance(id1, cutoff);
+			for (int id2=0; id2<NUM_SECTS; id2++) {
+				if (id1 == id2)
+					continue;
+				double dist = exact.getDistance(id1, id2);
+				if ((float)dist <= (float)cutoff) {
+					numWithin++;
+					assertTrue(loaded.isDistanceCached(id1, id2));
+					assertTrue(loaded.isPossiblyWithinDistance(id1, id2, cutoff));
+					assertTrue(possiblyWithin.contains(id2));
+				} else {
+					numBeyond++;
+					assertFalse(loaded.isDistanceCached(id1, id2));
+					// known from the file, even if the bounding boxes overlap
+					assertFalse(loaded.isPossiblyWithinDistance(id1, id2, cutoff));
+					assertFalse(possiblyWithin.contains(id2));
+					assertTrue(loaded.getMinPossibleDistance(id1, id2) <= dist);
+					// but not for larger distances
+					assertTrue(loaded.isPossiblyWithinDistance(id1, id2, dist));
+				}
+			}
+		}
+		assertTrue(numWithin > 0);
+		assertTrue(numBeyond > 0);
+		// nothing was computed
+		assertEquals(0, loaded.getNumCachedDistances());
+	}
+
+	@Test(expected=IOException.class)
+	public void testDifferentSections() throws IOException {
+		SectionDistanceAzimuthCalculator orig = buildPopulated(new Random(1l));
+		File cacheFile = new File(tempDir, "cache.bin");
+		orig.writeBinaryCacheFile(cacheFile, Double.POSITIVE_INFINITY);
+
+		sects.get(5).setSectionName("Renamed");
+		new SectionDistanceAzimuthCalculator(sects).loadCacheFile(cacheFile);
+	}
+
+}
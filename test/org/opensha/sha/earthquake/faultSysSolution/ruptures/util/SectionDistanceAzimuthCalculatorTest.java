@@ -0,0 +1,88 @@
+package org.opensha.sha.earthquake.faultSysSolution.ruptures.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.geo.Location;
+import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
+import org.opensha.sha.faultSurface.FaultSection;
+import org.opensha.sha.faultSurface.FaultTrace;
+
+public class SectionDistanceAzimuthCalculatorTest {
+
+	private static List<FaultSection> sects;
+	private static SectionDistanceAzimuthCalculator calc;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		sects = new ArrayList<>();
+		// just west of the antimeridian
+		sects.add(buildSect(new Location(-40, 179.8), new Location(-40.1, 179.95)));
+		// just east of the antimeridian
+		sects.add(buildSect(new Location(-40, -179.95), new Location(-40.1, -179.8)));
+		// crosses the antimeridian
+		sects.add(buildSect(new Location(-40.3, 179.9), new Location(-40.3, -179.9)));
+		// further east, but still within a few hundred km
+		sects.add(buildSect(new Location(-40, -178), new Location(-40.1, -177.8)));
+		// far away on the other side of the globe
+		sects.add(buildSect(new Location(40, 0.1), new Location(40.1, 0.3)));
+		for (int i=0; i<sects.size(); i++)
+			sects.get(i).setSectionId(i);
+		calc = new SectionDistanceAzimuthCalculator(sects);
+	}
+
+	private static FaultSection buildSect(Location start, Location end) {
+		FaultTrace trace = new FaultTrace(null);
+		trace.add(start);
+		trace.add(end);
+		FaultSectionPrefData sect = new FaultSectionPrefData();
+		sect.setFaultTrace(trace);
+		sect.setAveDip(90d);
+		sect.setDipDirection((float)(trace.getAveStrike() + 90d));
+		sect.setAveUpperDepth(0d);
+		sect.setAveLowerDepth(10d);
+		return sect;
+	}
+
+	@Test
+	public void testMinDistanceIsLowerBound() {
+		for (int i=0; i<sects.size(); i++) {
+			for (int j=0; j<sects.size(); j++) {
+				if (i == j)
+					continue;
+				double minDist = calc.getMinPossibleDistance(i, j);
+				double dist = calc.getDistance(i, j);
+				assertTrue("Lower bound of "+minDist+" exceeds distance of "+dist+" for "+i+", "+j, minDist <= dist);
+			}
+		}
+	}
+
+	@Test
+	public void testAntimeridian() {
+		// sections on either side of the antimeridian are close, boxes shouldn't be treated as spanning the globe
+		assertTrue(calc.getDistance(0, 1) < 20d);
+		assertTrue(calc.isPossiblyWithinDistance(0, 1, 20d));
+		assertTrue(calc.isPossiblyWithinDistance(2, 3, 200d));
+		assertFalse(calc.isPossiblyWithinDistance(2, 4, 1000d));
+		assertFalse(calc.isPossiblyWithinDistance(0, 3, 50d));
+	}
+
+	@Test
+	public void testPossiblyWithinIncludesAllWithin() {
+		for (double maxDist : new double[] { 5d, 20d, 50d, 200d, 1000d }) {
+			for (int i=0; i<sects.size(); i++) {
+				List<Integer> candidates = calc.getSectsPossiblyWithinDistance(i, maxDist);
+				for (int j=0; j<sects.size(); j++) {
+					if (i != j && calc.getDistance(i, j) <= maxDist)
+						assertTrue("Section "+j+" is within "+maxDist+" km of "+i+" but wasn't returned",
+								candidates.contains(j));
+				}
+			}
+		}
+	}
+
+}
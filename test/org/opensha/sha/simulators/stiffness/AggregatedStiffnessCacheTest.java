@@ -0,0 +1,159 @@
+package org.opensha.sha.simulators.stiffness;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.FileUtils;
+import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
+import org.opensha.sha.faultSurface.FaultSection;
+import org.opensha.sha.faultSurface.FaultTrace;
+import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator.AggregationMethod;
+import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator.StiffnessAggregation;
+import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.PatchAlignment;
+import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.StiffnessType;
+
+import com.google.common.io.Files;
+
+/**
+ * Round trip tests for aggregated stiffness cache files
+ */
+public class AggregatedStiffnessCacheTest {
+
+	private static final int NUM_SECTS = 40;
+
+	private File tempDir;
+	private List<FaultSection> sects;
+
+	@Before
+	public void setUp() {
+		tempDir = Files.createTempDir();
+		sects = new ArrayList<>();
+		for (int i=0; i<NUM_SECTS; i++) {
+			FaultTrace trace = new FaultTrace(null);
+			trace.add(new Location(34d + 0.1*i, -118d));
+			trace.add(new Location(34d + 0.1*i + 0.08, -118d));
+			FaultSectionPrefData sect = new FaultSectionPrefData();
+			sect.setFaultTrace(trace);
+			sect.setAveDip(90d);
+			sect.setDipDirection(90f);
+			sect.setAveUpperDepth(0d);
+			sect.setAveLowerDepth(10d);
+			sect.setSectionId(i);
+			sect.setParentSectionId(i/10);
+			sects.add(sect);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteRecursive(tempDir);
+		AggregatedStiffnessCache.MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+	}
+
+	private AggregatedStiffnessCache buildCache() {
+		SubSectStiffnessCalculator calc = new SubSectStiffnessCalculator(
+				sects, 2d, 3e4, 3e4, 0.5, PatchAlignment.FILL_OVERLAP, 1d);
+		return calc.getAggregationCache(StiffnessType.CFF);
+	}
+
+	/**
+	 * Populates random aggregations for about half of the section pairs, both without a patch aggregation method and
+	 * with a SUM patch aggregation
+	 * @return populated cache
+	 */
+	private AggregatedStiffnessCache buildPopulated(Random r) {
+		AggregatedStiffnessCache cache = buildCache();
+		for (FaultSection source : sects) {
+			for (FaultSection receiver : sects) {
+				for (AggregationMethod patchMethod : new AggregationMethod[] { null, AggregationMethod.SUM }) {
+					if (r.nextBoolean())
+						continue;
+					double[] values = new double[1 + r.nextInt(20)];
+					for (int i=0; i<values.length; i++)
+						values[i] = r.nextGaussian();
+					cache.putSectAggregated(patchMethod, source, receiver,
+							new StiffnessAggregation(values, values.length));
+				}
+			}
+		}
+		return cache;
+	}
+
+	private void assertSameValues(AggregatedStiffnessCache expected, AggregatedStiffnessCache actual,
+			boolean floatPrecision) {
+		for (FaultSection source : sects) {
+			for (FaultSection receiver : sects) {
+				for (AggregationMethod patchMethod : new AggregationMethod[] { null, AggregationMethod.SUM }) {
+					StiffnessAggregation e = expected.getSectAggregated(patchMethod, source, receiver);
+					StiffnessAggregation a = actual.getSectAggregated(patchMethod, source, receiver);
+					if (e == null) {
+						assertNull(a);
+						continue;
+					}
+					assertNotNull(a);
+					for (AggregationMethod method : AggregatedStiffnessCalculator.CACHEABLE_AGG_METHODS) {
+						double expectedVal = e.get(method);
+						if (floatPrecision)
+							expectedVal = (float)expectedVal;
+						assertEquals(expectedVal, a.get(method), 0d);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws IOException {
+		AggregatedStiffnessCache orig = buildPopulated(new Random(1234l));
+		File cacheFile = new File(tempDir, orig.getCacheFileName());
+		orig.writeCacheFile(cacheFile);
+
+		AggregatedStiffnessCache loaded = buildCache();
+		assertEquals(orig.calcCacheSize(), loaded.loadCacheFile(cacheFile));
+		assertSameValues(orig, loaded, true);
+	}
+
+	@Test
+	public void testSegmentedMapping() throws IOException {
+		AggregatedStiffnessCache orig = buildPopulated(new Random(4321l));
+		File cacheFile = new File(tempDir, orig.getCacheFileName());
+		orig.writeCacheFile(cacheFile);
+
+		// force many small segments, as would be used for files larger than 2 GB
+		AggregatedStiffnessCache.MAX_SEGMENT_SIZE = 10000;
+		AggregatedStiffnessCache loaded = buildCache();
+		assertEquals(orig.calcCacheSize(), loaded.loadCacheFile(cacheFile));
+		assertSameValues(orig, loaded, true);
+	}
+
+	@Test
+	public void testCSVFallback() throws IOException {
+		AggregatedStiffnessCache orig = buildPopulated(new Random(5678l));
+		assertNull(orig.findCacheFile(tempDir));
+		File csvFile = new File(tempDir, orig.getCSVCacheFileName());
+		orig.writeCacheFile(csvFile);
+
+		AggregatedStiffnessCache loaded = buildCache();
+		assertEquals(csvFile, loaded.findCacheFile(tempDir));
+		assertEquals(orig.calcCacheSize(), loaded.loadCacheFile(csvFile));
+		assertSameValues(orig, loaded, false);
+
+		// convert it, after which the binary file should be preferred
+		File binFile = new File(tempDir, loaded.getCacheFileName());
+		loaded.writeCacheFile(binFile);
+		AggregatedStiffnessCache converted = buildCache();
+		assertEquals(binFile, converted.findCacheFile(tempDir));
+		converted.loadCacheFile(binFile);
+		assertSameValues(orig, converted, true);
+	}
+
+}
@@ -0,0 +1,133 @@
+package org.opensha.sha.simulators.stiffness;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dom4j.DocumentException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.util.IDPairing;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.SectionDistanceAzimuthCalculator;
+import org.opensha.sha.faultSurface.FaultSection;
+import org.opensha.sha.simulators.stiffness.AggregatedStiffnessCalculator.AggregationMethod;
+import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.PatchAlignment;
+import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.StiffnessDistribution;
+import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.StiffnessType;
+
+import scratch.UCERF3.utils.FaultSystemIO;
+
+/**
+ * Verifies that batch (and multi threaded) stiffness calculations give exactly the same values as calculating each
+ * section pair on its own, both with and without the far field approximation
+ */
+public class AggregatedStiffnessCalculatorPrecomputeTest {
+
+	private static final double MAX_DIST = 10d;
+	private static final double FAR_FIELD_TOLERANCE = 0.5;
+
+	private static List<? extends FaultSection> subSects;
+	private static SectionDistanceAzimuthCalculator distAzCalc;
+	private static List<IDPairing> pairs;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws IOException, DocumentException {
+		subSects = FaultSystemIO.loadRupSet(
+				new File("test/resources/scratch/UCERF3/utils/testAlpineVernonInversion.zip")).getFaultSectionDataList();
+		distAzCalc = new SectionDistanceAzimuthCalculator(subSects);
+		pairs = new ArrayList<>();
+		for (int id1=0; id1<subSects.size(); id1++)
+			for (int id2=0; id2<subSects.size(); id2++)
+				if (id1 != id2 && distAzCalc.getDistance(id1, id2) <= MAX_DIST)
+					pairs.add(new IDPairing(id1, id2));
+		assertFalse(pairs.isEmpty());
+	}
+
+	private static SubSectStiffnessCalculator buildCalc() {
+		return new SubSectStiffnessCalculator(subSects, 2d, 3e4, 3e4, 0.5, PatchAlignment.FILL_OVERLAP, 1d);
+	}
+
+	private static AggregatedStiffnessCalculator[] buildAggregators(SubSectStiffnessCalculator calc) {
+		return new AggregatedStiffnessCalculator[] {
+				// not cacheable at the patch level, cached section-to-section
+				new AggregatedStiffnessCalculator(StiffnessType.CFF, calc, true, AggregationMethod.FLATTEN,
+						AggregationMethod.SUM, AggregationMethod.SUM, AggregationMethod.SUM),
+				new AggregatedStiffnessCalculator(StiffnessType.CFF, calc, true, AggregationMethod.FLATTEN,
+						AggregationMethod.NUM_POSITIVE, AggregationMethod.SUM, AggregationMethod.NORM_BY_COUNT),
+				// cacheable at the patch level
+				new AggregatedStiffnessCalculator(StiffnessType.CFF, calc, true, AggregationMethod.SUM,
+						AggregationMethod.PASSTHROUGH, AggregationMethod.RECEIVER_SUM, AggregationMethod.FRACT_POSITIVE)
+		};
+	}
+
+	@Test
+	public void testBatchDistributions() {
+		checkBatchDistributions(buildCalc());
+	}
+
+	@Test
+	public void testBatchDistributionsFarField() {
+		SubSectStiffnessCalculator calc = buildCalc();
+		calc.setFarFieldTolerance(FAR_FIELD_TOLERANCE);
+		checkBatchDistributions(calc);
+	}
+
+	private static void checkBatchDistributions(SubSectStiffnessCalculator calc) {
+		for (int threads : new int[] { 1, 4 }) {
+			Map<IDPairing, double[][]> batchCFFs = new ConcurrentHashMap<>();
+			calc.calcStiffnessDistributions(pairs, (sourceID, receiverID, dist) -> {
+				// buffers are reused, copy them
+				double[][] values = dist.get(StiffnessType.CFF);
+				double[][] copy = new double[values.length][];
+				for (int r=0; r<values.length; r++)
+					copy[r] = values[r].clone();
+				assertNull("Duplicate calculation", batchCFFs.put(new IDPairing(sourceID, receiverID), copy));
+			}, threads);
+			assertEquals(pairs.size(), batchCFFs.size());
+			for (IDPairing pair : pairs) {
+				StiffnessDistribution dist = calc.calcStiffnessDistribution(pair.getID1(), pair.getID2());
+				double[][] expected = dist.get(StiffnessType.CFF);
+				double[][] actual = batchCFFs.get(pair);
+				assertEquals(expected.length, actual.length);
+				for (int r=0; r<expected.length; r++)
+					assertArrayEquals(expected[r], actual[r], 0d);
+			}
+		}
+	}
+
+	@Test
+	public void testPrecomputeEquivalence() {
+		checkPrecomputeEquivalence(0d);
+	}
+
+	@Test
+	public void testPrecomputeEquivalenceFarField() {
+		checkPrecomputeEquivalence(FAR_FIELD_TOLERANCE);
+	}
+
+	private static void checkPrecomputeEquivalence(double farFieldTolerance) {
+		SubSectStiffnessCalculator expectedCalc = buildCalc();
+		expectedCalc.setFarFieldTolerance(farFieldTolerance);
+		AggregatedStiffnessCalculator[] expected = buildAggregators(expectedCalc);
+		for (int threads : new int[] { 1, 4 }) {
+			SubSectStiffnessCalculator calc = buildCalc();
+			calc.setFarFieldTolerance(farFieldTolerance);
+			AggregatedStiffnessCalculator[] precomputed = buildAggregators(calc);
+			for (AggregatedStiffnessCalculator agg : precomputed)
+				agg.precomputeWithinDistance(distAzCalc, MAX_DIST, threads);
+			for (int i=0; i<expected.length; i++) {
+				for (IDPairing pair : pairs) {
+					FaultSection source = subSects.get(pair.getID1());
+					FaultSection receiver = subSects.get(pair.getID2());
+					assertEquals(expected[i].calc(source, receiver), precomputed[i].calc(source, receiver), 0d);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+package org.opensha.sha.simulators.stiffness;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.DocumentException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.data.CSVFile;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.IDPairing;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.SectionDistanceAzimuthCalculator;
+import org.opensha.sha.faultSurface.FaultSection;
+import org.opensha.sha.simulators.stiffness.SubSectStiffnessCalculator.PatchAlignment;
+
+import scratch.UCERF3.utils.FaultSystemIO;
+
+/**
+ * Tests for far field equivalent patch locations and approximation errors
+ */
+public class SubSectStiffnessCalculatorFarFieldTest {
+
+	private static final double MAX_DIST = 20d;
+	// same tolerance as in AggregatedStiffnessCalculatorPrecomputeTest
+	private static final double FAR_FIELD_TOLERANCE = 0.5;
+
+	private static List<? extends FaultSection> subSects;
+	private static List<IDPairing> pairs;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws IOException, DocumentException {
+		subSects = FaultSystemIO.loadRupSet(
+				new File("test/resources/scratch/UCERF3/utils/testAlpineVernonInversion.zip")).getFaultSectionDataList();
+		SectionDistanceAzimuthCalculator distAzCalc = new SectionDistanceAzimuthCalculator(subSects);
+		pairs = new ArrayList<>();
+		for (int id1=0; id1<subSects.size(); id1++)
+			for (int id2=0; id2<subSects.size(); id2++)
+				if (id1 != id2 && distAzCalc.getDistance(id1, id2) <= MAX_DIST)
+					pairs.add(new IDPairing(id1, id2));
+		assertFalse(pairs.isEmpty());
+	}
+
+	private static SubSectStiffnessCalculator buildCalc(double farFieldTolerance) {
+		SubSectStiffnessCalculator calc = new SubSectStiffnessCalculator(
+				subSects, 2d, 3e4, 3e4, 0.5, PatchAlignment.FILL_OVERLAP, 1d);
+		calc.setFarFieldTolerance(farFieldTolerance);
+		return calc;
+	}
+
+	private static Location centroid(Location... locs) {
+		double[] centroid = new double[3];
+		double depth = 0d;
+		for (Location loc : locs) {
+			double[] xyz = SubSectStiffnessCalculator.toXYZ(loc);
+			for (int i=0; i<3; i++)
+				centroid[i] += xyz[i]/locs.length;
+			depth += loc.getDepth()/locs.length;
+		}
+		return SubSectStiffnessCalculator.fromXYZ(centroid, depth);
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Location loc = new Location(34.2, -118.5, 7d);
+		Location back = centroid(loc);
+		assertEquals(loc.getLatitude(), back.getLatitude(), 1e-10);
+		assertEquals(loc.getLongitude(), back.getLongitude(), 1e-10);
+		assertEquals(loc.getDepth(), back.getDepth(), 1e-10);
+	}
+
+	@Test
+	public void testAntimeridianCentroid() {
+		// patches either side of the antimeridian, a naive longitude average would put this near 0
+		Location centroid = centroid(new Location(-41d, 179.9, 5d), new Location(-41d, -179.9, 5d));
+		assertEquals(180d, Math.abs(centroid.getLongitude()), 1e-6);
+		assertEquals(-41d, centroid.getLatitude(), 1e-3);
+		assertEquals(5d, centroid.getDepth(), 1e-10);
+	}
+
+	@Test
+	public void testApproximationErrors() {
+		CSVFile<String> csv = buildCalc(FAR_FIELD_TOLERANCE).validateFarField(pairs);
+		assertEquals(pairs.size()+1, csv.getNumRows());
+		double sumAbsExact = 0d;
+		double sumAbsErr = 0d;
+		double maxFractApprox = 0d;
+		for (int row=1; row<csv.getNumRows(); row++) {
+			double exactSum = Double.parseDouble(csv.get(row, 2));
+			double approxSum = Double.parseDouble(csv.get(row, 3));
+			double maxAbsPatchErr = Double.parseDouble(csv.get(row, 5));
+			double fractApprox = Double.parseDouble(csv.get(row, 7));
+			assertTrue(Double.isFinite(approxSum));
+			assertTrue(Double.isFinite(maxAbsPatchErr));
+			if (fractApprox == 0d)
+				// nothing approximated, must be exact
+				assertEquals(0d, maxAbsPatchErr, 0d);
+			sumAbsExact += Math.abs(exactSum);
+			sumAbsErr += Math.abs(approxSum - exactSum);
+			maxFractApprox = Math.max(maxFractApprox, fractApprox);
+		}
+		assertTrue("Far field approximation was never used", maxFractApprox > 0d);
+		// each approximated patch stands in for itself rather than a share of its group, so sums stay close
+		double relErr = sumAbsErr/sumAbsExact;
+		assertTrue("Total relative error too large: "+relErr, relErr < 0.1);
+	}
+
+	@Test
+	public void testSmallToleranceExact() {
+		// groups are never small enough relative to these distances, so everything should be exact
+		CSVFile<String> csv = buildCalc(1e-6).validateFarField(pairs);
+		for (int row=1; row<csv.getNumRows(); row++) {
+			assertEquals(csv.get(row, 2), csv.get(row, 3));
+			assertEquals(0d, Double.parseDouble(csv.get(row, 7)), 0d);
+		}
+	}
+
+}
@@ -0,0 +1,273 @@
+package scratch.UCERF3;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import scratch.UCERF3.FaultSystemSolutionFetcher.BranchLoader;
+import scratch.UCERF3.FaultSystemSolutionFetcher.BranchPrefetcher;
+import scratch.UCERF3.enumTreeBranches.DeformationModels;
+import scratch.UCERF3.enumTreeBranches.FaultModels;
+import scratch.UCERF3.enumTreeBranches.ScalingRelationships;
+import scratch.UCERF3.logicTree.LogicTreeBranch;
+
+/**
+ * Tests prefetching order, queue limits and failure handling of {@link BranchPrefetcher} with a stub loader
+ */
+public class BranchPrefetcherTest {
+
+	// enough decode threads that every prefetched branch starts loading as soon as it is submitted
+	private static final int DECODE_THREADS = 8;
+	// how long to wait before concluding that no more loads will be started
+	private static final long SETTLE_MILLIS = 200l;
+
+	private static List<LogicTreeBranch> branches;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		branches = new ArrayList<>();
+		for (FaultModels fm : new FaultModels[] { FaultModels.FM3_1, FaultModels.FM3_2 }) {
+			for (DeformationModels dm : new DeformationModels[] { DeformationModels.GEOLOGIC, DeformationModels.ABM,
+					DeformationModels.NEOKINEMA, DeformationModels.ZENGBB }) {
+				for (ScalingRelationships scale : new ScalingRelationships[] { ScalingRelationships.ELLSWORTH_B,
+						ScalingRelationships.HANKS_BAKUN_08 }) {
+					LogicTreeBranch branch = LogicTreeBranch.getMEAN_UCERF3(fm, dm);
+					branch.setValue(scale);
+					branches.add(branch);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of each branch, recording which thread loaded it. Individual branches can be made to fail,
+	 * or to block until released.
+	 */
+	private static class StubLoader implements BranchLoader<Integer> {
+
+		private final Map<Integer, List<Thread>> loadThreads = new ConcurrentHashMap<>();
+		private final AtomicInteger numLoads = new AtomicInteger();
+
+		private int failIndex = -1;
+		private Exception failure;
+
+		private int blockIndex = -1;
+		private final CountDownLatch blockStarted = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+		private volatile boolean blockInterrupted = false;
+
+		@Override
+		public Integer load(LogicTreeBranch branch) throws Exception {
+			int index = branches.indexOf(branch);
+			loadThreads.computeIfAbsent(index, i -> new ArrayList<>()).add(Thread.currentThread());
+			numLoads.incrementAndGet();
+			if (index == failIndex)
+				throw failure;
+			if (index == blockIndex) {
+				blockStarted.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					blockInterrupted = true;
+					throw e;
+				}
+			}
+			return index;
+		}
+
+		private int getNumLoads(int index) {
+			List<Thread> threads = loadThreads.get(index);
+			return threads == null ? 0 : threads.size();
+		}
+
+		/**
+		 * Waits for the given number of loads to be started, then verifies that no others are started
+		 */
+		private void assertNumLoads(int expected) throws InterruptedException {
+			long end = System.currentTimeMillis() + 5000l;
+			while (numLoads.get() < expected && System.currentTimeMillis() < end)
+				Thread.sleep(10l);
+			Thread.sleep(SETTLE_MILLIS);
+			assertEquals(expected, numLoads.get());
+		}
+	}
+
+	private static boolean hasCause(Throwable t, Class<? extends Throwable> clazz, String message) {
+		while (t != null) {
+			if (clazz.isInstance(t) && message.equals(t.getMessage()))
+				return true;
+			t = t.getCause();
+		}
+		return false;
+	}
+
+	@Test
+	public void testOrdering() {
+		StubLoader loader = new StubLoader();
+		try (BranchPrefetcher<Integer> prefetcher = new BranchPrefetcher<>(branches, loader, 3, 4)) {
+			int index = 0;
+			for (Map.Entry<LogicTreeBranch, Integer> entry : prefetcher) {
+				assertEquals(branches.get(index), entry.getKey());
+				assertEquals(index, entry.getValue().intValue());
+				index++;
+			}
+			assertEquals(branches.size(), index);
+		}
+		// each branch loaded exactly once, and all but the first were prefetched
+		for (int i=0; i<branches.size(); i++)
+			assertEquals(1, loader.getNumLoads(i));
+		assertEquals(Thread.currentThread(), loader.loadThreads.get(0).get(0));
+		for (int i=1; i<branches.size(); i++)
+			assertNotEquals(Thread.currentThread(), loader.loadThreads.get(i).get(0));
+	}
+
+	@Test
+	public void testBackPressure() throws InterruptedException {
+		StubLoader loader = new StubLoader();
+		try (BranchPrefetcher<Integer> prefetcher = new BranchPrefetcher<>(branches, loader, DECODE_THREADS, 3)) {
+			assertEquals(0, prefetcher.get(branches.get(0)).intValue());
+			// the requested branch, plus 3 prefetched which are never consumed
+			loader.assertNumLoads(4);
+			// consuming one frees up space for one more
+			assertEquals(1, prefetcher.get(branches.get(1)).intValue());
+			loader.assertNumLoads(5);
+			assertEquals(2, prefetcher.get(branches.get(2)).intValue());
+			assertEquals(3, prefetcher.get(branches.get(3)).intValue());
+			loader.assertNumLoads(7);
+		}
+	}
+
+	@Test
+	public void testMemoryBudgetQueueLimit() throws InterruptedException {
+		StubLoader loader = new StubLoader();
+		// every result is 100 bytes, so the 250 byte budget fits 2 prefetched results despite maxQueued=10
+		try (BranchPrefetcher<Integer> prefetcher = new BranchPrefetcher<>(branches, loader, DECODE_THREADS, 10,
+				250l, result -> 100l)) {
+			// no sizes are known yet, so only a single branch is prefetched
+			prefetcher.get(branches.get(0));
+			loader.assertNumLoads(2);
+			prefetcher.get(branches.get(1));
+			loader.assertNumLoads(4);
+			prefetcher.get(branches.get(2));
+			loader.assertNumLoads(5);
+			prefetcher.get(branches.get(3));
+			prefetcher.get(branches.get(4));
+			loader.assertNumLoads(7);
+		}
+	}
+
+	@Test
+	public void testLoaderExceptionReachesGet() throws InterruptedException {
+		StubLoader loader = new StubLoader();
+		loader.failIndex = 2;
+		loader.failure = new IOException("boom");
+		try (BranchPrefetcher<Integer> prefetcher = new BranchPrefetcher<>(branches, loader, DECODE_THREADS, 3)) {
+			prefetcher.get(branches.get(0));
+			prefetcher.get(branches.get(1));
+			// branch 2 failed on a decode thread
+			loader.assertNumLoads(5);
+			assertNotEquals(Thread.currentThread(), loader.loadThreads.get(2).get(0));
+			try {
+				prefetcher.get(branches.get(2));
+				fail("Loader exception should have been rethrown");
+			} catch (RuntimeException e) {
+				assertTrue(hasCause(e, IOException.class, "boom"));
+			}
+			// still usable after a failure
+			assertEquals(3, prefetcher.get(branches.get(3)).intValue());
+		}
+	}
+
+	@Test
+	public void testOutOfOrderFallback() throws InterruptedException {
+		StubLoader loader = new StubLoader();
+		try (BranchPrefetcher<Integer> prefetcher = new BranchPrefetcher<>(branches, loader, DECODE_THREADS, 2)) {
+			// skip ahead, loaded on this thread and branches after it are prefetched
+			assertEquals(5, prefetcher.get(branches.get(5)).intValue());
+			loader.assertNumLoads(3);
+			assertEquals(Thread.currentThread(), loader.loadThreads.get(5).get(0));
+			assertEquals(1, loader.getNumLoads(6));
+			assertEquals(1, loader.getNumLoads(7));
+
+			// an earlier branch that was never prefetched
+			assertEquals(1, prefetcher.get(branches.get(1)).intValue());
+			assertEquals(Thread.currentThread(), loader.loadThreads.get(1).get(0));
+
+			// a branch which was already requested is loaded again
+			assertEquals(5, prefetcher.get(branches.get(5)).intValue());
+			assertEquals(2, loader.getNumLoads(5));
+			assertEquals(Thread.currentThread(), loader.loadThreads.get(5).get(1));
+
+			// prefetched branches are still used, nothing else was loaded
+			assertEquals(6, prefetcher.get(branches.get(6)).intValue());
+			assertEquals(1, loader.getNumLoads(6));
+		}
+	}
+
+	@Test
+	public void testStaleFuturesCancelled() throws InterruptedException {
+		StubLoader loader = new StubLoader();
+		loader.blockIndex = 1;
+		// single decode thread, so branch 2 is queued behind the blocked branch 1
+		try (BranchPrefetcher<Integer> prefetcher = new BranchPrefetcher<>(branches, loader, 1, 2)) {
+			prefetcher.get(branches.get(0));
+			assertTrue(loader.blockStarted.await(5, TimeUnit.SECONDS));
+			// jump far ahead, branches 1 and 2 are now stale and should be dropped
+			assertEquals(6, prefetcher.get(branches.get(6)).intValue());
+			loader.release.countDown();
+			// branches 7 and 8 are prefetched, but branch 2 is never loaded
+			loader.assertNumLoads(5);
+			assertEquals(0, loader.getNumLoads(2));
+			assertEquals(1, loader.getNumLoads(7));
+			assertEquals(1, loader.getNumLoads(8));
+		}
+	}
+
+	@Test
+	public void testClose() throws InterruptedException {
+		StubLoader loader = new StubLoader();
+		loader.blockIndex = 1;
+		BranchPrefetcher<Integer> prefetcher = new BranchPrefetcher<>(branches, loader, 1, 2);
+		prefetcher.get(branches.get(0));
+		assertTrue(loader.blockStarted.await(5, TimeUnit.SECONDS));
+		prefetcher.close();
+		// the in progress load is interrupted, and the queued one never starts
+		long end = System.currentTimeMillis() + 5000l;
+		while (!loader.blockInterrupted && System.currentTimeMillis() < end)
+			Thread.sleep(10l);
+		assertTrue(loader.blockInterrupted);
+		loader.assertNumLoads(2);
+		assertEquals(0, loader.getNumLoads(2));
+		try {
+			prefetcher.get(branches.get(3));
+			fail("Should not be usable after close");
+		} catch (IllegalStateException e) {}
+		// closing again is harmless
+		prefetcher.close();
+	}
+
+	@Test
+	public void testUnknownBranch() {
+		List<LogicTreeBranch> subset = branches.subList(0, 3);
+		try (BranchPrefetcher<Integer> prefetcher = new BranchPrefetcher<>(subset, new StubLoader(), 1, 2)) {
+			Iterator<Map.Entry<LogicTreeBranch, Integer>> it = prefetcher.iterator();
+			assertEquals(0, it.next().getValue().intValue());
+			try {
+				prefetcher.get(branches.get(5));
+				fail("Should reject branches that aren't in the list");
+			} catch (IllegalArgumentException e) {}
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+package scratch.UCERF3;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationList;
+import org.opensha.commons.geo.Region;
+import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
+import org.opensha.sha.faultSurface.FaultSection;
+import org.opensha.sha.faultSurface.FaultTrace;
+import org.opensha.sha.faultSurface.RuptureSurface;
+
+import com.google.common.primitives.Ints;
+
+/**
+ * Verifies that (parallel and cached) region fraction calculations match a simple sequential calculation, and
+ * that cached rupture fractions are never shared between rupture sets with different ruptures
+ */
+public class FaultSystemRupSetRegionFractsTest {
+
+	private static final int NUM_SECTS = 30;
+	private static final int NUM_RUPS = 300;
+
+	private static List<FaultSection> sects;
+	private static Region region;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		sects = new ArrayList<>();
+		for (int s=0; s<NUM_SECTS; s++) {
+			// sections running north, some crossing the region boundary
+			FaultTrace trace = new FaultTrace(null);
+			trace.add(new Location(34d + 0.1*s, -118d));
+			trace.add(new Location(34d + 0.1*s + 0.1, -118d));
+			FaultSectionPrefData sect = new FaultSectionPrefData();
+			sect.setFaultTrace(trace);
+			sect.setAveDip(s % 2 == 0 ? 90d : 45d);
+			sect.setDipDirection(90f);
+			sect.setAveUpperDepth(0d);
+			sect.setAveLowerDepth(12d);
+			sect.setSectionId(s);
+			sect.setParentSectionId(s/10);
+			sects.add(sect);
+		}
+		region = new Region(new Location(34.55, -118.5), new Location(35.75, -117.5));
+	}
+
+	private static List<List<Integer>> buildSectionsForRups(Random r) {
+		List<List<Integer>> sectionsForRups = new ArrayList<>();
+		for (int i=0; i<NUM_RUPS; i++) {
+			int start = r.nextInt(NUM_SECTS);
+			int[] ids = new int[1 + r.nextInt(Math.min(10, NUM_SECTS - start))];
+			for (int j=0; j<ids.length; j++)
+				ids[j] = start + j;
+			sectionsForRups.add(Ints.asList(ids));
+		}
+		return sectionsForRups;
+	}
+
+	private static FaultSystemRupSet buildRupSet(List<List<Integer>> sectionsForRups) {
+		double[] mags = new double[NUM_RUPS];
+		double[] rakes = new double[NUM_RUPS];
+		double[] areas = new double[NUM_RUPS];
+		for (int i=0; i<NUM_RUPS; i++)
+			mags[i] = 6d;
+		return new FaultSystemRupSet(sects, null, null, null, sectionsForRups, mags, rakes, areas, null, "");
+	}
+
+	/**
+	 * Sequential calculation of the fraction of each rupture inside the region, weighting sections by their
+	 * number of points
+	 */
+	private static double[] calcExpectedRupFracts(List<List<Integer>> sectionsForRups, boolean traceOnly) {
+		double[] sectFracts = new double[NUM_SECTS];
+		int[] sectPts = new int[NUM_SECTS];
+		for (int s=0; s<NUM_SECTS; s++) {
+			RuptureSurface surf = sects.get(s).getFaultSurface(1d, false, true);
+			LocationList locs = traceOnly ? surf.getEvenlyDiscritizedUpperEdge()
+					: surf.getEvenlyDiscritizedListOfLocsOnSurface();
+			int numInside = 0;
+			for (Location loc : locs)
+				if (region.contains(loc))
+					numInside++;
+			sectPts[s] = locs.size();
+			sectFracts[s] = (double)numInside/(double)locs.size();
+		}
+		double[] rupFracts = new double[sectionsForRups.size()];
+		for (int r=0; r<rupFracts.length; r++) {
+			double weighted = 0d;
+			int totPts = 0;
+			for (int s : sectionsForRups.get(r)) {
+				weighted += sectFracts[s]*sectPts[s];
+				totPts += sectPts[s];
+			}
+			rupFracts[r] = weighted/totPts;
+		}
+		return rupFracts;
+	}
+
+	@Test
+	public void testParallelEquivalence() {
+		List<List<Integer>> sectionsForRups = buildSectionsForRups(new Random(1234l));
+		FaultSystemRupSet rupSet = buildRupSet(sectionsForRups);
+		boolean anyPartial = false;
+		for (boolean traceOnly : new boolean[] { false, true }) {
+			double[] expected = calcExpectedRupFracts(sectionsForRups, traceOnly);
+			// twice, the second time from the cache
+			for (int i=0; i<2; i++)
+				assertArrayEquals(expected, rupSet.getFractRupsInsideRegion(region, traceOnly), 1e-12);
+			for (double fract : expected)
+				anyPartial = anyPartial || (fract > 0d && fract < 1d);
+		}
+		assertTrue("Test region should cut through some ruptures", anyPartial);
+	}
+
+	@Test
+	public void testCopyCacheWithDifferentRuptures() {
+		List<List<Integer>> sectionsForRups1 = buildSectionsForRups(new Random(1234l));
+		List<List<Integer>> sectionsForRups2 = buildSectionsForRups(new Random(4321l));
+		FaultSystemRupSet rupSet1 = buildRupSet(sectionsForRups1);
+		FaultSystemRupSet rupSet2 = buildRupSet(sectionsForRups2);
+		// same section geometry and rupture count, but different ruptures
+		assertArrayEquals(calcExpectedRupFracts(sectionsForRups1, false),
+				rupSet1.getFractRupsInsideRegion(region, false), 1e-12);
+		rupSet2.copyCacheFrom(rupSet1);
+		assertArrayEquals(calcExpectedRupFracts(sectionsForRups2, false),
+				rupSet2.getFractRupsInsideRegion(region, false), 1e-12);
+		// section fractions only depend on section geometry, and are shared
+		assertArrayEquals(rupSet1.getFractSectsInsideRegion(region, false),
+				rupSet2.getFractSectsInsideRegion(region, false), 0d);
+	}
+
+}
@@ -0,0 +1,118 @@
+package scratch.UCERF3;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
+import org.opensha.sha.faultSurface.FaultSection;
+
+import com.google.common.primitives.Ints;
+
+import scratch.UCERF3.utils.MatrixIO;
+
+/**
+ * Tests for compact (CSR) rupture section index storage and sharing
+ */
+public class FaultSystemRupSetSectionIndicesTest {
+
+	private static final int NUM_SECTS = 50;
+	private static final int NUM_RUPS = 200;
+
+	private static List<FaultSection> buildSects() {
+		List<FaultSection> sects = new ArrayList<>();
+		for (int s=0; s<NUM_SECTS; s++) {
+			FaultSectionPrefData sect = new FaultSectionPrefData();
+			sect.setSectionId(s);
+			sect.setParentSectionId(s/5);
+			sects.add(sect);
+		}
+		return sects;
+	}
+
+	private static List<List<Integer>> buildSectionsForRups(Random r) {
+		List<List<Integer>> sectionsForRups = new ArrayList<>();
+		for (int i=0; i<NUM_RUPS; i++) {
+			int start = r.nextInt(NUM_SECTS);
+			int[] sects = new int[1 + r.nextInt(NUM_SECTS - start)];
+			for (int j=0; j<sects.length; j++)
+				sects[j] = start + j;
+			sectionsForRups.add(Ints.asList(sects));
+		}
+		return sectionsForRups;
+	}
+
+	private static FaultSystemRupSet buildRupSet(List<FaultSection> sects, List<List<Integer>> sectionsForRups) {
+		double[] mags = new double[NUM_RUPS];
+		double[] rakes = new double[NUM_RUPS];
+		double[] areas = new double[NUM_RUPS];
+		for (int i=0; i<NUM_RUPS; i++) {
+			mags[i] = 6d + 0.01*i;
+			areas[i] = 1e6*sectionsForRups.get(i).size();
+		}
+		return new FaultSystemRupSet(sects, null, null, null, sectionsForRups, mags, rakes, areas, null, "");
+	}
+
+	private static void assertSameSections(List<List<Integer>> expected, FaultSystemRupSet rupSet) {
+		assertEquals(expected, rupSet.getSectionIndicesForAllRups());
+		for (int r=0; r<expected.size(); r++)
+			assertEquals(expected.get(r), rupSet.getSectionsIndicesForRup(r));
+		for (int s=0; s<NUM_SECTS; s++)
+			for (int r : rupSet.getRupturesForSection(s))
+				assertTrue(expected.get(r).contains(s));
+	}
+
+	@Test
+	public void testCompactSharing() {
+		List<FaultSection> sects = buildSects();
+		List<List<Integer>> sectionsForRups = buildSectionsForRups(new Random(1234l));
+
+		List<List<Integer>> compact = FaultSystemRupSet.toCompactSectionIndices(sectionsForRups);
+		assertEquals(sectionsForRups, compact);
+		assertSame(compact, FaultSystemRupSet.toCompactSectionIndices(compact));
+
+		FaultSystemRupSet rupSet1 = buildRupSet(sects, compact);
+		FaultSystemRupSet rupSet2 = buildRupSet(sects, compact);
+		assertSameSections(sectionsForRups, rupSet1);
+		assertSameSections(sectionsForRups, rupSet2);
+		// already compact, so it should be passed through without copying
+		List<List<Integer>> fromRupSet = rupSet1.getSectionIndicesForAllRups();
+		assertSame(fromRupSet, FaultSystemRupSet.toCompactSectionIndices(fromRupSet));
+
+		// rupture sets built from a plain list should also be equivalent
+		assertSameSections(sectionsForRups, buildRupSet(sects, sectionsForRups));
+	}
+
+	@Test
+	public void testReadCompact() throws IOException {
+		List<List<Integer>> sectionsForRups = buildSectionsForRups(new Random(2468l));
+		// rows longer than the initial guess, empty rows, and values too large for the short backed lists
+		sectionsForRups.set(0, new ArrayList<>());
+		sectionsForRups.set(1, Ints.asList(40000, Short.MAX_VALUE, 0));
+		sectionsForRups.set(NUM_RUPS-1, new ArrayList<>());
+		File file = File.createTempFile("rup_sections", ".bin");
+		try {
+			MatrixIO.intListListToFile(sectionsForRups, file);
+			List<List<Integer>> compact = FaultSystemRupSet.readCompactSectionIndices(new FileInputStream(file));
+			assertEquals(MatrixIO.intListListFromFile(file), compact);
+			assertEquals(sectionsForRups, compact);
+			assertSame(compact, FaultSystemRupSet.toCompactSectionIndices(compact));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testCompactValidated() {
+		List<List<Integer>> sectionsForRups = buildSectionsForRups(new Random(4321l));
+		sectionsForRups.set(NUM_RUPS/2, Ints.asList(0, NUM_SECTS));
+		buildRupSet(buildSects(), FaultSystemRupSet.toCompactSectionIndices(sectionsForRups));
+	}
+
+}
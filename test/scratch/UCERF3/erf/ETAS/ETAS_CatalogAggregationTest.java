@@ -0,0 +1,297 @@
+package scratch.UCERF3.erf.ETAS;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.opensha.commons.data.function.HistogramFunction;
+
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogAggregation.CountHistogramAccumulator;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogAggregation.CountMinSketch;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogAggregation.FirstEventTimeAccumulator;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogAggregation.FixedBinHistogram;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogAggregation.MagnitudeAccumulator;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogAggregation.QuantileSketch;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogAggregation.ScalarHistogramAccumulator;
+import scratch.UCERF3.erf.utils.ProbabilityModelsCalc;
+
+/**
+ * Tests for the mergeable sketches and accumulators used for single pass catalog aggregation
+ */
+public class ETAS_CatalogAggregationTest {
+
+	private static final double[] QUANTILES = { 0.001, 0.025, 0.16, 0.5, 0.84, 0.975, 0.999 };
+
+	private static double[] buildValues(Random r, int num) {
+		double[] values = new double[num];
+		for (int i=0; i<num; i++)
+			// log-normal spanning several orders of magnitude, with some exact zeros
+			values[i] = r.nextInt(50) == 0 ? 0d : Math.exp(3*r.nextGaussian());
+		return values;
+	}
+
+	private static QuantileSketch buildSketch(double[] values, int from, int to, double relativeAccuracy) {
+		QuantileSketch sketch = new QuantileSketch(relativeAccuracy);
+		for (int i=from; i<to; i++)
+			sketch.add(values[i]);
+		return sketch;
+	}
+
+	private static void assertSketchesEqual(QuantileSketch expected, QuantileSketch actual) {
+		assertEquals(expected.getCount(), actual.getCount());
+		assertEquals(expected.getMin(), actual.getMin(), 0d);
+		assertEquals(expected.getMax(), actual.getMax(), 0d);
+		for (double q : QUANTILES)
+			assertEquals(expected.getQuantile(q), actual.getQuantile(q), 0d);
+		for (double value : new double[] { 0d, 1e-3, 0.5, 1d, 7.3, 100d, 1e4 })
+			assertEquals(expected.getCDF(value), actual.getCDF(value), 0d);
+	}
+
+	@Test
+	public void testQuantileErrorBounds() {
+		double[] values = buildValues(new Random(1234l), 100000);
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		for (double relativeAccuracy : new double[] { 0.001, 0.01, 0.05 }) {
+			QuantileSketch sketch = buildSketch(values, 0, values.length, relativeAccuracy);
+			assertEquals(values.length, sketch.getCount());
+			assertEquals(sorted[0], sketch.getMin(), 0d);
+			assertEquals(sorted[sorted.length-1], sketch.getMax(), 0d);
+			for (double q : QUANTILES) {
+				double exact = sorted[(int)Math.floor(q*(sorted.length-1))];
+				double approx = sketch.getQuantile(q);
+				assertEquals("Quantile "+q+" outside of relative accuracy "+relativeAccuracy,
+						exact, approx, exact*relativeAccuracy*(1d + 1e-10));
+			}
+		}
+	}
+
+	@Test
+	public void testQuantileMergeAssociativity() {
+		double[] values = buildValues(new Random(4321l), 30000);
+		int split1 = 5000;
+		int split2 = 21000;
+		QuantileSketch all = buildSketch(values, 0, values.length, 0.01);
+
+		// (A+B)+C
+		QuantileSketch left = buildSketch(values, 0, split1, 0.01);
+		left.merge(buildSketch(values, split1, split2, 0.01));
+		left.merge(buildSketch(values, split2, values.length, 0.01));
+
+		// A+(B+C), merged into an empty sketch
+		QuantileSketch bc = buildSketch(values, split1, split2, 0.01);
+		bc.merge(buildSketch(values, split2, values.length, 0.01));
+		QuantileSketch right = new QuantileSketch(0.01);
+		right.merge(buildSketch(values, 0, split1, 0.01));
+		right.merge(bc);
+
+		// (C+A)+B, exercises growth of the bucket range in both directions
+		QuantileSketch reordered = buildSketch(values, split2, values.length, 0.01);
+		reordered.merge(buildSketch(values, 0, split1, 0.01));
+		reordered.merge(buildSketch(values, split1, split2, 0.01));
+
+		assertSketchesEqual(all, left);
+		assertSketchesEqual(all, right);
+		assertSketchesEqual(all, reordered);
+
+		// merging an empty sketch is a no-op
+		left.merge(new QuantileSketch(0.01));
+		assertSketchesEqual(all, left);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testQuantileMergeDifferentAccuracy() {
+		new QuantileSketch(0.01).merge(new QuantileSketch(0.02));
+	}
+
+	@Test
+	public void testCountMinSketch() {
+		Random r = new Random(1234l);
+		int numKeys = 5000;
+		int width = 512;
+		int depth = 5;
+		long[] exact = new long[numKeys];
+		CountMinSketch all = new CountMinSketch(width, depth);
+		CountMinSketch[] parts = new CountMinSketch[3];
+		for (int i=0; i<parts.length; i++)
+			parts[i] = new CountMinSketch(width, depth);
+		for (int i=0; i<100000; i++) {
+			// skewed key distribution
+			int key = (int)Math.min(numKeys-1, Math.abs(r.nextGaussian())*numKeys/4);
+			exact[key]++;
+			all.add(key);
+			parts[r.nextInt(parts.length)].add(key);
+		}
+
+		// (A+B)+C and A+(B+C) should both be identical to a single sketch
+		CountMinSketch left = new CountMinSketch(width, depth);
+		for (CountMinSketch part : parts)
+			left.merge(part);
+		CountMinSketch bc = new CountMinSketch(width, depth);
+		bc.merge(parts[1]);
+		bc.merge(parts[2]);
+		CountMinSketch right = new CountMinSketch(width, depth);
+		right.merge(parts[0]);
+		right.merge(bc);
+
+		double maxError = Math.E*all.getTotalCount()/width;
+		int numOverBound = 0;
+		for (int key=0; key<numKeys; key++) {
+			long estimate = all.estimate(key);
+			assertTrue("Count-min sketch underestimated", estimate >= exact[key]);
+			if (estimate - exact[key] > maxError)
+				numOverBound++;
+			assertEquals(estimate, left.estimate(key));
+			assertEquals(estimate, right.estimate(key));
+		}
+		// error bound holds with probability 1-exp(-depth) for each key
+		assertTrue(numOverBound+" keys exceeded the error bound", numOverBound <= numKeys*2*Math.exp(-depth));
+		assertEquals(all.getTotalCount(), left.getTotalCount());
+		assertEquals(all.getTotalCount(), right.getTotalCount());
+	}
+
+	@Test
+	public void testFixedBinHistogram() {
+		FixedBinHistogram hist = new FixedBinHistogram(0.5, 10, 1d);
+		hist.add(-5d);
+		hist.add(1.2);
+		hist.add(3.6, 3l);
+		hist.add(100d);
+		assertEquals(1l, hist.getCount(0));
+		assertEquals(1l, hist.getCount(1));
+		assertEquals(3l, hist.getCount(3));
+		assertEquals(1l, hist.getCount(9));
+
+		FixedBinHistogram other = new FixedBinHistogram(0.5, 10, 1d);
+		other.add(3.2);
+		hist.merge(other);
+		HistogramFunction func = hist.toHistogramFunction();
+		assertEquals(10, func.size());
+		assertEquals(0.5, func.getMinX(), 1e-10);
+		assertEquals(4d, func.getY(3), 0d);
+		assertEquals(7d, func.calcSumOfY_Vals(), 0d);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testFixedBinHistogramMergeDifferentBins() {
+		new FixedBinHistogram(0.5, 10, 1d).merge(new FixedBinHistogram(0.5, 11, 1d));
+	}
+
+	private static List<List<ETAS_EqkRupture>> buildCatalogs(Random r, int num) {
+		List<List<ETAS_EqkRupture>> catalogs = new ArrayList<>();
+		for (int c=0; c<num; c++) {
+			// some empty catalogs
+			int numRups = r.nextInt(10) == 0 ? 0 : r.nextInt(200);
+			List<ETAS_EqkRupture> catalog = new ArrayList<>();
+			for (int i=0; i<numRups; i++) {
+				ETAS_EqkRupture rup = new ETAS_EqkRupture();
+				rup.setID(i);
+				rup.setMag(2.5 + 5*r.nextDouble()*r.nextDouble());
+				rup.setOriginTime((long)(r.nextDouble()*10*ProbabilityModelsCalc.MILLISEC_PER_YEAR));
+				catalog.add(rup);
+			}
+			catalogs.add(catalog);
+		}
+		return catalogs;
+	}
+
+	private static void assertHistogramsEqual(HistogramFunction expected, HistogramFunction actual) {
+		assertEquals(expected.size(), actual.size());
+		assertEquals(expected.getMinX(), actual.getMinX(), 1e-10);
+		for (int i=0; i<expected.size(); i++)
+			assertEquals(expected.getY(i), actual.getY(i), 0d);
+	}
+
+	@Test
+	public void testParallelAggregation() {
+		List<List<ETAS_EqkRupture>> catalogs = buildCatalogs(new Random(1234l), 1000);
+
+		List<MagnitudeAccumulator> mags = new ArrayList<>();
+		List<FirstEventTimeAccumulator> times = new ArrayList<>();
+		List<CountHistogramAccumulator> counts = new ArrayList<>();
+		List<ScalarHistogramAccumulator> moments = new ArrayList<>();
+		for (int threads : new int[] { 1, 2, 4 }) {
+			MagnitudeAccumulator mag = new MagnitudeAccumulator();
+			FirstEventTimeAccumulator time = new FirstEventTimeAccumulator(0l, 5d);
+			CountHistogramAccumulator count = new CountHistogramAccumulator(3d, 100);
+			ScalarHistogramAccumulator moment = new ScalarHistogramAccumulator(
+					catalog -> Math.log10(ETAS_MultiSimAnalysisTools.calcTotalMoment(catalog)), 0.05);
+			// small queue to exercise back-pressure
+			int num = ETAS_CatalogAggregation.aggregate(catalogs, threads, 2, Arrays.asList(mag, time, count, moment));
+			assertEquals(catalogs.size(), num);
+			mags.add(mag);
+			times.add(time);
+			counts.add(count);
+			moments.add(moment);
+		}
+
+		int numEmpty = 0;
+		for (List<ETAS_EqkRupture> catalog : catalogs)
+			if (catalog.isEmpty())
+				numEmpty++;
+		assertTrue(numEmpty > 0);
+
+		for (int i=0; i<mags.size(); i++) {
+			assertEquals(catalogs.size(), mags.get(i).getNumCatalogs());
+			assertEquals(numEmpty, mags.get(i).getNumEmptyCatalogs());
+			assertSketchesEqual(mags.get(0).getEventMagnitudes(), mags.get(i).getEventMagnitudes());
+			assertSketchesEqual(mags.get(0).getCatalogMaxMagnitudes(), mags.get(i).getCatalogMaxMagnitudes());
+			assertHistogramsEqual(mags.get(0).getMagnitudeHistogram(), mags.get(i).getMagnitudeHistogram());
+			assertEquals(mags.get(0).getProbMaxMagAbove(6d), mags.get(i).getProbMaxMagAbove(6d), 0d);
+
+			assertEquals(catalogs.size(), times.get(i).getNumCatalogs());
+			assertSketchesEqual(times.get(0).getFirstEventTimes(), times.get(i).getFirstEventTimes());
+
+			assertHistogramsEqual(counts.get(0).getHistogram(), counts.get(i).getHistogram());
+
+			assertEquals(catalogs.size(), moments.get(i).getNumCatalogs());
+			assertEquals(numEmpty, moments.get(i).getNumNonFinite());
+			assertHistogramsEqual(moments.get(0).getHistogram(), moments.get(i).getHistogram());
+		}
+
+		// check the exact statistics against direct calculations
+		int numAbove6 = 0;
+		for (List<ETAS_EqkRupture> catalog : catalogs) {
+			double maxMag = Double.NEGATIVE_INFINITY;
+			for (ETAS_EqkRupture rup : catalog)
+				maxMag = Math.max(maxMag, rup.getMag());
+			if (maxMag > 6d)
+				numAbove6++;
+		}
+		// CDF is evaluated at the bucket level, so allow for a little leakage around the boundary
+		assertEquals((double)numAbove6/catalogs.size(), mags.get(0).getProbMaxMagAbove(6d), 0.02);
+		HistogramFunction momentHist = moments.get(0).getHistogram();
+		assertEquals(catalogs.size() - numEmpty, momentHist.calcSumOfY_Vals(), 0d);
+	}
+
+	@Test
+	public void testScalarHistogramMerge() {
+		List<List<ETAS_EqkRupture>> catalogs = buildCatalogs(new Random(4321l), 300);
+		ScalarHistogramAccumulator all = new ScalarHistogramAccumulator(catalog -> catalog.size(), 10d);
+		ScalarHistogramAccumulator[] parts = new ScalarHistogramAccumulator[3];
+		for (int i=0; i<parts.length; i++)
+			parts[i] = all.newEmptyCopy();
+		for (int i=0; i<catalogs.size(); i++) {
+			all.processCatalog(catalogs.get(i));
+			// contiguous blocks so that each part covers a different range
+			parts[i*parts.length/catalogs.size()].processCatalog(catalogs.get(i));
+		}
+		// C+(B+A)
+		ScalarHistogramAccumulator ba = parts[1].newEmptyCopy();
+		ba.merge(parts[1]);
+		ba.merge(parts[0]);
+		ScalarHistogramAccumulator merged = parts[2].newEmptyCopy();
+		merged.merge(parts[2]);
+		merged.merge(ba);
+
+		assertEquals(all.getNumCatalogs(), merged.getNumCatalogs());
+		assertHistogramsEqual(all.getHistogram(), merged.getHistogram());
+		assertEquals(catalogs.size(), all.getHistogram().calcSumOfY_Vals(), 0d);
+		assertNull(new ScalarHistogramAccumulator(catalog -> catalog.size(), 10d).getHistogram());
+	}
+
+}
@@ -0,0 +1,128 @@
+package scratch.UCERF3.erf.ETAS;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.FileUtils;
+
+import com.google.common.io.Files;
+
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO.ETAS_Catalog;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO.IncrementalBinaryCatalogWriter;
+
+public class ETAS_CatalogIOTest {
+
+	private File tempDir;
+
+	@Before
+	public void setUp() {
+		tempDir = Files.createTempDir();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	private static List<ETAS_EqkRupture> buildRuptures(Random r, int num) {
+		List<ETAS_EqkRupture> rups = new ArrayList<>();
+		long time = 1000000l;
+		for (int i=0; i<num; i++) {
+			ETAS_EqkRupture rup = new ETAS_EqkRupture();
+			rup.setID(i);
+			rup.setParentID(i > 0 ? r.nextInt(i) : -1);
+			rup.setGeneration(i > 0 ? 1 : 0);
+			rup.setMag(2.5 + 5*r.nextDouble());
+			time += r.nextInt(100000);
+			rup.setOriginTime(time);
+			rup.setHypocenterLocation(new Location(34 + r.nextDouble(), -118 + r.nextDouble(), 10*r.nextDouble()));
+			rup.setFSSIndex(r.nextBoolean() ? r.nextInt(1000) : -1);
+			rups.add(rup);
+		}
+		return rups;
+	}
+
+	private static void assertRupturesEqual(List<ETAS_EqkRupture> expected, List<ETAS_EqkRupture> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++) {
+			ETAS_EqkRupture e = expected.get(i);
+			ETAS_EqkRupture a = actual.get(i);
+			assertEquals(e.getID(), a.getID());
+			assertEquals(e.getParentID(), a.getParentID());
+			assertEquals(e.getGeneration(), a.getGeneration());
+			assertEquals(e.getMag(), a.getMag(), 0d);
+			assertEquals(e.getOriginTime(), a.getOriginTime());
+			assertEquals(e.getFSSIndex(), a.getFSSIndex());
+			assertEquals(e.getHypocenterLocation().getLatitude(), a.getHypocenterLocation().getLatitude(), 1e-10);
+			assertEquals(e.getHypocenterLocation().getLongitude(), a.getHypocenterLocation().getLongitude(), 1e-10);
+			assertEquals(e.getHypocenterLocation().getDepth(), a.getHypocenterLocation().getDepth(), 1e-10);
+		}
+	}
+
+	@Test
+	public void testIncrementalMatchesStandardWriter() throws IOException {
+		List<ETAS_EqkRupture> rups = buildRuptures(new Random(1234l), 500);
+		ETAS_SimulationMetadata meta = ETAS_SimulationMetadata.instance(1234l, 7, null, null,
+				0l, rups.get(rups.size()-1).getOriginTime(), 2.5, rups);
+
+		File incrementalFile = new File(tempDir, "incremental.bin");
+		IncrementalBinaryCatalogWriter writer = new IncrementalBinaryCatalogWriter(incrementalFile, 0l);
+		for (ETAS_EqkRupture rup : rups)
+			writer.append(rup);
+		assertFalse("catalog reported complete before finish",
+				ETAS_CatalogIO.isBinaryCatalogFileComplete(incrementalFile));
+		writer.finish(meta);
+		assertTrue(ETAS_CatalogIO.isBinaryCatalogFileComplete(incrementalFile));
+
+		ETAS_Catalog standard = new ETAS_Catalog(meta);
+		standard.addAll(rups);
+		File standardFile = new File(tempDir, "standard.bin");
+		ETAS_CatalogIO.writeCatalogBinary(standardFile, standard);
+
+		// byte for byte identical to the existing format
+		assertArrayEquals(Files.toByteArray(standardFile), Files.toByteArray(incrementalFile));
+
+		ETAS_Catalog loaded = ETAS_CatalogIO.loadCatalogBinary(incrementalFile);
+		assertEquals(7, loaded.getSimulationMetadata().catalogIndex);
+		assertRupturesEqual(rups, loaded);
+	}
+
+	@Test
+	public void testUnfinishedIsIncomplete() throws IOException {
+		List<ETAS_EqkRupture> rups = buildRuptures(new Random(4321l), 50);
+		File file = new File(tempDir, "unfinished.bin");
+		IncrementalBinaryCatalogWriter writer = new IncrementalBinaryCatalogWriter(file, 0l);
+		for (ETAS_EqkRupture rup : rups)
+			writer.append(rup);
+		writer.close();
+		assertFalse(ETAS_CatalogIO.isBinaryCatalogFileComplete(file));
+	}
+
+	@Test
+	public void testUpdateMetadata() throws IOException {
+		List<ETAS_EqkRupture> rups = buildRuptures(new Random(5678l), 20);
+		ETAS_SimulationMetadata meta = ETAS_SimulationMetadata.instance(5678l, -1, null, null,
+				0l, rups.get(rups.size()-1).getOriginTime(), 2.5, rups);
+		File file = new File(tempDir, "update.bin");
+		IncrementalBinaryCatalogWriter writer = new IncrementalBinaryCatalogWriter(file, 0l);
+		for (ETAS_EqkRupture rup : rups)
+			writer.append(rup);
+		writer.finish(meta);
+
+		ETAS_CatalogIO.updateBinaryMetadata(file, meta.getModCatalogIndex(42));
+		assertTrue(ETAS_CatalogIO.isBinaryCatalogFileComplete(file));
+		ETAS_Catalog loaded = ETAS_CatalogIO.loadCatalogBinary(file);
+		assertEquals(42, loaded.getSimulationMetadata().catalogIndex);
+		assertRupturesEqual(rups, loaded);
+	}
+
+}
@@ -0,0 +1,220 @@
+package scratch.UCERF3.erf.ETAS;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.eq.MagUtils;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.FileUtils;
+import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
+import org.opensha.sha.faultSurface.FaultSection;
+import org.opensha.sha.faultSurface.FaultTrace;
+
+import com.google.common.io.Files;
+
+import scratch.UCERF3.FaultSystemRupSet;
+
+/**
+ * Verifies catalog summary statistics against values computed directly from the catalog, and that they survive a
+ * write/load round trip
+ */
+public class ETAS_CatalogSummaryTest {
+
+	private static final int NUM_SECTS = 20;
+	private static final int SECTS_PER_PARENT = 5;
+	private static final int NUM_RUPS = 100;
+	private static final double[] MAG_THRESHOLDS = { 3d, 5d, 6.7d, 9d };
+
+	private static FaultSystemRupSet rupSet;
+
+	private File tempDir;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		List<FaultSection> sects = new ArrayList<>();
+		for (int s=0; s<NUM_SECTS; s++) {
+			FaultTrace trace = new FaultTrace(null);
+			trace.add(new Location(34d + 0.1*s, -118d));
+			trace.add(new Location(34d + 0.1*s + 0.1, -118d));
+			FaultSectionPrefData sect = new FaultSectionPrefData();
+			sect.setFaultTrace(trace);
+			sect.setAveDip(90d);
+			sect.setAveUpperDepth(0d);
+			sect.setAveLowerDepth(12d);
+			sect.setSectionId(s);
+			sect.setParentSectionId(100 + s/SECTS_PER_PARENT);
+			sects.add(sect);
+		}
+		Random r = new Random(1234l);
+		List<List<Integer>> sectionsForRups = new ArrayList<>();
+		for (int i=0; i<NUM_RUPS; i++) {
+			int start = r.nextInt(NUM_SECTS);
+			List<Integer> ids = new ArrayList<>();
+			int num = 1 + r.nextInt(Math.min(8, NUM_SECTS - start));
+			for (int j=0; j<num; j++)
+				ids.add(start + j);
+			sectionsForRups.add(ids);
+		}
+		double[] mags = new double[NUM_RUPS];
+		for (int i=0; i<NUM_RUPS; i++)
+			mags[i] = 6.5d;
+		rupSet = new FaultSystemRupSet(sects, null, null, null, sectionsForRups, mags, new double[NUM_RUPS],
+				new double[NUM_RUPS], null, "");
+	}
+
+	@Before
+	public void setUp() {
+		tempDir = Files.createTempDir();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	private static List<ETAS_EqkRupture> buildRuptures(Random r, int num) {
+		List<ETAS_EqkRupture> rups = new ArrayList<>();
+		long time = 1000000l;
+		for (int i=0; i<num; i++) {
+			ETAS_EqkRupture rup = new ETAS_EqkRupture();
+			rup.setID(i);
+			rup.setGeneration(r.nextInt(3));
+			rup.setMag(2.5 + 5*r.nextDouble());
+			// out of order origin times, summaries must not assume sorted events
+			rup.setOriginTime(time + r.nextInt(10000000));
+			rup.setHypocenterLocation(new Location(34 + r.nextDouble(), -118 + r.nextDouble(), 10*r.nextDouble()));
+			rup.setFSSIndex(r.nextInt(5) == 0 ? r.nextInt(NUM_RUPS) : -1);
+			rups.add(rup);
+		}
+		return rups;
+	}
+
+	private static void assertMatchesCatalog(List<ETAS_EqkRupture> rups, ETAS_CatalogSummary summary) {
+		int numSpont = 0;
+		int numSupra = 0;
+		double maxMag = Double.NaN;
+		double moment = 0d;
+		ETAS_EqkRupture firstFSS = null;
+		for (ETAS_EqkRupture rup : rups) {
+			if (rup.getGeneration() == 0)
+				numSpont++;
+			if (Double.isNaN(maxMag) || rup.getMag() > maxMag)
+				maxMag = rup.getMag();
+			moment += MagUtils.magToMoment(rup.getMag());
+			if (rup.getFSSIndex() >= 0) {
+				numSupra++;
+				if (firstFSS == null || rup.getOriginTime() < firstFSS.getOriginTime())
+					firstFSS = rup;
+			}
+		}
+		assertEquals(rups.size(), summary.getNumEvents());
+		assertEquals(numSpont, summary.getNumSpontaneous());
+		assertEquals(numSupra, summary.getNumSupraSeis());
+		assertEquals(maxMag, summary.getMaxMag(), 0d);
+		assertEquals(moment, summary.getTotalMoment(), moment*1e-12);
+		if (firstFSS == null) {
+			assertEquals(-1l, summary.getFirstFSS_OriginTime());
+			assertEquals(-1, summary.getFirstFSS_Index());
+			assertTrue(Double.isNaN(summary.getFirstFSS_Mag()));
+		} else {
+			assertEquals(firstFSS.getOriginTime(), summary.getFirstFSS_OriginTime());
+			assertEquals(firstFSS.getFSSIndex(), summary.getFirstFSS_Index());
+			assertEquals(firstFSS.getMag(), summary.getFirstFSS_Mag(), 0d);
+		}
+		assertArrayEquals(MAG_THRESHOLDS, summary.getMagThresholds(), 0d);
+		for (double threshold : MAG_THRESHOLDS) {
+			int count = 0;
+			long firstOT = -1l;
+			for (ETAS_EqkRupture rup : rups) {
+				if (rup.getMag() >= threshold) {
+					count++;
+					if (firstOT < 0l || rup.getOriginTime() < firstOT)
+						firstOT = rup.getOriginTime();
+				}
+			}
+			assertEquals(count, summary.getCountAbove(threshold));
+			assertEquals(firstOT, summary.getFirstOriginTimeAbove(threshold));
+		}
+	}
+
+	private static Map<Integer, Integer> calcParentCounts(List<ETAS_EqkRupture> rups) {
+		Map<Integer, Integer> counts = new HashMap<>();
+		for (ETAS_EqkRupture rup : rups) {
+			if (rup.getFSSIndex() < 0)
+				continue;
+			Set<Integer> parents = new HashSet<>();
+			for (int sectIndex : rupSet.getSectionsIndicesForRup(rup.getFSSIndex()))
+				parents.add(rupSet.getFaultSectionData(sectIndex).getParentSectionId());
+			for (int parentID : parents)
+				counts.put(parentID, counts.containsKey(parentID) ? counts.get(parentID) + 1 : 1);
+		}
+		return counts;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		List<ETAS_EqkRupture> rups = buildRuptures(new Random(1234l), 1000);
+		ETAS_CatalogSummary summary = ETAS_CatalogSummary.build(rups, MAG_THRESHOLDS, rupSet);
+		assertMatchesCatalog(rups, summary);
+		Map<Integer, Integer> parentCounts = calcParentCounts(rups);
+		assertFalse(parentCounts.isEmpty());
+		assertEquals(parentCounts, summary.getParentParticipationCounts());
+
+		summary.writeSummary(ETAS_CatalogSummary.getSummaryFile(tempDir));
+		ETAS_CatalogSummary loaded = ETAS_CatalogSummary.loadSummaryIfPresent(tempDir);
+		assertNotNull(loaded);
+		assertMatchesCatalog(rups, loaded);
+		assertTrue(loaded.hasParentParticipation());
+		assertEquals(parentCounts, loaded.getParentParticipationCounts());
+	}
+
+	@Test
+	public void testRoundTripWithoutParents() throws IOException {
+		List<ETAS_EqkRupture> rups = buildRuptures(new Random(4321l), 100);
+		ETAS_CatalogSummary summary = ETAS_CatalogSummary.build(rups, MAG_THRESHOLDS, null);
+		assertFalse(summary.hasParentParticipation());
+
+		File file = new File(tempDir, "summary.bin");
+		summary.writeSummary(file);
+		ETAS_CatalogSummary loaded = ETAS_CatalogSummary.loadSummary(file);
+		assertMatchesCatalog(rups, loaded);
+		assertFalse(loaded.hasParentParticipation());
+		assertNull(loaded.getParentParticipationCounts());
+	}
+
+	@Test
+	public void testEmptyCatalog() throws IOException {
+		List<ETAS_EqkRupture> rups = new ArrayList<>();
+		ETAS_CatalogSummary summary = ETAS_CatalogSummary.build(rups, MAG_THRESHOLDS, rupSet);
+		File file = new File(tempDir, "summary.bin");
+		summary.writeSummary(file);
+		ETAS_CatalogSummary loaded = ETAS_CatalogSummary.loadSummary(file);
+		assertMatchesCatalog(rups, loaded);
+		assertTrue(Double.isNaN(loaded.getMaxMag()));
+		assertTrue(loaded.getParentParticipationCounts().isEmpty());
+	}
+
+	@Test
+	public void testMissingSummary() throws IOException {
+		assertNull(ETAS_CatalogSummary.loadSummaryIfPresent(tempDir));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUntrackedThreshold() {
+		ETAS_CatalogSummary.build(buildRuptures(new Random(1l), 10), MAG_THRESHOLDS, null).getCountAbove(4d);
+	}
+
+}
@@ -0,0 +1,191 @@
+package scratch.UCERF3.erf.ETAS.analysis;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.FileUtils;
+
+import com.google.common.io.Files;
+
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO.ETAS_Catalog;
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+import scratch.UCERF3.erf.ETAS.ETAS_SimulationMetadata;
+import scratch.UCERF3.erf.ETAS.launcher.ETAS_Config;
+import scratch.UCERF3.erf.utils.ProbabilityModelsCalc;
+
+/**
+ * Simulates an interrupted report: plots process the catalogs in a partially written binary file and checkpoint
+ * their state, then the file grows and new plot instances resume from that state. The resumed state must match
+ * that of processing every catalog in one pass.
+ */
+public class ETAS_PlotStateCheckpointTest {
+
+	private static final int NUM_CATALOGS = 40;
+	private static final int NUM_BEFORE_INTERRUPT = 25;
+
+	private File tempDir;
+	private File stateDir;
+	private ETAS_Config config;
+
+	@Before
+	public void setUp() {
+		tempDir = Files.createTempDir();
+		stateDir = new File(tempDir, "state");
+		config = new ETAS_Config(NUM_CATALOGS, 100d, true, null, null, tempDir);
+		config.setStartYear(2012);
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	private interface PlotBuilder {
+		ETAS_AbstractPlot build(String prefix);
+	}
+
+	private PlotBuilder[] getPlotBuilders() {
+		return new PlotBuilder[] {
+				prefix -> new ETAS_StationarityPlot(config, null, prefix),
+				prefix -> new ETAS_GriddedNucleationPlot(config, null, prefix, true)
+		};
+	}
+
+	private List<ETAS_Catalog> buildCatalogs(Random r) {
+		long startTime = config.getSimulationStartTimeMillis();
+		List<ETAS_Catalog> catalogs = new ArrayList<>();
+		for (int c=0; c<NUM_CATALOGS; c++) {
+			List<ETAS_EqkRupture> rups = new ArrayList<>();
+			int num = r.nextInt(200);
+			long time = startTime;
+			for (int i=0; i<num; i++) {
+				ETAS_EqkRupture rup = new ETAS_EqkRupture();
+				rup.setID(i);
+				rup.setParentID(-1);
+				rup.setGeneration(0);
+				rup.setMag(2.5 + 5*Math.pow(r.nextDouble(), 4));
+				time += (long)(r.nextDouble()*2d*config.getDuration()*ProbabilityModelsCalc.MILLISEC_PER_YEAR/num);
+				rup.setOriginTime(time);
+				rup.setHypocenterLocation(new Location(34 + 2*r.nextDouble(), -119 + 2*r.nextDouble(), 10*r.nextDouble()));
+				rups.add(rup);
+			}
+			ETAS_Catalog catalog = new ETAS_Catalog(ETAS_SimulationMetadata.instance(
+					r.nextLong(), c, null, null, startTime, time, 2.5, rups));
+			catalog.addAll(rups);
+			catalogs.add(catalog);
+		}
+		return catalogs;
+	}
+
+	private static void writeCatalogs(File file, List<ETAS_Catalog> catalogs, int from, int to) throws IOException {
+		DataOutputStream out;
+		if (from == 0)
+			out = ETAS_CatalogIO.initCatalogsBinary(file, catalogs.size());
+		else
+			// append, as a simulation which is still running does
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		for (int i=from; i<to; i++)
+			ETAS_CatalogIO.writeCatalogBinary(out, catalogs.get(i));
+		out.close();
+	}
+
+	private static void process(ETAS_AbstractPlot plot, List<ETAS_Catalog> catalogs, int from, int to) {
+		for (int i=from; i<to; i++)
+			plot.processCatalog(catalogs.get(i), null);
+	}
+
+	private static byte[] getState(ETAS_AbstractPlot plot) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		assertTrue(plot.writeState(out));
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void testInterruptAndResume() throws IOException {
+		List<ETAS_Catalog> catalogs = buildCatalogs(new Random(1234l));
+		File inputFile = new File(tempDir, "results_complete_partial.bin");
+		writeCatalogs(inputFile, catalogs, 0, NUM_BEFORE_INTERRUPT);
+
+		PlotBuilder[] builders = getPlotBuilders();
+		for (PlotBuilder builder : builders) {
+			ETAS_AbstractPlot plot = builder.build("plot");
+			assertTrue(plot.isStateCheckpointable());
+			process(plot, catalogs, 0, NUM_BEFORE_INTERRUPT);
+			plot.checkpointState(stateDir, inputFile);
+		}
+
+		// more catalogs have completed since the interruption
+		writeCatalogs(inputFile, catalogs, NUM_BEFORE_INTERRUPT, NUM_CATALOGS);
+
+		for (PlotBuilder builder : builders) {
+			ETAS_AbstractPlot resumed = builder.build("plot");
+			assertEquals(NUM_BEFORE_INTERRUPT, resumed.restoreState(stateDir, inputFile));
+			assertEquals(NUM_BEFORE_INTERRUPT, resumed.getNumRestored());
+			process(resumed, catalogs, NUM_BEFORE_INTERRUPT, NUM_CATALOGS);
+
+			ETAS_AbstractPlot full = builder.build("plot");
+			process(full, catalogs, 0, NUM_CATALOGS);
+
+			assertEquals(full.getNumProcessed(), resumed.getNumProcessed());
+			assertArrayEquals(getState(full), getState(resumed));
+		}
+	}
+
+	@Test
+	public void testReplacedInputNotRestored() throws IOException {
+		File inputFile = new File(tempDir, "results_complete_partial.bin");
+		List<ETAS_Catalog> catalogs = buildCatalogs(new Random(1234l));
+		writeCatalogs(inputFile, catalogs, 0, NUM_BEFORE_INTERRUPT);
+
+		PlotBuilder[] builders = getPlotBuilders();
+		for (PlotBuilder builder : builders) {
+			ETAS_AbstractPlot plot = builder.build("plot");
+			process(plot, catalogs, 0, NUM_BEFORE_INTERRUPT);
+			plot.checkpointState(stateDir, inputFile);
+		}
+
+		// simulation rerun with the same output path
+		List<ETAS_Catalog> rerun = buildCatalogs(new Random(4321l));
+		writeCatalogs(inputFile, rerun, 0, NUM_CATALOGS);
+
+		for (PlotBuilder builder : builders) {
+			ETAS_AbstractPlot plot = builder.build("plot");
+			assertEquals(0, plot.restoreState(stateDir, inputFile));
+			assertEquals(0, plot.getNumRestored());
+		}
+	}
+
+	@Test
+	public void testChangedConfigNotRestored() throws IOException {
+		File inputFile = new File(tempDir, "results_complete_partial.bin");
+		List<ETAS_Catalog> catalogs = buildCatalogs(new Random(1234l));
+		writeCatalogs(inputFile, catalogs, 0, NUM_BEFORE_INTERRUPT);
+
+		PlotBuilder[] builders = getPlotBuilders();
+		for (PlotBuilder builder : builders) {
+			ETAS_AbstractPlot plot = builder.build("plot");
+			process(plot, catalogs, 0, NUM_BEFORE_INTERRUPT);
+			plot.checkpointState(stateDir, inputFile);
+		}
+
+		for (PlotBuilder builder : builders)
+			assertEquals(0, builder.build("other_plot").restoreState(stateDir, inputFile));
+	}
+
+}
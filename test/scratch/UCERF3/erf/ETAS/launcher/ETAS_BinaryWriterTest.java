@@ -0,0 +1,185 @@
+package scratch.UCERF3.erf.ETAS.launcher;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.FileUtils;
+
+import com.google.common.io.Files;
+
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO.ETAS_Catalog;
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+import scratch.UCERF3.erf.ETAS.ETAS_SimulationMetadata;
+
+/**
+ * Round trip tests for catalogs written through {@link ETAS_BinaryWriter}
+ */
+public class ETAS_BinaryWriterTest {
+
+	private static final int NUM_CATALOGS = 2000;
+
+	private File outputDir;
+	private ETAS_Config config;
+
+	@Before
+	public void setUp() {
+		outputDir = Files.createTempDir();
+		// enough simulated years that binary output (with the default filters) is enabled
+		config = new ETAS_Config(NUM_CATALOGS, 1d, true, null, null, outputDir);
+		assertTrue(config.hasBinaryOutputFilters());
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteRecursive(outputDir);
+	}
+
+	private static ETAS_Catalog buildCatalog(int index, Random r) {
+		List<ETAS_EqkRupture> rups = new ArrayList<>();
+		int num = r.nextInt(20);
+		long time = 1000000l;
+		for (int i=0; i<num; i++) {
+			ETAS_EqkRupture rup = new ETAS_EqkRupture();
+			rup.setID(i);
+			rup.setParentID(-1);
+			rup.setGeneration(0);
+			rup.setMag(2.5 + 5*r.nextDouble());
+			time += r.nextInt(100000);
+			rup.setOriginTime(time);
+			rup.setHypocenterLocation(new Location(34 + r.nextDouble(), -118 + r.nextDouble(), 10*r.nextDouble()));
+			rups.add(rup);
+		}
+		ETAS_Catalog catalog = new ETAS_Catalog(ETAS_SimulationMetadata.instance(
+				r.nextLong(), index, null, null, 0l, time, 2.5, rups));
+		catalog.addAll(rups);
+		return catalog;
+	}
+
+	private static void assertCatalogsEqual(ETAS_Catalog expected, ETAS_Catalog actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++) {
+			ETAS_EqkRupture e = expected.get(i);
+			ETAS_EqkRupture a = actual.get(i);
+			assertEquals(e.getID(), a.getID());
+			assertEquals(e.getMag(), a.getMag(), 0d);
+			assertEquals(e.getOriginTime(), a.getOriginTime());
+			assertEquals(e.getHypocenterLocation().getLatitude(), a.getHypocenterLocation().getLatitude(), 1e-10);
+			assertEquals(e.getHypocenterLocation().getLongitude(), a.getHypocenterLocation().getLongitude(), 1e-10);
+		}
+	}
+
+	/**
+	 * Verifies that the offset index has an entry for every catalog, and that each catalog can be read directly from
+	 * its offset
+	 */
+	private static void checkIndex(File binFile, Map<Integer, ETAS_Catalog> expected) throws IOException {
+		File indexFile = ETAS_BinaryWriter.getIndexFile(binFile);
+		assertTrue(indexFile.exists());
+		Map<Integer, Long> offsets = ETAS_BinaryWriter.loadCatalogIndex(indexFile);
+		assertEquals(expected.keySet(), offsets.keySet());
+		for (Map.Entry<Integer, Long> entry : offsets.entrySet()) {
+			FileInputStream fis = new FileInputStream(binFile);
+			fis.getChannel().position(entry.getValue());
+			ETAS_Catalog catalog = ETAS_CatalogIO.loadCatalogBinary(fis, -10d);
+			assertEquals(entry.getKey().intValue(), catalog.getSimulationMetadata().catalogIndex);
+			assertCatalogsEqual(expected.get(entry.getKey()), catalog);
+		}
+	}
+
+	@Test
+	public void testConcurrentRoundTrip() throws Exception {
+		final ETAS_BinaryWriter writer = new ETAS_BinaryWriter(outputDir, config);
+		final Map<Integer, ETAS_Catalog> expected = new HashMap<>();
+		Random r = new Random(12345l);
+		for (int i=0; i<NUM_CATALOGS; i++)
+			expected.put(i, buildCatalog(i, r));
+
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		List<Future<?>> futures = new ArrayList<>();
+		for (final ETAS_Catalog catalog : expected.values()) {
+			futures.add(exec.submit(() -> {
+				writer.processCatalog(catalog);
+				return null;
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get();
+		exec.shutdown();
+		writer.finalize();
+
+		File completeFile = new File(outputDir, "results_complete.bin");
+		assertTrue(completeFile.exists());
+		assertFalse(new File(outputDir, "results_complete_partial.bin").exists());
+		List<ETAS_Catalog> loaded = ETAS_CatalogIO.loadCatalogsBinary(completeFile);
+		assertEquals(NUM_CATALOGS, loaded.size());
+		boolean[] found = new boolean[NUM_CATALOGS];
+		for (ETAS_Catalog catalog : loaded) {
+			int index = catalog.getSimulationMetadata().catalogIndex;
+			assertFalse("Duplicate catalog "+index, found[index]);
+			found[index] = true;
+			assertCatalogsEqual(expected.get(index), catalog);
+		}
+		checkIndex(completeFile, expected);
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		Random r = new Random(54321l);
+		List<ETAS_Catalog> catalogs = new ArrayList<>();
+		Map<Integer, ETAS_Catalog> expected = new HashMap<>();
+		for (int i=0; i<10; i++) {
+			catalogs.add(buildCatalog(i, r));
+			expected.put(i, catalogs.get(i));
+		}
+
+		// write the first half, but don't finalize
+		ETAS_BinaryWriter writer = new ETAS_BinaryWriter(outputDir, config);
+		for (int i=0; i<5; i++)
+			writer.processCatalog(catalogs.get(i));
+		// queued catalogs aren't done until they have been synced
+		assertTrue(writer.getDoneIndexes().isEmpty());
+		writer.flushWriters();
+		assertEquals(5, writer.getDoneIndexes().size());
+
+		// restart, which should skip those already written
+		writer = new ETAS_BinaryWriter(outputDir, config);
+		for (int i=0; i<5; i++)
+			assertTrue(writer.getDoneIndexes().contains(i));
+		for (ETAS_Catalog catalog : catalogs)
+			writer.processCatalog(catalog);
+		writer.finalize();
+
+		File completeFile = new File(outputDir, "results_complete.bin");
+		List<ETAS_Catalog> loaded = ETAS_CatalogIO.loadCatalogsBinary(completeFile);
+		assertEquals(catalogs.size(), loaded.size());
+		for (int i=0; i<catalogs.size(); i++)
+			assertCatalogsEqual(catalogs.get(i), loaded.get(i));
+		// offsets for the catalogs written before the restart are recovered from the partial file
+		checkIndex(completeFile, expected);
+	}
+
+	@Test
+	public void testFinalizeEmpty() throws IOException {
+		ETAS_BinaryWriter writer = new ETAS_BinaryWriter(outputDir, config);
+		writer.finalize();
+		assertFalse(new File(outputDir, "results_complete.bin").exists());
+		assertFalse(new File(outputDir, "results_complete_index.bin").exists());
+	}
+
+}
@@ -0,0 +1,158 @@
+package scratch.UCERF3.griddedSeismicity;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensha.commons.data.region.CaliforniaRegions;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.FileUtils;
+import org.opensha.commons.util.XMLUtils;
+import org.opensha.sha.magdist.IncrementalMagFreqDist;
+
+import com.google.common.io.Files;
+
+/**
+ * Verifies that streamed (StAX) grid source XML reading and writing is equivalent to the DOM implementation
+ */
+public class GridSourceFileReaderTest {
+
+	private File tempDir;
+	private GridSourceFileReader gridSources;
+
+	@Before
+	public void setUp() {
+		tempDir = Files.createTempDir();
+
+		GriddedRegion region = new CaliforniaRegions.RELM_TESTING_GRIDDED(0.5);
+		Random r = new Random(1234l);
+		Map<Integer, IncrementalMagFreqDist> subSeisMFDs = new HashMap<>();
+		Map<Integer, IncrementalMagFreqDist> unassociatedMFDs = new HashMap<>();
+		for (int i=0; i<region.getNumLocations(); i++) {
+			// include nodes without one or both MFDs
+			if (r.nextInt(4) > 0)
+				subSeisMFDs.put(i, buildMFD(r));
+			if (r.nextInt(4) > 0)
+				unassociatedMFDs.put(i, buildMFD(r));
+		}
+		gridSources = new GridSourceFileReader(region, subSeisMFDs, unassociatedMFDs);
+	}
+
+	private static IncrementalMagFreqDist buildMFD(Random r) {
+		IncrementalMagFreqDist mfd = new IncrementalMagFreqDist(5.05, 30, 0.1);
+		double rate = Math.pow(10, -2 - 2*r.nextDouble());
+		for (int i=0; i<mfd.size(); i++)
+			mfd.set(i, rate*Math.pow(10, -i*0.1));
+		return mfd;
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	private static void assertMFDsEqual(IncrementalMagFreqDist expected, IncrementalMagFreqDist actual) {
+		if (expected == null) {
+			assertNull(actual);
+			return;
+		}
+		assertNotNull(actual);
+		assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++) {
+			assertEquals(expected.getX(i), actual.getX(i), 1e-10);
+			assertEquals(expected.getY(i), actual.getY(i), 0d);
+		}
+	}
+
+	private void assertEquivalent(GridSourceFileReader actual) {
+		GriddedRegion region = gridSources.getGriddedRegion();
+		assertEquals(region.getNumLocations(), actual.getGriddedRegion().getNumLocations());
+		for (int i=0; i<region.getNumLocations(); i++) {
+			Location expectedLoc = region.getLocation(i);
+			Location actualLoc = actual.getGriddedRegion().getLocation(i);
+			assertEquals(expectedLoc.getLatitude(), actualLoc.getLatitude(), 1e-10);
+			assertEquals(expectedLoc.getLongitude(), actualLoc.getLongitude(), 1e-10);
+			assertMFDsEqual(gridSources.getNodeSubSeisMFD(i), actual.getNodeSubSeisMFD(i));
+			assertMFDsEqual(gridSources.getNodeUnassociatedMFD(i), actual.getNodeUnassociatedMFD(i));
+		}
+	}
+
+	private File writeDOM() throws IOException {
+		File file = new File(tempDir, "grid_sources_dom.xml");
+		Document doc = XMLUtils.createDocumentWithRoot();
+		gridSources.toXMLMetadata(doc.getRootElement());
+		XMLUtils.writeDocumentToFile(file, doc);
+		return file;
+	}
+
+	private static GridSourceFileReader readDOM(File file) throws DocumentException, IOException {
+		return GridSourceFileReader.fromXMLMetadata(XMLUtils.loadDocument(file).getRootElement());
+	}
+
+	@Test
+	public void testStreamingReadMatchesDOM() throws IOException, DocumentException {
+		File file = writeDOM();
+		GridSourceFileReader dom = readDOM(file);
+		assertEquivalent(dom);
+		assertEquivalent(GridSourceFileReader.fromFile(file));
+	}
+
+	@Test
+	public void testStreamingWriteMatchesDOM() throws IOException, DocumentException {
+		File file = new File(tempDir, "grid_sources_stax.xml");
+		gridSources.writeGriddedSeisFile(file);
+		// readable by both the DOM and streaming readers
+		assertEquivalent(readDOM(file));
+		assertEquivalent(GridSourceFileReader.fromFile(file));
+	}
+
+	private static GridSourceFileReader readString(String xml) throws IOException, DocumentException {
+		return GridSourceFileReader.fromInputStream(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * @return XML with the given node list element (and no nodes)
+	 */
+	private String buildEmptyXML(String nodeListEl) throws IOException {
+		String xml = Files.asCharSource(writeDOM(), StandardCharsets.UTF_8).read();
+		int start = xml.indexOf("<MFDNodeList");
+		int end = xml.indexOf("</MFDNodeList>") + "</MFDNodeList>".length();
+		assertTrue(start > 0 && end > start);
+		return xml.substring(0, start) + nodeListEl + xml.substring(end);
+	}
+
+	@Test
+	public void testEmptyNodeList() throws IOException, DocumentException {
+		GridSourceFileReader empty = readString(buildEmptyXML("<MFDNodeList num=\"0\"/>"));
+		assertNull(empty.getNodeSubSeisMFD(0));
+		assertNull(empty.getNodeUnassociatedMFD(0));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testMissingNodeCount() throws IOException, DocumentException {
+		readString(buildEmptyXML("<MFDNodeList/>"));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testMissingNodeList() throws IOException, DocumentException {
+		readString(buildEmptyXML(""));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testNodeCountMismatch() throws IOException, DocumentException {
+		readString(buildEmptyXML("<MFDNodeList num=\"5\"/>"));
+	}
+
+}
@@ -0,0 +1,208 @@
+package scratch.UCERF3.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensha.commons.util.FileUtils;
+
+import com.google.common.io.Files;
+
+import scratch.UCERF3.FaultSystemSolutionFetcher;
+import scratch.UCERF3.enumTreeBranches.DeformationModels;
+import scratch.UCERF3.enumTreeBranches.FaultModels;
+import scratch.UCERF3.inversion.InversionFaultSystemSolution;
+import scratch.UCERF3.logicTree.BranchWeightProvider;
+import scratch.UCERF3.logicTree.LogicTreeBranch;
+
+/**
+ * Round trip tests for branch rate matrices, comparing statistics against calculations from each branch's rates
+ */
+public class BranchRateMatrixTest {
+
+	private static final DeformationModels[] DMS = { DeformationModels.GEOLOGIC, DeformationModels.ABM,
+			DeformationModels.NEOKINEMA, DeformationModels.ZENGBB };
+	private static final double[] FRACTIONS = { 0d, 0.025, 0.5, 0.975, 1d };
+
+	private File tempDir;
+
+	private List<LogicTreeBranch> branches;
+	private Map<LogicTreeBranch, double[]> branchRates;
+	private Map<LogicTreeBranch, Double> branchWeights;
+	private FaultSystemSolutionFetcher fetch;
+	private BranchWeightProvider weightProvider;
+
+	@Before
+	public void setUp() {
+		tempDir = Files.createTempDir();
+
+		Random r = new Random(1234l);
+		branches = new ArrayList<>();
+		branchRates = new HashMap<>();
+		branchWeights = new HashMap<>();
+		for (FaultModels fm : new FaultModels[] { FaultModels.FM3_1, FaultModels.FM3_2 }) {
+			int numRups = fm == FaultModels.FM3_1 ? 3000 : 2500;
+			for (int d=0; d<DMS.length; d++) {
+				LogicTreeBranch branch = LogicTreeBranch.getMEAN_UCERF3(fm, DMS[d]);
+				double[] rates = new double[numRups];
+				for (int i=0; i<numRups; i++)
+					// include ties and zeros
+					rates[i] = r.nextInt(10) == 0 ? 0d : Math.pow(10, -2 - r.nextInt(6));
+				branches.add(branch);
+				branchRates.put(branch, rates);
+				// include a branch with zero weight
+				branchWeights.put(branch, d == 1 ? 0d : 1d + r.nextDouble());
+			}
+		}
+
+		fetch = new FaultSystemSolutionFetcher() {
+
+			@Override
+			public Collection<LogicTreeBranch> getBranches() {
+				return branches;
+			}
+
+			@Override
+			public double[] getRates(LogicTreeBranch branch) {
+				return branchRates.get(branch);
+			}
+
+			@Override
+			protected InversionFaultSystemSolution fetchSolution(LogicTreeBranch branch) {
+				throw new UnsupportedOperationException();
+			}
+		};
+		weightProvider = new BranchWeightProvider() {
+
+			@Override
+			public double getWeight(LogicTreeBranch branch) {
+				return branchWeights.get(branch);
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	private List<LogicTreeBranch> getBranches(FaultModels fm) {
+		List<LogicTreeBranch> ret = new ArrayList<>();
+		for (LogicTreeBranch branch : branches)
+			if (branch.getValue(FaultModels.class) == fm)
+				ret.add(branch);
+		return ret;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		File file = new File(tempDir, "rates.bin");
+		BranchRateMatrix.write(fetch, weightProvider, file);
+		assertFalse("Temporary file wasn't removed", new File(tempDir, "rates.bin.tmp").exists());
+
+		try (BranchRateMatrix matrix = BranchRateMatrix.load(file)) {
+			assertEquals(2, matrix.getFaultModels().size());
+			for (FaultModels fm : matrix.getFaultModels()) {
+				BranchRateMatrix.Block block = matrix.getBlock(fm);
+				List<LogicTreeBranch> fmBranches = getBranches(fm);
+				assertEquals(fmBranches.size(), block.getNumBranches());
+				int numRups = branchRates.get(fmBranches.get(0)).length;
+				assertEquals(numRups, block.getNumRuptures());
+
+				// rates are stored as floats
+				float[][] rates = new float[fmBranches.size()][numRups];
+				double[] weights = new double[fmBranches.size()];
+				double weightSum = 0d;
+				for (int b=0; b<fmBranches.size(); b++) {
+					LogicTreeBranch branch = fmBranches.get(b);
+					assertEquals(b, block.getBranchIndex(branch));
+					assertEquals(branch.buildFileName(), block.getBranches().get(b).buildFileName());
+					weights[b] = branchWeights.get(branch);
+					assertEquals(weights[b], block.getWeight(b), 0d);
+					weightSum += weights[b];
+					double[] orig = branchRates.get(branch);
+					for (int i=0; i<numRups; i++)
+						rates[b][i] = (float)orig[i];
+					assertArrayEquals(rates[b], block.getRates(b), 0f);
+				}
+
+				double[] mean = block.getWeightedMean();
+				double[] min = block.getMin();
+				double[] max = block.getMax();
+				double[][] fractiles = block.getFractiles(FRACTIONS);
+				for (int i=0; i<numRups; i++) {
+					double expectedMean = 0d;
+					double expectedMin = Double.POSITIVE_INFINITY;
+					double expectedMax = Double.NEGATIVE_INFINITY;
+					for (int b=0; b<rates.length; b++) {
+						expectedMean += rates[b][i]*weights[b]/weightSum;
+						expectedMin = Math.min(expectedMin, rates[b][i]);
+						expectedMax = Math.max(expectedMax, rates[b][i]);
+					}
+					assertEquals(expectedMean, mean[i], expectedMean*1e-12);
+					assertEquals(expectedMin, min[i], 0d);
+					assertEquals(expectedMax, max[i], 0d);
+					for (int f=0; f<FRACTIONS.length; f++)
+						assertEquals(calcFractile(rates, weights, weightSum, i, FRACTIONS[f]), fractiles[f][i], 0d);
+				}
+
+				// subset weights, as used for branch averaging a subset of branches
+				double[] subsetWeights = weights.clone();
+				subsetWeights[0] = 0d;
+				double subsetSum = weightSum - weights[0];
+				double[] subsetMean = block.getWeightedMean(subsetWeights);
+				for (int i=0; i<numRups; i++) {
+					double expected = 0d;
+					for (int b=0; b<rates.length; b++)
+						expected += rates[b][i]*subsetWeights[b]/subsetSum;
+					assertEquals(expected, subsetMean[i], expected*1e-12);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Weighted fractile from a simple sort of the branches for a single rupture: the smallest rate for which the
+	 * normalized cumulative weight of branches with rates less than or equal to it is at least the fraction
+	 */
+	private static double calcFractile(float[][] rates, double[] weights, double weightSum, int rup,
+			double fraction) {
+		List<Integer> sorted = new ArrayList<>();
+		for (int b=0; b<rates.length; b++)
+			if (weights[b] > 0d)
+				sorted.add(b);
+		sorted.sort((b1, b2) -> Float.compare(rates[b1][rup], rates[b2][rup]));
+		double cumWeight = 0d;
+		for (int b : sorted) {
+			cumWeight += weights[b]/weightSum;
+			if (cumWeight >= fraction - 1e-10)
+				return rates[b][rup];
+		}
+		return rates[sorted.get(sorted.size()-1)][rup];
+	}
+
+	@Test
+	public void testFailedWriteCleansUp() {
+		File file = new File(tempDir, "rates.bin");
+		// rupture count discrepancy for the last branch
+		LogicTreeBranch last = branches.get(branches.size()-1);
+		branchRates.put(last, new double[10]);
+		try {
+			BranchRateMatrix.write(fetch, weightProvider, file);
+			fail("Should have failed with inconsistent rupture counts");
+		} catch (Exception e) {}
+		assertFalse(file.exists());
+		assertFalse(new File(tempDir, "rates.bin.tmp").exists());
+	}
+
+}
@@ -0,0 +1,295 @@
+package scratch.UCERF3.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dom4j.DocumentException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.region.CaliforniaRegions;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.FileUtils;
+import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
+import org.opensha.sha.faultSurface.FaultSection;
+import org.opensha.sha.faultSurface.FaultTrace;
+import org.opensha.sha.magdist.IncrementalMagFreqDist;
+
+import com.google.common.io.Files;
+import com.google.common.primitives.Ints;
+
+import scratch.UCERF3.FaultSystemRupSet;
+import scratch.UCERF3.FaultSystemSolution;
+import scratch.UCERF3.griddedSeismicity.GridSourceFileReader;
+import scratch.UCERF3.griddedSeismicity.GridSourceProvider;
+
+/**
+ * Verifies that every getter of a lazily loaded rupture set and solution matches the same zip file loaded eagerly
+ */
+public class LazyZipFaultSystemRupSetTest {
+
+	private static final int NUM_SECTS = 30;
+	private static final int NUM_RUPS = 300;
+
+	private static FaultSystemSolution sol;
+
+	private File tempDir;
+	private File solFile;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		Random r = new Random(1234l);
+		List<FaultSection> sects = new ArrayList<>();
+		for (int s=0; s<NUM_SECTS; s++) {
+			FaultTrace trace = new FaultTrace(null);
+			trace.add(new Location(34d + 0.1*s, -118d));
+			trace.add(new Location(34d + 0.1*s + 0.1, -118d));
+			FaultSectionPrefData sect = new FaultSectionPrefData();
+			sect.setFaultTrace(trace);
+			sect.setAveDip(s % 2 == 0 ? 90d : 45d);
+			sect.setDipDirection(90f);
+			sect.setAveUpperDepth(0d);
+			sect.setAveLowerDepth(12d);
+			sect.setSectionId(s);
+			sect.setSectionName("Section "+s);
+			sect.setParentSectionId(s/10);
+			sect.setParentSectionName("Parent "+(s/10));
+			sects.add(sect);
+		}
+		double[] sectSlipRates = new double[NUM_SECTS];
+		double[] sectSlipRateStdDevs = new double[NUM_SECTS];
+		double[] sectAreas = new double[NUM_SECTS];
+		for (int s=0; s<NUM_SECTS; s++) {
+			sectSlipRates[s] = 1e-3*r.nextDouble();
+			sectSlipRateStdDevs[s] = 1e-4*r.nextDouble();
+			sectAreas[s] = 1e8*(1d + r.nextDouble());
+		}
+		List<List<Integer>> sectionsForRups = new ArrayList<>();
+		double[] mags = new double[NUM_RUPS];
+		double[] rakes = new double[NUM_RUPS];
+		double[] rupAreas = new double[NUM_RUPS];
+		double[] rupLengths = new double[NUM_RUPS];
+		double[] rates = new double[NUM_RUPS];
+		DiscretizedFunc[] rupMFDs = new DiscretizedFunc[NUM_RUPS];
+		for (int i=0; i<NUM_RUPS; i++) {
+			int start = r.nextInt(NUM_SECTS);
+			int[] ids = new int[1 + r.nextInt(Math.min(10, NUM_SECTS - start))];
+			for (int j=0; j<ids.length; j++)
+				ids[j] = start + j;
+			sectionsForRups.add(Ints.asList(ids));
+			mags[i] = 6d + 2d*r.nextDouble();
+			rakes[i] = -180d + 360d*r.nextDouble();
+			rupAreas[i] = 1e8*ids.length;
+			rupLengths[i] = 1e4*ids.length;
+			rates[i] = 1e-5*r.nextDouble();
+			ArbitrarilyDiscretizedFunc rupMFD = new ArbitrarilyDiscretizedFunc();
+			rupMFD.set(mags[i] - 0.1, 0.5*rates[i]);
+			rupMFD.set(mags[i] + 0.1, 0.5*rates[i]);
+			rupMFDs[i] = rupMFD;
+		}
+		FaultSystemRupSet rupSet = new FaultSystemRupSet(sects, sectSlipRates, sectSlipRateStdDevs, sectAreas,
+				sectionsForRups, mags, rakes, rupAreas, rupLengths, "Lazy test rupture set");
+
+		List<IncrementalMagFreqDist> subSeisMFDs = new ArrayList<>();
+		for (int s=0; s<NUM_SECTS; s++)
+			subSeisMFDs.add(buildMFD(r));
+		sol = new FaultSystemSolution(rupSet, rates, subSeisMFDs);
+		sol.setRupMagDists(rupMFDs);
+
+		GriddedRegion region = new CaliforniaRegions.RELM_TESTING_GRIDDED(1d);
+		Map<Integer, IncrementalMagFreqDist> nodeSubSeisMFDs = new HashMap<>();
+		Map<Integer, IncrementalMagFreqDist> nodeUnassociatedMFDs = new HashMap<>();
+		for (int i=0; i<region.getNumLocations(); i++) {
+			if (r.nextBoolean())
+				nodeSubSeisMFDs.put(i, buildMFD(r));
+			nodeUnassociatedMFDs.put(i, buildMFD(r));
+		}
+		sol.setGridSourceProvider(new GridSourceFileReader(region, nodeSubSeisMFDs, nodeUnassociatedMFDs));
+	}
+
+	private static IncrementalMagFreqDist buildMFD(Random r) {
+		IncrementalMagFreqDist mfd = new IncrementalMagFreqDist(5.05, 20, 0.1);
+		double rate = Math.pow(10, -2 - 2*r.nextDouble());
+		for (int i=0; i<mfd.size(); i++)
+			mfd.set(i, rate*Math.pow(10, -i*0.1));
+		return mfd;
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDir();
+		solFile = new File(tempDir, "sol.zip");
+		FaultSystemIO.writeSol(sol, solFile);
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	private static void assertFuncsEqual(DiscretizedFunc expected, DiscretizedFunc actual) {
+		if (expected == null) {
+			assertNull(actual);
+			return;
+		}
+		assertNotNull(actual);
+		assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++) {
+			assertEquals(expected.getX(i), actual.getX(i), 0d);
+			assertEquals(expected.getY(i), actual.getY(i), 0d);
+		}
+	}
+
+	private static void assertSectionsEqual(FaultSection expected, FaultSection actual) {
+		assertEquals(expected.getSectionId(), actual.getSectionId());
+		assertEquals(expected.getSectionName(), actual.getSectionName());
+		assertEquals(expected.getParentSectionId(), actual.getParentSectionId());
+		assertEquals(expected.getParentSectionName(), actual.getParentSectionName());
+		assertEquals(expected.getAveDip(), actual.getAveDip(), 0d);
+		assertEquals(expected.getDipDirection(), actual.getDipDirection(), 0d);
+		assertEquals(expected.getOrigAveUpperDepth(), actual.getOrigAveUpperDepth(), 0d);
+		assertEquals(expected.getAveLowerDepth(), actual.getAveLowerDepth(), 0d);
+		assertEquals(expected.getFaultTrace().size(), actual.getFaultTrace().size());
+		for (int i=0; i<expected.getFaultTrace().size(); i++)
+			assertLocsEqual(expected.getFaultTrace().get(i), actual.getFaultTrace().get(i));
+	}
+
+	private static void assertLocsEqual(Location expected, Location actual) {
+		assertEquals(expected.getLatitude(), actual.getLatitude(), 0d);
+		assertEquals(expected.getLongitude(), actual.getLongitude(), 0d);
+		assertEquals(expected.getDepth(), actual.getDepth(), 0d);
+	}
+
+	private static void assertRupSetsEqual(FaultSystemRupSet expected, LazyZipFaultSystemRupSet actual) {
+		assertEquals(expected.getNumRuptures(), actual.getNumRuptures());
+		assertEquals(expected.getNumSections(), actual.getNumSections());
+
+		List<List<Integer>> sectionForRups = actual.getSectionIndicesForAllRups();
+		assertEquals(expected.getSectionIndicesForAllRups(), sectionForRups);
+		// decoded straight to the compact form, which is passed through as is
+		assertSame(sectionForRups, FaultSystemRupSet.toCompactSectionIndices(sectionForRups));
+		for (int r=0; r<expected.getNumRuptures(); r++)
+			assertEquals(expected.getSectionsIndicesForRup(r), actual.getSectionsIndicesForRup(r));
+		for (int s=0; s<expected.getNumSections(); s++)
+			assertEquals(expected.getRupturesForSection(s), actual.getRupturesForSection(s));
+
+		assertArrayEquals(expected.getMagForAllRups(), actual.getMagForAllRups(), 0d);
+		assertArrayEquals(expected.getAveRakeForAllRups(), actual.getAveRakeForAllRups(), 0d);
+		assertArrayEquals(expected.getAreaForAllRups(), actual.getAreaForAllRups(), 0d);
+		assertArrayEquals(expected.getLengthForAllRups(), actual.getLengthForAllRups(), 0d);
+		for (int r=0; r<expected.getNumRuptures(); r++) {
+			assertEquals(expected.getMagForRup(r), actual.getMagForRup(r), 0d);
+			assertEquals(expected.getAveRakeForRup(r), actual.getAveRakeForRup(r), 0d);
+			assertEquals(expected.getAreaForRup(r), actual.getAreaForRup(r), 0d);
+			assertEquals(expected.getLengthForRup(r), actual.getLengthForRup(r), 0d);
+		}
+
+		assertArrayEquals(expected.getAreaForAllSections(), actual.getAreaForAllSections(), 0d);
+		assertArrayEquals(expected.getSlipRateForAllSections(), actual.getSlipRateForAllSections(), 0d);
+		assertArrayEquals(expected.getSlipRateStdDevForAllSections(), actual.getSlipRateStdDevForAllSections(), 0d);
+		assertEquals(expected.getFaultSectionDataList().size(), actual.getFaultSectionDataList().size());
+		for (int s=0; s<expected.getNumSections(); s++) {
+			assertEquals(expected.getAreaForSection(s), actual.getAreaForSection(s), 0d);
+			assertEquals(expected.getSlipRateForSection(s), actual.getSlipRateForSection(s), 0d);
+			assertEquals(expected.getSlipRateStdDevForSection(s), actual.getSlipRateStdDevForSection(s), 0d);
+			assertSectionsEqual(expected.getFaultSectionData(s), actual.getFaultSectionData(s));
+			assertSectionsEqual(expected.getFaultSectionDataList().get(s), actual.getFaultSectionDataList().get(s));
+		}
+
+		assertEquals(expected.getInfoString(), actual.getInfoString());
+		assertEquals(expected.getPlausibilityConfiguration(), actual.getPlausibilityConfiguration());
+		assertEquals(expected.getClusterRuptures(), actual.getClusterRuptures());
+	}
+
+	private static void assertSolsEqual(FaultSystemSolution expected, LazyZipFaultSystemRupSet.Solution actual) {
+		assertRupSetsEqual(expected.getRupSet(), actual.getRupSet());
+		assertArrayEquals(expected.getRateForAllRups(), actual.getRateForAllRups(), 0d);
+		assertEquals(expected.getInfoString(), actual.getInfoString());
+
+		DiscretizedFunc[] rupMFDs = expected.getRupMagDists();
+		assertNotNull(rupMFDs);
+		assertEquals(rupMFDs.length, actual.getRupMagDists().length);
+		for (int r=0; r<rupMFDs.length; r++) {
+			assertFuncsEqual(rupMFDs[r], actual.getRupMagDists()[r]);
+			assertFuncsEqual(expected.getRupMagDist(r), actual.getRupMagDist(r));
+		}
+
+		List<? extends IncrementalMagFreqDist> subSeisMFDs = expected.getSubSeismoOnFaultMFD_List();
+		assertNotNull(subSeisMFDs);
+		assertEquals(subSeisMFDs.size(), actual.getSubSeismoOnFaultMFD_List().size());
+		for (int s=0; s<subSeisMFDs.size(); s++)
+			assertFuncsEqual(subSeisMFDs.get(s), actual.getSubSeismoOnFaultMFD_List().get(s));
+
+		GridSourceProvider expectedGrid = expected.getGridSourceProvider();
+		GridSourceProvider actualGrid = actual.getGridSourceProvider();
+		assertNotNull(expectedGrid);
+		assertNotNull(actualGrid);
+		assertEquals(expectedGrid.size(), actualGrid.size());
+		for (int i=0; i<expectedGrid.size(); i++) {
+			assertLocsEqual(expectedGrid.getGriddedRegion().getLocation(i), actualGrid.getGriddedRegion().getLocation(i));
+			assertFuncsEqual(expectedGrid.getNodeSubSeisMFD(i), actualGrid.getNodeSubSeisMFD(i));
+			assertFuncsEqual(expectedGrid.getNodeUnassociatedMFD(i), actualGrid.getNodeUnassociatedMFD(i));
+		}
+	}
+
+	@Test
+	public void testRupSetMatchesEager() throws IOException, DocumentException {
+		FaultSystemRupSet eager = FaultSystemIO.loadRupSet(solFile);
+		try (LazyZipFaultSystemRupSet lazy = FaultSystemIO.loadRupSetLazily(solFile, true)) {
+			assertRupSetsEqual(eager, lazy);
+		}
+	}
+
+	@Test
+	public void testSolMatchesEager() throws IOException, DocumentException {
+		FaultSystemSolution eager = FaultSystemIO.loadSol(solFile);
+		try (LazyZipFaultSystemRupSet.Solution lazy = FaultSystemIO.loadSolLazily(solFile, true)) {
+			assertSolsEqual(eager, lazy);
+		}
+	}
+
+	@Test
+	public void testPrefetch() throws IOException, DocumentException, InterruptedException {
+		FaultSystemSolution eager = FaultSystemIO.loadSol(solFile);
+		try (LazyZipFaultSystemRupSet.Solution lazy = FaultSystemIO.loadSolLazily(solFile, true)) {
+			ExecutorService exec = Executors.newFixedThreadPool(4);
+			lazy.prefetch(exec);
+			exec.shutdown();
+			assertTrue(exec.awaitTermination(30, TimeUnit.SECONDS));
+
+			// everything was decoded by the prefetch, so nothing else should be submitted
+			AtomicInteger numSubmitted = new AtomicInteger();
+			lazy.prefetch(task -> numSubmitted.incrementAndGet());
+			assertEquals(0, numSubmitted.get());
+
+			assertSolsEqual(eager, lazy);
+		}
+	}
+
+	@Test
+	public void testSetters() throws IOException {
+		try (LazyZipFaultSystemRupSet lazy = FaultSystemIO.loadRupSetLazily(solFile, false)) {
+			double[] mags = new double[NUM_RUPS];
+			lazy.setMagForallRups(mags);
+			assertSame(mags, lazy.getMagForAllRups());
+			lazy.setInfoString("new info");
+			assertEquals("new info", lazy.getInfoString());
+		}
+	}
+
+}